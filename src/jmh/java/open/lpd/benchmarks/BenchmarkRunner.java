@@ -0,0 +1,36 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line options. The GC
+ * profiler is always added, so every benchmark reports its allocation rate
+ * next to its throughput.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class).build()).run();
+	}
+}
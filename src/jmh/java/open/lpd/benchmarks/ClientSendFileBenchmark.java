@@ -0,0 +1,183 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import open.lpd.client.LpdClientProtocol;
+import open.lpd.server.impl.LpdServer;
+import open.lpd.server.impl.PrintJobDispatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures sending a file with the client protocol to an LPD server over a
+ * loopback connection, once copied from a stream and once transferred from a
+ * file channel. The server runs on daemon threads of the benchmark process
+ * and deletes every received print job.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientSendFileBenchmark {
+
+	private static final String HOST = "127.0.0.1";
+	private static final String QUEUE = "RAW";
+	private static final int CONNECT_ATTEMPTS = 100;
+
+	@Param({ "1024", "65536", "1048576", "16777216" })
+	private int dataFileSize;
+
+	private File queueFolder;
+	private int port;
+	private byte[] data;
+	private File dataFile;
+
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		queueFolder = Files.createTempDirectory("lpdbench").toFile();
+		new File(queueFolder, QUEUE).mkdir();
+		data = new byte[dataFileSize];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ('A' + i % 26);
+		}
+		dataFile = new File(queueFolder, "data.bin");
+		Files.write(dataFile.toPath(), data);
+
+		// start the server on a free port, the index watches the queue folder
+		// and drops the print jobs the handler deletes
+
+		ServerSocket freePort = new ServerSocket(0);
+		port = freePort.getLocalPort();
+		freePort.close();
+		final LpdServer lpdServer = new LpdServer(HOST, port,
+				queueFolder.getPath(), new PrintJobDispatcher(
+						new DiscardPrintJobHandler(null)));
+		final ExecutorService executorService = Executors
+				.newCachedThreadPool(new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		Thread serverThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					lpdServer.serveConnections(100, executorService);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "LpdServer");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		awaitServer();
+	}
+
+	@TearDown
+	public void tearDown() {
+		DiscardPrintJobHandler.deleteFolder(queueFolder);
+	}
+
+	@Benchmark
+	public void sendFile() throws IOException {
+		Socket socket = new Socket(HOST, port);
+		socket.setTcpNoDelay(true);
+		try {
+			LpdClientProtocol clientProtocol = new LpdClientProtocol(
+					socket.getInputStream(), socket.getOutputStream());
+			clientProtocol.sendFile(QUEUE, "bench", new ByteArrayInputStream(
+					data), data.length);
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Benchmark
+	public void sendFileChannel() throws IOException {
+		SocketChannel socketChannel = SocketChannel
+				.open(new InetSocketAddress(HOST, port));
+		FileChannel fileChannel = new FileInputStream(dataFile).getChannel();
+		try {
+			Socket socket = socketChannel.socket();
+			socket.setTcpNoDelay(true);
+			LpdClientProtocol clientProtocol = new LpdClientProtocol(
+					socket.getInputStream(), socket.getOutputStream());
+			clientProtocol.setServerChannel(socketChannel);
+			clientProtocol.sendFile(QUEUE, "bench", fileChannel);
+		} finally {
+			fileChannel.close();
+			socketChannel.close();
+		}
+	}
+
+	private void awaitServer() throws IOException, InterruptedException {
+
+		// wait until the server answers a queue state command
+
+		for (int i = 0; i < CONNECT_ATTEMPTS; i++) {
+			try {
+				Socket socket = new Socket(HOST, port);
+				try {
+					new LpdClientProtocol(socket.getInputStream(),
+							socket.getOutputStream()).getShortQueueState(
+							QUEUE, null);
+				} finally {
+					socket.close();
+				}
+				return;
+			} catch (IOException e) {
+				Thread.sleep(50);
+			}
+		}
+		throw new IOException("LPD server did not start on port " + port
+				+ ".");
+	}
+}
@@ -0,0 +1,78 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import open.lpd.server.LpdCommandLine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading and splitting LPD command lines from a blocking stream and
+ * from the buffers of a non-blocking connection.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandLineBenchmark {
+
+	@Param({ "RAW", "RAW root 12 13 14 root",
+			"12345 dfA123printserver.example.com" })
+	private String line;
+
+	private byte[] bytes;
+	private LpdCommandLine commandLine;
+
+	@Setup
+	public void setup() throws IOException {
+		bytes = (line + "\n").getBytes("ASCII");
+		commandLine = new LpdCommandLine();
+	}
+
+	@Benchmark
+	public int readFromStream() throws IOException {
+		commandLine.read(new ByteArrayInputStream(bytes));
+		return commandLine.getOperandCount()
+				+ commandLine.getOperand(0).length();
+	}
+
+	@Benchmark
+	public int readFromBuffer() throws IOException {
+		commandLine.clear();
+		commandLine.read(ByteBuffer.wrap(bytes));
+		return commandLine.getOperandCount()
+				+ commandLine.getOperand(0).length();
+	}
+}
@@ -0,0 +1,72 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import open.lpd.server.IPrintJobHandler;
+import open.lpd.server.impl.PrintJobIndex;
+
+/**
+ * A print job handler that deletes every received print job, so benchmarks
+ * can receive print jobs without filling up the queue folder.
+ */
+public class DiscardPrintJobHandler implements IPrintJobHandler {
+
+	private PrintJobIndex index;
+
+	/**
+	 * Creates a discarding print job handler.
+	 * 
+	 * @param index
+	 *            the index to remove discarded print jobs from or null if the
+	 *            index watches the queue folder.
+	 */
+	public DiscardPrintJobHandler(PrintJobIndex index) {
+		this.index = index;
+	}
+
+	@Override
+	public void handle(String queue, File printJobFolder) throws IOException {
+		deleteFolder(printJobFolder);
+		if (index != null) {
+			index.removePrintJob(queue, printJobFolder.getName());
+		}
+	}
+
+	/**
+	 * Deletes a folder with its files and sub folders.
+	 * 
+	 * @param folder
+	 *            the folder to delete.
+	 */
+	public static void deleteFolder(File folder) {
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					deleteFolder(file);
+				} else {
+					file.delete();
+				}
+			}
+		}
+		folder.delete();
+	}
+}
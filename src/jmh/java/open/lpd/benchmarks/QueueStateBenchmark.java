@@ -0,0 +1,150 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import open.lpd.server.PrintJob;
+import open.lpd.server.impl.AdmissionControl;
+import open.lpd.server.impl.FileBasedPrintJobQueue;
+import open.lpd.server.impl.LpdServerMetrics;
+import open.lpd.server.impl.PrintJobDispatcher;
+import open.lpd.server.impl.PrintJobIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the short and long queue state of a queue with many waiting print
+ * jobs. The print jobs are added to the index directly instead of being
+ * written to disk, the state commands only read the index. The streaming
+ * variants write the state to a writer which discards it, like a client
+ * connection would consume it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueueStateBenchmark {
+
+	private static final String QUEUE = "RAW";
+
+	@Param({ "10", "10000", "100000" })
+	private int printJobCount;
+
+	private File queueFolder;
+	private FileBasedPrintJobQueue queue;
+	private String[] userList;
+	private String[] jobNumberList;
+	private Writer discardWriter;
+
+	@Setup
+	public void setup() throws IOException {
+		queueFolder = Files.createTempDirectory("lpdbench").toFile();
+		new File(queueFolder, QUEUE).mkdir();
+		PrintJobIndex index = new PrintJobIndex(queueFolder.getPath());
+		index.load();
+		for (int i = 0; i < printJobCount; i++) {
+			String jobNumber = String.format("%03d", i % 1000);
+			String controlFileName = "cfA" + jobNumber + "localhost";
+			byte[] controlFile = ("Hlocalhost\nPuser" + (i % 10)
+					+ "\nJjob" + i + "\nldfA" + jobNumber + "localhost\n")
+					.getBytes("ASCII");
+			String printJob = index.nextPrintJobName();
+			index.addFile(QUEUE, printJob, controlFileName,
+					controlFile.length,
+					PrintJob.parse(controlFileName, controlFile));
+			index.addFile(QUEUE, printJob, "dfA" + jobNumber + "localhost",
+					4096, null);
+		}
+		queue = new FileBasedPrintJobQueue(index, new PrintJobDispatcher(
+				new DiscardPrintJobHandler(index)), new AdmissionControl(),
+				new LpdServerMetrics());
+		userList = new String[] { "user3" };
+		jobNumberList = new String[] { "7" };
+		discardWriter = new Writer() {
+
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+			}
+
+			@Override
+			public void write(String str, int off, int len) {
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@TearDown
+	public void tearDown() {
+		DiscardPrintJobHandler.deleteFolder(queueFolder);
+	}
+
+	@Benchmark
+	public String sendQueueStateShort() throws IOException {
+		return queue.sendQueueStateShort(QUEUE, null);
+	}
+
+	@Benchmark
+	public String sendQueueStateLong() throws IOException {
+		return queue.sendQueueStateLong(QUEUE, null);
+	}
+
+	@Benchmark
+	public String sendQueueStateShortForUser() throws IOException {
+		return queue.sendQueueStateShort(QUEUE, userList);
+	}
+
+	@Benchmark
+	public String sendQueueStateLongForJobNumber() throws IOException {
+		return queue.sendQueueStateLong(QUEUE, jobNumberList);
+	}
+
+	@Benchmark
+	public void writeQueueStateShort() throws IOException {
+		queue.writeQueueStateShort(QUEUE, null, discardWriter);
+	}
+
+	@Benchmark
+	public void writeQueueStateLong() throws IOException {
+		queue.writeQueueStateLong(QUEUE, null, discardWriter);
+	}
+}
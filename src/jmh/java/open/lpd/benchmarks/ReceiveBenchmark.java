@@ -0,0 +1,155 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import open.lpd.server.LpdServerChannelProtocol;
+import open.lpd.server.LpdServerProtocol;
+import open.lpd.server.impl.AdmissionControl;
+import open.lpd.server.impl.FileBasedPrintJobQueue;
+import open.lpd.server.impl.LpdServerMetrics;
+import open.lpd.server.impl.PrintJobDispatcher;
+import open.lpd.server.impl.PrintJobIndex;
+import open.lpd.server.impl.SpoolOptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures receiving a print job with a control file and a data file into the
+ * file based queue, once through the blocking protocol and once through the
+ * non-blocking protocol fed with the chunks a selector would read, with and
+ * without preallocated files. Received print jobs are deleted right away.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceiveBenchmark {
+
+	private static final String QUEUE = "RAW";
+	private static final int CHUNK_SIZE = 65536;
+
+	@Param({ "1024", "65536", "1048576", "16777216" })
+	private int dataFileSize;
+
+	@Param({ "false", "true" })
+	private boolean preallocate;
+
+	private File queueFolder;
+	private FileBasedPrintJobQueue queue;
+	private byte[] printJobStream;
+	private WritableByteChannel discardChannel;
+
+	@Setup
+	public void setup() throws IOException {
+		queueFolder = Files.createTempDirectory("lpdbench").toFile();
+		new File(queueFolder, QUEUE).mkdir();
+		PrintJobIndex index = new PrintJobIndex(queueFolder.getPath());
+		index.load();
+		queue = new FileBasedPrintJobQueue(index, new PrintJobDispatcher(
+				new DiscardPrintJobHandler(index)), new AdmissionControl(),
+				new LpdServerMetrics());
+		SpoolOptions spoolOptions = new SpoolOptions();
+		spoolOptions.setPreallocate(preallocate);
+		queue.setSpoolOptions(spoolOptions);
+		printJobStream = createPrintJobStream(dataFileSize);
+		discardChannel = Channels.newChannel(new OutputStream() {
+
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+	}
+
+	@TearDown
+	public void tearDown() {
+		DiscardPrintJobHandler.deleteFolder(queueFolder);
+	}
+
+	@Benchmark
+	public int receiveWithStreamProtocol() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		new LpdServerProtocol(new ByteArrayInputStream(printJobStream), bos,
+				queue).handle();
+		return bos.size();
+	}
+
+	@Benchmark
+	public boolean receiveWithChannelProtocol() throws IOException {
+		LpdServerChannelProtocol protocol = new LpdServerChannelProtocol(queue);
+		for (int i = 0; i < printJobStream.length; i += CHUNK_SIZE) {
+			protocol.receive(ByteBuffer.wrap(printJobStream, i,
+					Math.min(CHUNK_SIZE, printJobStream.length - i)));
+			protocol.writeOutput(discardChannel);
+		}
+		protocol.endOfInput();
+		protocol.writeOutput(discardChannel);
+		return protocol.isFinished();
+	}
+
+	static byte[] createPrintJobStream(int dataFileSize) throws IOException {
+
+		// receive a printer job command followed by a control file and a data
+		// file, each file ends with a zero octet
+
+		byte[] controlFile = ("Hlocalhost\nPbench\nJbench\nldfA001localhost\n")
+				.getBytes("ASCII");
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(dataFileSize + 256);
+		bos.write(("\u0002" + QUEUE + "\n").getBytes("ASCII"));
+		bos.write(("\u0002" + controlFile.length + " cfA001localhost\n")
+				.getBytes("ASCII"));
+		bos.write(controlFile);
+		bos.write(0);
+		bos.write(("\u0003" + dataFileSize + " dfA001localhost\n")
+				.getBytes("ASCII"));
+		byte[] data = new byte[dataFileSize];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ('A' + i % 26);
+		}
+		bos.write(data);
+		bos.write(0);
+		return bos.toByteArray();
+	}
+}
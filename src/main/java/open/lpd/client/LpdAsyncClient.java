@@ -0,0 +1,460 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ShutdownChannelGroupException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * An asynchronous LPD client for a single LPD server. Every command runs on
+ * its own connection and returns a future instead of blocking the calling
+ * thread. The number of concurrent connections to the server is limited,
+ * further commands wait in a queue without occupying a thread. The client is
+ * thread safe once it has been configured.
+ */
+public class LpdAsyncClient {
+
+	private SocketAddress server;
+	private AsynchronousChannelGroup group;
+	private Semaphore connections;
+	private Queue<Runnable> waitingCommands;
+	private AtomicInteger drainRequests;
+	private String protocolCharset;
+	private String clientHost;
+	private String user;
+	private boolean sendDataFirst;
+	private long timeoutMillis;
+
+	/**
+	 * Creates an asynchronous LPD client that uses the default channel group.
+	 * 
+	 * @param server
+	 *            the address of the LPD server.
+	 * @param maxConnections
+	 *            the maximum number of concurrent connections to the server.
+	 */
+	public LpdAsyncClient(SocketAddress server, int maxConnections) {
+		this(server, maxConnections, null);
+	}
+
+	/**
+	 * Creates an asynchronous LPD client.
+	 * 
+	 * @param server
+	 *            the address of the LPD server.
+	 * @param maxConnections
+	 *            the maximum number of concurrent connections to the server.
+	 * @param group
+	 *            the channel group whose threads run the completion handlers,
+	 *            it may be shared by the clients of several servers, or null
+	 *            for the default group.
+	 */
+	public LpdAsyncClient(SocketAddress server, int maxConnections,
+			AsynchronousChannelGroup group) {
+		this.server = server;
+		this.group = group;
+		this.connections = new Semaphore(maxConnections);
+		this.waitingCommands = new ConcurrentLinkedQueue<Runnable>();
+		this.drainRequests = new AtomicInteger();
+		this.protocolCharset = LpdClientProtocol.LPD_DEFAULT_CHARSET;
+		this.clientHost = LpdClientProtocol.DEFAULT_CLIENT_HOST;
+		this.user = null;
+		this.sendDataFirst = false;
+		this.timeoutMillis = 0;
+	}
+
+	/**
+	 * Sets the charset to use for the protocol.
+	 * 
+	 * @param protocolCharset
+	 *            the charset to use.
+	 */
+	public void setCharset(String protocolCharset) {
+		this.protocolCharset = protocolCharset;
+	}
+
+	/**
+	 * Sets the client host name.
+	 * 
+	 * @param clientHost
+	 *            the client host name.
+	 */
+	public void setClientHost(String clientHost) {
+		this.clientHost = clientHost;
+	}
+
+	/**
+	 * Sets the user name.
+	 * 
+	 * @param user
+	 *            the user name.
+	 */
+	public void setUser(String user) {
+		this.user = user;
+	}
+
+	/**
+	 * Sets whether to send the data file before the control file.
+	 * 
+	 * @param sendDataFirst
+	 *            true to send the data file first.
+	 */
+	public void setSendDataFirst(boolean sendDataFirst) {
+		this.sendDataFirst = sendDataFirst;
+	}
+
+	/**
+	 * Sets the maximum time to wait for each response of the server.
+	 * 
+	 * @param timeoutMillis
+	 *            the timeout in milliseconds or 0 for no limit.
+	 */
+	public void setTimeout(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Gets the number of commands waiting for a connection.
+	 * 
+	 * @return the number of waiting commands.
+	 */
+	public int getWaitingCommandCount() {
+		return waitingCommands.size();
+	}
+
+	/**
+	 * Sends the print any waiting jobs command.
+	 * 
+	 * @param queue
+	 *            the queue name.
+	 * @return the future that completes when the command has been sent.
+	 */
+	public CompletableFuture<Void> printQueue(String queue) {
+		try {
+			LpdAsyncExchange exchange = new LpdAsyncExchange();
+			exchange.write(commandLine(
+					LpdClientProtocol.CMD_PRINT_ANY_WAITING_JOBS, queue, null));
+			return toVoid(submit(exchange));
+		} catch (IOException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Sends the send file command with a default control file.
+	 * 
+	 * @param queue
+	 *            the queue name.
+	 * @param name
+	 *            the name of the file.
+	 * @param data
+	 *            the file data, the remaining bytes of the buffer are sent.
+	 * @return the future that completes when the server has acknowledged the
+	 *         print job, or when an empty data file has been sent.
+	 */
+	public CompletableFuture<Void> sendFile(String queue, String name,
+			ByteBuffer data) {
+		try {
+			LpdAsyncExchange exchange = new LpdAsyncExchange();
+			long count = data.remaining();
+			ByteBuffer dataFile = data.duplicate();
+			sendPrintJob(exchange, queue, name, count, dataFile, null);
+			return toVoid(submit(exchange));
+		} catch (IOException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Sends the send file command with a default control file. The file is
+	 * read asynchronously while it is sent.
+	 * 
+	 * @param queue
+	 *            the queue name.
+	 * @param name
+	 *            the name of the file.
+	 * @param file
+	 *            the file to send.
+	 * @return the future that completes when the server has acknowledged the
+	 *         print job, or when an empty data file has been sent.
+	 */
+	public CompletableFuture<Void> sendFile(String queue, String name,
+			Path file) {
+		try {
+			LpdAsyncExchange exchange = new LpdAsyncExchange();
+			sendPrintJob(exchange, queue, name, Files.size(file), null, file);
+			return toVoid(submit(exchange));
+		} catch (IOException e) {
+			return failed(e);
+		}
+	}
+
+	/**
+	 * Sends the get short queue state command.
+	 * 
+	 * @param queue
+	 *            the queue name.
+	 * @param jobs
+	 *            the job list or null for all jobs.
+	 * @return the future that completes with the short queue state.
+	 */
+	public CompletableFuture<String> getShortQueueState(String queue,
+			String jobs) {
+		return getQueueState(LpdClientProtocol.CMD_SEND_QUEUE_STATE_SHORT,
+				queue, jobs);
+	}
+
+	/**
+	 * Sends the get long queue state command.
+	 * 
+	 * @param queue
+	 *            the queue name.
+	 * @param jobs
+	 *            the job list or null for all jobs.
+	 * @return the future that completes with the long queue state.
+	 */
+	public CompletableFuture<String> getLongQueueState(String queue,
+			String jobs) {
+		return getQueueState(LpdClientProtocol.CMD_SEND_QUEUE_STATE_LONG,
+				queue, jobs);
+	}
+
+	/**
+	 * Sends the remove jobs command on behalf of the user.
+	 * 
+	 * @param queue
+	 *            the queue name.
+	 * @param jobs
+	 *            the job list.
+	 * @return the future that completes when the server has closed the
+	 *         connection.
+	 * @throws IllegalStateException
+	 *             throws if the user name is not set.
+	 */
+	public CompletableFuture<Void> removeJobs(String queue, String jobs) {
+		if (user == null) {
+			throw new IllegalStateException("User is not set.");
+		}
+		try {
+			LpdAsyncExchange exchange = new LpdAsyncExchange();
+			exchange.write(commandLine(LpdClientProtocol.CMD_REMOVE_JOBS,
+					queue + LpdClientProtocol.LPD_WHITESPACE + user, jobs));
+			exchange.readToEnd();
+			return toVoid(submit(exchange));
+		} catch (IOException e) {
+			return failed(e);
+		}
+	}
+
+	private CompletableFuture<String> getQueueState(byte cmd, String queue,
+			String jobs) {
+		try {
+			LpdAsyncExchange exchange = new LpdAsyncExchange();
+			exchange.write(commandLine(cmd, queue, jobs));
+			exchange.readToEnd();
+			return submit(exchange).thenApply(new Function<byte[], String>() {
+
+				@Override
+				public String apply(byte[] response) {
+					try {
+						return new String(response, protocolCharset);
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+		} catch (IOException e) {
+			return failed(e);
+		}
+	}
+
+	private void sendPrintJob(LpdAsyncExchange exchange, String queue,
+			String name, long dataFileSize, ByteBuffer data, Path file)
+			throws IOException {
+
+		// the same sub commands as the blocking client, each file ends with
+		// a zero octet and is acknowledged by the server. An empty data file
+		// has the count 0 of a file of unknown length, it is sent last and
+		// ends with the output of the connection.
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(("H" + clientHost + LpdClientProtocol.LPD_LF)
+				.getBytes(protocolCharset));
+		bos.write(("J" + name + LpdClientProtocol.LPD_LF)
+				.getBytes(protocolCharset));
+		bos.write(("N" + name + LpdClientProtocol.LPD_LF)
+				.getBytes(protocolCharset));
+		if (user != null) {
+			bos.write(("P" + user + LpdClientProtocol.LPD_LF)
+					.getBytes(protocolCharset));
+		}
+		bos.write(LpdClientProtocol.ACK_SUCCESS);
+		byte[] controlFile = bos.toByteArray();
+
+		exchange.write(commandLine(
+				LpdClientProtocol.CMD_RECEIVE_A_PRINTER_JOB, queue, null));
+		exchange.readAck();
+		boolean dataLast = !sendDataFirst || dataFileSize == 0;
+		if (dataLast) {
+			sendControlFile(exchange, controlFile);
+		}
+		exchange.write(commandLine(
+				LpdClientProtocol.SUB_CMD_RECEIVE_DATA_FILE,
+				Long.toString(dataFileSize), "dfA000" + clientHost));
+		exchange.readAck();
+		if (dataFileSize == 0) {
+			exchange.shutdownOutput();
+			return;
+		}
+		if (data != null) {
+			exchange.write(data);
+		} else {
+			exchange.writeFile(file);
+		}
+		exchange.write(ByteBuffer
+				.wrap(new byte[] { LpdClientProtocol.ACK_SUCCESS }));
+		exchange.readAck();
+		if (!dataLast) {
+			sendControlFile(exchange, controlFile);
+		}
+	}
+
+	private void sendControlFile(LpdAsyncExchange exchange,
+			byte[] controlFile) throws IOException {
+		exchange.write(commandLine(
+				LpdClientProtocol.SUB_CMD_RECEIVE_CONTROL_FILE,
+				Integer.toString(controlFile.length - 1), "cfA000"
+						+ clientHost));
+		exchange.readAck();
+		exchange.write(ByteBuffer.wrap(controlFile));
+		exchange.readAck();
+	}
+
+	private ByteBuffer commandLine(byte cmd, String operand, String list)
+			throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(cmd);
+		bos.write(operand.getBytes(protocolCharset));
+		if (list != null) {
+			bos.write(LpdClientProtocol.LPD_WHITESPACE);
+			bos.write(list.getBytes(protocolCharset));
+		}
+		bos.write(LpdClientProtocol.LPD_LF);
+		return ByteBuffer.wrap(bos.toByteArray());
+	}
+
+	private CompletableFuture<byte[]> submit(final LpdAsyncExchange exchange) {
+
+		// run the exchange when a connection is free
+
+		final CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+		waitingCommands.add(new Runnable() {
+
+			@Override
+			public void run() {
+				// a channel opened in a shut down group leaks its socket, so
+				// the group is checked first
+
+				CompletableFuture<byte[]> exchangeResult;
+				try {
+					if (group != null && group.isShutdown()) {
+						throw new ShutdownChannelGroupException();
+					}
+					exchangeResult = exchange.execute(
+							AsynchronousSocketChannel.open(group), server,
+							timeoutMillis);
+				} catch (IOException e) {
+					exchangeResult = failed(e);
+				} catch (ShutdownChannelGroupException e) {
+					exchangeResult = failed(e);
+				}
+				exchangeResult.whenComplete(new BiConsumer<byte[], Throwable>() {
+
+					@Override
+					public void accept(byte[] response, Throwable e) {
+						connections.release();
+						runWaitingCommands();
+						if (e != null) {
+							result.completeExceptionally(e);
+						} else {
+							result.complete(response);
+						}
+					}
+				});
+			}
+		});
+		runWaitingCommands();
+		return result;
+	}
+
+	private void runWaitingCommands() {
+
+		// start waiting commands while connections are free, a command added
+		// concurrently is started by whoever frees or finds the next
+		// connection. Only one caller drains at a time, a command that fails
+		// right away and calls again from its completion just makes the
+		// draining caller go round once more instead of recursing.
+
+		if (drainRequests.getAndIncrement() != 0) {
+			return;
+		}
+		int requests = 1;
+		do {
+			while (!waitingCommands.isEmpty() && connections.tryAcquire()) {
+				Runnable command = waitingCommands.poll();
+				if (command == null) {
+					connections.release();
+				} else {
+					command.run();
+				}
+			}
+			requests = drainRequests.addAndGet(-requests);
+		} while (requests != 0);
+	}
+
+	private static CompletableFuture<Void> toVoid(
+			CompletableFuture<byte[]> future) {
+		return future.thenApply(new Function<byte[], Void>() {
+
+			@Override
+			public Void apply(byte[] response) {
+				return null;
+			}
+		});
+	}
+
+	private static <T> CompletableFuture<T> failed(Throwable e) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(e);
+		return future;
+	}
+}
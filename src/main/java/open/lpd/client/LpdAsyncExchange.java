@@ -0,0 +1,341 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One LPD command exchange on an asynchronous connection, see
+ * {@link LpdAsyncClient}. The exchange is a list of steps that write to or
+ * read from the server. The steps run one after another in completion
+ * handlers, so no thread waits for the server.
+ */
+public class LpdAsyncExchange {
+
+	private static final int STEP_WRITE = 0;
+	private static final int STEP_WRITE_FILE = 1;
+	private static final int STEP_READ_ACK = 2;
+	private static final int STEP_READ_TO_END = 3;
+	private static final int STEP_SHUTDOWN_OUTPUT = 4;
+	private static final int BUFFER_SIZE = 65536;
+
+	private List<Integer> steps;
+	private List<Object> operands;
+	private int step;
+	private long timeoutMillis;
+	private AsynchronousSocketChannel channel;
+	private CompletableFuture<byte[]> result;
+	private ByteBuffer readBuffer;
+	private ByteArrayOutputStream response;
+	private AsynchronousFileChannel fileChannel;
+	private long filePosition;
+
+	/**
+	 * Creates an empty exchange.
+	 */
+	public LpdAsyncExchange() {
+		this.steps = new ArrayList<Integer>();
+		this.operands = new ArrayList<Object>();
+		this.step = 0;
+		this.timeoutMillis = 0;
+		this.response = new ByteArrayOutputStream();
+	}
+
+	/**
+	 * Adds a step that writes the remaining bytes of a buffer.
+	 * 
+	 * @param buffer
+	 *            the bytes to write.
+	 */
+	public void write(ByteBuffer buffer) {
+		steps.add(STEP_WRITE);
+		operands.add(buffer);
+	}
+
+	/**
+	 * Adds a step that writes the content of a file.
+	 * 
+	 * @param file
+	 *            the file to write.
+	 */
+	public void writeFile(Path file) {
+		steps.add(STEP_WRITE_FILE);
+		operands.add(file);
+	}
+
+	/**
+	 * Adds a step that reads an acknowledgement octet. The exchange fails if
+	 * the acknowledgement is negative.
+	 */
+	public void readAck() {
+		steps.add(STEP_READ_ACK);
+		operands.add(null);
+	}
+
+	/**
+	 * Adds a step that reads the response until the server closes the
+	 * connection.
+	 */
+	public void readToEnd() {
+		steps.add(STEP_READ_TO_END);
+		operands.add(null);
+	}
+
+	/**
+	 * Adds a step that shuts down the output of the connection, which ends a
+	 * data file of unknown length.
+	 */
+	public void shutdownOutput() {
+		steps.add(STEP_SHUTDOWN_OUTPUT);
+		operands.add(null);
+	}
+
+	/**
+	 * Connects to the server and runs the steps. The connection is closed when
+	 * the exchange is done.
+	 * 
+	 * @param channel
+	 *            an open, unconnected channel.
+	 * @param server
+	 *            the address of the server.
+	 * @param timeoutMillis
+	 *            the maximum time to wait for each read in milliseconds or 0
+	 *            for no limit.
+	 * @return the future that completes with the bytes read to the end of the
+	 *         connection, empty if there is no such step.
+	 */
+	public CompletableFuture<byte[]> execute(AsynchronousSocketChannel channel,
+			SocketAddress server, long timeoutMillis) {
+
+		this.channel = channel;
+		this.timeoutMillis = timeoutMillis;
+		this.result = new CompletableFuture<byte[]>();
+		this.readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		channel.connect(server, null, new CompletionHandler<Void, Void>() {
+
+			@Override
+			public void completed(Void v, Void attachment) {
+				nextStep();
+			}
+
+			@Override
+			public void failed(Throwable e, Void attachment) {
+				fail(e);
+			}
+		});
+		return result;
+	}
+
+	private void nextStep() {
+
+		// run the next step or finish the exchange
+
+		if (step == steps.size()) {
+			finish();
+			return;
+		}
+		int currentStep = steps.get(step);
+		Object operand = operands.get(step);
+		step++;
+		try {
+			switch (currentStep) {
+			case STEP_WRITE:
+				channel.write((ByteBuffer) operand, null, writeHandler);
+				break;
+			case STEP_WRITE_FILE:
+				fileChannel = AsynchronousFileChannel.open((Path) operand,
+						StandardOpenOption.READ);
+				filePosition = 0;
+				readFile();
+				break;
+			case STEP_READ_ACK:
+				readBuffer.clear();
+				readBuffer.limit(1);
+				read(ackHandler);
+				break;
+			case STEP_READ_TO_END:
+				readBuffer.clear();
+				read(endHandler);
+				break;
+			case STEP_SHUTDOWN_OUTPUT:
+				channel.shutdownOutput();
+				nextStep();
+				break;
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void read(CompletionHandler<Integer, Void> handler) {
+		if (timeoutMillis > 0) {
+			channel.read(readBuffer, timeoutMillis, TimeUnit.MILLISECONDS,
+					null, handler);
+		} else {
+			channel.read(readBuffer, null, handler);
+		}
+	}
+
+	private void readFile() {
+		readBuffer.clear();
+		fileChannel.read(readBuffer, filePosition, null, fileReadHandler);
+	}
+
+	private final CompletionHandler<Integer, Void> writeHandler = new CompletionHandler<Integer, Void>() {
+
+		@Override
+		public void completed(Integer bytesWritten, Void attachment) {
+			ByteBuffer buffer = (ByteBuffer) operands.get(step - 1);
+			if (buffer.hasRemaining()) {
+				channel.write(buffer, null, this);
+			} else {
+				nextStep();
+			}
+		}
+
+		@Override
+		public void failed(Throwable e, Void attachment) {
+			fail(e);
+		}
+	};
+
+	private final CompletionHandler<Integer, Void> fileReadHandler = new CompletionHandler<Integer, Void>() {
+
+		@Override
+		public void completed(Integer bytesRead, Void attachment) {
+			if (bytesRead == -1) {
+				closeFile();
+				nextStep();
+				return;
+			}
+			filePosition += bytesRead;
+			readBuffer.flip();
+			channel.write(readBuffer, null, fileWriteHandler);
+		}
+
+		@Override
+		public void failed(Throwable e, Void attachment) {
+			fail(e);
+		}
+	};
+
+	private final CompletionHandler<Integer, Void> fileWriteHandler = new CompletionHandler<Integer, Void>() {
+
+		@Override
+		public void completed(Integer bytesWritten, Void attachment) {
+			if (readBuffer.hasRemaining()) {
+				channel.write(readBuffer, null, this);
+			} else {
+				readFile();
+			}
+		}
+
+		@Override
+		public void failed(Throwable e, Void attachment) {
+			fail(e);
+		}
+	};
+
+	private final CompletionHandler<Integer, Void> ackHandler = new CompletionHandler<Integer, Void>() {
+
+		@Override
+		public void completed(Integer bytesRead, Void attachment) {
+			if (bytesRead == -1) {
+				fail(new IOException("Could only read 0 out of 1 byte."));
+			} else if (bytesRead == 0) {
+				read(this);
+			} else if (readBuffer.get(0) != LpdClientProtocol.ACK_SUCCESS) {
+				fail(new IOException("Received invalid ack: "
+						+ readBuffer.get(0)));
+			} else {
+				nextStep();
+			}
+		}
+
+		@Override
+		public void failed(Throwable e, Void attachment) {
+			fail(e);
+		}
+	};
+
+	private final CompletionHandler<Integer, Void> endHandler = new CompletionHandler<Integer, Void>() {
+
+		@Override
+		public void completed(Integer bytesRead, Void attachment) {
+			if (bytesRead == -1) {
+				nextStep();
+				return;
+			}
+			response.write(readBuffer.array(), 0, readBuffer.position());
+			readBuffer.clear();
+			read(this);
+		}
+
+		@Override
+		public void failed(Throwable e, Void attachment) {
+			fail(e);
+		}
+	};
+
+	private void finish() {
+		close();
+		result.complete(response.toByteArray());
+	}
+
+	private void fail(Throwable e) {
+		close();
+		if (e instanceof InterruptedByTimeoutException) {
+			e = new IOException("Server did not respond within "
+					+ timeoutMillis + " ms.", e);
+		}
+		result.completeExceptionally(e);
+	}
+
+	private void close() {
+		closeFile();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void closeFile() {
+		if (fileChannel != null) {
+			try {
+				fileChannel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			fileChannel = null;
+		}
+	}
+}
@@ -17,12 +17,20 @@
  */
 package open.lpd.client;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Use the LpdClientProtocol class to implement your own LPD client.
@@ -43,8 +51,13 @@ public class LpdClientProtocol {
 	public static final char LPD_LF = 0x0a;
 	public static final char LPD_WHITESPACE = ' ';
 
+	private static final int BUFFER_SIZE = 65536;
+	private static final int STATE_BUFFER_SIZE = 8192;
+	private static final long UNKNOWN_LENGTH = -1;
+
 	private InputStream serverInStream;
 	private OutputStream serverOutStream;
+	private WritableByteChannel serverChannel;
 	private String protocolCharset;
 	private boolean sendDataFirst;
 	private String clientHost;
@@ -52,6 +65,8 @@ public class LpdClientProtocol {
 
 	/**
 	 * Creates a LPD client protocol that serves a single server connection.
+	 * Writes to the server out stream are buffered and flushed whenever the
+	 * protocol waits for the server.
 	 * 
 	 * @param serverOutStream
 	 *            the server out stream.
@@ -61,13 +76,32 @@ public class LpdClientProtocol {
 	public LpdClientProtocol(InputStream serverInStream,
 			OutputStream serverOutStream) {
 		this.serverInStream = serverInStream;
-		this.serverOutStream = serverOutStream;
+		this.serverOutStream = new BufferedOutputStream(serverOutStream,
+				BUFFER_SIZE);
+		this.serverChannel = null;
 		protocolCharset = LPD_DEFAULT_CHARSET;
 		clientHost = DEFAULT_CLIENT_HOST;
 		sendDataFirst = false;
 		user = null;
 	}
 
+	/**
+	 * Sets the channel of the server connection. With a server channel, data
+	 * files sent from a file channel are transferred by the operating system
+	 * without copying them through the java heap. The protocol flushes
+	 * complete messages, so the connection should disable Nagle's algorithm
+	 * with {@link java.net.Socket#setTcpNoDelay(boolean)}. A socket channel
+	 * also lets a data file of unknown length end by shutting down the output
+	 * of the connection, otherwise the server out stream is closed.
+	 * 
+	 * @param serverChannel
+	 *            the channel of the server connection, it must write to the
+	 *            same connection as the server out stream.
+	 */
+	public void setServerChannel(WritableByteChannel serverChannel) {
+		this.serverChannel = serverChannel;
+	}
+
 	/**
 	 * Sets the charset to use for the protocol.
 	 * 
@@ -149,20 +183,57 @@ public class LpdClientProtocol {
 	public void sendFile(String queue, String name, InputStream dataStream,
 			long dataStreamSize) throws IOException {
 
-		// create control file
+		byte[] controlFile = createControlFile(name);
+		sendPrintJob(queue, dataStream, null, dataStreamSize,
+				new ByteArrayInputStream(controlFile), controlFile.length);
+	}
 
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		bos.write(("H" + clientHost + LPD_LF).getBytes(protocolCharset));
-		bos.write(("J" + name + LPD_LF).getBytes(protocolCharset));
-		bos.write(("N" + name + LPD_LF).getBytes(protocolCharset));
-		if (user != null) {
-			bos.write(("P" + user + LPD_LF).getBytes(protocolCharset));
-		}
-		byte[] controlFile = bos.toByteArray();
-		ByteArrayInputStream controlStream = new ByteArrayInputStream(
-				controlFile);
-		sendFile(queue, dataStream, dataStreamSize, controlStream,
-				controlFile.length);
+	/**
+	 * Sends the send file command with a default control file. The data file
+	 * is sent from the current position to the end of the file channel. If a
+	 * server channel has been set, the file is transferred with
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+	 * 
+	 * @param queue
+	 *            the queue name.
+	 * @param name
+	 *            the name of the file.
+	 * @param dataChannel
+	 *            the file channel that contains the file data.
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	public void sendFile(String queue, String name, FileChannel dataChannel)
+			throws IOException {
+
+		byte[] controlFile = createControlFile(name);
+		sendPrintJob(queue, null, dataChannel,
+				dataChannel.size() - dataChannel.position(),
+				new ByteArrayInputStream(controlFile), controlFile.length);
+	}
+
+	/**
+	 * Sends the send file command with a default control file for a data
+	 * stream of unknown length. The data file is announced with a count of 0
+	 * and sent to the end of the data stream, then the output of the
+	 * connection is shut down to end the file. The control file is sent first
+	 * and the connection cannot send further commands.
+	 * 
+	 * @param queue
+	 *            the queue name.
+	 * @param name
+	 *            the name of the file.
+	 * @param dataStream
+	 *            the data stream that contains the file data.
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	public void sendFile(String queue, String name, InputStream dataStream)
+			throws IOException {
+
+		byte[] controlFile = createControlFile(name);
+		sendPrintJob(queue, dataStream, null, UNKNOWN_LENGTH,
+				new ByteArrayInputStream(controlFile), controlFile.length);
 	}
 
 	/**
@@ -185,6 +256,29 @@ public class LpdClientProtocol {
 			long dataStreamSize, InputStream controlStream,
 			long controlStreamSize) throws IOException {
 
+		sendPrintJob(queue, dataStream, null, dataStreamSize, controlStream,
+				controlStreamSize);
+	}
+
+	private byte[] createControlFile(String name) throws IOException {
+
+		// create control file
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(("H" + clientHost + LPD_LF).getBytes(protocolCharset));
+		bos.write(("J" + name + LPD_LF).getBytes(protocolCharset));
+		bos.write(("N" + name + LPD_LF).getBytes(protocolCharset));
+		if (user != null) {
+			bos.write(("P" + user + LPD_LF).getBytes(protocolCharset));
+		}
+		return bos.toByteArray();
+	}
+
+	private void sendPrintJob(String queue, InputStream dataStream,
+			FileChannel dataChannel, long dataStreamSize,
+			InputStream controlStream, long controlStreamSize)
+			throws IOException {
+
 		// +----+-------+----+
 		// | 02 | Queue | LF |
 		// +----+-------+----+
@@ -208,12 +302,16 @@ public class LpdClientProtocol {
 		if (ack[0] != ACK_SUCCESS) {
 			throw new IOException("Received invalid ack: " + ack[0]);
 		}
-		if (sendDataFirst) {
-			sendDataFile(dataStream, dataStreamSize);
+		// a count of 0 announces a data file that ends with the connection,
+		// an empty data file cannot be told apart from it and is sent the
+		// same way, so such a data file has to be the last file
+
+		if (sendDataFirst && dataStreamSize > 0) {
+			sendDataFile(dataStream, dataChannel, dataStreamSize);
 			sendControlFile(controlStream, controlStreamSize);
 		} else {
 			sendControlFile(controlStream, controlStreamSize);
-			sendDataFile(dataStream, dataStreamSize);
+			sendDataFile(dataStream, dataChannel, dataStreamSize);
 		}
 	}
 
@@ -254,15 +352,7 @@ public class LpdClientProtocol {
 		if (ack[0] != ACK_SUCCESS) {
 			throw new IOException("Received invalid ack: " + ack[0]);
 		}
-		long bread = 0;
-		while (bread < controlStreamSize) {
-			int b = controlStream.read();
-			if (b == -1) {
-				break;
-			}
-			serverOutStream.write(b);
-			bread++;
-		}
+		long bread = copyFile(controlStream, controlStreamSize);
 		serverOutStream.write(ACK_SUCCESS);
 		serverOutStream.flush();
 		ack = readResponse(1);
@@ -274,8 +364,9 @@ public class LpdClientProtocol {
 		}
 	}
 
-	private void sendDataFile(InputStream dataStream, long dataStreamSize)
-			throws IOException, UnsupportedEncodingException {
+	private void sendDataFile(InputStream dataStream, FileChannel dataChannel,
+			long dataStreamSize) throws IOException,
+			UnsupportedEncodingException {
 		byte[] ack;
 
 		// +----+-------+----+------+----+
@@ -301,8 +392,8 @@ public class LpdClientProtocol {
 
 		String dataFileName = "dfA000" + clientHost;
 		serverOutStream.write(SUB_CMD_RECEIVE_DATA_FILE);
-		serverOutStream.write(Long.toString(dataStreamSize).getBytes(
-				protocolCharset));
+		serverOutStream.write(Long.toString(Math.max(dataStreamSize, 0))
+				.getBytes(protocolCharset));
 		serverOutStream.write(LPD_WHITESPACE);
 		serverOutStream.write(dataFileName.getBytes(protocolCharset));
 		serverOutStream.write(LPD_LF);
@@ -311,14 +402,30 @@ public class LpdClientProtocol {
 		if (ack[0] != ACK_SUCCESS) {
 			throw new IOException("Received invalid ack: " + ack[0]);
 		}
-		long bread = 0;
-		while (bread < dataStreamSize) {
-			int b = dataStream.read();
-			if (b == -1) {
-				break;
+		if (dataStreamSize <= 0) {
+
+			// the file ends with the output of the connection, there is no
+			// end of file octet and no ack from the server to wait for
+
+			if (dataStreamSize == UNKNOWN_LENGTH) {
+				copyFile(dataStream, Long.MAX_VALUE);
 			}
-			serverOutStream.write(b);
-			bread++;
+			shutdownOutput();
+			return;
+		}
+
+		// small files are copied, so they leave in one segment together with
+		// the end of file octet
+
+		long bread;
+		if (dataChannel != null && serverChannel != null
+				&& dataStreamSize >= BUFFER_SIZE) {
+			bread = transferFile(dataChannel, dataStreamSize);
+		} else if (dataChannel != null) {
+			bread = copyFile(Channels.newInputStream(dataChannel),
+					dataStreamSize);
+		} else {
+			bread = copyFile(dataStream, dataStreamSize);
 		}
 		serverOutStream.write(ACK_SUCCESS);
 		serverOutStream.flush();
@@ -331,6 +438,60 @@ public class LpdClientProtocol {
 		}
 	}
 
+	private long copyFile(InputStream fileStream, long count)
+			throws IOException {
+
+		// copy the file in chunks, returns the number of bytes copied which is
+		// less than the count if the stream ended early
+
+		byte[] buf = new byte[(int) Math.min(BUFFER_SIZE, Math.max(count, 1))];
+		long bread = 0;
+		while (bread < count) {
+			int n = fileStream.read(buf, 0,
+					(int) Math.min(buf.length, count - bread));
+			if (n == -1) {
+				break;
+			}
+			serverOutStream.write(buf, 0, n);
+			bread += n;
+		}
+		return bread;
+	}
+
+	private long transferFile(FileChannel fileChannel, long count)
+			throws IOException {
+
+		// let the operating system move the file to the connection, buffered
+		// protocol bytes must reach the connection first
+
+		serverOutStream.flush();
+		long position = fileChannel.position();
+		long transferred = 0;
+		while (transferred < count) {
+			long n = fileChannel.transferTo(position + transferred, count
+					- transferred, serverChannel);
+			if (n <= 0) {
+				break;
+			}
+			transferred += n;
+		}
+		fileChannel.position(position + transferred);
+		return transferred;
+	}
+
+	private void shutdownOutput() throws IOException {
+
+		// a socket channel keeps the connection open for reading, without it
+		// the server out stream is closed
+
+		serverOutStream.flush();
+		if (serverChannel instanceof SocketChannel) {
+			((SocketChannel) serverChannel).shutdownOutput();
+		} else {
+			serverOutStream.close();
+		}
+	}
+
 	private void abortPrintJob() throws IOException {
 
 		// +----+----+
@@ -359,6 +520,25 @@ public class LpdClientProtocol {
 	 */
 	public String getShortQueueState(String queue, String jobs)
 			throws IOException {
+		return readState(openShortQueueState(queue, jobs));
+	}
+
+	/**
+	 * Sends the get short queue state command and opens its response. The state
+	 * is decoded while it is read from the connection, so it can be processed
+	 * line by line without holding the whole state in memory.
+	 * 
+	 * @param queue
+	 *            the queue name.
+	 * @param jobs
+	 *            the job list.
+	 * @return a reader of the short queue state, it ends when the server closes
+	 *         the connection.
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	public BufferedReader openShortQueueState(String queue, String jobs)
+			throws IOException {
 
 		// +----+-------+----+------+----+
 		// | 03 | Queue | SP | List | LF |
@@ -383,8 +563,8 @@ public class LpdClientProtocol {
 		}
 		serverOutStream.write(LPD_LF);
 		serverOutStream.flush();
-		byte[] response = readResponse(null);
-		return new String(response, protocolCharset);
+		return new BufferedReader(new InputStreamReader(serverInStream,
+				protocolCharset), STATE_BUFFER_SIZE);
 	}
 
 	/**
@@ -400,6 +580,25 @@ public class LpdClientProtocol {
 	 */
 	public String getLongQueueState(String queue, String jobs)
 			throws IOException {
+		return readState(openLongQueueState(queue, jobs));
+	}
+
+	/**
+	 * Sends the get long queue state command and opens its response. The state
+	 * is decoded while it is read from the connection, so it can be processed
+	 * line by line without holding the whole state in memory.
+	 * 
+	 * @param queue
+	 *            the queue name.
+	 * @param jobs
+	 *            the job list.
+	 * @return a reader of the long queue state, it ends when the server closes
+	 *         the connection.
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	public BufferedReader openLongQueueState(String queue, String jobs)
+			throws IOException {
 
 		// +----+-------+----+------+----+
 		// | 04 | Queue | SP | List | LF |
@@ -424,8 +623,8 @@ public class LpdClientProtocol {
 		}
 		serverOutStream.write(LPD_LF);
 		serverOutStream.flush();
-		byte[] response = readResponse(null);
-		return new String(response, protocolCharset);
+		return new BufferedReader(new InputStreamReader(serverInStream,
+				protocolCharset), STATE_BUFFER_SIZE);
 	}
 
 	/**
@@ -437,6 +636,8 @@ public class LpdClientProtocol {
 	 *            the job list.
 	 * @throws IOException
 	 *             throws if an I/O error happens during the protocol.
+	 * @throws IllegalStateException
+	 *             throws if the user name is not set.
 	 */
 	public void removeJobs(String queue, String jobs) throws IOException {
 
@@ -456,6 +657,9 @@ public class LpdClientProtocol {
 		// numbers. That is, agent "root" can delete jobs by user name but no
 		// other agents can.
 
+		if (user == null) {
+			throw new IllegalStateException("User is not set.");
+		}
 		serverOutStream.write(CMD_REMOVE_JOBS);
 		serverOutStream.write(queue.getBytes(protocolCharset));
 		serverOutStream.write(LPD_WHITESPACE);
@@ -468,28 +672,31 @@ public class LpdClientProtocol {
 		serverOutStream.flush();
 	}
 
-	private byte[] readResponse(Integer count) throws IOException {
+	private String readState(Reader stateReader) throws IOException {
+
+		// read the whole state until the server closes the connection
+
+		StringBuilder sb = new StringBuilder();
+		char[] buf = new char[STATE_BUFFER_SIZE];
+		int n;
+		while ((n = stateReader.read(buf)) != -1) {
+			sb.append(buf, 0, n);
+		}
+		return sb.toString();
+	}
+
+	private byte[] readResponse(int count) throws IOException {
 
 		// read a certain amount of bytes from the response
 
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		if (count == null) {
-			while (true) {
-				int b = serverInStream.read();
-				if (b == -1) {
-					break;
-				}
-				bos.write(b);
-			}
-		} else {
-			for (int i = 0; i < count; i++) {
-				int b = serverInStream.read();
-				if (b == -1) {
-					throw new IOException("Could only read " + bos.size()
-							+ " out of " + count + " byte.");
-				}
-				bos.write(b);
+		for (int i = 0; i < count; i++) {
+			int b = serverInStream.read();
+			if (b == -1) {
+				throw new IOException("Could only read " + bos.size()
+						+ " out of " + count + " byte.");
 			}
+			bos.write(b);
 		}
 		return bos.toByteArray();
 	}
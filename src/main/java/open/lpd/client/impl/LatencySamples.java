@@ -0,0 +1,101 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.client.impl;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples of one thread and reports exact percentiles. The
+ * samples of several threads are merged before reporting.
+ */
+public class LatencySamples {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private long[] samples;
+	private int count;
+	private boolean sorted;
+
+	/**
+	 * Creates empty latency samples.
+	 */
+	public LatencySamples() {
+		this.samples = new long[INITIAL_CAPACITY];
+		this.count = 0;
+		this.sorted = true;
+	}
+
+	/**
+	 * Records a latency.
+	 * 
+	 * @param nanos
+	 *            the latency in nanoseconds.
+	 */
+	public void record(long nanos) {
+		if (count == samples.length) {
+			samples = Arrays.copyOf(samples, samples.length * 2);
+		}
+		samples[count++] = nanos;
+		sorted = false;
+	}
+
+	/**
+	 * Adds the samples of another thread.
+	 * 
+	 * @param other
+	 *            the samples to add.
+	 */
+	public void add(LatencySamples other) {
+		if (count + other.count > samples.length) {
+			samples = Arrays.copyOf(samples,
+					Math.max(samples.length * 2, count + other.count));
+		}
+		System.arraycopy(other.samples, 0, samples, count, other.count);
+		count += other.count;
+		sorted = false;
+	}
+
+	/**
+	 * Gets the number of samples.
+	 * 
+	 * @return the number of samples.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets a percentile of the samples.
+	 * 
+	 * @param percentile
+	 *            the percentile between 0 and 100.
+	 * @return the latency percentile in nanoseconds or zero if there are no
+	 *         samples.
+	 */
+	public long getPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		if (!sorted) {
+			Arrays.sort(samples, 0, count);
+			sorted = true;
+		}
+		int rank = (int) Math.ceil(count * percentile / 100);
+		return samples[Math.min(Math.max(rank, 1), count) - 1];
+	}
+}
@@ -17,7 +17,7 @@
  */
 package open.lpd.client.impl;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -26,6 +26,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
 
 import open.lpd.client.LpdClientProtocol;
 
@@ -40,18 +42,34 @@ public class LpdClient {
 	private static final String CMD_STATE = "state";
 	private static final String CMD_LSTATE = "lstate";
 	private static final String CMD_REMOVE = "remove";
+	private static final String CMD_LOAD = "load";
 	private static final String OPTION_CMD = "--cmd";
 	private static final String OPTION_HOST = "--host";
 	private static final String OPTION_PORT = "--port";
 	private static final String OPTION_QUEUE = "--queue";
 	private static final String OPTION_FILE = "--file";
+	private static final String FILE_STDIN = "-";
+	private static final String FILE_STDIN_NAME = "stdin";
 	private static final String OPTION_AGENT = "--agent";
 	private static final String OPTION_JOBS = "--jobs";
 	private static final String OPTION_DATA_FIRST = "--datafirst";
+	private static final String OPTION_CONNECTIONS = "--connections";
+	private static final String OPTION_DURATION = "--duration";
+	private static final String OPTION_RATE = "--rate";
+	private static final String OPTION_SIZES = "--sizes";
+	private static final String OPTION_STATE_RATIO = "--stateRatio";
+	private static final String OPTION_REMOVE_RATIO = "--removeRatio";
 	private static final String DEFAULT_HOST = "127.0.0.1";
 	private static final String DEFAULT_PORT = "515";
 	private static final String DEFAULT_QUEUE = "RAW";
 	private static final String DEFAULT_DATA_FIRST = "false";
+	private static final String DEFAULT_CONNECTIONS = "8";
+	private static final String DEFAULT_DURATION = "60";
+	private static final String DEFAULT_RATE = "0";
+	private static final String DEFAULT_SIZES = "1024:60,65536:30,1048576:10";
+	private static final String DEFAULT_STATE_RATIO = "10";
+	private static final String DEFAULT_REMOVE_RATIO = "5";
+	private static final String DEFAULT_LOAD_AGENT = "load";
 	private static final String QUOTE = "\"";
 
 	private static String getOption(String name, String[] args,
@@ -70,9 +88,38 @@ public class LpdClient {
 		return (value != null) ? value : defaultValue;
 	}
 
+	private static void runLoad(String host, String port, String queue,
+			String agent, String[] args) throws InterruptedException {
+
+		// generate load with many connections, the queue option may list
+		// several queues separated by commas
+
+		String connections = getOption(OPTION_CONNECTIONS, args,
+				DEFAULT_CONNECTIONS);
+		String duration = getOption(OPTION_DURATION, args, DEFAULT_DURATION);
+		String rate = getOption(OPTION_RATE, args, DEFAULT_RATE);
+		String sizes = getOption(OPTION_SIZES, args, DEFAULT_SIZES);
+		String stateRatio = getOption(OPTION_STATE_RATIO, args,
+				DEFAULT_STATE_RATIO);
+		String removeRatio = getOption(OPTION_REMOVE_RATIO, args,
+				DEFAULT_REMOVE_RATIO);
+		LpdLoadGenerator loadGenerator = new LpdLoadGenerator(host,
+				Integer.valueOf(port), queue.split(","),
+				Integer.valueOf(connections));
+		loadGenerator.setDuration(TimeUnit.SECONDS.toMillis(Long
+				.valueOf(duration)));
+		loadGenerator.setRate(Double.valueOf(rate));
+		int[][] sizeDistribution = LpdLoadGenerator.parseSizes(sizes);
+		loadGenerator.setSizes(sizeDistribution[0], sizeDistribution[1]);
+		loadGenerator.setCommandMix(Integer.valueOf(stateRatio),
+				Integer.valueOf(removeRatio));
+		loadGenerator.setUser((agent != null) ? agent : DEFAULT_LOAD_AGENT);
+		loadGenerator.run();
+	}
+
 	public static void main(String[] args) {
 
-		Socket socket = new Socket();
+		Socket socket = null;
 		try {
 			// get options
 
@@ -86,9 +133,18 @@ public class LpdClient {
 			String dataFirst = getOption(OPTION_DATA_FIRST, args,
 					DEFAULT_DATA_FIRST);
 
-			// establish connection
+			if (cmd.equalsIgnoreCase(CMD_LOAD)) {
+				runLoad(host, port, queue, agent, args);
+				return;
+			}
+
+			// establish connection, the channel lets files be sent without
+			// copying them through the java heap
 
+			SocketChannel socketChannel = SocketChannel.open();
+			socket = socketChannel.socket();
 			socket.connect(new InetSocketAddress(host, Integer.valueOf(port)));
+			socket.setTcpNoDelay(true);
 			OutputStream serverOutStream = socket.getOutputStream();
 			InputStream serverInStream = socket.getInputStream();
 			String clientHost = socket.getLocalAddress().getHostName();
@@ -100,6 +156,7 @@ public class LpdClient {
 			}
 			LpdClientProtocol lpdClientProtocol = new LpdClientProtocol(
 					serverInStream, serverOutStream);
+			lpdClientProtocol.setServerChannel(socketChannel);
 			if (cmd.equalsIgnoreCase(CMD_PRINT)) {
 				lpdClientProtocol.printQueue(queue);
 				System.out.println("Printed.");
@@ -115,6 +172,15 @@ public class LpdClient {
 				if (file == null) {
 					throw new IllegalArgumentException(OPTION_FILE);
 				}
+				if (file.equals(FILE_STDIN)) {
+
+					// a piped file has no known length, it ends with the
+					// output of the connection
+
+					lpdClientProtocol.sendFile(queue, FILE_STDIN_NAME,
+							System.in);
+					return;
+				}
 				File fileObj = new File(file);
 				if (!fileObj.exists()) {
 					throw new FileNotFoundException(file);
@@ -123,22 +189,18 @@ public class LpdClient {
 				try {
 					fis = new FileInputStream(fileObj);
 					lpdClientProtocol.sendFile(queue, fileObj.getName(),
-							new BufferedInputStream(fis), fileObj.length());
+							fis.getChannel());
 				} finally {
 					if (fis != null) {
 						fis.close();
 					}
 				}
 			} else if (cmd.equalsIgnoreCase(CMD_STATE)) {
-				String state = lpdClientProtocol
-						.getShortQueueState(queue, jobs);
 				System.out.println("State:");
-				System.out.println(state);
+				printState(lpdClientProtocol.openShortQueueState(queue, jobs));
 			} else if (cmd.equalsIgnoreCase(CMD_LSTATE)) {
-				String lstate = lpdClientProtocol
-						.getLongQueueState(queue, jobs);
 				System.out.println("LState:");
-				System.out.println(lstate);
+				printState(lpdClientProtocol.openLongQueueState(queue, jobs));
 			} else if (cmd.equalsIgnoreCase(CMD_REMOVE)) {
 				if (agent == null) {
 					throw new IllegalArgumentException(OPTION_AGENT);
@@ -149,12 +211,27 @@ public class LpdClient {
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
 		} finally {
 			try {
-				socket.close();
+				if (socket != null) {
+					socket.close();
+				}
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
 	}
+
+	private static void printState(BufferedReader stateReader)
+			throws IOException {
+
+		// print the queue state line by line as it is received
+
+		String line;
+		while ((line = stateReader.readLine()) != null) {
+			System.out.println(line);
+		}
+	}
 }
@@ -0,0 +1,384 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.client.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import open.lpd.client.LpdClientProtocol;
+
+/**
+ * Stress tests a LPD server with many concurrent client connections. Each
+ * connection thread sends print jobs of a weighted size distribution to
+ * randomly chosen queues and mixes in queue state and remove commands. Every
+ * command runs on its own connection, as LPD requires. The commands are sent
+ * at a target rate or as fast as possible and the throughput is reported with
+ * latency percentiles per command.
+ */
+public class LpdLoadGenerator {
+
+	private static final int CMD_SEND = 0;
+	private static final int CMD_STATE = 1;
+	private static final int CMD_LSTATE = 2;
+	private static final int CMD_REMOVE = 3;
+	private static final String[] COMMAND_NAMES = { "send", "state", "lstate",
+			"remove" };
+	private static final String PRINT_JOB_NAME = "load";
+	private static final int STATE_BUFFER_SIZE = 8192;
+
+	private String host;
+	private int port;
+	private String[] queues;
+	private int connections;
+	private long durationMillis;
+	private double rate;
+	private int[] sizes;
+	private int[] weights;
+	private int stateRatio;
+	private int removeRatio;
+	private String user;
+
+	/**
+	 * Creates a load generator that sends 1 KB print jobs as fast as possible
+	 * for one minute.
+	 * 
+	 * @param host
+	 *            the host of the LPD server.
+	 * @param port
+	 *            the port of the LPD server.
+	 * @param queues
+	 *            the queues to send print jobs to.
+	 * @param connections
+	 *            the number of concurrent client connections.
+	 */
+	public LpdLoadGenerator(String host, int port, String[] queues,
+			int connections) {
+		this.host = host;
+		this.port = port;
+		this.queues = queues;
+		this.connections = connections;
+		this.durationMillis = TimeUnit.MINUTES.toMillis(1);
+		this.rate = 0;
+		this.sizes = new int[] { 1024 };
+		this.weights = new int[] { 1 };
+		this.stateRatio = 0;
+		this.removeRatio = 0;
+		this.user = PRINT_JOB_NAME;
+	}
+
+	/**
+	 * Sets how long the load is generated.
+	 * 
+	 * @param durationMillis
+	 *            the duration in milliseconds.
+	 */
+	public void setDuration(long durationMillis) {
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * Sets the target rate of commands over all connections.
+	 * 
+	 * @param rate
+	 *            the commands per second or 0 to send as fast as possible.
+	 */
+	public void setRate(double rate) {
+		this.rate = rate;
+	}
+
+	/**
+	 * Sets the size distribution of the sent print jobs.
+	 * 
+	 * @param sizes
+	 *            the data file sizes in bytes.
+	 * @param weights
+	 *            the relative frequency of each size.
+	 */
+	public void setSizes(int[] sizes, int[] weights) {
+		this.sizes = sizes;
+		this.weights = weights;
+	}
+
+	/**
+	 * Sets the share of queue state and remove commands.
+	 * 
+	 * @param stateRatio
+	 *            the percentage of short and long queue state commands.
+	 * @param removeRatio
+	 *            the percentage of remove commands, they remove the print jobs
+	 *            the connection thread has sent.
+	 */
+	public void setCommandMix(int stateRatio, int removeRatio) {
+		this.stateRatio = stateRatio;
+		this.removeRatio = removeRatio;
+	}
+
+	/**
+	 * Sets the user that sends and removes print jobs. Each connection thread
+	 * appends its number to the user name, so a remove command never deletes
+	 * a print job that another connection is still sending.
+	 * 
+	 * @param user
+	 *            the user name.
+	 */
+	public void setUser(String user) {
+		this.user = user;
+	}
+
+	/**
+	 * Parses a size distribution like "1024:70,65536:25,1048576:5", a list of
+	 * sizes in bytes with their relative frequency. The frequency may be
+	 * omitted and defaults to 1.
+	 * 
+	 * @param distribution
+	 *            the size distribution.
+	 * @return the sizes in the first and the weights in the second array.
+	 */
+	public static int[][] parseSizes(String distribution) {
+		String[] entries = distribution.split(",");
+		int[] sizes = new int[entries.length];
+		int[] weights = new int[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			String[] entry = entries[i].trim().split(":");
+			sizes[i] = Integer.parseInt(entry[0].trim());
+			weights[i] = (entry.length > 1) ? Integer.parseInt(entry[1].trim())
+					: 1;
+			if (sizes[i] < 0 || weights[i] < 0) {
+				throw new IllegalArgumentException(distribution);
+			}
+		}
+		return new int[][] { sizes, weights };
+	}
+
+	/**
+	 * Generates the load and prints the report to standard out.
+	 * 
+	 * @throws InterruptedException
+	 *             throws if the current thread was interrupted while waiting
+	 *             for the connection threads.
+	 */
+	public void run() throws InterruptedException {
+
+		// one shared data array holds the content of every print job size
+
+		int maxSize = 0;
+		int totalWeight = 0;
+		for (int i = 0; i < sizes.length; i++) {
+			maxSize = Math.max(maxSize, sizes[i]);
+			totalWeight += weights[i];
+		}
+		final byte[] data = new byte[maxSize];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ('A' + i % 26);
+		}
+		final int weightSum = totalWeight;
+
+		// with a target rate every command gets a start time slot, latency is
+		// measured from the slot so a server that falls behind shows up in
+		// the percentiles instead of silently lowering the rate
+
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		final long interval = (rate > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) / rate)
+				: 0;
+		final AtomicLong nextSlot = new AtomicLong(start);
+		final LatencySamples[][] samples = new LatencySamples[connections][COMMAND_NAMES.length];
+		final long[][] errors = new long[connections][COMMAND_NAMES.length];
+		final long[] bytesSent = new long[connections];
+		final IOException[] firstErrors = new IOException[connections];
+		Thread[] threads = new Thread[connections];
+		for (int i = 0; i < connections; i++) {
+			for (int cmd = 0; cmd < COMMAND_NAMES.length; cmd++) {
+				samples[i][cmd] = new LatencySamples();
+			}
+			final int connection = i;
+			threads[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					Random random = new Random();
+					String connectionUser = user + "-" + connection;
+					while (true) {
+						long scheduled;
+						if (interval > 0) {
+							scheduled = nextSlot.getAndAdd(interval);
+							if (scheduled >= end) {
+								break;
+							}
+							long delay = scheduled - System.nanoTime();
+							if (delay > 0) {
+								try {
+									TimeUnit.NANOSECONDS.sleep(delay);
+								} catch (InterruptedException e) {
+									break;
+								}
+							}
+						} else {
+							scheduled = System.nanoTime();
+							if (scheduled >= end) {
+								break;
+							}
+						}
+						int cmd = nextCommand(random);
+						String queue = queues[random.nextInt(queues.length)];
+						int size = nextSize(random, weightSum);
+						try {
+							execute(cmd, queue, connectionUser, data, size);
+							samples[connection][cmd].record(System.nanoTime()
+									- scheduled);
+							if (cmd == CMD_SEND) {
+								bytesSent[connection] += size;
+							}
+						} catch (IOException e) {
+							errors[connection][cmd]++;
+							if (firstErrors[connection] == null) {
+								firstErrors[connection] = e;
+							}
+						}
+					}
+				}
+			}, "LpdLoadGenerator-" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		double seconds = (System.nanoTime() - start)
+				/ (double) TimeUnit.SECONDS.toNanos(1);
+
+		// merge the samples of all connections and report
+
+		long totalCommands = 0;
+		long totalBytes = 0;
+		for (int i = 0; i < connections; i++) {
+			totalBytes += bytesSent[i];
+			if (firstErrors[i] != null) {
+				System.out.println("Error on connection " + i + ": "
+						+ firstErrors[i]);
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int cmd = 0; cmd < COMMAND_NAMES.length; cmd++) {
+			LatencySamples merged = new LatencySamples();
+			long cmdErrors = 0;
+			for (int i = 0; i < connections; i++) {
+				merged.add(samples[i][cmd]);
+				cmdErrors += errors[i][cmd];
+			}
+			if (merged.getCount() == 0 && cmdErrors == 0) {
+				continue;
+			}
+			totalCommands += merged.getCount();
+			sb.append(String.format(
+					"%-7s %9d ok %6d errors %10.1f/s   p50 %9.3f ms   p99 %9.3f ms   p999 %9.3f ms   max %9.3f ms%n",
+					COMMAND_NAMES[cmd], merged.getCount(), cmdErrors,
+					merged.getCount() / seconds,
+					toMillis(merged.getPercentile(50)),
+					toMillis(merged.getPercentile(99)),
+					toMillis(merged.getPercentile(99.9)),
+					toMillis(merged.getPercentile(100))));
+		}
+		System.out.println(String.format(
+				"%d commands in %.1f s over %d connections, %.1f commands/s, %.2f MB/s sent",
+				totalCommands, seconds, connections, totalCommands / seconds,
+				totalBytes / seconds / (1024 * 1024)));
+		System.out.print(sb.toString());
+	}
+
+	private int nextCommand(Random random) {
+		int r = random.nextInt(100);
+		if (r < stateRatio) {
+			return random.nextBoolean() ? CMD_STATE : CMD_LSTATE;
+		}
+		if (r < stateRatio + removeRatio) {
+			return CMD_REMOVE;
+		}
+		return CMD_SEND;
+	}
+
+	private int nextSize(Random random, int weightSum) {
+		int r = random.nextInt(Math.max(weightSum, 1));
+		for (int i = 0; i < sizes.length; i++) {
+			r -= weights[i];
+			if (r < 0) {
+				return sizes[i];
+			}
+		}
+		return sizes[sizes.length - 1];
+	}
+
+	private void execute(int cmd, String queue, String user, byte[] data,
+			int size) throws IOException {
+
+		// every command runs on a new connection
+
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port));
+			socket.setTcpNoDelay(true);
+			InputStream serverInStream = socket.getInputStream();
+			LpdClientProtocol lpdClientProtocol = new LpdClientProtocol(
+					serverInStream, socket.getOutputStream());
+			lpdClientProtocol.setUser(user);
+			switch (cmd) {
+			case CMD_SEND:
+				lpdClientProtocol.sendFile(queue, PRINT_JOB_NAME,
+						new ByteArrayInputStream(data, 0, size), size);
+				break;
+			case CMD_STATE:
+				skipState(lpdClientProtocol.openShortQueueState(queue, null));
+				break;
+			case CMD_LSTATE:
+				skipState(lpdClientProtocol.openLongQueueState(queue, null));
+				break;
+			case CMD_REMOVE:
+
+				// the remove command has no response, wait until the server
+				// closes the connection
+
+				lpdClientProtocol.removeJobs(queue, user);
+				while (serverInStream.read() != -1) {
+				}
+				break;
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void skipState(Reader stateReader) throws IOException {
+
+		// read the queue state until the server closes the connection without
+		// keeping it
+
+		char[] buf = new char[STATE_BUFFER_SIZE];
+		while (stateReader.read(buf) != -1) {
+		}
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+}
@@ -0,0 +1,144 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * A socket input stream that enforces read deadlines by setting the socket
+ * timeout to the time left before each read. Either a fixed deadline or a
+ * minimum transfer rate can be active. The time of a minimum rate is only
+ * counted while a read waits for the client, so a server that slows down its
+ * own reading does not push a client over its deadline. The socket input is
+ * buffered below the deadlines, so each byte is charged to the phase that
+ * reads it, even if the buffer received it earlier.
+ */
+public class DeadlineInputStream extends FilterInputStream {
+
+	private Socket socket;
+	private LpdDeadlines deadlines;
+	private long deadline;
+	private boolean fileDeadline;
+	private long fileBytesReceived;
+	private long fileWaitTime;
+
+	/**
+	 * Creates a deadline input stream without an active deadline.
+	 * 
+	 * @param socket
+	 *            the client socket to read from.
+	 * @param deadlines
+	 *            the deadlines of the protocol phases.
+	 * @throws IOException
+	 *             throws if the socket input stream could not be opened.
+	 */
+	public DeadlineInputStream(Socket socket, LpdDeadlines deadlines)
+			throws IOException {
+		super(new BufferedInputStream(socket.getInputStream()));
+		this.socket = socket;
+		this.deadlines = deadlines;
+		this.deadline = 0;
+		this.fileDeadline = false;
+	}
+
+	/**
+	 * Starts the deadline for the command line.
+	 */
+	public void startCommandDeadline() {
+		startDeadline(deadlines.getCommandTimeout());
+	}
+
+	/**
+	 * Starts the deadline for a sub command line.
+	 */
+	public void startSubCommandDeadline() {
+		startDeadline(deadlines.getSubCommandTimeout());
+	}
+
+	/**
+	 * Starts the deadline for the final ack of a file.
+	 */
+	public void startAckDeadline() {
+		startDeadline(deadlines.getAckTimeout());
+	}
+
+	/**
+	 * Starts the minimum rate deadline for the content of a file.
+	 */
+	public void startFileDeadline() {
+		deadline = 0;
+		fileDeadline = deadlines.getFileTimeout(0) > 0;
+		fileBytesReceived = 0;
+		fileWaitTime = 0;
+	}
+
+	@Override
+	public int read() throws IOException {
+		long start = setTimeout();
+		int c = super.read();
+		received(start, (c != -1) ? 1 : 0);
+		return c;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		long start = setTimeout();
+		int bytesRead = super.read(b, off, len);
+		received(start, Math.max(bytesRead, 0));
+		return bytesRead;
+	}
+
+	private void startDeadline(long timeout) {
+		deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+		fileDeadline = false;
+	}
+
+	private long setTimeout() throws IOException {
+
+		// the socket timeout is the time left until the deadline
+
+		long now = System.currentTimeMillis();
+		long timeLeft = 0;
+		if (fileDeadline) {
+			timeLeft = deadlines.getFileTimeout(fileBytesReceived)
+					- fileWaitTime;
+		} else if (deadline != 0) {
+			timeLeft = deadline - now;
+		} else {
+			socket.setSoTimeout(0);
+			return now;
+		}
+		if (timeLeft <= 0) {
+			throw new SocketTimeoutException("Read deadline missed.");
+		}
+		socket.setSoTimeout((int) Math.min(timeLeft, Integer.MAX_VALUE));
+		return now;
+	}
+
+	private void received(long start, int bytesRead) {
+		if (fileDeadline) {
+			fileWaitTime += System.currentTimeMillis() - start;
+			fileBytesReceived += bytesRead;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * LPD queue interface for implementing a non-blocking LPD protocol server, see
+ * {@link LpdServerChannelProtocol}. Instead of reading a control or data file
+ * from a blocking input stream, the queue receives the file in chunks as they
+ * arrive on the client connection.
+ */
+public interface IChannelPrintJobQueue extends IPrintJobQueue {
+
+	/**
+	 * Opens a control file for the current print job.
+	 *
+	 * @param count
+	 *            the number of bytes that will be written.
+	 * @param name
+	 *            the name of the control file.
+	 * @return a code indicating success, {@link LpdServerProtocol#ACK_SUCCESS},
+	 *         or an error code (any other value) indicating failure. If an
+	 *         error code is returned, the file content is discarded and the
+	 *         error code is sent as the final file acknowledgement.
+	 * @throws IOException
+	 *             throws if there was an input output error.
+	 */
+	byte openControlFile(long count, String name) throws IOException;
+
+	/**
+	 * Opens a data file for the current print job.
+	 *
+	 * @param count
+	 *            the number of bytes that will be written or 0 if the length
+	 *            is unknown and the data file ends with the client connection.
+	 * @param name
+	 *            the name of the data file.
+	 * @return a code indicating success, {@link LpdServerProtocol#ACK_SUCCESS},
+	 *         or an error code (any other value) indicating failure. If an
+	 *         error code is returned, the file content is discarded and the
+	 *         error code is sent as the final file acknowledgement.
+	 * @throws IOException
+	 *             throws if there was an input output error.
+	 */
+	byte openDataFile(long count, String name) throws IOException;
+
+	/**
+	 * Writes the remaining bytes of the buffer to the currently open file.
+	 *
+	 * @param buffer
+	 *            the buffer holding the next chunk of the file.
+	 * @throws IOException
+	 *             throws if there was an input output error.
+	 */
+	void writeFile(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Transfers bytes from the client connection directly to the currently
+	 * open file. The call must not block if no bytes are available on a
+	 * non-blocking client connection.
+	 *
+	 * @param clientChannel
+	 *            the client connection to read from.
+	 * @param count
+	 *            the maximum number of bytes to transfer.
+	 * @return the number of bytes transferred, possibly zero.
+	 * @throws IOException
+	 *             throws if there was an input output error.
+	 */
+	long transferFile(ReadableByteChannel clientChannel, long count)
+			throws IOException;
+
+	/**
+	 * Closes the currently open file.
+	 *
+	 * @param complete
+	 *            true if all bytes of the file have been written, false if the
+	 *            transfer broke off and the partial file should be discarded.
+	 * @return a code indicating success, {@link LpdServerProtocol#ACK_SUCCESS},
+	 *         or an error code (any other value) indicating failure.
+	 * @throws IOException
+	 *             throws if there was an input output error.
+	 */
+	byte closeFile(boolean complete) throws IOException;
+}
@@ -0,0 +1,47 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server;
+
+import java.io.IOException;
+
+import open.lpd.server.impl.MemoryPrintJob;
+
+/**
+ * Print job handler interface for processing print jobs of memory queues
+ * inside the server process, see
+ * {@link open.lpd.server.impl.MemoryPrintJobStore}. The handler reads the files
+ * of a print job from pooled buffers without copying them. Once the handler
+ * returns, the print job is removed and its buffers are reused, so the handler
+ * must not keep references to them. If the handler throws, the print job stays
+ * in its queue. Implementations must be thread safe, as print jobs are handled
+ * concurrently.
+ */
+public interface IMemoryPrintJobHandler {
+
+	/**
+	 * Handles a received print job.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJob
+	 *            the print job with its control and data files.
+	 * @throws IOException
+	 *             throws if there was an input output error.
+	 */
+	void handle(String queue, MemoryPrintJob printJob) throws IOException;
+}
@@ -0,0 +1,47 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Print job handler interface for processing received print jobs inside the
+ * server process. A script based implementation is provided,
+ * {@link open.lpd.server.impl.ScriptPrintJobHandler}. Implementations loaded by
+ * the LPD server need a public no argument constructor and must be thread
+ * safe, as print jobs are handled concurrently. Data files of compressed
+ * queues are handed over as they are stored, a handler reads the received
+ * bytes of a data file with
+ * {@link open.lpd.server.impl.SpoolCompression#openReceivedFile(File, String)}.
+ */
+public interface IPrintJobHandler {
+
+	/**
+	 * Handles a received print job.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJobFolder
+	 *            the folder that holds the control and data files of the print
+	 *            job.
+	 * @throws IOException
+	 *             throws if there was an input output error.
+	 */
+	void handle(String queue, File printJobFolder) throws IOException;
+}
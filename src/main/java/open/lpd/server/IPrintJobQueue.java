@@ -80,11 +80,13 @@ public interface IPrintJobQueue {
 	String sendQueueStateLong(String queue, String[] list) throws IOException;
 
 	/**
-	 * Removes selected print jobs for the specified queue.
+	 * Removes selected print jobs for the specified queue. The agent removes
+	 * only its own print jobs unless it is root, see RFC 1179 section 5.5.
 	 * 
 	 * @param queue
 	 *            the name of the queue.
 	 * @param agent
+	 *            the user name of the agent requesting the removal.
 	 * @param list
 	 *            the list of print jobs.
 	 * @throws IOException
@@ -115,14 +117,15 @@ public interface IPrintJobQueue {
 	 * @throws IOException
 	 *             throws if there was an input output error.
 	 */
-	byte receiveControlFile(int count, String name, InputStream clientInStream)
+	byte receiveControlFile(long count, String name, InputStream clientInStream)
 			throws IOException;
 
 	/**
 	 * Receives a data file for the current print job.
 	 * 
 	 * @param count
-	 *            the number of bytes to receive.
+	 *            the number of bytes to receive or 0 if the length is unknown
+	 *            and the data file ends with the input stream.
 	 * @param name
 	 *            the name of the data file.
 	 * @param clientInStream
@@ -132,11 +135,13 @@ public interface IPrintJobQueue {
 	 * @throws IOException
 	 *             throws if there was an input output error.
 	 */
-	byte receiveDataFile(int count, String name, InputStream clientInStream)
+	byte receiveDataFile(long count, String name, InputStream clientInStream)
 			throws IOException;
 
 	/**
-	 * Indicates that receiving a print job has finished.
+	 * Indicates that receiving a print job has finished. It is also called
+	 * after {@link #abortJob()} if the connection broke off while receiving
+	 * the print job, so resources held for the print job can be released.
 	 * 
 	 * @throws IOException
 	 *             throws if there was an input output error.
@@ -0,0 +1,62 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * LPD queue interface for queues that stream their state. Instead of building
+ * the whole queue state as a string, the queue writes the state of each print
+ * job to the client connection while iterating over its print jobs, so the
+ * memory needed does not grow with the size of the queue.
+ */
+public interface IStreamingPrintJobQueue extends IPrintJobQueue {
+
+	/**
+	 * Writes the short state of selected print jobs for the specified queue.
+	 *
+	 * @param queue
+	 *            the name of the queue.
+	 * @param list
+	 *            the list of print jobs.
+	 * @param out
+	 *            the writer to write the state to, it is flushed but not
+	 *            closed by the caller.
+	 * @throws IOException
+	 *             throws if there was an input output error.
+	 */
+	void writeQueueStateShort(String queue, String[] list, Writer out)
+			throws IOException;
+
+	/**
+	 * Writes the long state of selected print jobs for the specified queue.
+	 *
+	 * @param queue
+	 *            the name of the queue.
+	 * @param list
+	 *            the list of print jobs.
+	 * @param out
+	 *            the writer to write the state to, it is flushed but not
+	 *            closed by the caller.
+	 * @throws IOException
+	 *             throws if there was an input output error.
+	 */
+	void writeQueueStateLong(String queue, String[] list, Writer out)
+			throws IOException;
+}
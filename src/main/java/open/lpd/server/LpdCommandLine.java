@@ -0,0 +1,257 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A reusable LPD protocol line. The line is collected as raw bytes and its
+ * operands are located and decoded on demand without regular expressions.
+ *
+ * Operands are separated by single whitespace characters and trailing empty
+ * operands are dropped, like {@link String#split(String)} with
+ * {@link LpdServerProtocol#REGEXP_WHITESPACE}. Bytes are decoded as ISO-8859-1,
+ * one char per byte.
+ */
+public class LpdCommandLine {
+
+	private static final int INITIAL_LINE_SIZE = 128;
+	private static final int INITIAL_OPERAND_COUNT = 4;
+
+	private byte[] bytes;
+	private int length;
+	private int[] operandStarts;
+	private int[] operandEnds;
+	private int operandCount;
+
+	/**
+	 * Creates an empty protocol line.
+	 */
+	public LpdCommandLine() {
+		this.bytes = new byte[INITIAL_LINE_SIZE];
+		this.operandStarts = new int[INITIAL_OPERAND_COUNT];
+		this.operandEnds = new int[INITIAL_OPERAND_COUNT];
+		clear();
+	}
+
+	/**
+	 * Clears the line so it can be reused.
+	 */
+	public void clear() {
+		length = 0;
+		operandCount = -1;
+	}
+
+	/**
+	 * Reads a line from the stream. The line ends with a line feed, which is
+	 * not part of the line, or with the end of the stream.
+	 *
+	 * @param in
+	 *            the stream to read from.
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	public void read(InputStream in) throws IOException {
+
+		clear();
+		while (true) {
+			int c = in.read();
+			if (c == -1 || c == LpdServerProtocol.LPD_LF) {
+				break;
+			}
+			append((byte) c);
+		}
+	}
+
+	/**
+	 * Appends bytes from the buffer until a line feed is found. The line feed
+	 * is consumed but not appended. Call {@link #clear()} before collecting the
+	 * next line.
+	 *
+	 * @param buffer
+	 *            the buffer to read from.
+	 * @return true if the line is complete.
+	 */
+	public boolean read(ByteBuffer buffer) {
+
+		while (buffer.hasRemaining()) {
+			byte c = buffer.get();
+			if (c == LpdServerProtocol.LPD_LF) {
+				return true;
+			}
+			append(c);
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the whole line.
+	 *
+	 * @return the line.
+	 */
+	public String getLine() {
+		return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Gets the number of operands of the line.
+	 *
+	 * @return the number of operands.
+	 */
+	public int getOperandCount() {
+		parseOperands();
+		return operandCount;
+	}
+
+	/**
+	 * Gets an operand of the line.
+	 *
+	 * @param index
+	 *            the index of the operand.
+	 * @return the operand.
+	 * @throws IOException
+	 *             throws if the line has no such operand.
+	 */
+	public String getOperand(int index) throws IOException {
+		checkOperand(index);
+		return new String(bytes, operandStarts[index], operandEnds[index]
+				- operandStarts[index], StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Gets an operand of the line that holds a decimal number.
+	 *
+	 * @param index
+	 *            the index of the operand.
+	 * @return the number.
+	 * @throws IOException
+	 *             throws if the line has no such operand or if the operand is
+	 *             not a valid number.
+	 */
+	public long getOperandAsLong(int index) throws IOException {
+
+		checkOperand(index);
+		int start = operandStarts[index];
+		int end = operandEnds[index];
+		if (start == end) {
+			throw new IOException("Invalid number: " + getOperand(index));
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = bytes[i] - '0';
+			if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+				throw new IOException("Invalid number: " + getOperand(index));
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Gets an operand of the line that holds a decimal number.
+	 *
+	 * @param index
+	 *            the index of the operand.
+	 * @return the number.
+	 * @throws IOException
+	 *             throws if the line has no such operand or if the operand is
+	 *             not a valid number.
+	 */
+	public int getOperandAsInt(int index) throws IOException {
+
+		long value = getOperandAsLong(index);
+		if (value > Integer.MAX_VALUE) {
+			throw new IOException("Invalid number: " + getOperand(index));
+		}
+		return (int) value;
+	}
+
+	@Override
+	public String toString() {
+		return getLine();
+	}
+
+	private void append(byte c) {
+		if (length == bytes.length) {
+			byte[] grownBytes = new byte[bytes.length * 2];
+			System.arraycopy(bytes, 0, grownBytes, 0, length);
+			bytes = grownBytes;
+		}
+		bytes[length++] = c;
+	}
+
+	private void checkOperand(int index) throws IOException {
+		if (index < 0 || index >= getOperandCount()) {
+			throw new IOException("Missing operand " + index + " in line: "
+					+ getLine());
+		}
+	}
+
+	private void parseOperands() {
+
+		// locate operands once per line
+
+		if (operandCount >= 0) {
+			return;
+		}
+		operandCount = 0;
+		int start = 0;
+		for (int i = 0; i <= length; i++) {
+			if (i == length || isWhitespace(bytes[i])) {
+				addOperand(start, i);
+				start = i + 1;
+			}
+		}
+
+		// drop trailing empty operands, a line without any separator is a
+		// single operand even if it is empty
+
+		while (operandCount > 1
+				&& operandStarts[operandCount - 1] == operandEnds[operandCount - 1]) {
+			operandCount--;
+		}
+		if (operandCount == 1 && length > 0 && operandStarts[0] == operandEnds[0]) {
+			operandCount = 0;
+		}
+	}
+
+	private void addOperand(int start, int end) {
+		if (operandCount == operandStarts.length) {
+			int[] grownStarts = new int[operandCount * 2];
+			int[] grownEnds = new int[operandCount * 2];
+			System.arraycopy(operandStarts, 0, grownStarts, 0, operandCount);
+			System.arraycopy(operandEnds, 0, grownEnds, 0, operandCount);
+			operandStarts = grownStarts;
+			operandEnds = grownEnds;
+		}
+		operandStarts[operandCount] = start;
+		operandEnds[operandCount] = end;
+		operandCount++;
+	}
+
+	private static boolean isWhitespace(byte c) {
+
+		// same characters as the regular expression \s
+
+		return c == ' ' || c == '\t' || c == '\n' || c == 0x0b || c == '\f'
+				|| c == '\r';
+	}
+}
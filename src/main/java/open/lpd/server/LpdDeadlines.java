@@ -0,0 +1,95 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server;
+
+/**
+ * Read deadlines for the phases of the LPD protocol. A client that misses a
+ * deadline is disconnected and its partially received print job is aborted,
+ * so slow or broken clients cannot hold on to server resources. A value of
+ * zero disables the deadline of a phase.
+ */
+public class LpdDeadlines {
+
+	private long commandTimeout;
+	private long subCommandTimeout;
+	private long fileMinRate;
+	private long ackTimeout;
+
+	/**
+	 * Creates read deadlines.
+	 * 
+	 * @param commandTimeout
+	 *            the milliseconds the client may take to send the command
+	 *            line after connecting.
+	 * @param subCommandTimeout
+	 *            the milliseconds the client may take to send each sub command
+	 *            line of a print job.
+	 * @param fileMinRate
+	 *            the minimum number of bytes per second at which the content of
+	 *            a file must arrive, after an initial allowance of the sub
+	 *            command timeout. Without a sub command timeout the content
+	 *            of a file has no deadline either.
+	 * @param ackTimeout
+	 *            the milliseconds the client may take to send the final ack
+	 *            of a file.
+	 */
+	public LpdDeadlines(long commandTimeout, long subCommandTimeout,
+			long fileMinRate, long ackTimeout) {
+		this.commandTimeout = commandTimeout;
+		this.subCommandTimeout = subCommandTimeout;
+		this.fileMinRate = fileMinRate;
+		this.ackTimeout = ackTimeout;
+	}
+
+	public long getCommandTimeout() {
+		return commandTimeout;
+	}
+
+	public long getSubCommandTimeout() {
+		return subCommandTimeout;
+	}
+
+	public long getFileMinRate() {
+		return fileMinRate;
+	}
+
+	public long getAckTimeout() {
+		return ackTimeout;
+	}
+
+	/**
+	 * Gets the time a client may take to send the content of a file up to the
+	 * given number of bytes.
+	 * 
+	 * @param bytesReceived
+	 *            the number of bytes received so far.
+	 * @return the milliseconds since the file started or zero if there is no
+	 *         minimum rate or no sub command timeout.
+	 */
+	public long getFileTimeout(long bytesReceived) {
+
+		// the sub command timeout is the initial allowance, a rate alone
+		// would time out a file before its first byte arrives
+
+		if (fileMinRate <= 0 || subCommandTimeout <= 0) {
+			return 0;
+		}
+		return subCommandTimeout + bytesReceived / fileMinRate * 1000
+				+ bytesReceived % fileMinRate * 1000 / fileMinRate;
+	}
+}
@@ -0,0 +1,814 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * Non-blocking variant of the {@link LpdServerProtocol}. Instead of reading
+ * from a blocking input stream, the protocol is fed with the bytes received on
+ * the client connection as they arrive and advances its command and sub command
+ * state machine incrementally. Responses are collected in an output buffer that
+ * the caller writes to the client connection.
+ *
+ * The protocol uses the {@link IChannelPrintJobQueue} interface as a queue back
+ * end to handle print jobs.
+ */
+public class LpdServerChannelProtocol {
+
+	private static final int STATE_COMMAND = 0;
+	private static final int STATE_COMMAND_LINE = 1;
+	private static final int STATE_SUB_COMMAND = 2;
+	private static final int STATE_SUB_COMMAND_LINE = 3;
+	private static final int STATE_FILE = 4;
+	private static final int STATE_FILE_ACK = 5;
+	private static final int STATE_FINISHED = 6;
+	private static final int STATE_FILE_CLOSE = 7;
+	private static final int INITIAL_OUTPUT_SIZE = 16;
+
+	private IChannelPrintJobQueue printJobQueue;
+	private String protocolCharset = LpdServerProtocol.LPD_DEFAULT_CHARSET;
+	private Executor jobExecutor;
+	private Runnable wakeup;
+	private int state;
+	private int cmd;
+	private int subCmd;
+	private LpdCommandLine commandLine;
+	private long fileBytesLeft;
+	private boolean fileUntilEndOfInput;
+	private byte fileCode;
+	private ByteBuffer output;
+	private LpdDeadlines deadlines;
+	private long phaseStart;
+	private long fileBytesReceived;
+	private ByteBuffer pendingInput;
+	private boolean inputEnded;
+	private volatile byte closedFileCode;
+	private volatile IOException closedFileError;
+
+	/**
+	 * Creates a non-blocking LPD server protocol which handles a single client
+	 * connection.
+	 *
+	 * @param printJobQueue
+	 *            the queue that handles the print jobs of this server.
+	 */
+	public LpdServerChannelProtocol(IChannelPrintJobQueue printJobQueue) {
+		this.printJobQueue = printJobQueue;
+		this.jobExecutor = null;
+		this.state = STATE_COMMAND;
+		this.phaseStart = System.currentTimeMillis();
+		this.commandLine = new LpdCommandLine();
+		this.output = ByteBuffer.allocate(INITIAL_OUTPUT_SIZE);
+	}
+
+	/**
+	 * Gets the print job queue.
+	 *
+	 * @return the print job queue.
+	 */
+	public IPrintJobQueue getQueue() {
+		return printJobQueue;
+	}
+
+	/**
+	 * Sets the charset to use for the protocol.
+	 *
+	 * @param protocolCharset
+	 *            the charset to use.
+	 */
+	public void setCharset(String protocolCharset) {
+		this.protocolCharset = protocolCharset;
+	}
+
+	/**
+	 * Sets the executor that runs the queue calls which start print jobs,
+	 * {@link IPrintJobQueue#printAnyWaitingJobs(String)} and
+	 * {@link IPrintJobQueue#finishedReceivingAPrinterJob()}. These calls may
+	 * take a long time and should not run on a thread that serves many
+	 * connections. If no executor is set, the calls run on the calling thread.
+	 * Together with a wakeup, see {@link #setWakeup(Runnable)}, the executor
+	 * also closes received files.
+	 *
+	 * @param jobExecutor
+	 *            the executor to use or null.
+	 */
+	public void setJobExecutor(Executor jobExecutor) {
+		this.jobExecutor = jobExecutor;
+	}
+
+	/**
+	 * Sets the callback that tells the thread serving the connection to call
+	 * {@link #resume()}. With a job executor, a received file is closed by the
+	 * executor, which may force it to disk, while the protocol is suspended.
+	 * The callback runs on the executor once the file is closed. Without it,
+	 * files are closed on the calling thread.
+	 *
+	 * @param wakeup
+	 *            the callback or null.
+	 */
+	public void setWakeup(Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+
+	/**
+	 * Sets the read deadlines for the protocol phases.
+	 *
+	 * @param deadlines
+	 *            the read deadlines or null for no deadlines.
+	 */
+	public void setDeadlines(LpdDeadlines deadlines) {
+		this.deadlines = deadlines;
+	}
+
+	/**
+	 * Gets the time by which the client must have sent the input of the
+	 * current protocol phase. A connection that misses the deadline should be
+	 * closed with {@link #close()}.
+	 *
+	 * @return the deadline in milliseconds since the epoch or zero if there is
+	 *         no deadline.
+	 */
+	public long getDeadline() {
+
+		if (deadlines == null) {
+			return 0;
+		}
+		long timeout;
+		switch (state) {
+		case STATE_COMMAND:
+		case STATE_COMMAND_LINE:
+			timeout = deadlines.getCommandTimeout();
+			break;
+		case STATE_SUB_COMMAND:
+		case STATE_SUB_COMMAND_LINE:
+			timeout = deadlines.getSubCommandTimeout();
+			break;
+		case STATE_FILE:
+			timeout = deadlines.getFileTimeout(fileBytesReceived);
+			break;
+		case STATE_FILE_ACK:
+			timeout = deadlines.getAckTimeout();
+			break;
+		default:
+			return 0;
+		}
+		return (timeout > 0) ? phaseStart + timeout : 0;
+	}
+
+	/**
+	 * Moves the deadline of the current protocol phase back, because the
+	 * server stopped reading from the client for a while.
+	 *
+	 * @param millis
+	 *            the milliseconds the server did not read.
+	 */
+	public void suspendDeadline(long millis) {
+		phaseStart += millis;
+	}
+
+	/**
+	 * Checks if the protocol has finished and the client connection can be
+	 * closed once all pending output has been written.
+	 *
+	 * @return true if the protocol has finished.
+	 */
+	public boolean isFinished() {
+		return state == STATE_FINISHED;
+	}
+
+	/**
+	 * Checks if the protocol waits for a received file to be closed. The
+	 * client connection should not be read until {@link #resume()} has been
+	 * called.
+	 *
+	 * @return true if the protocol is suspended.
+	 */
+	public boolean isSuspended() {
+		return state == STATE_FILE_CLOSE;
+	}
+
+	/**
+	 * Continues the protocol after a received file has been closed. The final
+	 * file ack is queued, input received meanwhile is consumed and a client
+	 * connection that has ended meanwhile finishes. If the protocol has been
+	 * closed meanwhile, the print job is aborted.
+	 *
+	 * @throws IOException
+	 *             throws if the file could not be closed or an I/O error
+	 *             happens during the protocol.
+	 */
+	public void resume() throws IOException {
+
+		if (state == STATE_FINISHED) {
+			abortReceivingAPrinterJob();
+			return;
+		}
+		if (state != STATE_FILE_CLOSE) {
+			return;
+		}
+		setState(STATE_SUB_COMMAND);
+		if (closedFileError != null) {
+			throw closedFileError;
+		}
+		fileCode = closedFileCode;
+		acknowledge(fileCode);
+		if (pendingInput != null) {
+			ByteBuffer input = pendingInput;
+			pendingInput = null;
+			receive(input);
+		}
+		if (inputEnded && state != STATE_FILE_CLOSE) {
+			finishInput();
+		}
+	}
+
+	/**
+	 * Checks if there is output pending for the client connection.
+	 *
+	 * @return true if output is pending.
+	 */
+	public boolean hasOutput() {
+		return output.position() > 0;
+	}
+
+	/**
+	 * Writes pending output to the client connection.
+	 *
+	 * @param clientChannel
+	 *            the channel to write the output to.
+	 * @return true if all pending output has been written.
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	public boolean writeOutput(WritableByteChannel clientChannel)
+			throws IOException {
+		output.flip();
+		try {
+			clientChannel.write(output);
+		} finally {
+			output.compact();
+		}
+		return !hasOutput();
+	}
+
+	/**
+	 * Consumes the bytes received from the client connection. All remaining
+	 * bytes of the buffer are consumed unless the protocol has finished. Bytes
+	 * received while the protocol is suspended are kept until it resumes.
+	 *
+	 * @param input
+	 *            the buffer holding the received bytes.
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	public void receive(ByteBuffer input) throws IOException {
+
+		while (input.hasRemaining() && state != STATE_FINISHED
+				&& state != STATE_FILE_CLOSE) {
+			switch (state) {
+			case STATE_COMMAND:
+				cmd = input.get();
+				switch (cmd) {
+				case LpdServerProtocol.CMD_PRINT_ANY_WAITING_JOBS:
+				case LpdServerProtocol.CMD_RECEIVE_A_PRINTER_JOB:
+				case LpdServerProtocol.CMD_SEND_QUEUE_STATE_SHORT:
+				case LpdServerProtocol.CMD_SEND_QUEUE_STATE_LONG:
+				case LpdServerProtocol.CMD_REMOVE_JOBS:
+					commandLine.clear();
+					state = STATE_COMMAND_LINE;
+					break;
+				default:
+					throw new IOException("unsupported cmd: " + cmd);
+				}
+				break;
+			case STATE_COMMAND_LINE:
+				if (commandLine.read(input)) {
+					handleCommand();
+				}
+				break;
+			case STATE_SUB_COMMAND:
+				subCmd = input.get();
+				switch (subCmd) {
+				case LpdServerProtocol.SUB_CMD_ABORT_JOB:
+				case LpdServerProtocol.SUB_CMD_RECEIVE_CONTROL_FILE:
+				case LpdServerProtocol.SUB_CMD_RECEIVE_DATA_FILE:
+					commandLine.clear();
+					state = STATE_SUB_COMMAND_LINE;
+					break;
+				default:
+					throw new IOException("unsupported subCmd: " + subCmd);
+				}
+				break;
+			case STATE_SUB_COMMAND_LINE:
+				if (commandLine.read(input)) {
+					handleSubCommand();
+				}
+				break;
+			case STATE_FILE:
+				receiveFile(input);
+				break;
+			case STATE_FILE_ACK:
+				int ack = input.get();
+				if (ack != 0) {
+					throw new IOException("Received invalid ack: " + ack);
+				}
+				completeFile();
+				break;
+			}
+		}
+		if (state == STATE_FILE_CLOSE && input.hasRemaining()) {
+			pendingInput = ByteBuffer.allocate(input.remaining());
+			pendingInput.put(input);
+			pendingInput.flip();
+		}
+	}
+
+	/**
+	 * Checks if the protocol is receiving the content of a file that can be
+	 * transferred with {@link #transferFile(ReadableByteChannel)}.
+	 *
+	 * @return true if a file is being received.
+	 */
+	public boolean isReceivingFile() {
+		return state == STATE_FILE && fileCode == LpdServerProtocol.ACK_SUCCESS;
+	}
+
+	/**
+	 * Transfers file content directly from the client connection to the
+	 * queue while a file is being received. A return value of zero may also
+	 * indicate the end of the client connection, so the caller should fall back
+	 * to {@link #receive(ByteBuffer)} in that case.
+	 *
+	 * @param clientChannel
+	 *            the client connection.
+	 * @return the number of bytes transferred.
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	public long transferFile(ReadableByteChannel clientChannel)
+			throws IOException {
+
+		if (!isReceivingFile()) {
+			return 0;
+		}
+		long bytesTransferred = printJobQueue.transferFile(clientChannel,
+				fileBytesLeft);
+		fileBytesReceived += bytesTransferred;
+		if (!fileUntilEndOfInput) {
+			fileBytesLeft -= bytesTransferred;
+			if (fileBytesLeft == 0) {
+				setState(STATE_FILE_ACK);
+			}
+		}
+		return bytesTransferred;
+	}
+
+	/**
+	 * Signals that the client has closed its side of the connection.
+	 *
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	public void endOfInput() throws IOException {
+
+		// a line that is cut off by the end of the stream is handled like a
+		// complete line
+
+		if (state == STATE_COMMAND_LINE) {
+			handleCommand();
+		} else if (state == STATE_SUB_COMMAND_LINE) {
+			handleSubCommand();
+		}
+		inputEnded = true;
+		if (state == STATE_FILE && fileUntilEndOfInput) {
+
+			// a data file of unknown length ends with the connection, there
+			// is no ack from the client
+
+			completeFile();
+		}
+		if (state != STATE_FILE_CLOSE) {
+			finishInput();
+		}
+	}
+
+	/**
+	 * Finishes the protocol after the client has closed its side of the
+	 * connection.
+	 *
+	 * @throws IOException
+	 *             throws if the connection ended while a file was received.
+	 */
+	private void finishInput() throws IOException {
+
+		switch (state) {
+		case STATE_SUB_COMMAND:
+			state = STATE_FINISHED;
+			finishedReceivingAPrinterJob();
+			break;
+		case STATE_FILE:
+		case STATE_FILE_ACK:
+			close();
+			throw new IOException("Connection closed while receiving file.");
+		default:
+			state = STATE_FINISHED;
+			break;
+		}
+	}
+
+	/**
+	 * Closes the protocol after the client connection broke off. A partially
+	 * received file is discarded and a partially received print job is
+	 * aborted. A print job whose file is being closed is aborted when the
+	 * protocol resumes.
+	 *
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	public void close() throws IOException {
+
+		if (state == STATE_FILE_CLOSE) {
+			state = STATE_FINISHED;
+			return;
+		}
+
+		boolean fileOpen = (state == STATE_FILE || state == STATE_FILE_ACK)
+				&& fileCode == LpdServerProtocol.ACK_SUCCESS;
+		boolean receivingAPrinterJob = state == STATE_SUB_COMMAND
+				|| state == STATE_SUB_COMMAND_LINE || fileOpen
+				|| state == STATE_FILE || state == STATE_FILE_ACK;
+		state = STATE_FINISHED;
+		if (fileOpen) {
+			printJobQueue.closeFile(false);
+		}
+		if (receivingAPrinterJob) {
+			abortReceivingAPrinterJob();
+		}
+	}
+
+	/**
+	 * Handles a command once its line has been received.
+	 *
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	private void handleCommand() throws IOException {
+
+		switch (cmd) {
+		case LpdServerProtocol.CMD_PRINT_ANY_WAITING_JOBS:
+			state = STATE_FINISHED;
+			printAnyWaitingJobs(commandLine.getLine());
+			break;
+		case LpdServerProtocol.CMD_RECEIVE_A_PRINTER_JOB:
+			acknowledge(printJobQueue.receiveAPrinterJob(commandLine.getLine()));
+			setState(STATE_SUB_COMMAND);
+			break;
+		case LpdServerProtocol.CMD_SEND_QUEUE_STATE_SHORT:
+			writeQueueState(false, commandLine.getOperand(0), getList(1));
+			state = STATE_FINISHED;
+			break;
+		case LpdServerProtocol.CMD_SEND_QUEUE_STATE_LONG:
+			writeQueueState(true, commandLine.getOperand(0), getList(1));
+			state = STATE_FINISHED;
+			break;
+		case LpdServerProtocol.CMD_REMOVE_JOBS:
+			printJobQueue.removeJobs(commandLine.getOperand(0),
+					commandLine.getOperand(1), getList(2));
+			state = STATE_FINISHED;
+			break;
+		}
+	}
+
+	/**
+	 * Handles a sub command once its line has been received.
+	 *
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	private void handleSubCommand() throws IOException {
+
+		switch (subCmd) {
+		case LpdServerProtocol.SUB_CMD_ABORT_JOB:
+			printJobQueue.abortJob();
+			setState(STATE_SUB_COMMAND);
+			break;
+		case LpdServerProtocol.SUB_CMD_RECEIVE_CONTROL_FILE: {
+			long count = commandLine.getOperandAsLong(0);
+			String name = commandLine.getOperand(1);
+			acknowledge(LpdServerProtocol.ACK_SUCCESS);
+			fileCode = printJobQueue.openControlFile(count, name);
+			fileBytesLeft = count;
+			fileUntilEndOfInput = false;
+			setState((count > 0) ? STATE_FILE : STATE_FILE_ACK);
+			break;
+		}
+		case LpdServerProtocol.SUB_CMD_RECEIVE_DATA_FILE: {
+			long count = commandLine.getOperandAsLong(0);
+			String name = commandLine.getOperand(1);
+			acknowledge(LpdServerProtocol.ACK_SUCCESS);
+			fileCode = printJobQueue.openDataFile(count, name);
+			fileUntilEndOfInput = (count == 0);
+			fileBytesLeft = fileUntilEndOfInput ? Long.MAX_VALUE : count;
+			setState(STATE_FILE);
+			break;
+		}
+		}
+	}
+
+	/**
+	 * Passes the received bytes of the current file to the queue.
+	 *
+	 * @param input
+	 *            the buffer holding the received bytes.
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	private void receiveFile(ByteBuffer input) throws IOException {
+
+		int chunkSize = (int) Math.min(input.remaining(), fileBytesLeft);
+		fileBytesReceived += chunkSize;
+		if (fileCode == LpdServerProtocol.ACK_SUCCESS) {
+			int limit = input.limit();
+			input.limit(input.position() + chunkSize);
+			try {
+				printJobQueue.writeFile(input);
+			} finally {
+				input.limit(limit);
+			}
+		} else {
+			input.position(input.position() + chunkSize);
+		}
+		if (!fileUntilEndOfInput) {
+			fileBytesLeft -= chunkSize;
+			if (fileBytesLeft == 0) {
+				setState(STATE_FILE_ACK);
+			}
+		}
+	}
+
+	/**
+	 * Closes the current file after all of its bytes have been received and
+	 * sends the final file ack.
+	 *
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	private void completeFile() throws IOException {
+
+		if (fileCode != LpdServerProtocol.ACK_SUCCESS) {
+			setState(STATE_SUB_COMMAND);
+			acknowledge(fileCode);
+			return;
+		}
+		if (jobExecutor == null || wakeup == null) {
+			setState(STATE_SUB_COMMAND);
+			fileCode = printJobQueue.closeFile(true);
+			acknowledge(fileCode);
+			return;
+		}
+
+		// closing the file may force it to disk, which must not stall the
+		// other connections of the calling thread, so the executor closes it
+		// and the ack is sent when the protocol resumes
+
+		setState(STATE_FILE_CLOSE);
+		closedFileError = new IOException("File could not be closed.");
+		jobExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					closedFileCode = printJobQueue.closeFile(true);
+					closedFileError = null;
+				} catch (IOException e) {
+					closedFileError = e;
+				} finally {
+					wakeup.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Enters a new protocol phase, which starts its read deadline.
+	 *
+	 * @param newState
+	 *            the state of the new protocol phase.
+	 */
+	private void setState(int newState) {
+		state = newState;
+		phaseStart = System.currentTimeMillis();
+		fileBytesReceived = 0;
+	}
+
+	/**
+	 * Gets the job list operand of the current protocol line.
+	 *
+	 * @param index
+	 *            the index of the list operand.
+	 * @return the list or null if the line has no list operand.
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	private String[] getList(int index) throws IOException {
+		return (commandLine.getOperandCount() > index) ? new String[] { commandLine
+				.getOperand(index) } : null;
+	}
+
+	/**
+	 * Queues a protocol ack for the client.
+	 *
+	 * @param code
+	 *            the ack code to send to the client.
+	 */
+	private void acknowledge(byte code) {
+		write(new byte[] { code });
+	}
+
+	/**
+	 * Queues bytes for the client, growing the output buffer as needed.
+	 *
+	 * @param bytes
+	 *            the bytes to send to the client.
+	 */
+	private void write(byte[] bytes) {
+		write(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Queues the remaining bytes of a buffer for the client, growing the output
+	 * buffer as needed.
+	 *
+	 * @param bytes
+	 *            the buffer holding the bytes to send to the client.
+	 */
+	private void write(ByteBuffer bytes) {
+		if (output.remaining() < bytes.remaining()) {
+			ByteBuffer grownOutput = ByteBuffer.allocate(Math.max(
+					output.capacity() * 2, output.position() + bytes.remaining()));
+			output.flip();
+			grownOutput.put(output);
+			output = grownOutput;
+		}
+		output.put(bytes);
+	}
+
+	/**
+	 * Queues the state of a queue for the client. A streaming queue encodes
+	 * the state of its print jobs directly into the output buffer instead of
+	 * building the state as a string first.
+	 *
+	 * @param longState
+	 *            true for the long queue state, false for the short one.
+	 * @param queue
+	 *            the name of the queue.
+	 * @param list
+	 *            the list of print jobs.
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	private void writeQueueState(boolean longState, String queue,
+			String[] list) throws IOException {
+
+		if (!(printJobQueue instanceof IStreamingPrintJobQueue)) {
+			String state = longState ? printJobQueue.sendQueueStateLong(queue,
+					list) : printJobQueue.sendQueueStateShort(queue, list);
+			write(state.getBytes(protocolCharset));
+			return;
+		}
+		IStreamingPrintJobQueue streamingQueue = (IStreamingPrintJobQueue) printJobQueue;
+		Writer out = Channels.newWriter(new WritableByteChannel() {
+
+			@Override
+			public int write(ByteBuffer src) {
+				int count = src.remaining();
+				LpdServerChannelProtocol.this.write(src);
+				return count;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		}, protocolCharset);
+		if (longState) {
+			streamingQueue.writeQueueStateLong(queue, list, out);
+		} else {
+			streamingQueue.writeQueueStateShort(queue, list, out);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Tells the queue to print any waiting jobs, using the job executor if set.
+	 *
+	 * @param queue
+	 *            the name of the queue.
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	private void printAnyWaitingJobs(final String queue) throws IOException {
+
+		if (jobExecutor == null) {
+			printJobQueue.printAnyWaitingJobs(queue);
+			return;
+		}
+		jobExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					printJobQueue.printAnyWaitingJobs(queue);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Tells the queue to abort the print job that broke off and that receiving
+	 * it has finished, using the job executor if set.
+	 *
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	private void abortReceivingAPrinterJob() throws IOException {
+
+		if (jobExecutor == null) {
+			try {
+				printJobQueue.abortJob();
+			} finally {
+				printJobQueue.finishedReceivingAPrinterJob();
+			}
+			return;
+		}
+		jobExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					try {
+						printJobQueue.abortJob();
+					} finally {
+						printJobQueue.finishedReceivingAPrinterJob();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Tells the queue that receiving a print job has finished, using the job
+	 * executor if set.
+	 *
+	 * @throws IOException
+	 *             throws if an I/O error happens during the protocol.
+	 */
+	private void finishedReceivingAPrinterJob() throws IOException {
+
+		if (jobExecutor == null) {
+			printJobQueue.finishedReceivingAPrinterJob();
+			return;
+		}
+		jobExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					printJobQueue.finishedReceivingAPrinterJob();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+}
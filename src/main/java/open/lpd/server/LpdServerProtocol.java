@@ -17,9 +17,13 @@
  */
 package open.lpd.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 /**
  * Use the LpdServerProtocol class to implement your own LPD server. The
@@ -41,16 +45,21 @@ public class LpdServerProtocol {
 	public static final char LPD_LF = 0x0a;
 	public static final String REGEXP_WHITESPACE = "\\s";
 
+	private static final int STATE_BUFFER_SIZE = 8192;
+
 	private IPrintJobQueue printJobQueue;
 	private InputStream clientInStream;
 	private OutputStream clientOutStream;
 	private String protocolCharset = LPD_DEFAULT_CHARSET;
+	private LpdCommandLine commandLine;
+	private DeadlineInputStream deadlineInStream;
 
 	/**
 	 * Creates a LPD server protocol which handles a single client connection.
 	 * 
 	 * @param clientInStream
-	 *            the stream to receive protocol commands from the client.
+	 *            the stream to receive protocol commands from the client, it
+	 *            is read through a buffer unless a deadline stream is set.
 	 * @param clientOutStream
 	 *            the stream to send protocol commands to the client.
 	 * @param printJobQueue
@@ -58,9 +67,10 @@ public class LpdServerProtocol {
 	 */
 	public LpdServerProtocol(InputStream clientInStream,
 			OutputStream clientOutStream, IPrintJobQueue printJobQueue) {
-		this.clientInStream = clientInStream;
+		this.clientInStream = new BufferedInputStream(clientInStream);
 		this.clientOutStream = clientOutStream;
 		this.printJobQueue = printJobQueue;
+		this.commandLine = new LpdCommandLine();
 	}
 
 	/**
@@ -82,6 +92,24 @@ public class LpdServerProtocol {
 		this.protocolCharset = protocolCharset;
 	}
 
+	/**
+	 * Sets the stream that enforces read deadlines for the protocol phases.
+	 * It must wrap the client socket this protocol was created for, the
+	 * protocol then reads from it instead of buffering the client input
+	 * stream itself. A buffer above the deadline stream would read ahead, so
+	 * bytes would be charged to the wrong phase.
+	 * 
+	 * @param deadlineInStream
+	 *            the deadline input stream, it buffers the socket input
+	 *            itself, or null for no deadlines.
+	 */
+	public void setDeadlineStream(DeadlineInputStream deadlineInStream) {
+		this.deadlineInStream = deadlineInStream;
+		if (deadlineInStream != null) {
+			this.clientInStream = deadlineInStream;
+		}
+	}
+
 	/**
 	 * Handles client connections.
 	 * 
@@ -90,6 +118,9 @@ public class LpdServerProtocol {
 	 */
 	public void handle() throws IOException {
 
+		if (deadlineInStream != null) {
+			deadlineInStream.startCommandDeadline();
+		}
 		int cmd = clientInStream.read();
 		switch (cmd) {
 		case CMD_PRINT_ANY_WAITING_JOBS:
@@ -97,25 +128,46 @@ public class LpdServerProtocol {
 			break;
 		case CMD_RECEIVE_A_PRINTER_JOB:
 			handleReceiveAPrinterJobCommand();
-			boolean moreSubCmdsAvailable = true;
-			while (moreSubCmdsAvailable) {
-				int subCmd = clientInStream.read();
-				switch (subCmd) {
-				case SUB_CMD_ABORT_JOB:
-					handleAbortJobCommand();
-					break;
-				case SUB_CMD_RECEIVE_CONTROL_FILE:
-					handleReceiveControlFile();
-					break;
-				case SUB_CMD_RECEIVE_DATA_FILE:
-					handleReceiveDataFile();
-					break;
-				case -1:
-					moreSubCmdsAvailable = false;
-					break;
-				default:
-					throw new IOException("unsupported subCmd: " + cmd);
+			try {
+				boolean moreSubCmdsAvailable = true;
+				while (moreSubCmdsAvailable) {
+					if (deadlineInStream != null) {
+						deadlineInStream.startSubCommandDeadline();
+					}
+					int subCmd = clientInStream.read();
+					switch (subCmd) {
+					case SUB_CMD_ABORT_JOB:
+						handleAbortJobCommand();
+						break;
+					case SUB_CMD_RECEIVE_CONTROL_FILE:
+						handleReceiveControlFile();
+						break;
+					case SUB_CMD_RECEIVE_DATA_FILE:
+						handleReceiveDataFile();
+						break;
+					case -1:
+						moreSubCmdsAvailable = false;
+						break;
+					default:
+						throw new IOException("unsupported subCmd: " + cmd);
+					}
 				}
+			} catch (IOException e) {
+
+				// a print job that broke off is removed, a failure to remove it
+				// does not hide why it broke off
+
+				try {
+					printJobQueue.abortJob();
+				} catch (IOException e1) {
+					e.addSuppressed(e1);
+				}
+				try {
+					printJobQueue.finishedReceivingAPrinterJob();
+				} catch (IOException e1) {
+					e.addSuppressed(e1);
+				}
+				throw e;
 			}
 			printJobQueue.finishedReceivingAPrinterJob();
 			break;
@@ -149,8 +201,8 @@ public class LpdServerProtocol {
 		//
 		// This command starts the printing process if it not already running.
 
-		String queue = readLine();
-		printJobQueue.printAnyWaitingJobs(queue);
+		commandLine.read(clientInStream);
+		printJobQueue.printAnyWaitingJobs(commandLine.getLine());
 	}
 
 	/**
@@ -176,8 +228,8 @@ public class LpdServerProtocol {
 		// zero bits. A negative acknowledgement is an octet of any other
 		// pattern.
 
-		String queue = readLine();
-		byte code = printJobQueue.receiveAPrinterJob(queue);
+		commandLine.read(clientInStream);
+		byte code = printJobQueue.receiveAPrinterJob(commandLine.getLine());
 		acknowledge(false, code);
 	}
 
@@ -204,14 +256,19 @@ public class LpdServerProtocol {
 		// indicated with ASCII LF control characters. The lines may also
 		// contain ASCII HT control characters.
 
-		String line = readLine();
-		String[] lines = line.split(REGEXP_WHITESPACE);
-		String queue = lines[0];
-		String[] list = (lines.length > 1) ? lines[1].split(REGEXP_WHITESPACE)
-				: null;
-		String state = printJobQueue.sendQueueStateShort(queue, list);
-		clientOutStream.write(state.getBytes(protocolCharset));
-		clientOutStream.flush();
+		commandLine.read(clientInStream);
+		String queue = commandLine.getOperand(0);
+		String[] list = getList(1);
+		if (printJobQueue instanceof IStreamingPrintJobQueue) {
+			Writer out = createStateWriter();
+			((IStreamingPrintJobQueue) printJobQueue).writeQueueStateShort(queue,
+					list, out);
+			out.flush();
+		} else {
+			String state = printJobQueue.sendQueueStateShort(queue, list);
+			clientOutStream.write(state.getBytes(protocolCharset));
+			clientOutStream.flush();
+		}
 	}
 
 	/**
@@ -237,14 +294,19 @@ public class LpdServerProtocol {
 		// indicated with ASCII LF control characters. The lines may also
 		// contain ASCII HT control characters.
 
-		String line = readLine();
-		String[] lines = line.split(REGEXP_WHITESPACE);
-		String queue = lines[0];
-		String[] list = (lines.length > 1) ? lines[1].split(REGEXP_WHITESPACE)
-				: null;
-		String state = printJobQueue.sendQueueStateLong(queue, list);
-		clientOutStream.write(state.getBytes(protocolCharset));
-		clientOutStream.flush();
+		commandLine.read(clientInStream);
+		String queue = commandLine.getOperand(0);
+		String[] list = getList(1);
+		if (printJobQueue instanceof IStreamingPrintJobQueue) {
+			Writer out = createStateWriter();
+			((IStreamingPrintJobQueue) printJobQueue).writeQueueStateLong(queue,
+					list, out);
+			out.flush();
+		} else {
+			String state = printJobQueue.sendQueueStateLong(queue, list);
+			clientOutStream.write(state.getBytes(protocolCharset));
+			clientOutStream.flush();
+		}
 	}
 
 	/**
@@ -271,12 +333,10 @@ public class LpdServerProtocol {
 		// numbers. That is, agent "root" can delete jobs by user name but no
 		// other agents can.
 
-		String line = readLine();
-		String[] lines = line.split(REGEXP_WHITESPACE);
-		String queue = lines[0];
-		String agent = lines[1];
-		String[] list = (lines.length > 2) ? lines[2].split(REGEXP_WHITESPACE)
-				: null;
+		commandLine.read(clientInStream);
+		String queue = commandLine.getOperand(0);
+		String agent = commandLine.getOperand(1);
+		String[] list = getList(2);
 		printJobQueue.removeJobs(queue, agent, list);
 	}
 
@@ -296,7 +356,7 @@ public class LpdServerProtocol {
 		// No operands should be supplied. This subcommand will remove any
 		// files which have been created during this "Receive job" command.
 
-		readLine();
+		commandLine.read(clientInStream);
 		printJobQueue.abortJob();
 	}
 
@@ -329,11 +389,13 @@ public class LpdServerProtocol {
 		// the file being sent is complete. A second level of acknowledgement
 		// processing must occur at this point.
 
-		String line = readLine();
-		String[] lines = line.split(REGEXP_WHITESPACE);
-		int count = Integer.valueOf(lines[0]);
-		String name = lines[1];
+		commandLine.read(clientInStream);
+		long count = commandLine.getOperandAsLong(0);
+		String name = commandLine.getOperand(1);
 		acknowledge(false, ACK_SUCCESS);
+		if (deadlineInStream != null) {
+			deadlineInStream.startFileDeadline();
+		}
 		byte code = printJobQueue.receiveControlFile(count, name,
 				clientInStream);
 		acknowledge(true, code);
@@ -368,13 +430,28 @@ public class LpdServerProtocol {
 		// file being sent is complete. A second level of acknowledgement
 		// processing must occur at this point.
 
-		String line = readLine();
-		String[] lines = line.split(REGEXP_WHITESPACE);
-		int count = Integer.valueOf(lines[0]);
-		String name = lines[1];
+		commandLine.read(clientInStream);
+		long count = commandLine.getOperandAsLong(0);
+		String name = commandLine.getOperand(1);
 		acknowledge(false, ACK_SUCCESS);
+		if (deadlineInStream != null) {
+			deadlineInStream.startFileDeadline();
+		}
 		byte code = printJobQueue.receiveDataFile(count, name, clientInStream);
-		acknowledge(true, code);
+		if (count > 0) {
+			acknowledge(true, code);
+		} else {
+
+			// a data file of unknown length ends with the connection, so there
+			// is no ack from the client, the client may already have closed
+			// the connection completely which does not affect the print job
+
+			try {
+				acknowledge(false, code);
+			} catch (IOException e) {
+				// ignore
+			}
+		}
 	}
 
 	/**
@@ -393,6 +470,9 @@ public class LpdServerProtocol {
 		// receive ack code
 
 		if (receiveAck) {
+			if (deadlineInStream != null) {
+				deadlineInStream.startAckDeadline();
+			}
 			int ack = clientInStream.read();
 			if (ack != 0) {
 				throw new IOException("Received invalid ack: " + ack);
@@ -406,26 +486,33 @@ public class LpdServerProtocol {
 	}
 
 	/**
-	 * Reads a protocol line from the client connection.
+	 * Creates a writer which encodes the queue state for the client.
 	 * 
-	 * @return a protocol line.
+	 * @return the writer, it must be flushed once the state is written.
+	 * @throws IOException
+	 *             throws if the protocol charset is not supported.
+	 */
+	private Writer createStateWriter() throws IOException {
+
+		// encode the queue state into a buffer of limited size which is
+		// written to the client whenever it is full
+
+		return new BufferedWriter(new OutputStreamWriter(clientOutStream,
+				protocolCharset), STATE_BUFFER_SIZE);
+	}
+
+	/**
+	 * Gets the job list operand of the current protocol line.
+	 * 
+	 * @param index
+	 *            the index of the list operand.
+	 * @return the list or null if the line has no list operand.
 	 * 
 	 * @throws IOException
 	 *             throws if an I/O error happens during the protocol.
 	 */
-	private String readLine() throws IOException {
-
-		StringBuilder sb = new StringBuilder();
-		while (true) {
-			int c = clientInStream.read();
-			if (c == -1) {
-				break;
-			}
-			if (c == LPD_LF) {
-				break;
-			}
-			sb.append((char) c);
-		}
-		return sb.toString();
+	private String[] getList(int index) throws IOException {
+		return (commandLine.getOperandCount() > index) ? new String[] { commandLine
+				.getOperand(index) } : null;
 	}
 }
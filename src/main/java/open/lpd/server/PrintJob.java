@@ -0,0 +1,229 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable model of an LPD control file, see RFC 1179 section 7. The
+ * control file is parsed once when it is received, so queue state requests and
+ * job filters do not need to read it again.
+ */
+public class PrintJob {
+
+	/**
+	 * The agent which may remove the print jobs of all users.
+	 */
+	public static final String ROOT = "root";
+
+	private static final String CONTROL_FILE_PREFIX = "cfA";
+	private static final int JOB_NUMBER_LENGTH = 3;
+
+	private int jobNumber;
+	private String host;
+	private String user;
+	private String jobName;
+	private String jobClass;
+	private List<String> dataFiles;
+
+	/**
+	 * Creates a print job.
+	 * 
+	 * @param jobNumber
+	 *            the job number or -1 if it is unknown.
+	 * @param host
+	 *            the host name or null.
+	 * @param user
+	 *            the user identification or null.
+	 * @param jobName
+	 *            the job name or null.
+	 * @param jobClass
+	 *            the class for banner page or null.
+	 * @param dataFiles
+	 *            the names of the data files to print.
+	 */
+	public PrintJob(int jobNumber, String host, String user, String jobName,
+			String jobClass, List<String> dataFiles) {
+		this.jobNumber = jobNumber;
+		this.host = host;
+		this.user = user;
+		this.jobName = jobName;
+		this.jobClass = jobClass;
+		this.dataFiles = Collections.unmodifiableList(new ArrayList<String>(
+				dataFiles));
+	}
+
+	public int getJobNumber() {
+		return jobNumber;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public String getJobName() {
+		return jobName;
+	}
+
+	public String getJobClass() {
+		return jobClass;
+	}
+
+	public List<String> getDataFiles() {
+		return dataFiles;
+	}
+
+	/**
+	 * Checks if a queue state or remove jobs list entry selects this print
+	 * job. An entry selects a print job by user name or by job number.
+	 * 
+	 * @param listEntry
+	 *            the list entry.
+	 * @return true if the print job is selected.
+	 */
+	public boolean matches(String listEntry) {
+		if (listEntry.equals(user)) {
+			return true;
+		}
+		return matchesJobNumber(listEntry);
+	}
+
+	/**
+	 * Checks if an agent may remove this print job, see RFC 1179 section 5.5.
+	 * Only the user of the print job and root may remove it.
+	 * 
+	 * @param agent
+	 *            the user name of the agent requesting the removal.
+	 * @return true if the agent may remove the print job.
+	 */
+	public boolean isRemovableBy(String agent) {
+		return ROOT.equals(agent) || (user != null && user.equals(agent));
+	}
+
+	/**
+	 * Checks if a remove jobs list entry of an agent selects this print job.
+	 * Only root selects print jobs by user name, other agents select their own
+	 * print jobs by job number.
+	 * 
+	 * @param agent
+	 *            the user name of the agent requesting the removal.
+	 * @param listEntry
+	 *            the list entry.
+	 * @return true if the print job is selected and may be removed.
+	 */
+	public boolean matches(String agent, String listEntry) {
+		if (!isRemovableBy(agent)) {
+			return false;
+		}
+		if (ROOT.equals(agent)) {
+			return matches(listEntry);
+		}
+		return matchesJobNumber(listEntry);
+	}
+
+	private boolean matchesJobNumber(String listEntry) {
+		return (jobNumber >= 0) && isJobNumber(listEntry)
+				&& Integer.parseInt(listEntry) == jobNumber;
+	}
+
+	/**
+	 * Parses a control file.
+	 * 
+	 * @param name
+	 *            the name of the control file, it holds the job number.
+	 * @param controlFile
+	 *            the content of the control file.
+	 * @return the print job.
+	 */
+	public static PrintJob parse(String name, byte[] controlFile) {
+
+		// the job number is the three digits following "cfA"
+
+		int jobNumber = -1;
+		if (name.startsWith(CONTROL_FILE_PREFIX)
+				&& name.length() >= CONTROL_FILE_PREFIX.length()
+						+ JOB_NUMBER_LENGTH) {
+			String number = name.substring(CONTROL_FILE_PREFIX.length(),
+					CONTROL_FILE_PREFIX.length() + JOB_NUMBER_LENGTH);
+			if (isJobNumber(number)) {
+				jobNumber = Integer.parseInt(number);
+			}
+		}
+
+		// each line holds a command character followed by an operand, upper
+		// case commands describe the job and lower case commands print a data
+		// file
+
+		String host = null;
+		String user = null;
+		String jobName = null;
+		String jobClass = null;
+		List<String> dataFiles = new ArrayList<String>();
+		ByteBuffer buffer = ByteBuffer.wrap(controlFile);
+		LpdCommandLine line = new LpdCommandLine();
+		while (buffer.hasRemaining()) {
+			line.clear();
+			line.read(buffer);
+			String text = line.getLine();
+			if (text.isEmpty()) {
+				continue;
+			}
+			char command = text.charAt(0);
+			String operand = text.substring(1);
+			switch (command) {
+			case 'H':
+				host = operand;
+				break;
+			case 'P':
+				user = operand;
+				break;
+			case 'J':
+				jobName = operand;
+				break;
+			case 'C':
+				jobClass = operand;
+				break;
+			default:
+				if (command >= 'a' && command <= 'z'
+						&& !dataFiles.contains(operand)) {
+					dataFiles.add(operand);
+				}
+			}
+		}
+		return new PrintJob(jobNumber, host, user, jobName, jobClass, dataFiles);
+	}
+
+	private static boolean isJobNumber(String text) {
+		if (text.isEmpty() || text.length() > JOB_NUMBER_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,213 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the print jobs that are received at the same time, globally and per
+ * queue, and the number of bytes spooled per second. A print job that exceeds
+ * a receive limit is refused with a negative acknowledgement of the receive a
+ * printer job command, so the client can retry later. The spool rate is
+ * enforced with a token bucket, connections that spool faster are slowed down
+ * by reading from them less often. A limit of zero means no limit.
+ */
+public class AdmissionControl {
+
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private Semaphore receives;
+	private int maxQueueReceives;
+	private ConcurrentMap<String, Semaphore> queueReceives;
+	private long maxSpoolRate;
+	private Lock spoolLock;
+	private long spoolTokens;
+	private long spoolRefillTime;
+
+	/**
+	 * Creates an admission control without limits.
+	 */
+	public AdmissionControl() {
+		this(0, 0, 0);
+	}
+
+	/**
+	 * Creates an admission control.
+	 * 
+	 * @param maxReceives
+	 *            the maximum number of print jobs received at the same time.
+	 * @param maxQueueReceives
+	 *            the maximum number of print jobs received at the same time
+	 *            per queue.
+	 * @param maxSpoolRate
+	 *            the maximum number of bytes spooled per second.
+	 */
+	public AdmissionControl(int maxReceives, int maxQueueReceives,
+			long maxSpoolRate) {
+		this.receives = (maxReceives > 0) ? new Semaphore(maxReceives) : null;
+		this.maxQueueReceives = maxQueueReceives;
+		this.queueReceives = new ConcurrentHashMap<String, Semaphore>();
+		this.maxSpoolRate = maxSpoolRate;
+		this.spoolLock = new ReentrantLock();
+		this.spoolTokens = maxSpoolRate;
+		this.spoolRefillTime = System.nanoTime();
+	}
+
+	/**
+	 * Admits the receiving of a print job if no receive limit is reached. An
+	 * admitted receive must be released with {@link #releaseReceive(String)}.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @return true if the print job may be received.
+	 */
+	public boolean tryAcquireReceive(String queue) {
+		if (receives != null && !receives.tryAcquire()) {
+			return false;
+		}
+		Semaphore queueSemaphore = getQueueSemaphore(queue);
+		if (queueSemaphore != null && !queueSemaphore.tryAcquire()) {
+			if (receives != null) {
+				receives.release();
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Releases an admitted receive.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 */
+	public void releaseReceive(String queue) {
+		Semaphore queueSemaphore = getQueueSemaphore(queue);
+		if (queueSemaphore != null) {
+			queueSemaphore.release();
+		}
+		if (receives != null) {
+			receives.release();
+		}
+	}
+
+	/**
+	 * Accounts for spooled bytes. The bytes are taken from the token bucket,
+	 * which may go into debt, so a large chunk delays the next one.
+	 * 
+	 * @param bytes
+	 *            the number of bytes spooled.
+	 */
+	public void spooled(long bytes) {
+		if (maxSpoolRate <= 0) {
+			return;
+		}
+		spoolLock.lock();
+		try {
+			refillSpoolTokens();
+			spoolTokens -= bytes;
+		} finally {
+			spoolLock.unlock();
+		}
+	}
+
+	/**
+	 * Gets the time to wait before spooling more bytes.
+	 * 
+	 * @return the time to wait in nanoseconds, zero if bytes may be spooled
+	 *         now.
+	 */
+	public long getSpoolDelayNanos() {
+		if (maxSpoolRate <= 0) {
+			return 0;
+		}
+		spoolLock.lock();
+		try {
+			refillSpoolTokens();
+			if (spoolTokens >= 0) {
+				return 0;
+			}
+			return -spoolTokens * NANOS_PER_SECOND / maxSpoolRate + 1;
+		} finally {
+			spoolLock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until bytes may be spooled.
+	 * 
+	 * @throws IOException
+	 *             throws if the thread was interrupted while waiting.
+	 */
+	public void awaitSpoolRate() throws IOException {
+		long delay;
+		while ((delay = getSpoolDelayNanos()) > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted while waiting for the spool rate.");
+			}
+		}
+	}
+
+	private void refillSpoolTokens() {
+
+		// the bucket holds at most one second worth of bytes
+
+		long now = System.nanoTime();
+		long elapsed = now - spoolRefillTime;
+		if (elapsed > Long.MAX_VALUE / maxSpoolRate) {
+			spoolTokens = maxSpoolRate;
+			spoolRefillTime = now;
+			return;
+		}
+		long tokens = elapsed * maxSpoolRate / NANOS_PER_SECOND;
+		if (tokens > 0) {
+			spoolTokens = Math.min(maxSpoolRate, spoolTokens + tokens);
+			spoolRefillTime += tokens * NANOS_PER_SECOND / maxSpoolRate;
+			if (spoolTokens == maxSpoolRate) {
+				spoolRefillTime = now;
+			}
+		}
+	}
+
+	private Semaphore getQueueSemaphore(String queue) {
+		if (maxQueueReceives <= 0) {
+			return null;
+		}
+		Semaphore queueSemaphore = queueReceives.get(queue);
+		if (queueSemaphore == null) {
+			queueSemaphore = new Semaphore(maxQueueReceives);
+			Semaphore existingSemaphore = queueReceives.putIfAbsent(queue,
+					queueSemaphore);
+			if (existingSemaphore != null) {
+				queueSemaphore = existingSemaphore;
+			}
+		}
+		return queueSemaphore;
+	}
+}
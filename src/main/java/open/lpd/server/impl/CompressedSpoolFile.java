@@ -0,0 +1,139 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A data file of a print job that is compressed while it is received. The
+ * received bytes are deflated into a gzip file in the format of
+ * {@link SpoolCompression}. The position counts the received bytes, the
+ * stored length the compressed ones.
+ */
+public class CompressedSpoolFile extends SpoolFile {
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private Deflater deflater;
+	private CRC32 crc;
+	private long length;
+	private byte[] input;
+	private byte[] output;
+
+	/**
+	 * Creates a compressed spool file.
+	 * 
+	 * @param file
+	 *            the file to create.
+	 * @param level
+	 *            the deflate compression level.
+	 * @throws IOException
+	 *             throws if the file could not be created.
+	 */
+	public CompressedSpoolFile(File file, int level) throws IOException {
+		super(file, 0, false);
+		this.deflater = new Deflater(level, true);
+		this.crc = new CRC32();
+		this.length = 0;
+		this.input = new byte[BUFFER_SIZE];
+		this.output = new byte[BUFFER_SIZE];
+		try {
+			writeStored(SpoolCompression.createHeader(-1));
+		} catch (IOException e) {
+			deflater.end();
+			super.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public long getPosition() {
+		return length;
+	}
+
+	@Override
+	public long getStoredLength() {
+		return super.getPosition();
+	}
+
+	@Override
+	public void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			int bytes = Math.min(buffer.remaining(), input.length);
+			buffer.get(input, 0, bytes);
+			crc.update(input, 0, bytes);
+			if (getDigest() != null) {
+				getDigest().update(input, 0, bytes);
+			}
+			length += bytes;
+			deflater.setInput(input, 0, bytes);
+			while (!deflater.needsInput()) {
+				deflate();
+			}
+		}
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long count)
+			throws IOException {
+
+		// the bytes have to pass the java heap to be compressed
+
+		return transferThroughHeap(src, count);
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		// finish the deflate stream, append the gzip trailer and patch the
+		// received length into the header
+
+		try {
+			deflater.finish();
+			while (!deflater.finished()) {
+				deflate();
+			}
+			ByteBuffer trailer = ByteBuffer.allocate(8).order(
+					ByteOrder.LITTLE_ENDIAN);
+			trailer.putInt((int) crc.getValue());
+			trailer.putInt((int) length);
+			trailer.flip();
+			writeStored(trailer);
+			ByteBuffer header = SpoolCompression.createHeader(length);
+			header.position(SpoolCompression.LENGTH_OFFSET);
+			writeAt(header, SpoolCompression.LENGTH_OFFSET);
+		} finally {
+			deflater.end();
+			super.close();
+		}
+	}
+
+	private void deflate() throws IOException {
+		int bytes = deflater.deflate(output, 0, output.length,
+				Deflater.NO_FLUSH);
+		if (bytes > 0) {
+			writeStored(ByteBuffer.wrap(output, 0, bytes));
+		}
+	}
+}
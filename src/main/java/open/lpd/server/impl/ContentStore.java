@@ -0,0 +1,342 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A store of the data files received by deduplicated queues, each distinct
+ * content is stored once under its hash. The files of print jobs are hard
+ * links to the stored contents, so the number of links of a stored content
+ * counts its references: a content whose only link is the store's own one is
+ * not referenced by any print job and is deleted. The content folder has to
+ * be on the file system of the queue folder.
+ */
+public class ContentStore {
+
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private static final String LINK_COUNT_ATTRIBUTE = "unix:nlink";
+	private static final int LOCK_STRIPES = 64;
+	private static final int PREFIX_LENGTH = 2;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private File contentFolder;
+	private Map<Object, File> contents;
+	private ReentrantLock[] locks;
+	private Thread sweepThread;
+	private LongAdder storedContents;
+	private LongAdder deduplicatedFiles;
+	private LongAdder deduplicatedBytes;
+	private LongAdder releasedContents;
+	private LongAdder unlinkedFiles;
+
+	/**
+	 * Creates a content store.
+	 * 
+	 * @param contentFolderName
+	 *            the folder of the stored contents.
+	 */
+	public ContentStore(String contentFolderName) {
+		this.contentFolder = new File(contentFolderName);
+		this.contents = new ConcurrentHashMap<Object, File>();
+		this.locks = new ReentrantLock[LOCK_STRIPES];
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new ReentrantLock();
+		}
+		this.sweepThread = null;
+		this.storedContents = new LongAdder();
+		this.deduplicatedFiles = new LongAdder();
+		this.deduplicatedBytes = new LongAdder();
+		this.releasedContents = new LongAdder();
+		this.unlinkedFiles = new LongAdder();
+	}
+
+	public long getStoredContents() {
+		return storedContents.sum();
+	}
+
+	public long getDeduplicatedFiles() {
+		return deduplicatedFiles.sum();
+	}
+
+	public long getDeduplicatedBytes() {
+		return deduplicatedBytes.sum();
+	}
+
+	public long getReleasedContents() {
+		return releasedContents.sum();
+	}
+
+	public long getUnlinkedFiles() {
+		return unlinkedFiles.sum();
+	}
+
+	/**
+	 * Loads the stored contents. Contents that are no longer referenced, as
+	 * their print jobs have been deleted while the server was down, are
+	 * deleted.
+	 * 
+	 * @throws IOException
+	 *             throws if the content folder could not be created.
+	 */
+	public void load() throws IOException {
+		if (!contentFolder.isDirectory() && !contentFolder.mkdirs()) {
+			throw new IOException("Content folder could not be created: "
+					+ contentFolder);
+		}
+		File[] prefixFolders = contentFolder.listFiles();
+		if (prefixFolders == null) {
+			return;
+		}
+		for (File prefixFolder : prefixFolders) {
+			File[] contentFiles = prefixFolder.listFiles();
+			if (contentFiles == null) {
+				continue;
+			}
+			for (File contentFile : contentFiles) {
+				Object fileKey = getFileKey(contentFile);
+				if (fileKey != null) {
+					contents.put(fileKey, contentFile);
+					storedContents.increment();
+					release(fileKey);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates a digest that hashes the received bytes of a data file.
+	 * 
+	 * @return the digest.
+	 */
+	public MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Stores a completely received file. If its content is stored already,
+	 * the file is replaced by a link to the stored content under its final
+	 * name. Otherwise the file becomes the stored content and the caller
+	 * renames it to its final name.
+	 * 
+	 * @param partialFile
+	 *            the received file.
+	 * @param file
+	 *            the final name of the file, compressed files keep their
+	 *            suffix.
+	 * @param digest
+	 *            the digest that hashed the received bytes.
+	 * @param storedLength
+	 *            the number of bytes stored in the file.
+	 * @return true if the file has been replaced by a link under its final
+	 *         name, false if the caller still has to rename it.
+	 */
+	public boolean store(File partialFile, File file, MessageDigest digest,
+			long storedLength) {
+
+		// the name of a content tells its hash and whether it is compressed
+
+		String contentName = toHex(digest.digest());
+		if (SpoolCompression.isCompressedFile(file.getName())) {
+			contentName += SpoolCompression.COMPRESSED_FILE_SUFFIX;
+		}
+		File contentFile = new File(new File(contentFolder,
+				contentName.substring(0, PREFIX_LENGTH)), contentName);
+		ReentrantLock lock = getLock(contentName);
+		lock.lock();
+		try {
+			if (contentFile.exists()) {
+				Files.createLink(file.toPath(), contentFile.toPath());
+				partialFile.delete();
+				deduplicatedFiles.increment();
+				deduplicatedBytes.add(storedLength);
+				return true;
+			}
+			contentFile.getParentFile().mkdirs();
+			Files.createLink(contentFile.toPath(), partialFile.toPath());
+			Object fileKey = getFileKey(contentFile);
+			if (fileKey != null) {
+				contents.put(fileKey, contentFile);
+			}
+			storedContents.increment();
+		} catch (IOException e) {
+			unlinked(file, e);
+		} catch (UnsupportedOperationException e) {
+			unlinked(file, e);
+		} finally {
+			lock.unlock();
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the key that identifies a file regardless of its name. Hard
+	 * links to a stored content share its key.
+	 * 
+	 * @param file
+	 *            the file.
+	 * @return the key or null if the file does not exist or the file system
+	 *         does not provide keys.
+	 */
+	public static Object getFileKey(File file) {
+		try {
+			return Files.readAttributes(file.toPath(),
+					BasicFileAttributes.class).fileKey();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Releases a reference to a stored content after a link of a print job
+	 * has been deleted. The content is deleted when no print job references
+	 * it any more.
+	 * 
+	 * @param fileKey
+	 *            the key of the deleted link.
+	 */
+	public void release(Object fileKey) {
+		if (fileKey == null) {
+			return;
+		}
+		File contentFile = contents.get(fileKey);
+		if (contentFile == null) {
+			return;
+		}
+		ReentrantLock lock = getLock(contentFile.getName());
+		lock.lock();
+		try {
+			try {
+				int linkCount = (Integer) Files.getAttribute(
+						contentFile.toPath(), LINK_COUNT_ATTRIBUTE);
+				if (linkCount > 1) {
+					return;
+				}
+				Files.delete(contentFile.toPath());
+			} catch (NoSuchFileException e) {
+				// deleted meanwhile
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			} catch (UnsupportedOperationException e) {
+
+				// without link counts a content is never released
+
+				return;
+			}
+			contents.remove(fileKey);
+			storedContents.decrement();
+			releasedContents.increment();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases all stored contents that are no longer referenced. Print job
+	 * folders that are deleted by a print job handler release their contents
+	 * this way.
+	 */
+	public void sweep() {
+		for (Object fileKey : contents.keySet()) {
+			release(fileKey);
+		}
+	}
+
+	/**
+	 * Starts a daemon thread that sweeps the stored contents periodically.
+	 * 
+	 * @param intervalMillis
+	 *            the time between sweeps in milliseconds.
+	 */
+	public synchronized void startSweeping(final long intervalMillis) {
+		if (sweepThread != null) {
+			return;
+		}
+		sweepThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (!Thread.currentThread().isInterrupted()) {
+						Thread.sleep(intervalMillis);
+						sweep();
+					}
+				} catch (InterruptedException e) {
+					// sweeping stopped
+				}
+			}
+		}, "ContentStoreSweeper");
+		sweepThread.setDaemon(true);
+		sweepThread.start();
+	}
+
+	/**
+	 * Stops the sweep thread.
+	 */
+	public synchronized void close() {
+		if (sweepThread != null) {
+			sweepThread.interrupt();
+			try {
+				sweepThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			sweepThread = null;
+		}
+	}
+
+	private void unlinked(File file, Exception e) {
+
+		// the file is kept as a copy of its own if it could not be linked,
+		// e.g. as the content folder is on another file system
+
+		unlinkedFiles.increment();
+		System.err.println("Data file could not be deduplicated: " + file
+				+ " (" + e + ")");
+	}
+
+	private ReentrantLock getLock(String contentName) {
+		return locks[(contentName.hashCode() & Integer.MAX_VALUE)
+				% LOCK_STRIPES];
+	}
+
+	private static String toHex(byte[] hash) {
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
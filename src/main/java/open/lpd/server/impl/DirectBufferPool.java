@@ -0,0 +1,112 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct byte buffers of a fixed chunk size with a total capacity.
+ * Chunks are allocated outside the java heap on first use and are reused
+ * once they are released, so the pool never allocates more than its capacity.
+ */
+public class DirectBufferPool {
+
+	private int chunkSize;
+	private int maxChunks;
+	private AtomicInteger allocatedChunks;
+	private AtomicInteger usedChunks;
+	private Queue<ByteBuffer> freeChunks;
+
+	/**
+	 * Creates an empty buffer pool.
+	 * 
+	 * @param capacity
+	 *            the total capacity of the pool in bytes.
+	 * @param chunkSize
+	 *            the size of a chunk in bytes.
+	 */
+	public DirectBufferPool(long capacity, int chunkSize) {
+		this.chunkSize = chunkSize;
+		this.maxChunks = (int) Math.min(Integer.MAX_VALUE, capacity
+				/ chunkSize);
+		this.allocatedChunks = new AtomicInteger();
+		this.usedChunks = new AtomicInteger();
+		this.freeChunks = new ConcurrentLinkedQueue<ByteBuffer>();
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public long getCapacity() {
+		return (long) maxChunks * chunkSize;
+	}
+
+	public long getUsedBytes() {
+		return (long) usedChunks.get() * chunkSize;
+	}
+
+	public long getFreeBytes() {
+		return getCapacity() - getUsedBytes();
+	}
+
+	/**
+	 * Takes a cleared chunk from the pool.
+	 * 
+	 * @return the chunk or null if the capacity of the pool is used up.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer chunk = freeChunks.poll();
+		if (chunk == null) {
+
+			// allocate a new chunk unless the capacity is reached
+
+			int allocated;
+			do {
+				allocated = allocatedChunks.get();
+				if (allocated >= maxChunks) {
+					chunk = freeChunks.poll();
+					if (chunk == null) {
+						return null;
+					}
+					break;
+				}
+			} while (!allocatedChunks.compareAndSet(allocated, allocated + 1));
+			if (chunk == null) {
+				chunk = ByteBuffer.allocateDirect(chunkSize);
+			}
+		}
+		usedChunks.incrementAndGet();
+		chunk.clear();
+		return chunk;
+	}
+
+	/**
+	 * Gives a chunk back to the pool. The chunk must not be used afterwards.
+	 * 
+	 * @param chunk
+	 *            the chunk taken from this pool.
+	 */
+	public void release(ByteBuffer chunk) {
+		usedChunks.decrementAndGet();
+		freeChunks.offer(chunk);
+	}
+}
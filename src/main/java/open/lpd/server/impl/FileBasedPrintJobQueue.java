@@ -17,23 +17,30 @@
  */
 package open.lpd.server.impl;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.SocketTimeoutException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-import open.lpd.server.IPrintJobQueue;
+import open.lpd.server.IChannelPrintJobQueue;
+import open.lpd.server.IStreamingPrintJobQueue;
 import open.lpd.server.LpdServerProtocol;
+import open.lpd.server.PrintJob;
 
 /**
  * A file based print job queue that stores print jobs as sub folders of queue
- * folders.
+ * folders. Queue state requests are answered from a {@link PrintJobIndex}
+ * shared by all connections and are streamed while the index is iterated.
  * 
  * <pre>
  * {@code
@@ -51,23 +58,43 @@ import open.lpd.server.LpdServerProtocol;
  *         dfA000localhost.TXT ... data file
  * }
  * </pre>
+ * 
+ * Files are written with a ".part" suffix that is removed by an atomic rename
+ * once they have been received completely. A print job is added to the index
+ * once all of its files have been received. Data files of compressed queues
+ * are stored in the format of {@link SpoolCompression}, the index and the
+ * queue state list them under their received names.
  */
-public class FileBasedPrintJobQueue implements IPrintJobQueue {
+public class FileBasedPrintJobQueue implements IChannelPrintJobQueue,
+		IStreamingPrintJobQueue {
 
 	private static final byte ERR_QUEUE_DOES_NOT_EXIST = 1;
 	private static final byte ERR_WRONG_CONTROL_FILE_NAME = 2;
 	private static final byte ERR_WRONG_DATA_FILE_NAME = 3;
-	private static final int MAX_BUFFER_SIZE = 4096;
-
-	private static long jobId = 0;
+	private static final byte ERR_TOO_MANY_RECEIVES = 4;
+	private static final int MAX_BUFFER_SIZE = 65536;
+	private static final int MAX_PRINT_JOB_FOLDER_ATTEMPTS = 100;
+	private static final Queue<byte[]> bufferPool = new ConcurrentLinkedQueue<byte[]>();
 
+	private PrintJobIndex index;
 	private String queueFolderName;
 	private String subCmdPrintJob;
+	private boolean subCmdPrintJobCreated;
 	private String subCmdQueue;
-	private String scriptCmd;
+	private PrintJobDispatcher dispatcher;
+	private AdmissionControl admissionControl;
+	private boolean subCmdAdmitted;
+	private LpdServerMetrics metrics;
+	private long subCmdStart;
+	private SpoolOptions spoolOptions;
+	private SpoolFile subCmdSpoolFile;
+	private boolean subCmdPrintJobDurable;
+	private List<IndexedFile> subCmdFiles;
+	private PrintJob subCmdControlFile;
 
 	/**
-	 * Creates a file based print job queue.
+	 * Creates a file based print job queue that runs the script command
+	 * synchronously when a print job has been received.
 	 * 
 	 * @param queueFolderName
 	 *            the queue folder name.
@@ -75,10 +102,59 @@ public class FileBasedPrintJobQueue implements IPrintJobQueue {
 	 *            the script command to execute on print jobs.
 	 */
 	public FileBasedPrintJobQueue(String queueFolderName, String scriptCmd) {
-		this.queueFolderName = queueFolderName;
-		this.scriptCmd = scriptCmd;
+		this(loadIndex(queueFolderName), new PrintJobDispatcher(
+				new ScriptPrintJobHandler(scriptCmd)), new AdmissionControl(),
+				new LpdServerMetrics());
+	}
+
+	/**
+	 * Creates a file based print job queue.
+	 * 
+	 * @param index
+	 *            the index of the queue folder shared by all connections.
+	 * @param dispatcher
+	 *            the dispatcher that hands received print jobs over to a print
+	 *            job handler.
+	 * @param admissionControl
+	 *            the limits for receiving print jobs shared by all
+	 *            connections.
+	 * @param metrics
+	 *            the server metrics shared by all connections.
+	 */
+	public FileBasedPrintJobQueue(PrintJobIndex index,
+			PrintJobDispatcher dispatcher, AdmissionControl admissionControl,
+			LpdServerMetrics metrics) {
+		this.index = index;
+		this.queueFolderName = index.getQueueFolderName();
+		this.dispatcher = dispatcher;
+		this.admissionControl = admissionControl;
+		this.metrics = metrics;
+		this.subCmdAdmitted = false;
+		this.subCmdStart = 0;
 		this.subCmdPrintJob = null;
+		this.subCmdPrintJobCreated = false;
 		this.subCmdQueue = null;
+		this.spoolOptions = new SpoolOptions();
+		this.subCmdSpoolFile = null;
+		this.subCmdPrintJobDurable = false;
+		this.subCmdFiles = new ArrayList<IndexedFile>();
+		this.subCmdControlFile = null;
+	}
+
+	/**
+	 * Sets the options of spooling received files to the queue folder.
+	 * 
+	 * @param spoolOptions
+	 *            the spool options shared by all connections.
+	 */
+	public void setSpoolOptions(SpoolOptions spoolOptions) {
+		this.spoolOptions = spoolOptions;
+	}
+
+	private static PrintJobIndex loadIndex(String queueFolderName) {
+		PrintJobIndex index = new PrintJobIndex(queueFolderName);
+		index.load();
+		return index;
 	}
 
 	@Override
@@ -86,27 +162,42 @@ public class FileBasedPrintJobQueue implements IPrintJobQueue {
 
 		// protocol command implementation
 
-		if (queueExists(queue)) {
-			for (File printJobFolder : new File(queueFolderName, queue)
-					.listFiles()) {
-				runScript(queue, printJobFolder);
-			}
+		long start = System.nanoTime();
+		File queueFolder = new File(queueFolderName, queue);
+		for (IndexedPrintJob printJob : index.getPrintJobs(queue)) {
+			dispatcher.dispatch(queue,
+					new File(queueFolder, printJob.getName()));
 		}
+		metrics.commandExecuted(LpdServerProtocol.CMD_PRINT_ANY_WAITING_JOBS,
+				System.nanoTime() - start);
 	}
 
 	@Override
 	public byte receiveAPrinterJob(String queue) throws IOException {
 
-		// protocol command implementation
+		// protocol command implementation, the command is timed until the
+		// print job has been received
 
+		subCmdStart = System.nanoTime();
 		if (!queueExists(queue)) {
 			return ERR_QUEUE_DOES_NOT_EXIST;
 		}
-		subCmdQueue = queue;
-		synchronized (FileBasedPrintJobQueue.class) {
-			subCmdPrintJob = new Date().getTime() + "-" + String.valueOf(jobId);
-			jobId++;
+
+		// refuse the print job if too many print jobs are being received, the
+		// client may retry later
+
+		releaseReceive();
+		if (!admissionControl.tryAcquireReceive(queue)) {
+			metrics.receiveRefused();
+			return ERR_TOO_MANY_RECEIVES;
 		}
+		subCmdAdmitted = true;
+		subCmdQueue = queue;
+		subCmdPrintJob = index.nextPrintJobName();
+		subCmdPrintJobCreated = false;
+		subCmdPrintJobDurable = false;
+		subCmdFiles.clear();
+		subCmdControlFile = null;
 		return LpdServerProtocol.ACK_SUCCESS;
 	}
 
@@ -116,65 +207,93 @@ public class FileBasedPrintJobQueue implements IPrintJobQueue {
 
 		// protocol command implementation
 
-		StringBuilder sb = new StringBuilder();
+		StringWriter sw = new StringWriter();
+		writeQueueStateShort(queue, list, sw);
+		return sw.toString();
+	}
+
+	@Override
+	public String sendQueueStateLong(String queue, String[] list)
+			throws IOException {
+
+		// protocol command implementation
+
+		StringWriter sw = new StringWriter();
+		writeQueueStateLong(queue, list, sw);
+		return sw.toString();
+	}
+
+	@Override
+	public void writeQueueStateShort(String queue, String[] list, Writer out)
+			throws IOException {
+
+		// protocol command implementation, the state of each print job is
+		// written as the index is iterated
+
+		long start = System.nanoTime();
 		if (queueExists(queue)) {
-			List<String> jobList = new ArrayList<String>();
-			if (list != null) {
-				for (String listEntry : list) {
-					jobList.add(listEntry);
-				}
-			}
-			for (File printJobFolder : new File(queueFolderName, queue)
-					.listFiles()) {
-				if (!jobList.contains(printJobFolder.getName())
-						&& jobList.size() > 0) {
+			for (IndexedPrintJob printJob : index.getPrintJobs(queue)) {
+				if (list != null && list.length > 0 && !matches(printJob, list)) {
 					continue;
 				}
-				sb.append(printJobFolder.getName());
-				sb.append("\n");
+				out.write(printJob.getName());
+				out.write("\n");
 			}
 		} else {
-			sb.append("Queue " + queue + " does not exist.");
+			out.write("Queue " + queue + " does not exist.");
 		}
-		return sb.toString();
+		metrics.commandExecuted(LpdServerProtocol.CMD_SEND_QUEUE_STATE_SHORT,
+				System.nanoTime() - start);
 	}
 
 	@Override
-	public String sendQueueStateLong(String queue, String[] list)
+	public void writeQueueStateLong(String queue, String[] list, Writer out)
 			throws IOException {
 
-		// protocol command implementation
+		// protocol command implementation, the state of each print job is
+		// written as the index is iterated
 
-		StringBuilder sb = new StringBuilder();
+		long start = System.nanoTime();
 		if (queueExists(queue)) {
-			List<String> jobList = new ArrayList<String>();
-			if (list != null) {
-				for (String listEntry : list) {
-					jobList.add(listEntry);
-				}
-			}
-			for (File printJobFolder : new File(queueFolderName, queue)
-					.listFiles()) {
-				if (!jobList.contains(printJobFolder.getName())
-						&& jobList.size() > 0) {
+			for (IndexedPrintJob printJob : index.getPrintJobs(queue)) {
+				if (list != null && list.length > 0 && !matches(printJob, list)) {
 					continue;
 				}
-				sb.append(printJobFolder.getName());
-				sb.append("\t");
-				sb.append(new Date(printJobFolder.lastModified()).toString());
-				sb.append("\t");
-				for (File printJobFile : printJobFolder.listFiles()) {
-					sb.append(printJobFile.getName());
-					sb.append(" (");
-					sb.append(printJobFile.length());
-					sb.append(" byte) ");
+				out.write(printJob.getName());
+				out.write("\t");
+				out.write(new Date(printJob.getLastModified()).toString());
+				out.write("\t");
+				PrintJob controlFile = printJob.getPrintJob();
+				if (controlFile != null) {
+					out.write(String.valueOf(controlFile.getUser()));
+					out.write("@");
+					out.write(String.valueOf(controlFile.getHost()));
+					out.write("\t");
+					out.write(String.valueOf(controlFile.getJobNumber()));
+					out.write("\t");
+					out.write(String.valueOf(controlFile.getJobName()));
+					out.write("\t");
 				}
-				sb.append("\n");
+				for (IndexedFile printJobFile : printJob.getFiles()) {
+					out.write(printJobFile.getName());
+					out.write(" (");
+					out.write(String.valueOf(printJobFile.getLength()));
+					if (printJobFile.isCompressed()) {
+						out.write(" byte, ");
+						out.write(String.valueOf(printJobFile
+								.getStoredLength()));
+						out.write(" byte compressed) ");
+					} else {
+						out.write(" byte) ");
+					}
+				}
+				out.write("\n");
 			}
 		} else {
-			sb.append("Queue " + queue + " does not exist.");
+			out.write("Queue " + queue + " does not exist.");
 		}
-		return sb.toString();
+		metrics.commandExecuted(LpdServerProtocol.CMD_SEND_QUEUE_STATE_LONG,
+				System.nanoTime() - start);
 	}
 
 	@Override
@@ -183,21 +302,16 @@ public class FileBasedPrintJobQueue implements IPrintJobQueue {
 
 		// protocol command implementation
 
-		if (queueExists(queue)) {
-			for (File printJobFolder : new File(queueFolderName, queue)
-					.listFiles()) {
-				if (printJobFolder.isDirectory()) {
-					if (list != null) {
-						for (String name : list) {
-							if (printJobFolder.getName().equals(name)
-									&& printJobFolder.isDirectory()) {
-								removePrintJobFolder(printJobFolder);
-							}
-						}
-					}
+		long start = System.nanoTime();
+		if (queueExists(queue) && list != null && list.length > 0) {
+			for (IndexedPrintJob printJob : index.getPrintJobs(queue)) {
+				if (matches(printJob, agent, list)) {
+					removePrintJob(queue, printJob.getName());
 				}
 			}
 		}
+		metrics.commandExecuted(LpdServerProtocol.CMD_REMOVE_JOBS,
+				System.nanoTime() - start);
 	}
 
 	@Override
@@ -205,17 +319,17 @@ public class FileBasedPrintJobQueue implements IPrintJobQueue {
 
 		// protocol sub command implementation
 
-		if (queueExists(subCmdQueue)) {
-			File printJobFolder = new File(new File(queueFolderName,
-					subCmdQueue), subCmdPrintJob);
-			if (printJobFolder.exists()) {
-				removePrintJobFolder(printJobFolder);
-			}
+		// only a print job folder claimed by this connection is removed
+
+		if (queueExists(subCmdQueue) && subCmdPrintJobCreated) {
+			removePrintJob(subCmdQueue, subCmdPrintJob);
 		}
+		subCmdFiles.clear();
+		subCmdControlFile = null;
 	}
 
 	@Override
-	public byte receiveControlFile(int count, String name,
+	public byte receiveControlFile(long count, String name,
 			InputStream clientInStream) throws IOException {
 
 		// protocol sub command implementation
@@ -224,8 +338,10 @@ public class FileBasedPrintJobQueue implements IPrintJobQueue {
 			return ERR_WRONG_CONTROL_FILE_NAME;
 		}
 		if (queueExists(subCmdQueue)) {
-			receiveFile(subCmdQueue, subCmdPrintJob, count, name,
-					clientInStream);
+			IndexedFile file = receiveFile(count, false, name, clientInStream);
+			File controlFile = new File(new File(new File(queueFolderName,
+					subCmdQueue), subCmdPrintJob), name);
+			addReceivedFile(file, PrintJobIndex.readControlFile(controlFile));
 			return LpdServerProtocol.ACK_SUCCESS;
 		} else {
 			return ERR_QUEUE_DOES_NOT_EXIST;
@@ -233,7 +349,7 @@ public class FileBasedPrintJobQueue implements IPrintJobQueue {
 	}
 
 	@Override
-	public byte receiveDataFile(int count, String name,
+	public byte receiveDataFile(long count, String name,
 			InputStream clientInStream) throws IOException {
 
 		// protocol sub command implementation
@@ -242,199 +358,488 @@ public class FileBasedPrintJobQueue implements IPrintJobQueue {
 			return ERR_WRONG_DATA_FILE_NAME;
 		}
 		if (queueExists(subCmdQueue)) {
-			receiveFile(subCmdQueue, subCmdPrintJob, count, name,
+			IndexedFile file = receiveFile(count, count == 0, name,
 					clientInStream);
+			addReceivedFile(file, null);
 			return LpdServerProtocol.ACK_SUCCESS;
 		} else {
 			return ERR_QUEUE_DOES_NOT_EXIST;
 		}
 	}
 
-	private File receiveFile(String queue, String printJob, int count,
-			String name, InputStream clientInStream) throws IOException {
+	@Override
+	public byte openControlFile(long count, String name) throws IOException {
 
-		// file name sanity check
+		// protocol sub command implementation
 
-		checkFileName(name);
+		if (!name.startsWith("cfA")) {
+			return ERR_WRONG_CONTROL_FILE_NAME;
+		}
+		return openFile(count, name);
+	}
 
-		// create print job folder if it does not exist
+	@Override
+	public byte openDataFile(long count, String name) throws IOException {
 
-		File printJobFolder = createPrintJobFolder(printJob, new File(
-				queueFolderName, queue));
+		// protocol sub command implementation
 
-		// check if file exists in print job folder
+		if (!name.startsWith("dfA")) {
+			return ERR_WRONG_DATA_FILE_NAME;
+		}
+		return openFile(count, name);
+	}
 
-		File file = new File(printJobFolder, name);
-		if (file.exists()) {
-			throw new IOException(
-					"File already exists in print job folder, name: " + name);
+	@Override
+	public void writeFile(ByteBuffer buffer) throws IOException {
+
+		// protocol sub command implementation
+
+		if (subCmdSpoolFile == null) {
+			throw new IOException("No file is open.");
+		}
+		int bytes = buffer.remaining();
+		admissionControl.spooled(bytes);
+		long start = System.nanoTime();
+		subCmdSpoolFile.write(buffer);
+		metrics.spooled(subCmdQueue, bytes, System.nanoTime() - start);
+	}
+
+	@Override
+	public long transferFile(ReadableByteChannel clientChannel, long count)
+			throws IOException {
+
+		// protocol sub command implementation, the bytes are moved from the
+		// client connection to the file without passing the java heap
+
+		if (subCmdSpoolFile == null) {
+			throw new IOException("No file is open.");
+		}
+		long start = System.nanoTime();
+		long bytesTransferred = subCmdSpoolFile.transferFrom(clientChannel,
+				count);
+		admissionControl.spooled(bytesTransferred);
+		if (bytesTransferred > 0) {
+			metrics.spooled(subCmdQueue, bytesTransferred, System.nanoTime()
+					- start);
+		}
+		return bytesTransferred;
+	}
+
+	@Override
+	public byte closeFile(boolean complete) throws IOException {
+
+		// protocol sub command implementation
+
+		if (subCmdSpoolFile == null) {
+			throw new IOException("No file is open.");
+		}
+		File file = subCmdSpoolFile.getFile();
+		try {
+			subCmdSpoolFile.close();
+			if (complete) {
+				file = commitSpoolFile(subCmdSpoolFile);
+				IndexedFile indexedFile = createIndexedFile(subCmdSpoolFile,
+						file.getName());
+				if (indexedFile.isCompressed()) {
+					metrics.compressed(indexedFile.getLength(),
+							indexedFile.getStoredLength());
+				}
+				PrintJob controlFile = null;
+				if (PrintJobIndex.isControlFile(indexedFile.getName())) {
+					controlFile = PrintJobIndex.readControlFile(file);
+				}
+				addReceivedFile(indexedFile, controlFile);
+			}
+		} finally {
+			if (!complete) {
+				file.delete();
+			}
+			subCmdSpoolFile = null;
+		}
+		return LpdServerProtocol.ACK_SUCCESS;
+	}
+
+	private byte openFile(long count, String name) throws IOException {
+
+		// open a file of the current print job for chunked writes
+
+		if (subCmdSpoolFile != null) {
+			throw new IOException("Another file is still open.");
+		}
+		if (!queueExists(subCmdQueue)) {
+			return ERR_QUEUE_DOES_NOT_EXIST;
+		}
+		subCmdSpoolFile = createSpoolFile(count, name);
+		return LpdServerProtocol.ACK_SUCCESS;
+	}
+
+	private SpoolFile createSpoolFile(long count, String name)
+			throws IOException {
+
+		// data files of compressed queues are deflated as they arrive,
+		// preallocation does not apply as their stored length is unknown
+
+		SpoolFile spoolFile;
+		if (PrintJobIndex.isDataFile(name)
+				&& spoolOptions.isCompressed(subCmdQueue)) {
+			File file = createPrintJobFile(name
+					+ SpoolCompression.COMPRESSED_FILE_SUFFIX);
+			spoolFile = new CompressedSpoolFile(getPartialFile(file),
+					spoolOptions.getCompressionLevel());
+		} else {
+			spoolFile = new SpoolFile(getPartialFile(createPrintJobFile(name)),
+					count, spoolOptions.isPreallocate());
 		}
 
-		// receive file to print job folder
+		// data files of deduplicated queues are hashed as they arrive
 
-		FileOutputStream fos = new FileOutputStream(file);
-		BufferedOutputStream bos = new BufferedOutputStream(fos);
+		if (PrintJobIndex.isDataFile(name)
+				&& spoolOptions.isDeduplicated(subCmdQueue)) {
+			spoolFile.setDigest(spoolOptions.getContentStore().createDigest());
+		}
+		return spoolFile;
+	}
+
+	private IndexedFile createIndexedFile(SpoolFile spoolFile, String fileName) {
+
+		// a compressed file is listed under its received name
+
+		if (spoolFile instanceof CompressedSpoolFile) {
+			return new IndexedFile(SpoolCompression.getReceivedName(fileName),
+					spoolFile.getPosition(), spoolFile.getStoredLength());
+		}
+		return new IndexedFile(fileName, spoolFile.getPosition());
+	}
+
+	private IndexedFile receiveFile(long count, boolean untilEndOfStream,
+			String name, InputStream clientInStream) throws IOException {
+
+		// a data file of unknown length is received until the client closes
+		// the connection
+
+		SpoolFile spoolFile = createSpoolFile(count, name);
+		File file = spoolFile.getFile();
+
+		// receive file to print job folder, the copy buffer is taken from a
+		// pool shared by all connections and is filled by as many reads as it
+		// takes before it is written, so a file is written in few large writes
+
+		byte[] buf = acquireBuffer();
+		long bytesRead = 0;
+		boolean endOfStream = false;
+		boolean complete = false;
 		try {
-			int bytesRead = 0;
-			while ((count > 0) && (bytesRead < count)) {
-				int bytesLeft = count - bytesRead;
-				if (bytesLeft > MAX_BUFFER_SIZE) {
-					bytesLeft = MAX_BUFFER_SIZE;
+			while (!endOfStream && (untilEndOfStream || (bytesRead < count))) {
+				int bytesLeft = buf.length;
+				if (!untilEndOfStream && (count - bytesRead < bytesLeft)) {
+					bytesLeft = (int) (count - bytesRead);
+				}
+				int bufferedBytes = 0;
+				while (bufferedBytes < bytesLeft) {
+					admissionControl.awaitSpoolRate();
+					int bread = clientInStream.read(buf, bufferedBytes,
+							bytesLeft - bufferedBytes);
+					if (bread == -1) {
+						endOfStream = true;
+						break;
+					}
+					admissionControl.spooled(bread);
+					bufferedBytes += bread;
 				}
-				byte[] buf = new byte[bytesLeft];
-				int bread = clientInStream.read(buf);
-				if (bread == -1) {
-					break;
+				if (bufferedBytes > 0) {
+					long start = System.nanoTime();
+					spoolFile.write(ByteBuffer.wrap(buf, 0, bufferedBytes));
+					metrics.spooled(subCmdQueue, bufferedBytes,
+							System.nanoTime() - start);
+					bytesRead += bufferedBytes;
 				}
-				bos.write(buf, 0, bread);
-				bytesRead += bread;
 			}
-			if (bytesRead != count) {
+			if (!untilEndOfStream && (bytesRead != count)) {
 				throw new IOException("Expected " + count
 						+ " byte for file but received " + bytesRead + " byte.");
 			}
-		} catch (SocketTimeoutException e) {
-			if (count > 0) {
-				throw e;
-			}
+			complete = true;
 		} finally {
-			bos.close();
-			fos.close();
+			releaseBuffer(buf);
+
+			// a partial transfer truncates the preallocated file to the bytes
+			// received and discards it
+
+			spoolFile.close();
+			if (!complete) {
+				file.delete();
+			}
 		}
-		return file;
+		File committedFile = commitSpoolFile(spoolFile);
+		IndexedFile indexedFile = createIndexedFile(spoolFile,
+				committedFile.getName());
+		if (indexedFile.isCompressed()) {
+			metrics.compressed(indexedFile.getLength(),
+					indexedFile.getStoredLength());
+		}
+		return indexedFile;
 	}
 
-	private File createPrintJobFolder(String printJob, File queueFolder)
-			throws IOException {
+	private static File getPartialFile(File file) {
+		return new File(file.getPath() + PrintJobIndex.PARTIAL_FILE_SUFFIX);
+	}
 
-		// create the print job folder in the queue folder to hold all files
-		// related to that print job
+	private File commitSpoolFile(SpoolFile spoolFile) throws IOException {
+
+		// a hashed file whose content is stored already is replaced by a link
+		// to the stored content before anything is forced, the bytes written
+		// for it are discarded and only the new link has to be made durable
 
-		File printJobFolder = new File(queueFolder, printJob);
-		if (!printJobFolder.exists()) {
-			if (!printJobFolder.mkdir()) {
-				throw new IOException(
-						"Print job folder could not be created, printJob: "
-								+ printJob);
+		File partialFile = spoolFile.getFile();
+		if (spoolFile.getDigest() != null) {
+			File file = getCommittedFile(partialFile);
+			if (spoolOptions.getContentStore().store(partialFile, file,
+					spoolFile.getDigest(), spoolFile.getStoredLength())) {
+				makeDurable(file, false);
+				return file;
 			}
 		}
-		return printJobFolder;
+		File file = commitPartialFile(partialFile);
+		makeDurable(file, true);
+		return file;
 	}
 
-	private boolean queueExists(String queue) {
+	private static File getCommittedFile(File partialFile) {
+		String path = partialFile.getPath();
+		return new File(path.substring(0, path.length()
+				- PrintJobIndex.PARTIAL_FILE_SUFFIX.length()));
+	}
 
-		// check if queue was specified and exists as a folder
+	private static File commitPartialFile(File partialFile) throws IOException {
 
-		if (queue == null) {
-			return false;
+		// a completely received file gets its name with an atomic rename, so
+		// a crash never leaves a truncated file under the final name
+
+		File file = getCommittedFile(partialFile);
+		Files.move(partialFile.toPath(), file.toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+		return file;
+	}
+
+	private void makeDurable(File file, boolean forceFile) throws IOException {
+
+		// the file, the print job folder that holds its name and, for the
+		// first file of a print job, the queue folder that holds the print job
+		// folder are forced to disk before the file is acknowledged. A link to
+		// a stored content only needs its folders, the content has been
+		// forced when it was received first.
+
+		String durability = spoolOptions.getDurability();
+		if (SpoolOptions.DURABILITY_NONE.equals(durability)) {
+			return;
 		}
-		File queueFolder = new File(queueFolderName, queue);
-		return queueFolder.exists();
+		File printJobFolder = file.getParentFile();
+		List<File> files = new ArrayList<File>(3);
+		if (forceFile) {
+			files.add(file);
+		}
+		files.add(printJobFolder);
+		if (!subCmdPrintJobDurable) {
+			files.add(printJobFolder.getParentFile());
+		}
+		long start = System.nanoTime();
+		if (SpoolOptions.DURABILITY_GROUP.equals(durability)) {
+			spoolOptions.getGroupCommit().commit(files);
+		} else {
+			for (File durableFile : files) {
+				GroupCommit.force(durableFile);
+			}
+		}
+		subCmdPrintJobDurable = true;
+		metrics.madeDurable(System.nanoTime() - start);
 	}
 
-	private void checkFileName(String name) throws IOException {
+	private static byte[] acquireBuffer() {
+		byte[] buf = bufferPool.poll();
+		return (buf != null) ? buf : new byte[MAX_BUFFER_SIZE];
+	}
+
+	private static void releaseBuffer(byte[] buf) {
+		bufferPool.offer(buf);
+	}
+
+	private File createPrintJobFile(String name) throws IOException {
 
 		// file name sanity check
 
-		if (name.contains("..") || name.contains("?") || name.contains(":")) {
-			throw new IOException("Invalid file name: " + name);
+		checkFileName(name);
+
+		// create print job folder if it does not exist
+
+		File printJobFolder = createPrintJobFolder();
+
+		// check if file exists in print job folder
+
+		File file = new File(printJobFolder, name);
+		if (file.exists()) {
+			throw new IOException(
+					"File already exists in print job folder, name: " + name);
 		}
+		return file;
 	}
 
-	private void removePrintJobFolder(File printJobFolder) {
+	private File createPrintJobFolder() throws IOException {
 
-		// delete all files in print job folder
+		// create the print job folder in the queue folder to hold all files
+		// related to that print job
 
-		for (File file : printJobFolder.listFiles()) {
-			file.delete();
+		File queueFolder = new File(queueFolderName, subCmdQueue);
+		if (subCmdPrintJobCreated) {
+			return new File(queueFolder, subCmdPrintJob);
 		}
 
-		// delete print job folder itself
+		// the folder is claimed with an atomic mkdir, if another connection or
+		// another server sharing the queue folder took the name, the next
+		// print job name is tried
 
-		printJobFolder.delete();
+		for (int i = 0; i < MAX_PRINT_JOB_FOLDER_ATTEMPTS; i++) {
+			File printJobFolder = new File(queueFolder, subCmdPrintJob);
+			index.startReceiving(subCmdQueue, subCmdPrintJob);
+			if (printJobFolder.mkdir()) {
+				subCmdPrintJobCreated = true;
+				return printJobFolder;
+			}
+			index.finishReceiving(subCmdQueue, subCmdPrintJob);
+			if (!printJobFolder.exists()) {
+				break;
+			}
+			subCmdPrintJob = index.nextPrintJobName();
+		}
+		throw new IOException(
+				"Print job folder could not be created, printJob: "
+						+ subCmdPrintJob);
 	}
 
-	private String runScript(String queue, File printJobFolder)
-			throws IOException {
+	private void addReceivedFile(IndexedFile file, PrintJob controlFile) {
 
-		// run a configured OS specific script file to deal with the print job
-
-		String[] args = new String[2];
-		args[0] = queue;
-		args[1] = printJobFolder.getAbsoluteFile().toPath().toString();
-		String processExecutable = scriptCmd;
-		String processParams = null;
-		if (processExecutable.startsWith("\"")) {
-			int k = processExecutable.indexOf("\"", 1);
-			if (k >= 0) {
-				processParams = processExecutable.substring(k + 2);
-				processExecutable = processExecutable.substring(0, k + 1);
-			}
-		} else {
-			int k = processExecutable.indexOf(" ");
-			if (k >= 0) {
-				processParams = processExecutable.substring(k + 1);
-				processExecutable = processExecutable.substring(0, k);
-			}
+		// the files are indexed when the print job has been received
+		// completely, so a half received print job is neither listed nor
+		// dispatched
+
+		subCmdFiles.add(file);
+		if (controlFile != null) {
+			subCmdControlFile = controlFile;
 		}
-		if (processParams != null) {
-			for (int i = 0; i < args.length; i++) {
-				int k = processParams.indexOf("$" + (i + 1));
-				if (k >= 0) {
-					processParams = processParams.substring(0, k) + args[i]
-							+ processParams.substring(k + 2);
-				}
+	}
+
+	private boolean matches(IndexedPrintJob printJob, String[] list) {
+
+		// a list entry selects a print job by print job name, user name or
+		// job number of the parsed control file
+
+		PrintJob controlFile = printJob.getPrintJob();
+		for (String listEntry : list) {
+			if (printJob.getName().equals(listEntry)
+					|| (controlFile != null && controlFile.matches(listEntry))) {
+				return true;
 			}
 		}
-		return runProcess(processExecutable, processParams);
+		return false;
 	}
 
-	private String runProcess(String processExecutable, String processParams)
-			throws IOException {
+	private boolean matches(IndexedPrintJob printJob, String agent, String[] list) {
 
-		// run OS process
+		// see RFC 1179 section 5.5, only root and the user of the control file
+		// remove a print job, and only root selects print jobs by user name
 
-		InputStream processOutput;
-		Process process;
-		if (processParams == null) {
-			process = Runtime.getRuntime().exec(
-					new String[] { processExecutable });
-		} else {
-			String[] paramsArray = processParams.split(" ");
-			String[] cmdArray = new String[paramsArray.length + 1];
-			cmdArray[0] = processExecutable;
-			for (int i = 0; i < paramsArray.length; i++) {
-				cmdArray[1 + i] = paramsArray[i];
+		PrintJob controlFile = printJob.getPrintJob();
+		if (controlFile == null || !controlFile.isRemovableBy(agent)) {
+			return false;
+		}
+		for (String listEntry : list) {
+			if (printJob.getName().equals(listEntry)
+					|| controlFile.matches(agent, listEntry)) {
+				return true;
 			}
-			process = Runtime.getRuntime().exec(cmdArray);
 		}
+		return false;
+	}
 
-		// collect process output and return
+	private boolean queueExists(String queue) {
 
-		processOutput = process.getInputStream();
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		while (true) {
-			int c = processOutput.read();
-			if (c == -1) {
-				break;
+		// check if queue was specified and exists as a folder
+
+		return index.queueExists(queue);
+	}
+
+	private void checkFileName(String name) throws IOException {
+
+		// file name sanity check
+
+		if (name.contains("..") || name.contains("?") || name.contains(":")) {
+			throw new IOException("Invalid file name: " + name);
+		}
+	}
+
+	private void removePrintJob(String queue, String printJob) {
+
+		// delete all files in print job folder, a data file that links to a
+		// stored content releases its reference
+
+		File printJobFolder = new File(new File(queueFolderName, queue),
+				printJob);
+		File[] files = printJobFolder.listFiles();
+		ContentStore contentStore = spoolOptions.getContentStore();
+		if (files != null) {
+			for (File file : files) {
+				Object fileKey = null;
+				if (contentStore != null
+						&& PrintJobIndex.isDataFile(file.getName())) {
+					fileKey = ContentStore.getFileKey(file);
+				}
+				file.delete();
+				if (fileKey != null) {
+					contentStore.release(fileKey);
+				}
 			}
-			bos.write((byte) c);
 		}
 
-		// create string using platform encoding
+		// delete print job folder itself and remove it from the index
 
-		return new String(bos.toByteArray());
+		printJobFolder.delete();
+		index.removePrintJob(queue, printJob);
 	}
 
 	@Override
 	public void finishedReceivingAPrinterJob() throws IOException {
 
-		if (queueExists(subCmdQueue)) {
-			File queueFolder = new File(queueFolderName, subCmdQueue);
-			File printJobFolder = new File(queueFolder, subCmdPrintJob);
-			if (printJobFolder.exists() && printJobFolder.isDirectory()) {
-				runScript(subCmdQueue, printJobFolder);
+		try {
+			if (subCmdPrintJobCreated) {
+				if (!subCmdFiles.isEmpty()) {
+					index.addPrintJob(subCmdQueue, subCmdPrintJob, subCmdFiles,
+							subCmdControlFile);
+					subCmdFiles.clear();
+				}
+				index.finishReceiving(subCmdQueue, subCmdPrintJob);
+			}
+			if (index.getPrintJob(subCmdQueue, subCmdPrintJob) != null) {
+				File queueFolder = new File(queueFolderName, subCmdQueue);
+				File printJobFolder = new File(queueFolder, subCmdPrintJob);
+				dispatcher.dispatch(subCmdQueue, printJobFolder);
 			}
+		} finally {
+			releaseReceive();
+			if (subCmdStart != 0) {
+				metrics.commandExecuted(
+						LpdServerProtocol.CMD_RECEIVE_A_PRINTER_JOB,
+						System.nanoTime() - subCmdStart);
+				subCmdStart = 0;
+			}
+		}
+	}
+
+	private void releaseReceive() {
+
+		// give the admission of the current print job back
+
+		if (subCmdAdmitted) {
+			subCmdAdmitted = false;
+			admissionControl.releaseReceive(subCmdQueue);
 		}
 	}
 }
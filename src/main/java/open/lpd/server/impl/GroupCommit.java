@@ -0,0 +1,221 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Forces received files to disk in batches shared by concurrent receivers. A
+ * receiver hands its files over and waits; a committer thread collects the
+ * files of all receivers that arrive within a short window and forces them in
+ * one go before it releases the receivers. Folders shared by the receivers,
+ * like the queue folder, are forced once per batch instead of once per file.
+ */
+public class GroupCommit {
+
+	private long windowMillis;
+	private Batch batch;
+	private Thread committerThread;
+	private LongAdder batches;
+	private LongAdder committedFiles;
+
+	/**
+	 * Creates a group commit. The committer thread is started on the first
+	 * commit.
+	 * 
+	 * @param windowMillis
+	 *            the time in milliseconds a batch waits for further receivers
+	 *            before it is forced, 0 to force right away.
+	 */
+	public GroupCommit(long windowMillis) {
+		this.windowMillis = windowMillis;
+		this.batch = null;
+		this.committerThread = null;
+		this.batches = new LongAdder();
+		this.committedFiles = new LongAdder();
+	}
+
+	public long getBatches() {
+		return batches.sum();
+	}
+
+	public long getCommittedFiles() {
+		return committedFiles.sum();
+	}
+
+	/**
+	 * Forces files to disk together with the files of other receivers and
+	 * waits until they are durable.
+	 * 
+	 * @param files
+	 *            the files and folders to force.
+	 * @throws IOException
+	 *             throws if a file could not be forced or the thread has been
+	 *             interrupted while waiting.
+	 */
+	public void commit(Collection<File> files) throws IOException {
+		Batch joinedBatch;
+		synchronized (this) {
+			if (committerThread == null) {
+				startCommitter();
+			}
+			if (batch == null) {
+				batch = new Batch();
+				notifyAll();
+			}
+			batch.files.addAll(files);
+			joinedBatch = batch;
+		}
+		try {
+			joinedBatch.done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Group commit interrupted.");
+		}
+		if (joinedBatch.error != null) {
+			throw new IOException("Group commit failed.", joinedBatch.error);
+		}
+	}
+
+	/**
+	 * Stops the committer thread. Receivers waiting for a batch are released
+	 * with an error.
+	 */
+	public void close() {
+		Thread thread;
+		synchronized (this) {
+			thread = committerThread;
+			committerThread = null;
+		}
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Forces a file or folder to disk. Folders can only be forced on systems
+	 * that allow to open them for reading, elsewhere they are skipped.
+	 * 
+	 * @param file
+	 *            the file or folder to force.
+	 * @throws IOException
+	 *             throws if the file could not be forced.
+	 */
+	public static void force(File file) throws IOException {
+		boolean folder = file.isDirectory();
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			if (folder) {
+				return;
+			}
+			throw e;
+		}
+		try {
+			channel.force(true);
+		} catch (IOException e) {
+			if (!folder) {
+				throw e;
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void startCommitter() {
+		committerThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				commitBatches();
+			}
+		}, "GroupCommit");
+		committerThread.setDaemon(true);
+		committerThread.start();
+	}
+
+	private void commitBatches() {
+
+		// force one batch after the other, receivers that arrive while a
+		// batch is forced join the next batch
+
+		Batch closedBatch = null;
+		try {
+			while (true) {
+				synchronized (this) {
+					while (batch == null) {
+						wait();
+					}
+				}
+				if (windowMillis > 0) {
+					Thread.sleep(windowMillis);
+				}
+				synchronized (this) {
+					closedBatch = batch;
+					batch = null;
+				}
+				try {
+					for (File file : closedBatch.files) {
+						force(file);
+					}
+					batches.increment();
+					committedFiles.add(closedBatch.files.size());
+				} catch (IOException e) {
+					closedBatch.error = e;
+				} finally {
+					closedBatch.done.countDown();
+					closedBatch = null;
+				}
+			}
+		} catch (InterruptedException e) {
+
+			// committing has been stopped, waiting receivers are released
+
+			synchronized (this) {
+				if (batch != null) {
+					batch.error = new InterruptedIOException(
+							"Group commit stopped.");
+					batch.done.countDown();
+					batch = null;
+				}
+			}
+		}
+	}
+
+	private static class Batch {
+
+		private Set<File> files = new LinkedHashSet<File>();
+		private CountDownLatch done = new CountDownLatch(1);
+		private volatile IOException error;
+	}
+}
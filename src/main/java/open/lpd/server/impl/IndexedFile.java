@@ -0,0 +1,77 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+/**
+ * An immutable entry of a print job file in the {@link PrintJobIndex}.
+ */
+public class IndexedFile {
+
+	private String name;
+	private long length;
+	private long storedLength;
+	private boolean compressed;
+
+	/**
+	 * Creates a print job file entry.
+	 * 
+	 * @param name
+	 *            the file name.
+	 * @param length
+	 *            the file length in bytes.
+	 */
+	public IndexedFile(String name, long length) {
+		this.name = name;
+		this.length = length;
+		this.storedLength = length;
+		this.compressed = false;
+	}
+
+	/**
+	 * Creates a print job file entry of a file that is stored compressed.
+	 * 
+	 * @param name
+	 *            the file name as received.
+	 * @param length
+	 *            the file length in bytes as received.
+	 * @param storedLength
+	 *            the number of bytes the file takes in the queue folder.
+	 */
+	public IndexedFile(String name, long length, long storedLength) {
+		this.name = name;
+		this.length = length;
+		this.storedLength = storedLength;
+		this.compressed = true;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getStoredLength() {
+		return storedLength;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+}
@@ -0,0 +1,100 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import open.lpd.server.PrintJob;
+
+/**
+ * An immutable entry of a print job in the {@link PrintJobIndex}. Changes to a
+ * print job replace its entry, so queue state requests can read entries
+ * without locking.
+ */
+public class IndexedPrintJob {
+
+	private String name;
+	private long lastModified;
+	private List<IndexedFile> files;
+	private PrintJob printJob;
+
+	/**
+	 * Creates a print job entry.
+	 * 
+	 * @param name
+	 *            the print job name, which is the name of the print job
+	 *            folder.
+	 * @param lastModified
+	 *            the time the print job was last modified in milliseconds.
+	 * @param files
+	 *            the files of the print job.
+	 * @param printJob
+	 *            the parsed control file or null if it has not been received.
+	 */
+	public IndexedPrintJob(String name, long lastModified,
+			List<IndexedFile> files, PrintJob printJob) {
+		this.name = name;
+		this.lastModified = lastModified;
+		this.files = Collections.unmodifiableList(new ArrayList<IndexedFile>(
+				files));
+		this.printJob = printJob;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public List<IndexedFile> getFiles() {
+		return files;
+	}
+
+	public PrintJob getPrintJob() {
+		return printJob;
+	}
+
+	/**
+	 * Creates a copy of this entry with a file added or replaced.
+	 * 
+	 * @param file
+	 *            the file to add, it replaces a file of the same name.
+	 * @param printJob
+	 *            the parsed control file if the file is the control file,
+	 *            otherwise null to keep the current one.
+	 * @param lastModified
+	 *            the new time the print job was last modified.
+	 * @return the new print job entry.
+	 */
+	public IndexedPrintJob withFile(IndexedFile file, PrintJob printJob,
+			long lastModified) {
+		List<IndexedFile> newFiles = new ArrayList<IndexedFile>(files.size() + 1);
+		for (IndexedFile existingFile : files) {
+			if (!existingFile.getName().equals(file.getName())) {
+				newFiles.add(existingFile);
+			}
+		}
+		newFiles.add(file);
+		return new IndexedPrintJob(name, lastModified, newFiles,
+				(printJob != null) ? printJob : this.printJob);
+	}
+}
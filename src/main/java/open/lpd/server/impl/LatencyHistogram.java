@@ -0,0 +1,114 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A low overhead latency histogram with power of two buckets. Recording a
+ * value increments a striped counter and does not lock, so the histogram can
+ * stay enabled on hot paths. Percentiles are reported as the upper bound of
+ * their bucket, which is at most twice the real value.
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKET_COUNT = Long.SIZE;
+
+	private LongAdder[] buckets;
+	private AtomicLong max;
+
+	/**
+	 * Creates an empty latency histogram.
+	 */
+	public LatencyHistogram() {
+		buckets = new LongAdder[BUCKET_COUNT];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+		max = new AtomicLong();
+	}
+
+	/**
+	 * Records a latency.
+	 * 
+	 * @param nanos
+	 *            the latency in nanoseconds.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets[Long.SIZE - Long.numberOfLeadingZeros(nanos)].increment();
+		long currentMax = max.get();
+		while (nanos > currentMax && !max.compareAndSet(currentMax, nanos)) {
+			currentMax = max.get();
+		}
+	}
+
+	/**
+	 * Gets the number of recorded latencies.
+	 * 
+	 * @return the number of recorded latencies.
+	 */
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Gets a percentile of the recorded latencies.
+	 * 
+	 * @param percentile
+	 *            the percentile between 0 and 100.
+	 * @return the upper bound of the latency percentile in nanoseconds or zero
+	 *         if nothing has been recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] counts = new long[buckets.length];
+		long count = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return Math.min((1L << i) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Gets the highest recorded latency.
+	 * 
+	 * @return the highest latency in nanoseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+}
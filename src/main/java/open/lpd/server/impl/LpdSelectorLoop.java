@@ -0,0 +1,342 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import open.lpd.server.LpdDeadlines;
+import open.lpd.server.LpdServerChannelProtocol;
+
+/**
+ * A selector event loop that serves many non-blocking LPD client connections
+ * on a single thread. Each connection is driven by a
+ * {@link LpdServerChannelProtocol} with a queue of the queue factory.
+ */
+public class LpdSelectorLoop implements Runnable {
+
+	private static final int READ_BUFFER_SIZE = 65536;
+	private static final long DEADLINE_CHECK_INTERVAL = 1000;
+
+	private Selector selector;
+	private Queue<SocketChannel> newClientChannels;
+	private Queue<SelectionKey> resumedKeys;
+	private ByteBuffer readBuffer;
+	private PrintJobQueueFactory queueFactory;
+	private AdmissionControl admissionControl;
+	private LpdServerMetrics metrics;
+	private Executor jobExecutor;
+	private Map<SelectionKey, Long> throttledKeys;
+	private LpdDeadlines deadlines;
+	private long lastDeadlineCheck;
+
+	/**
+	 * Creates a selector event loop.
+	 *
+	 * @param queueFactory
+	 *            the factory of the queues of the connections.
+	 * @param admissionControl
+	 *            the limits for receiving print jobs shared by all
+	 *            connections.
+	 * @param metrics
+	 *            the server metrics shared by all connections.
+	 * @param jobExecutor
+	 *            the executor that runs the queue calls which start print
+	 *            jobs.
+	 * @throws IOException
+	 *             throws if the selector could not be opened.
+	 */
+	public LpdSelectorLoop(PrintJobQueueFactory queueFactory,
+			AdmissionControl admissionControl, LpdServerMetrics metrics,
+			Executor jobExecutor) throws IOException {
+		this.queueFactory = queueFactory;
+		this.admissionControl = admissionControl;
+		this.metrics = metrics;
+		this.throttledKeys = new HashMap<SelectionKey, Long>();
+		this.jobExecutor = jobExecutor;
+		this.selector = Selector.open();
+		this.newClientChannels = new ConcurrentLinkedQueue<SocketChannel>();
+		this.resumedKeys = new ConcurrentLinkedQueue<SelectionKey>();
+		this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	}
+
+	/**
+	 * Sets the read deadlines of the client connections. Connections that
+	 * miss a deadline are closed.
+	 *
+	 * @param deadlines
+	 *            the read deadlines or null for no deadlines.
+	 */
+	public void setDeadlines(LpdDeadlines deadlines) {
+		this.deadlines = deadlines;
+	}
+
+	/**
+	 * Hands an accepted client connection over to this event loop.
+	 *
+	 * @param clientChannel
+	 *            the accepted client connection.
+	 */
+	public void register(SocketChannel clientChannel) {
+		newClientChannels.add(clientChannel);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+
+		// serve LPD connections until the thread is interrupted
+
+		try {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					selector.select(getSelectTimeout(resumeThrottledKeys()));
+					registerNewClientChannels();
+					resumeKeys();
+					closeMissedDeadlines();
+					Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						serve(key);
+					}
+				}
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					close(key);
+				}
+				selector.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void registerNewClientChannels() {
+
+		// register connections accepted by the listener thread
+
+		SocketChannel clientChannel;
+		while ((clientChannel = newClientChannels.poll()) != null) {
+			try {
+				clientChannel.configureBlocking(false);
+				LpdServerChannelProtocol protocol = new LpdServerChannelProtocol(
+						queueFactory.createQueue());
+				protocol.setJobExecutor(jobExecutor);
+				protocol.setDeadlines(deadlines);
+				final SelectionKey key = clientChannel.register(selector,
+						SelectionKey.OP_READ, protocol);
+				protocol.setWakeup(new Runnable() {
+
+					@Override
+					public void run() {
+						resumedKeys.add(key);
+						selector.wakeup();
+					}
+				});
+				metrics.connectionOpened();
+			} catch (IOException e) {
+				e.printStackTrace();
+				metrics.connectionFailed();
+				try {
+					clientChannel.close();
+				} catch (IOException e1) {
+					e1.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void serve(SelectionKey key) {
+
+		// advance the protocol of a ready connection
+
+		SocketChannel clientChannel = (SocketChannel) key.channel();
+		LpdServerChannelProtocol protocol = (LpdServerChannelProtocol) key
+				.attachment();
+		try {
+			if (key.isReadable() && protocol.isReceivingFile()) {
+
+				// stop reading from the connection while the spool rate is
+				// exceeded
+
+				long delay = admissionControl.getSpoolDelayNanos();
+				if (delay > 0) {
+					key.interestOps(0);
+					throttledKeys.put(key, System.nanoTime() + delay);
+					protocol.suspendDeadline(TimeUnit.NANOSECONDS
+							.toMillis(delay) + 1);
+					return;
+				}
+			}
+			if (key.isReadable() && protocol.transferFile(clientChannel) == 0) {
+				readBuffer.clear();
+				int bytesRead = clientChannel.read(readBuffer);
+				if (bytesRead == -1) {
+					protocol.endOfInput();
+				} else {
+					readBuffer.flip();
+					protocol.receive(readBuffer);
+				}
+			}
+			updateInterest(key);
+		} catch (IOException e) {
+			e.printStackTrace();
+			metrics.connectionFailed();
+			close(key);
+		}
+	}
+
+	private void resumeKeys() {
+
+		// continue the protocols whose files have been closed by the job
+		// executor, a protocol that has been closed meanwhile aborts its
+		// print job
+
+		SelectionKey key;
+		while ((key = resumedKeys.poll()) != null) {
+			LpdServerChannelProtocol protocol = (LpdServerChannelProtocol) key
+					.attachment();
+			try {
+				protocol.resume();
+				if (key.isValid()) {
+					updateInterest(key);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				metrics.connectionFailed();
+				close(key);
+			}
+		}
+	}
+
+	private void updateInterest(SelectionKey key) throws IOException {
+
+		// write pending output first, a suspended protocol is not read until
+		// it resumes
+
+		SocketChannel clientChannel = (SocketChannel) key.channel();
+		LpdServerChannelProtocol protocol = (LpdServerChannelProtocol) key
+				.attachment();
+		if (protocol.hasOutput() && !protocol.writeOutput(clientChannel)) {
+			key.interestOps(SelectionKey.OP_WRITE);
+		} else if (protocol.isFinished()) {
+			close(key);
+		} else if (protocol.isSuspended()) {
+			key.interestOps(0);
+		} else {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private long getSelectTimeout(long throttleTimeout) {
+
+		// wake up in time to resume throttled connections and to check the
+		// read deadlines
+
+		if (deadlines == null) {
+			return throttleTimeout;
+		}
+		return (throttleTimeout == 0) ? DEADLINE_CHECK_INTERVAL : Math.min(
+				throttleTimeout, DEADLINE_CHECK_INTERVAL);
+	}
+
+	private void closeMissedDeadlines() {
+
+		// close connections of clients that are too slow, their partially
+		// received print jobs are aborted
+
+		long now = System.currentTimeMillis();
+		if (deadlines == null
+				|| now - lastDeadlineCheck < DEADLINE_CHECK_INTERVAL) {
+			return;
+		}
+		lastDeadlineCheck = now;
+		for (SelectionKey key : selector.keys()) {
+			LpdServerChannelProtocol protocol = (LpdServerChannelProtocol) key
+					.attachment();
+			long deadline = protocol.getDeadline();
+			if (key.isValid() && deadline != 0 && deadline < now
+					&& !throttledKeys.containsKey(key)) {
+				close(key);
+			}
+		}
+	}
+
+	private long resumeThrottledKeys() {
+
+		// read again from connections whose spool delay has passed, returns
+		// the milliseconds until the next connection resumes or zero if no
+		// connection is throttled
+
+		long now = System.nanoTime();
+		long timeout = 0;
+		Iterator<Map.Entry<SelectionKey, Long>> entries = throttledKeys
+				.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<SelectionKey, Long> entry = entries.next();
+			SelectionKey key = entry.getKey();
+			long delay = entry.getValue() - now;
+			if (!key.isValid()) {
+				entries.remove();
+			} else if (delay <= 0) {
+				key.interestOps(SelectionKey.OP_READ);
+				entries.remove();
+			} else {
+				long delayMillis = Math.max(1,
+						TimeUnit.NANOSECONDS.toMillis(delay));
+				timeout = (timeout == 0) ? delayMillis : Math.min(timeout,
+						delayMillis);
+			}
+		}
+		return timeout;
+	}
+
+	private void close(SelectionKey key) {
+
+		// close connection and discard a partially received file
+
+		throttledKeys.remove(key);
+		if (key.isValid()) {
+			metrics.connectionClosed();
+		}
+		LpdServerChannelProtocol protocol = (LpdServerChannelProtocol) key
+				.attachment();
+		try {
+			try {
+				protocol.close();
+			} finally {
+				key.cancel();
+				key.channel().close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
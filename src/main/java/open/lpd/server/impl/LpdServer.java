@@ -18,13 +18,32 @@
 package open.lpd.server.impl;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import open.lpd.server.DeadlineInputStream;
+import open.lpd.server.IMemoryPrintJobHandler;
+import open.lpd.server.IPrintJobHandler;
+import open.lpd.server.ISegmentPrintJobHandler;
+import open.lpd.server.LpdDeadlines;
 import open.lpd.server.LpdServerProtocol;
 
 /**
@@ -37,68 +56,320 @@ public class LpdServer {
 	private static final String OPTION_HOST = "--host";
 	private static final String OPTION_PORT = "--port";
 	private static final String OPTION_SCRIPT_COMMAND = "--script";
+	private static final String OPTION_HANDLER = "--handler";
 	private static final String OPTION_QUEUE_FOLDER = "--queuefolder";
 	private static final String OPTION_SOCKET_BACKLOG_SIZE = "--socketbacklogsize";
 	private static final String OPTION_CLIENT_CONNECTION_THREADS = "--clientConnectionThreads";
+	private static final String OPTION_CONNECTION_QUEUE_SIZE = "--connectionQueueSize";
+	private static final String OPTION_MAX_RECEIVES = "--maxReceives";
+	private static final String OPTION_MAX_QUEUE_RECEIVES = "--maxQueueReceives";
+	private static final String OPTION_MAX_SPOOL_RATE = "--maxSpoolRate";
+	private static final String OPTION_COMMAND_TIMEOUT = "--commandTimeout";
+	private static final String OPTION_SUB_COMMAND_TIMEOUT = "--subCommandTimeout";
+	private static final String OPTION_FILE_MIN_RATE = "--fileMinRate";
+	private static final String OPTION_ACK_TIMEOUT = "--ackTimeout";
+	private static final String OPTION_DISPATCH_THREADS = "--dispatchThreads";
+	private static final String OPTION_DISPATCH_QUEUE_SIZE = "--dispatchQueueSize";
+	private static final String OPTION_THREADS = "--threads";
+	private static final String OPTION_ENGINE = "--engine";
+	private static final String OPTION_SELECTOR_THREADS = "--selectorThreads";
+	private static final String OPTION_MEMORY_QUEUES = "--memoryQueues";
+	private static final String OPTION_MEMORY_HANDLER = "--memoryHandler";
+	private static final String OPTION_MEMORY_CAPACITY = "--memoryCapacity";
+	private static final String OPTION_MEMORY_CHUNK_SIZE = "--memoryChunkSize";
+	private static final String OPTION_MEMORY_POLICY = "--memoryPolicy";
+	private static final String OPTION_PREALLOCATE = "--preallocate";
+	private static final String OPTION_SEGMENT_QUEUES = "--segmentQueues";
+	private static final String OPTION_SEGMENT_HANDLER = "--segmentHandler";
+	private static final String OPTION_SEGMENT_FOLDER = "--segmentFolder";
+	private static final String OPTION_SEGMENT_SIZE = "--segmentSize";
+	private static final String OPTION_DURABILITY = "--durability";
+	private static final String OPTION_COMPRESS_QUEUES = "--compressQueues";
+	private static final String OPTION_COMPRESSION_LEVEL = "--compressionLevel";
+	private static final String OPTION_GROUP_COMMIT_WINDOW = "--groupCommitWindow";
+	private static final String OPTION_DEDUP_QUEUES = "--dedupQueues";
+	private static final String OPTION_CONTENT_FOLDER = "--contentFolder";
+	private static final String OPTION_QUARANTINE_FOLDER = "--quarantineFolder";
+	private static final String OPTION_RECOVERY_MIN_AGE = "--recoveryMinAge";
 	private static final String DEFAULT_HOST = "0.0.0.0";
 	private static final String DEFAULT_PORT = "515";
 	private static final String DEFAULT_QUEUE_FOLDER = "queues";
 	private static final String DEFAULT_SCRIPT_COMMAND = "queue.sh $1 $2";
 	private static final String DEFAULT_SOCKET_BACKLOG_SIZE = "100";
 	private static final String DEFAULT_CLIENT_CONNECTION_THREADS = "8";
+	private static final String DEFAULT_SELECTOR_THREADS = "2";
+	private static final String DEFAULT_DISPATCH_THREADS = "4";
+	private static final String DEFAULT_DISPATCH_QUEUE_SIZE = "1000";
+	private static final String DEFAULT_CONNECTION_QUEUE_SIZE = "1000";
+	private static final String DEFAULT_MAX_RECEIVES = "100";
+	private static final String DEFAULT_MAX_QUEUE_RECEIVES = "0";
+	private static final String DEFAULT_MAX_SPOOL_RATE = "0";
+	private static final String DEFAULT_COMMAND_TIMEOUT = "60000";
+	private static final String DEFAULT_SUB_COMMAND_TIMEOUT = "60000";
+	private static final String DEFAULT_FILE_MIN_RATE = "1024";
+	private static final String DEFAULT_ACK_TIMEOUT = "60000";
+	private static final String DEFAULT_MEMORY_CAPACITY = "67108864";
+	private static final String DEFAULT_MEMORY_CHUNK_SIZE = "16384";
+	private static final String DEFAULT_MEMORY_POLICY = MemoryPrintJobStore.POLICY_REJECT;
+	private static final String DEFAULT_PREALLOCATE = "false";
+	private static final String DEFAULT_SEGMENT_FOLDER = "segments";
+	private static final String DEFAULT_SEGMENT_SIZE = "67108864";
+	private static final String DEFAULT_DURABILITY = SpoolOptions.DURABILITY_NONE;
+	private static final String DEFAULT_GROUP_COMMIT_WINDOW = "2";
+	private static final String DEFAULT_COMPRESSION_LEVEL = "1";
+	private static final String DEFAULT_CONTENT_FOLDER = "content";
+	private static final String DEFAULT_QUARANTINE_FOLDER = "quarantine";
+	private static final String DEFAULT_RECOVERY_MIN_AGE = "0";
+	private static final long SEGMENT_COMPACTION_INTERVAL = 1000;
+	private static final long CONTENT_SWEEP_INTERVAL = 10000;
+	private static final String THREADS_POOLED = "pooled";
+	private static final String THREADS_VIRTUAL = "virtual";
+	private static final String ENGINE_SOCKET = "socket";
+	private static final String ENGINE_SELECTOR = "selector";
 
 	private String host;
 	private int port;
-	private String queueFolderName;
-	private String scriptCmd;
+	private PrintJobIndex index;
+	private PrintJobDispatcher dispatcher;
+	private AdmissionControl admissionControl;
+	private int connectionQueueSize;
+	private LpdDeadlines deadlines;
+	private LpdServerMetrics metrics;
+	private MemoryPrintJobStore memoryStore;
+	private SegmentStore segmentStore;
+	private SpoolOptions spoolOptions;
+	private PrintJobRecovery recovery;
 
 	public LpdServer(String host, int port, String queueFolderName,
 			String scriptCmd) throws IOException {
+		this(host, port, queueFolderName, new PrintJobDispatcher(
+				new ScriptPrintJobHandler(scriptCmd)));
+	}
+
+	public LpdServer(String host, int port, String queueFolderName,
+			PrintJobDispatcher dispatcher) throws IOException {
 		this.host = host;
 		this.port = port;
-		this.queueFolderName = queueFolderName;
-		this.scriptCmd = scriptCmd;
+		this.index = new PrintJobIndex(queueFolderName);
+		this.dispatcher = dispatcher;
+		this.admissionControl = new AdmissionControl();
+		this.connectionQueueSize = Integer.MAX_VALUE;
+		this.metrics = new LpdServerMetrics();
+		this.metrics.setDispatcher(dispatcher);
+		this.spoolOptions = new SpoolOptions();
+		dispatcher.setMetrics(metrics);
+	}
+
+	public void setAdmissionControl(AdmissionControl admissionControl) {
+		this.admissionControl = admissionControl;
+	}
+
+	public void setConnectionQueueSize(int connectionQueueSize) {
+		this.connectionQueueSize = connectionQueueSize;
+	}
+
+	public void setDeadlines(LpdDeadlines deadlines) {
+		this.deadlines = deadlines;
+	}
+
+	public void setMemoryStore(MemoryPrintJobStore memoryStore) {
+		this.memoryStore = memoryStore;
+		metrics.setMemoryStore(memoryStore);
+	}
+
+	public void setSegmentStore(SegmentStore segmentStore) {
+		this.segmentStore = segmentStore;
+		metrics.setSegmentStore(segmentStore);
+	}
+
+	public void setSpoolOptions(SpoolOptions spoolOptions) {
+		this.spoolOptions = spoolOptions;
+		metrics.setGroupCommit(spoolOptions.getGroupCommit());
+		metrics.setContentStore(spoolOptions.getContentStore());
+	}
+
+	public void setRecovery(PrintJobRecovery recovery) {
+		this.recovery = recovery;
+		metrics.setRecovery(recovery);
+	}
+
+	public LpdServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	public void registerMetrics() throws JMException {
+
+		// expose the metrics to JMX clients like jconsole, one MBean per
+		// server port
+
+		ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+				new ObjectName("open.lpd:type=LpdServer,port=" + port));
 	}
 
 	public void serveConnections(int backlogSize, int clientConnectionThreads)
 			throws IOException {
 
-		// serve LPD connections
+		// serve LPD connections with a fixed number of client threads, when
+		// all threads are busy a limited number of connections wait for a
+		// thread
 
-		ExecutorService executorService = Executors
-				.newFixedThreadPool(clientConnectionThreads);
+		serveConnections(backlogSize, new ThreadPoolExecutor(
+				clientConnectionThreads, clientConnectionThreads, 0,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(
+						connectionQueueSize)));
+	}
+
+	public void serveVirtualThreadConnections(int backlogSize)
+			throws IOException {
+
+		// serve each LPD connection on its own virtual thread, virtual threads
+		// are available from Java 21 on, older runtimes fall back to a new
+		// platform thread per connection and say so
+
+		ExecutorService executorService;
+		try {
+			Method newVirtualThreadPerTaskExecutor = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			executorService = (ExecutorService) newVirtualThreadPerTaskExecutor
+					.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			System.err.println("Virtual threads are not available on Java "
+					+ System.getProperty("java.version")
+					+ ", falling back to a platform thread per connection"
+					+ " (Executors.newCachedThreadPool).");
+			executorService = Executors.newCachedThreadPool();
+		}
+		serveConnections(backlogSize, executorService);
+	}
+
+	public void serveConnections(int backlogSize,
+			ExecutorService executorService) throws IOException {
+
+		// serve LPD connections, the print job index is built once and shared
+		// by all connections, a recovery builds it while connections are
+		// already served
+
+		index.startWatching(recovery);
+		if (executorService instanceof ThreadPoolExecutor) {
+			metrics.setConnectionExecutor((ThreadPoolExecutor) executorService);
+		}
+		final PrintJobQueueFactory queueFactory = createQueueFactory();
 		InetAddress hostAddress = Inet4Address.getByName(host);
 		ServerSocket serverSocket = new ServerSocket(port, backlogSize,
 				hostAddress);
 		try {
 			while (true) {
 				final Socket clientSocket = serverSocket.accept();
-				executorService.submit(new Runnable() {
+				try {
+					executorService.execute(new Runnable() {
 
-					@Override
-					public void run() {
-						try {
+						@Override
+						public void run() {
+							metrics.connectionOpened();
 							try {
-								LpdServerProtocol protocol = new LpdServerProtocol(
-										clientSocket.getInputStream(),
-										clientSocket.getOutputStream(),
-										new FileBasedPrintJobQueue(queueFolderName,
-												scriptCmd));
-								protocol.handle();
-							} finally {
-								clientSocket.close();
+								try {
+									DeadlineInputStream deadlineInStream = null;
+									InputStream clientInStream = clientSocket
+											.getInputStream();
+									if (deadlines != null) {
+										deadlineInStream = new DeadlineInputStream(
+												clientSocket, deadlines);
+										clientInStream = deadlineInStream;
+									}
+									LpdServerProtocol protocol = new LpdServerProtocol(
+											clientInStream,
+											clientSocket.getOutputStream(),
+											queueFactory.createQueue());
+									protocol.setDeadlineStream(deadlineInStream);
+									protocol.handle();
+								} finally {
+									clientSocket.close();
+									metrics.connectionClosed();
+								}
+							} catch (IOException e) {
+								e.printStackTrace();
+								metrics.connectionFailed();
 							}
-						} catch (IOException e) {
-							e.printStackTrace();
 						}
-					}
-				});
+					});
+				} catch (RejectedExecutionException e) {
+
+					// too many connections are waiting for a client thread
+
+					metrics.connectionRejected();
+					clientSocket.close();
+				}
 			}
 		} finally {
 			serverSocket.close();
 		}
 	}
 
+	public void serveSelectorConnections(int backlogSize, int selectorThreads,
+			int jobThreads) throws IOException {
+
+		// serve LPD connections with non-blocking selector event loops, the
+		// job threads run the queue calls that start print jobs
+
+		index.startWatching(recovery);
+		ExecutorService executorService = Executors
+				.newFixedThreadPool(jobThreads);
+		PrintJobQueueFactory queueFactory = createQueueFactory();
+		LpdSelectorLoop[] selectorLoops = new LpdSelectorLoop[selectorThreads];
+		for (int i = 0; i < selectorLoops.length; i++) {
+			selectorLoops[i] = new LpdSelectorLoop(queueFactory,
+					admissionControl, metrics, executorService);
+			selectorLoops[i].setDeadlines(deadlines);
+			Thread selectorThread = new Thread(selectorLoops[i],
+					"LpdSelectorLoop-" + i);
+			selectorThread.start();
+		}
+		InetAddress hostAddress = Inet4Address.getByName(host);
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.socket().bind(
+					new InetSocketAddress(hostAddress, port), backlogSize);
+			int nextSelectorLoop = 0;
+			while (true) {
+				SocketChannel clientChannel = serverChannel.accept();
+				selectorLoops[nextSelectorLoop].register(clientChannel);
+				nextSelectorLoop = (nextSelectorLoop + 1) % selectorLoops.length;
+			}
+		} finally {
+			serverChannel.close();
+		}
+	}
+
+	private PrintJobQueueFactory createQueueFactory() {
+
+		// both engines create the queues of their connections the same way
+
+		PrintJobQueueFactory queueFactory = new PrintJobQueueFactory(index,
+				dispatcher, admissionControl, metrics);
+		queueFactory.setSpoolOptions(spoolOptions);
+		queueFactory.setMemoryStore(memoryStore);
+		queueFactory.setSegmentStore(segmentStore);
+		return queueFactory;
+	}
+
+	private static <T> T loadHandler(String handlerClassName,
+			Class<T> handlerInterface) throws IOException {
+
+		// load an in process print job handler from the classpath
+
+		try {
+			Class<?> handlerClass = Class.forName(handlerClassName);
+			return handlerInterface.cast(handlerClass.getDeclaredConstructor()
+					.newInstance());
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Print job handler could not be loaded: "
+					+ handlerClassName, e);
+		} catch (ClassCastException e) {
+			throw new IOException("Print job handler does not implement "
+					+ handlerInterface.getName() + ": " + handlerClassName, e);
+		}
+	}
+
 	private static String getOption(String name, String[] args,
 			String defaultValue) {
 		String value = null;
@@ -129,13 +400,159 @@ public class LpdServer {
 			String clientConnectionThreads = getOption(
 					OPTION_CLIENT_CONNECTION_THREADS, args,
 					DEFAULT_CLIENT_CONNECTION_THREADS);
+			String handlerClassName = getOption(OPTION_HANDLER, args, null);
+			String dispatchThreads = getOption(OPTION_DISPATCH_THREADS, args,
+					DEFAULT_DISPATCH_THREADS);
+			String dispatchQueueSize = getOption(OPTION_DISPATCH_QUEUE_SIZE,
+					args, DEFAULT_DISPATCH_QUEUE_SIZE);
+			String threads = getOption(OPTION_THREADS, args, THREADS_POOLED);
+			String engine = getOption(OPTION_ENGINE, args, ENGINE_SOCKET);
+			String selectorThreads = getOption(OPTION_SELECTOR_THREADS, args,
+					DEFAULT_SELECTOR_THREADS);
+			String connectionQueueSize = getOption(
+					OPTION_CONNECTION_QUEUE_SIZE, args,
+					DEFAULT_CONNECTION_QUEUE_SIZE);
+			String maxReceives = getOption(OPTION_MAX_RECEIVES, args,
+					DEFAULT_MAX_RECEIVES);
+			String maxQueueReceives = getOption(OPTION_MAX_QUEUE_RECEIVES, args,
+					DEFAULT_MAX_QUEUE_RECEIVES);
+			String maxSpoolRate = getOption(OPTION_MAX_SPOOL_RATE, args,
+					DEFAULT_MAX_SPOOL_RATE);
+			String commandTimeout = getOption(OPTION_COMMAND_TIMEOUT, args,
+					DEFAULT_COMMAND_TIMEOUT);
+			String subCommandTimeout = getOption(OPTION_SUB_COMMAND_TIMEOUT,
+					args, DEFAULT_SUB_COMMAND_TIMEOUT);
+			String fileMinRate = getOption(OPTION_FILE_MIN_RATE, args,
+					DEFAULT_FILE_MIN_RATE);
+			String ackTimeout = getOption(OPTION_ACK_TIMEOUT, args,
+					DEFAULT_ACK_TIMEOUT);
+			String memoryQueues = getOption(OPTION_MEMORY_QUEUES, args, null);
+			String memoryHandlerClassName = getOption(OPTION_MEMORY_HANDLER,
+					args, null);
+			String memoryCapacity = getOption(OPTION_MEMORY_CAPACITY, args,
+					DEFAULT_MEMORY_CAPACITY);
+			String memoryChunkSize = getOption(OPTION_MEMORY_CHUNK_SIZE, args,
+					DEFAULT_MEMORY_CHUNK_SIZE);
+			String memoryPolicy = getOption(OPTION_MEMORY_POLICY, args,
+					DEFAULT_MEMORY_POLICY);
+			String preallocate = getOption(OPTION_PREALLOCATE, args,
+					DEFAULT_PREALLOCATE);
+			String segmentQueues = getOption(OPTION_SEGMENT_QUEUES, args, null);
+			String segmentHandlerClassName = getOption(OPTION_SEGMENT_HANDLER,
+					args, null);
+			String segmentFolder = getOption(OPTION_SEGMENT_FOLDER, args,
+					DEFAULT_SEGMENT_FOLDER);
+			String segmentSize = getOption(OPTION_SEGMENT_SIZE, args,
+					DEFAULT_SEGMENT_SIZE);
+			String durability = getOption(OPTION_DURABILITY, args,
+					DEFAULT_DURABILITY);
+			String groupCommitWindow = getOption(OPTION_GROUP_COMMIT_WINDOW,
+					args, DEFAULT_GROUP_COMMIT_WINDOW);
+			String compressQueues = getOption(OPTION_COMPRESS_QUEUES, args,
+					null);
+			String compressionLevel = getOption(OPTION_COMPRESSION_LEVEL,
+					args, DEFAULT_COMPRESSION_LEVEL);
+			String dedupQueues = getOption(OPTION_DEDUP_QUEUES, args, null);
+			String contentFolder = getOption(OPTION_CONTENT_FOLDER, args,
+					DEFAULT_CONTENT_FOLDER);
+			String quarantineFolder = getOption(OPTION_QUARANTINE_FOLDER, args,
+					DEFAULT_QUARANTINE_FOLDER);
+			String recoveryMinAge = getOption(OPTION_RECOVERY_MIN_AGE, args,
+					DEFAULT_RECOVERY_MIN_AGE);
 
 			// run server
 
+			IPrintJobHandler handler;
+			if (handlerClassName != null) {
+				handler = loadHandler(handlerClassName, IPrintJobHandler.class);
+			} else {
+				handler = new ScriptPrintJobHandler(scriptCmd);
+			}
+			PrintJobDispatcher dispatcher = new PrintJobDispatcher(handler,
+					Integer.valueOf(dispatchThreads),
+					Integer.valueOf(dispatchQueueSize));
 			LpdServer lpdServer = new LpdServer(host, Integer.valueOf(port),
-					queueFolderName, scriptCmd);
-			lpdServer.serveConnections(Integer.valueOf(backLogSize),
-					Integer.valueOf(clientConnectionThreads));
+					queueFolderName, dispatcher);
+			if (memoryQueues != null) {
+
+				// print jobs of memory queues are kept in pooled direct
+				// buffers and are handed to an in process handler
+
+				if (memoryHandlerClassName == null) {
+					throw new IllegalArgumentException(OPTION_MEMORY_HANDLER);
+				}
+				dispatcher.setMemoryHandler(loadHandler(memoryHandlerClassName,
+						IMemoryPrintJobHandler.class));
+				lpdServer.setMemoryStore(new MemoryPrintJobStore(Arrays
+						.asList(memoryQueues.split(",")), new DirectBufferPool(
+						Long.valueOf(memoryCapacity), Integer
+								.valueOf(memoryChunkSize)), memoryPolicy));
+			}
+			if (segmentQueues != null) {
+
+				// print jobs of segment queues are appended to segment files
+				// and are handed to an in process handler
+
+				if (segmentHandlerClassName == null) {
+					throw new IllegalArgumentException(OPTION_SEGMENT_HANDLER);
+				}
+				dispatcher.setSegmentHandler(loadHandler(
+						segmentHandlerClassName, ISegmentPrintJobHandler.class));
+				SegmentStore segmentStore = new SegmentStore(segmentFolder,
+						Arrays.asList(segmentQueues.split(",")),
+						Long.valueOf(segmentSize));
+				segmentStore.load();
+				segmentStore.startCompacting(SEGMENT_COMPACTION_INTERVAL);
+				lpdServer.setSegmentStore(segmentStore);
+			}
+			SpoolOptions spoolOptions = new SpoolOptions();
+			spoolOptions.setPreallocate(Boolean.valueOf(preallocate));
+			spoolOptions.setDurability(durability, new GroupCommit(Long
+					.valueOf(groupCommitWindow)));
+			if (compressQueues != null) {
+				spoolOptions.setCompressedQueues(
+						Arrays.asList(compressQueues.split(",")),
+						Integer.valueOf(compressionLevel));
+			}
+			if (dedupQueues != null) {
+
+				// data files of deduplicated queues link to a content store
+				// that keeps each distinct content once
+
+				ContentStore contentStore = new ContentStore(contentFolder);
+				contentStore.load();
+				contentStore.startSweeping(CONTENT_SWEEP_INTERVAL);
+				spoolOptions.setDeduplicatedQueues(
+						Arrays.asList(dedupQueues.split(",")), contentStore);
+			}
+			lpdServer.setSpoolOptions(spoolOptions);
+			lpdServer.setRecovery(new PrintJobRecovery(quarantineFolder, Long
+					.valueOf(recoveryMinAge)));
+			lpdServer.setAdmissionControl(new AdmissionControl(Integer
+					.valueOf(maxReceives), Integer.valueOf(maxQueueReceives),
+					Long.valueOf(maxSpoolRate)));
+			lpdServer.setConnectionQueueSize(Integer
+					.valueOf(connectionQueueSize));
+			lpdServer.setDeadlines(new LpdDeadlines(Long
+					.valueOf(commandTimeout), Long.valueOf(subCommandTimeout),
+					Long.valueOf(fileMinRate), Long.valueOf(ackTimeout)));
+			try {
+				lpdServer.registerMetrics();
+			} catch (JMException e) {
+				e.printStackTrace();
+			}
+			if (engine.equalsIgnoreCase(ENGINE_SELECTOR)) {
+				lpdServer.serveSelectorConnections(
+						Integer.valueOf(backLogSize),
+						Integer.valueOf(selectorThreads),
+						Integer.valueOf(clientConnectionThreads));
+			} else if (threads.equalsIgnoreCase(THREADS_VIRTUAL)) {
+				lpdServer.serveVirtualThreadConnections(Integer
+						.valueOf(backLogSize));
+			} else {
+				lpdServer.serveConnections(Integer.valueOf(backLogSize),
+						Integer.valueOf(clientConnectionThreads));
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,508 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import open.lpd.server.LpdServerProtocol;
+
+/**
+ * Counters and latency histograms of the LPD server hot paths, exposed as an
+ * MXBean. All counters are striped {@link LongAdder}s, so they can stay
+ * enabled under load.
+ */
+public class LpdServerMetrics implements LpdServerMetricsMXBean {
+
+	private static final String[] COMMAND_NAMES = { null,
+			"printAnyWaitingJobs", "receiveAPrinterJob", "sendQueueStateShort",
+			"sendQueueStateLong", "removeJobs" };
+
+	private LongAdder activeConnections;
+	private LongAdder connections;
+	private LongAdder connectionsRejected;
+	private LongAdder connectionErrors;
+	private LongAdder[] commandCounts;
+	private LatencyHistogram[] commandLatencies;
+	private LongAdder receivesRefused;
+	private ConcurrentMap<String, LongAdder> bytesReceivedPerQueue;
+	private LongAdder spooledBytes;
+	private LongAdder spoolWriteNanos;
+	private LongAdder durableFiles;
+	private LongAdder compressedReceivedBytes;
+	private LongAdder compressedStoredBytes;
+	private LongAdder durableWaitNanos;
+	private LongAdder dispatchFailures;
+	private LatencyHistogram dispatchLatency;
+	private ThreadPoolExecutor connectionExecutor;
+	private PrintJobDispatcher dispatcher;
+	private MemoryPrintJobStore memoryStore;
+	private SegmentStore segmentStore;
+	private PrintJobRecovery recovery;
+	private GroupCommit groupCommit;
+	private ContentStore contentStore;
+
+	/**
+	 * Creates empty metrics.
+	 */
+	public LpdServerMetrics() {
+		activeConnections = new LongAdder();
+		connections = new LongAdder();
+		connectionsRejected = new LongAdder();
+		connectionErrors = new LongAdder();
+		commandCounts = new LongAdder[COMMAND_NAMES.length];
+		commandLatencies = new LatencyHistogram[COMMAND_NAMES.length];
+		for (int i = 1; i < COMMAND_NAMES.length; i++) {
+			commandCounts[i] = new LongAdder();
+			commandLatencies[i] = new LatencyHistogram();
+		}
+		receivesRefused = new LongAdder();
+		bytesReceivedPerQueue = new ConcurrentHashMap<String, LongAdder>();
+		spooledBytes = new LongAdder();
+		spoolWriteNanos = new LongAdder();
+		durableFiles = new LongAdder();
+		compressedReceivedBytes = new LongAdder();
+		compressedStoredBytes = new LongAdder();
+		durableWaitNanos = new LongAdder();
+		dispatchFailures = new LongAdder();
+		dispatchLatency = new LatencyHistogram();
+	}
+
+	/**
+	 * Sets the executor whose work queue holds connections waiting for a
+	 * client thread.
+	 * 
+	 * @param connectionExecutor
+	 *            the executor of the client threads.
+	 */
+	public void setConnectionExecutor(ThreadPoolExecutor connectionExecutor) {
+		this.connectionExecutor = connectionExecutor;
+	}
+
+	/**
+	 * Sets the dispatcher whose work queue holds print jobs waiting for a
+	 * dispatch thread.
+	 * 
+	 * @param dispatcher
+	 *            the print job dispatcher.
+	 */
+	public void setDispatcher(PrintJobDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Sets the store whose buffer pool holds the print jobs of memory queues.
+	 * 
+	 * @param memoryStore
+	 *            the store of the memory queues or null for no memory queues.
+	 */
+	public void setMemoryStore(MemoryPrintJobStore memoryStore) {
+		this.memoryStore = memoryStore;
+	}
+
+	/**
+	 * Sets the store whose segments hold the print jobs of segment queues.
+	 * 
+	 * @param segmentStore
+	 *            the store of the segment queues or null for no segment
+	 *            queues.
+	 */
+	public void setSegmentStore(SegmentStore segmentStore) {
+		this.segmentStore = segmentStore;
+	}
+
+	/**
+	 * Sets the recovery that classifies the print jobs of the queues folder
+	 * at startup.
+	 * 
+	 * @param recovery
+	 *            the startup recovery or null for no recovery.
+	 */
+	public void setRecovery(PrintJobRecovery recovery) {
+		this.recovery = recovery;
+	}
+
+	/**
+	 * Sets the group commit that forces received files to disk in batches.
+	 * 
+	 * @param groupCommit
+	 *            the group commit or null for no group commit.
+	 */
+	public void setGroupCommit(GroupCommit groupCommit) {
+		this.groupCommit = groupCommit;
+	}
+
+	/**
+	 * Sets the content store of the deduplicated queues.
+	 * 
+	 * @param contentStore
+	 *            the content store or null for no deduplicated queues.
+	 */
+	public void setContentStore(ContentStore contentStore) {
+		this.contentStore = contentStore;
+	}
+
+	public void connectionOpened() {
+		connections.increment();
+		activeConnections.increment();
+	}
+
+	public void connectionClosed() {
+		activeConnections.decrement();
+	}
+
+	public void connectionRejected() {
+		connectionsRejected.increment();
+	}
+
+	public void connectionFailed() {
+		connectionErrors.increment();
+	}
+
+	/**
+	 * Records an executed LPD command.
+	 * 
+	 * @param cmd
+	 *            the command code, see {@link LpdServerProtocol}.
+	 * @param nanos
+	 *            the time the command took in nanoseconds.
+	 */
+	public void commandExecuted(int cmd, long nanos) {
+		if (cmd > 0 && cmd < COMMAND_NAMES.length) {
+			commandCounts[cmd].increment();
+			commandLatencies[cmd].record(nanos);
+		}
+	}
+
+	public void receiveRefused() {
+		receivesRefused.increment();
+	}
+
+	/**
+	 * Records bytes written to the spool.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param bytes
+	 *            the number of bytes written.
+	 * @param nanos
+	 *            the time the write took in nanoseconds.
+	 */
+	public void spooled(String queue, long bytes, long nanos) {
+		LongAdder queueBytes = bytesReceivedPerQueue.get(queue);
+		if (queueBytes == null) {
+			queueBytes = new LongAdder();
+			LongAdder existingQueueBytes = bytesReceivedPerQueue.putIfAbsent(
+					queue, queueBytes);
+			if (existingQueueBytes != null) {
+				queueBytes = existingQueueBytes;
+			}
+		}
+		queueBytes.add(bytes);
+		spooledBytes.add(bytes);
+		spoolWriteNanos.add(nanos);
+	}
+
+	/**
+	 * Records a received file that has been forced to disk.
+	 * 
+	 * @param nanos
+	 *            the time the receiver waited for the file to be durable in
+	 *            nanoseconds.
+	 */
+	public void madeDurable(long nanos) {
+		durableFiles.increment();
+		durableWaitNanos.add(nanos);
+	}
+
+	/**
+	 * Records a data file that has been compressed while it was received.
+	 * 
+	 * @param length
+	 *            the number of bytes received.
+	 * @param storedLength
+	 *            the number of bytes stored.
+	 */
+	public void compressed(long length, long storedLength) {
+		compressedReceivedBytes.add(length);
+		compressedStoredBytes.add(storedLength);
+	}
+
+	/**
+	 * Records a handled print job.
+	 * 
+	 * @param nanos
+	 *            the time from dispatching the print job until the handler
+	 *            finished in nanoseconds.
+	 * @param failed
+	 *            true if the handler failed.
+	 */
+	public void dispatched(long nanos, boolean failed) {
+		dispatchLatency.record(nanos);
+		if (failed) {
+			dispatchFailures.increment();
+		}
+	}
+
+	@Override
+	public long getActiveConnections() {
+		return activeConnections.sum();
+	}
+
+	@Override
+	public long getConnections() {
+		return connections.sum();
+	}
+
+	@Override
+	public long getConnectionsRejected() {
+		return connectionsRejected.sum();
+	}
+
+	@Override
+	public long getConnectionErrors() {
+		return connectionErrors.sum();
+	}
+
+	@Override
+	public int getConnectionQueueDepth() {
+		return (connectionExecutor != null) ? connectionExecutor.getQueue()
+				.size() : 0;
+	}
+
+	@Override
+	public Map<String, Long> getCommandCounts() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (int i = 1; i < COMMAND_NAMES.length; i++) {
+			counts.put(COMMAND_NAMES[i], commandCounts[i].sum());
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Long> getCommandLatencyP50Micros() {
+		return getCommandLatencies(50);
+	}
+
+	@Override
+	public Map<String, Long> getCommandLatencyP99Micros() {
+		return getCommandLatencies(99);
+	}
+
+	@Override
+	public Map<String, Long> getCommandLatencyMaxMicros() {
+		return getCommandLatencies(100);
+	}
+
+	@Override
+	public long getReceivesRefused() {
+		return receivesRefused.sum();
+	}
+
+	@Override
+	public Map<String, Long> getBytesReceivedPerQueue() {
+		Map<String, Long> bytes = new HashMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : bytesReceivedPerQueue
+				.entrySet()) {
+			bytes.put(entry.getKey(), entry.getValue().sum());
+		}
+		return bytes;
+	}
+
+	@Override
+	public long getSpooledBytes() {
+		return spooledBytes.sum();
+	}
+
+	@Override
+	public long getSpoolWriteMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(spoolWriteNanos.sum());
+	}
+
+	@Override
+	public long getSpoolWriteBytesPerSecond() {
+		long nanos = spoolWriteNanos.sum();
+		if (nanos == 0) {
+			return 0;
+		}
+		return (long) (spooledBytes.sum() * (double) TimeUnit.SECONDS
+				.toNanos(1) / nanos);
+	}
+
+	@Override
+	public long getDurableFiles() {
+		return durableFiles.sum();
+	}
+
+	@Override
+	public long getDurableWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(durableWaitNanos.sum());
+	}
+
+	@Override
+	public long getCompressedReceivedBytes() {
+		return compressedReceivedBytes.sum();
+	}
+
+	@Override
+	public long getCompressedStoredBytes() {
+		return compressedStoredBytes.sum();
+	}
+
+	@Override
+	public long getGroupCommitBatches() {
+		return (groupCommit != null) ? groupCommit.getBatches() : 0;
+	}
+
+	@Override
+	public long getGroupCommitFiles() {
+		return (groupCommit != null) ? groupCommit.getCommittedFiles() : 0;
+	}
+
+	@Override
+	public long getDedupStoredContents() {
+		return (contentStore != null) ? contentStore.getStoredContents() : 0;
+	}
+
+	@Override
+	public long getDedupLinkedFiles() {
+		return (contentStore != null) ? contentStore.getDeduplicatedFiles()
+				: 0;
+	}
+
+	@Override
+	public long getDedupSavedBytes() {
+		return (contentStore != null) ? contentStore.getDeduplicatedBytes()
+				: 0;
+	}
+
+	@Override
+	public long getDedupReleasedContents() {
+		return (contentStore != null) ? contentStore.getReleasedContents() : 0;
+	}
+
+	@Override
+	public long getDedupUnlinkedFiles() {
+		return (contentStore != null) ? contentStore.getUnlinkedFiles() : 0;
+	}
+
+	@Override
+	public int getDispatchQueueDepth() {
+		return (dispatcher != null) ? dispatcher.getQueuedJobCount() : 0;
+	}
+
+	@Override
+	public long getDispatchCount() {
+		return dispatchLatency.getCount();
+	}
+
+	@Override
+	public long getDispatchFailures() {
+		return dispatchFailures.sum();
+	}
+
+	@Override
+	public long getDispatchLatencyP50Micros() {
+		return toMicros(dispatchLatency.getPercentile(50));
+	}
+
+	@Override
+	public long getDispatchLatencyP99Micros() {
+		return toMicros(dispatchLatency.getPercentile(99));
+	}
+
+	@Override
+	public long getDispatchLatencyMaxMicros() {
+		return toMicros(dispatchLatency.getMax());
+	}
+
+	@Override
+	public long getMemoryQueueUsedBytes() {
+		return (memoryStore != null) ? memoryStore.getPool().getUsedBytes() : 0;
+	}
+
+	@Override
+	public long getMemoryQueueCapacityBytes() {
+		return (memoryStore != null) ? memoryStore.getPool().getCapacity() : 0;
+	}
+
+	@Override
+	public long getMemoryQueueEvictedPrintJobs() {
+		return (memoryStore != null) ? memoryStore.getEvictedPrintJobs() : 0;
+	}
+
+	@Override
+	public long getMemoryQueueRejectedFiles() {
+		return (memoryStore != null) ? memoryStore.getRejectedFiles() : 0;
+	}
+
+	@Override
+	public long getSegmentQueueSizeBytes() {
+		return (segmentStore != null) ? segmentStore.getSizeBytes() : 0;
+	}
+
+	@Override
+	public long getSegmentQueueLiveBytes() {
+		return (segmentStore != null) ? segmentStore.getLiveBytes() : 0;
+	}
+
+	@Override
+	public long getSegmentQueueCompactedSegments() {
+		return (segmentStore != null) ? segmentStore.getCompactedSegments()
+				: 0;
+	}
+
+	@Override
+	public long getRecoveryCompletePrintJobs() {
+		return (recovery != null) ? recovery.getCompletePrintJobs() : 0;
+	}
+
+	@Override
+	public long getRecoveryPartialPrintJobs() {
+		return (recovery != null) ? recovery.getPartialPrintJobs() : 0;
+	}
+
+	@Override
+	public long getRecoveryOrphanedPrintJobs() {
+		return (recovery != null) ? recovery.getOrphanedPrintJobs() : 0;
+	}
+
+	@Override
+	public long getRecoveryMillis() {
+		return (recovery != null) ? recovery.getRecoveryMillis() : 0;
+	}
+
+	private Map<String, Long> getCommandLatencies(double percentile) {
+		Map<String, Long> latencies = new LinkedHashMap<String, Long>();
+		for (int i = 1; i < COMMAND_NAMES.length; i++) {
+			latencies.put(COMMAND_NAMES[i],
+					toMicros(commandLatencies[i].getPercentile(percentile)));
+		}
+		return latencies;
+	}
+
+	private static long toMicros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
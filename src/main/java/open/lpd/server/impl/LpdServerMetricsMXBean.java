@@ -0,0 +1,111 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.util.Map;
+
+/**
+ * Management interface of the LPD server metrics. Latencies are reported in
+ * microseconds, commands are named after the LPD command codes 01 to 05.
+ */
+public interface LpdServerMetricsMXBean {
+
+	long getActiveConnections();
+
+	long getConnections();
+
+	long getConnectionsRejected();
+
+	long getConnectionErrors();
+
+	int getConnectionQueueDepth();
+
+	Map<String, Long> getCommandCounts();
+
+	Map<String, Long> getCommandLatencyP50Micros();
+
+	Map<String, Long> getCommandLatencyP99Micros();
+
+	Map<String, Long> getCommandLatencyMaxMicros();
+
+	long getReceivesRefused();
+
+	Map<String, Long> getBytesReceivedPerQueue();
+
+	long getSpooledBytes();
+
+	long getSpoolWriteMillis();
+
+	long getSpoolWriteBytesPerSecond();
+
+	long getDurableFiles();
+
+	long getDurableWaitMillis();
+
+	long getCompressedReceivedBytes();
+
+	long getCompressedStoredBytes();
+
+	long getGroupCommitBatches();
+
+	long getGroupCommitFiles();
+
+	long getDedupStoredContents();
+
+	long getDedupLinkedFiles();
+
+	long getDedupSavedBytes();
+
+	long getDedupReleasedContents();
+
+	long getDedupUnlinkedFiles();
+
+	int getDispatchQueueDepth();
+
+	long getDispatchCount();
+
+	long getDispatchFailures();
+
+	long getDispatchLatencyP50Micros();
+
+	long getDispatchLatencyP99Micros();
+
+	long getDispatchLatencyMaxMicros();
+
+	long getMemoryQueueUsedBytes();
+
+	long getMemoryQueueCapacityBytes();
+
+	long getMemoryQueueEvictedPrintJobs();
+
+	long getMemoryQueueRejectedFiles();
+
+	long getSegmentQueueSizeBytes();
+
+	long getSegmentQueueLiveBytes();
+
+	long getSegmentQueueCompactedSegments();
+
+	long getRecoveryCompletePrintJobs();
+
+	long getRecoveryPartialPrintJobs();
+
+	long getRecoveryOrphanedPrintJobs();
+
+	long getRecoveryMillis();
+}
@@ -0,0 +1,153 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A control or data file of a {@link MemoryPrintJob}. The file content is held
+ * in chunks of a {@link DirectBufferPool}. A file is written by a single
+ * connection and is only added to its print job once it is complete, after
+ * that it does not change anymore.
+ */
+public class MemoryFile {
+
+	private String name;
+	private List<ByteBuffer> chunks;
+	private long length;
+
+	/**
+	 * Creates an empty file.
+	 * 
+	 * @param name
+	 *            the file name.
+	 */
+	public MemoryFile(String name) {
+		this.name = name;
+		this.chunks = new ArrayList<ByteBuffer>();
+		this.length = 0;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Gets the file content without copying it. The buffers are read only
+	 * views of the pooled chunks and are only valid until the print job has
+	 * been handled or removed.
+	 * 
+	 * @return the buffers holding the file content in order.
+	 */
+	public ByteBuffer[] getBuffers() {
+		ByteBuffer[] buffers = new ByteBuffer[chunks.size()];
+		for (int i = 0; i < buffers.length; i++) {
+			ByteBuffer buffer = chunks.get(i).asReadOnlyBuffer();
+			buffer.flip();
+			buffers[i] = buffer;
+		}
+		return buffers;
+	}
+
+	/**
+	 * Gets the file content as a byte array. The content is copied, which is
+	 * meant for small files like control files.
+	 * 
+	 * @return the file content.
+	 */
+	public byte[] getBytes() {
+		byte[] bytes = new byte[(int) length];
+		int offset = 0;
+		for (ByteBuffer buffer : getBuffers()) {
+			int count = buffer.remaining();
+			buffer.get(bytes, offset, count);
+			offset += count;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes the file content to a channel without copying it to the java
+	 * heap.
+	 * 
+	 * @param channel
+	 *            the channel to write to.
+	 * @throws IOException
+	 *             throws if there was an input output error.
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		for (ByteBuffer buffer : getBuffers()) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Gets the chunk to write the next bytes of the file to.
+	 * 
+	 * @param pool
+	 *            the pool to take a new chunk from if the last chunk is full.
+	 * @return the chunk or null if the pool has no free chunk.
+	 */
+	ByteBuffer getWritableChunk(DirectBufferPool pool) {
+		if (!chunks.isEmpty()) {
+			ByteBuffer lastChunk = chunks.get(chunks.size() - 1);
+			if (lastChunk.hasRemaining()) {
+				return lastChunk;
+			}
+		}
+		ByteBuffer chunk = pool.acquire();
+		if (chunk != null) {
+			chunks.add(chunk);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Records bytes written to the chunk returned by
+	 * {@link #getWritableChunk(DirectBufferPool)}.
+	 * 
+	 * @param count
+	 *            the number of bytes written.
+	 */
+	void written(long count) {
+		length += count;
+	}
+
+	/**
+	 * Gives the chunks of the file back to the pool.
+	 * 
+	 * @param pool
+	 *            the pool the chunks were taken from.
+	 */
+	void release(DirectBufferPool pool) {
+		for (ByteBuffer chunk : chunks) {
+			pool.release(chunk);
+		}
+		chunks.clear();
+	}
+}
@@ -0,0 +1,145 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import open.lpd.server.PrintJob;
+
+/**
+ * A print job of a {@link MemoryPrintJobStore}. Its files are added as they
+ * are received, so queue state requests can read the print job while it is
+ * being received.
+ * <p>
+ * A print job is claimed while it is received, handled or removed. Only a
+ * waiting print job that is not claimed may be evicted or handed to a handler,
+ * so the pooled chunks of its files are never released while they are read.
+ */
+public class MemoryPrintJob {
+
+	private String name;
+	private volatile long lastModified;
+	private List<MemoryFile> files;
+	private volatile PrintJob printJob;
+	private AtomicBoolean claimed;
+
+	/**
+	 * Creates an empty print job which is claimed by the connection receiving
+	 * it.
+	 * 
+	 * @param name
+	 *            the print job name.
+	 */
+	public MemoryPrintJob(String name) {
+		this.name = name;
+		this.lastModified = System.currentTimeMillis();
+		this.files = new CopyOnWriteArrayList<MemoryFile>();
+		this.printJob = null;
+		this.claimed = new AtomicBoolean(true);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public List<MemoryFile> getFiles() {
+		return Collections.unmodifiableList(files);
+	}
+
+	public PrintJob getPrintJob() {
+		return printJob;
+	}
+
+	/**
+	 * Gets a file of the print job.
+	 * 
+	 * @param name
+	 *            the file name.
+	 * @return the file or null if the print job has no such file.
+	 */
+	public MemoryFile getFile(String name) {
+		for (MemoryFile file : files) {
+			if (file.getName().equals(name)) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the number of bytes of all files of the print job.
+	 * 
+	 * @return the length of the print job.
+	 */
+	public long getLength() {
+		long length = 0;
+		for (MemoryFile file : files) {
+			length += file.getLength();
+		}
+		return length;
+	}
+
+	/**
+	 * Adds a completely received file.
+	 * 
+	 * @param file
+	 *            the file to add.
+	 * @param printJob
+	 *            the parsed control file if the file is the control file,
+	 *            otherwise null.
+	 */
+	void addFile(MemoryFile file, PrintJob printJob) {
+		files.add(file);
+		if (printJob != null) {
+			this.printJob = printJob;
+		}
+		lastModified = System.currentTimeMillis();
+	}
+
+	boolean isClaimed() {
+		return claimed.get();
+	}
+
+	boolean tryClaim() {
+		return claimed.compareAndSet(false, true);
+	}
+
+	void unclaim() {
+		claimed.set(false);
+	}
+
+	/**
+	 * Gives the chunks of all files back to the pool. The print job must be
+	 * claimed by the caller.
+	 * 
+	 * @param pool
+	 *            the pool the chunks were taken from.
+	 */
+	void release(DirectBufferPool pool) {
+		for (MemoryFile file : files) {
+			file.release(pool);
+		}
+	}
+}
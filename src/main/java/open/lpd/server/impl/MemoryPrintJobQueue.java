@@ -0,0 +1,553 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Date;
+
+import open.lpd.server.IChannelPrintJobQueue;
+import open.lpd.server.IStreamingPrintJobQueue;
+import open.lpd.server.LpdServerProtocol;
+import open.lpd.server.PrintJob;
+
+/**
+ * A print job queue that keeps print jobs in a {@link MemoryPrintJobStore}
+ * instead of the file system. Received files are written to pooled direct
+ * buffers, from a non-blocking client connection they are read into the pooled
+ * buffers directly. Received print jobs are handed to the
+ * {@link open.lpd.server.IMemoryPrintJobHandler} of the dispatcher.
+ */
+public class MemoryPrintJobQueue implements IChannelPrintJobQueue,
+		IStreamingPrintJobQueue {
+
+	private static final byte ERR_QUEUE_DOES_NOT_EXIST = 1;
+	private static final byte ERR_WRONG_CONTROL_FILE_NAME = 2;
+	private static final byte ERR_WRONG_DATA_FILE_NAME = 3;
+	private static final byte ERR_TOO_MANY_RECEIVES = 4;
+	private static final byte ERR_OUT_OF_MEMORY = 5;
+
+	private MemoryPrintJobStore store;
+	private DirectBufferPool pool;
+	private PrintJobDispatcher dispatcher;
+	private AdmissionControl admissionControl;
+	private LpdServerMetrics metrics;
+	private boolean subCmdAdmitted;
+	private long subCmdStart;
+	private String subCmdQueue;
+	private MemoryPrintJob subCmdPrintJob;
+	private MemoryFile subCmdFile;
+
+	/**
+	 * Creates a memory print job queue.
+	 * 
+	 * @param store
+	 *            the store of the memory queues shared by all connections.
+	 * @param dispatcher
+	 *            the dispatcher that hands received print jobs over to a
+	 *            memory print job handler.
+	 * @param admissionControl
+	 *            the limits for receiving print jobs shared by all
+	 *            connections.
+	 * @param metrics
+	 *            the server metrics shared by all connections.
+	 */
+	public MemoryPrintJobQueue(MemoryPrintJobStore store,
+			PrintJobDispatcher dispatcher, AdmissionControl admissionControl,
+			LpdServerMetrics metrics) {
+		this.store = store;
+		this.pool = store.getPool();
+		this.dispatcher = dispatcher;
+		this.admissionControl = admissionControl;
+		this.metrics = metrics;
+		this.subCmdAdmitted = false;
+		this.subCmdStart = 0;
+		this.subCmdQueue = null;
+		this.subCmdPrintJob = null;
+		this.subCmdFile = null;
+	}
+
+	@Override
+	public void printAnyWaitingJobs(String queue) throws IOException {
+
+		// protocol command implementation, print jobs which are received or
+		// handled by another connection are skipped
+
+		long start = System.nanoTime();
+		for (MemoryPrintJob printJob : store.getPrintJobs(queue)) {
+			if (printJob.tryClaim()) {
+				dispatcher.dispatch(queue, printJob, store);
+			}
+		}
+		metrics.commandExecuted(LpdServerProtocol.CMD_PRINT_ANY_WAITING_JOBS,
+				System.nanoTime() - start);
+	}
+
+	@Override
+	public byte receiveAPrinterJob(String queue) throws IOException {
+
+		// protocol command implementation, the command is timed until the
+		// print job has been received
+
+		subCmdStart = System.nanoTime();
+		if (!store.queueExists(queue)) {
+			return ERR_QUEUE_DOES_NOT_EXIST;
+		}
+
+		// refuse the print job if too many print jobs are being received, the
+		// client may retry later
+
+		releaseReceive();
+		if (!admissionControl.tryAcquireReceive(queue)) {
+			metrics.receiveRefused();
+			return ERR_TOO_MANY_RECEIVES;
+		}
+		subCmdAdmitted = true;
+		subCmdQueue = queue;
+		subCmdPrintJob = new MemoryPrintJob(store.nextPrintJobName());
+		return LpdServerProtocol.ACK_SUCCESS;
+	}
+
+	@Override
+	public String sendQueueStateShort(String queue, String[] list)
+			throws IOException {
+
+		// protocol command implementation
+
+		StringWriter sw = new StringWriter();
+		writeQueueStateShort(queue, list, sw);
+		return sw.toString();
+	}
+
+	@Override
+	public String sendQueueStateLong(String queue, String[] list)
+			throws IOException {
+
+		// protocol command implementation
+
+		StringWriter sw = new StringWriter();
+		writeQueueStateLong(queue, list, sw);
+		return sw.toString();
+	}
+
+	@Override
+	public void writeQueueStateShort(String queue, String[] list, Writer out)
+			throws IOException {
+
+		// protocol command implementation
+
+		long start = System.nanoTime();
+		if (store.queueExists(queue)) {
+			for (MemoryPrintJob printJob : store.getPrintJobs(queue)) {
+				if (list != null && list.length > 0 && !matches(printJob, list)) {
+					continue;
+				}
+				out.write(printJob.getName());
+				out.write("\n");
+			}
+		} else {
+			out.write("Queue " + queue + " does not exist.");
+		}
+		metrics.commandExecuted(LpdServerProtocol.CMD_SEND_QUEUE_STATE_SHORT,
+				System.nanoTime() - start);
+	}
+
+	@Override
+	public void writeQueueStateLong(String queue, String[] list, Writer out)
+			throws IOException {
+
+		// protocol command implementation
+
+		long start = System.nanoTime();
+		if (store.queueExists(queue)) {
+			for (MemoryPrintJob printJob : store.getPrintJobs(queue)) {
+				if (list != null && list.length > 0 && !matches(printJob, list)) {
+					continue;
+				}
+				out.write(printJob.getName());
+				out.write("\t");
+				out.write(new Date(printJob.getLastModified()).toString());
+				out.write("\t");
+				PrintJob controlFile = printJob.getPrintJob();
+				if (controlFile != null) {
+					out.write(String.valueOf(controlFile.getUser()));
+					out.write("@");
+					out.write(String.valueOf(controlFile.getHost()));
+					out.write("\t");
+					out.write(String.valueOf(controlFile.getJobNumber()));
+					out.write("\t");
+					out.write(String.valueOf(controlFile.getJobName()));
+					out.write("\t");
+				}
+				for (MemoryFile printJobFile : printJob.getFiles()) {
+					out.write(printJobFile.getName());
+					out.write(" (");
+					out.write(String.valueOf(printJobFile.getLength()));
+					out.write(" byte) ");
+				}
+				out.write("\n");
+			}
+		} else {
+			out.write("Queue " + queue + " does not exist.");
+		}
+		metrics.commandExecuted(LpdServerProtocol.CMD_SEND_QUEUE_STATE_LONG,
+				System.nanoTime() - start);
+	}
+
+	@Override
+	public void removeJobs(String queue, String agent, String[] list)
+			throws IOException {
+
+		// protocol command implementation, print jobs which are received or
+		// handled by another connection are not removed
+
+		long start = System.nanoTime();
+		if (store.queueExists(queue) && list != null && list.length > 0) {
+			for (MemoryPrintJob printJob : store.getPrintJobs(queue)) {
+				if (matches(printJob, agent, list) && printJob.tryClaim()) {
+					store.removePrintJob(queue, printJob);
+				}
+			}
+		}
+		metrics.commandExecuted(LpdServerProtocol.CMD_REMOVE_JOBS,
+				System.nanoTime() - start);
+	}
+
+	@Override
+	public void abortJob() throws IOException {
+
+		// protocol sub command implementation
+
+		if (subCmdPrintJob != null) {
+			store.removePrintJob(subCmdQueue, subCmdPrintJob);
+			subCmdPrintJob = new MemoryPrintJob(store.nextPrintJobName());
+		}
+	}
+
+	@Override
+	public byte receiveControlFile(long count, String name,
+			InputStream clientInStream) throws IOException {
+
+		// protocol sub command implementation
+
+		if (!name.startsWith("cfA")) {
+			return ERR_WRONG_CONTROL_FILE_NAME;
+		}
+		return receiveFile(count, false, name, clientInStream);
+	}
+
+	@Override
+	public byte receiveDataFile(long count, String name,
+			InputStream clientInStream) throws IOException {
+
+		// protocol sub command implementation
+
+		if (!name.startsWith("dfA")) {
+			return ERR_WRONG_DATA_FILE_NAME;
+		}
+		return receiveFile(count, count == 0, name, clientInStream);
+	}
+
+	@Override
+	public byte openControlFile(long count, String name) throws IOException {
+
+		// protocol sub command implementation
+
+		if (!name.startsWith("cfA")) {
+			return ERR_WRONG_CONTROL_FILE_NAME;
+		}
+		return openFile(count, name);
+	}
+
+	@Override
+	public byte openDataFile(long count, String name) throws IOException {
+
+		// protocol sub command implementation
+
+		if (!name.startsWith("dfA")) {
+			return ERR_WRONG_DATA_FILE_NAME;
+		}
+		return openFile(count, name);
+	}
+
+	@Override
+	public void writeFile(ByteBuffer buffer) throws IOException {
+
+		// protocol sub command implementation
+
+		if (subCmdFile == null) {
+			throw new IOException("No file is open.");
+		}
+		int bytes = buffer.remaining();
+		admissionControl.spooled(bytes);
+		long start = System.nanoTime();
+		while (buffer.hasRemaining()) {
+			ByteBuffer chunk = getWritableChunk();
+			int count = Math.min(chunk.remaining(), buffer.remaining());
+			ByteBuffer slice = buffer.duplicate();
+			slice.limit(slice.position() + count);
+			chunk.put(slice);
+			buffer.position(buffer.position() + count);
+			subCmdFile.written(count);
+		}
+		metrics.spooled(subCmdQueue, bytes, System.nanoTime() - start);
+	}
+
+	@Override
+	public long transferFile(ReadableByteChannel clientChannel, long count)
+			throws IOException {
+
+		// protocol sub command implementation, the bytes are read from the
+		// client connection into the pooled buffer without passing the java
+		// heap
+
+		if (subCmdFile == null) {
+			throw new IOException("No file is open.");
+		}
+		long start = System.nanoTime();
+		ByteBuffer chunk = getWritableChunk();
+		int limit = chunk.limit();
+		if (chunk.remaining() > count) {
+			chunk.limit(chunk.position() + (int) count);
+		}
+		int bytesTransferred;
+		try {
+			bytesTransferred = clientChannel.read(chunk);
+		} finally {
+			chunk.limit(limit);
+		}
+		if (bytesTransferred <= 0) {
+			return 0;
+		}
+		subCmdFile.written(bytesTransferred);
+		admissionControl.spooled(bytesTransferred);
+		metrics.spooled(subCmdQueue, bytesTransferred, System.nanoTime()
+				- start);
+		return bytesTransferred;
+	}
+
+	@Override
+	public byte closeFile(boolean complete) throws IOException {
+
+		// protocol sub command implementation
+
+		if (subCmdFile == null) {
+			throw new IOException("No file is open.");
+		}
+		MemoryFile file = subCmdFile;
+		subCmdFile = null;
+		if (complete) {
+			addFile(file);
+		} else {
+			file.release(pool);
+		}
+		return LpdServerProtocol.ACK_SUCCESS;
+	}
+
+	@Override
+	public void finishedReceivingAPrinterJob() throws IOException {
+
+		try {
+			if (subCmdPrintJob != null) {
+				MemoryPrintJob printJob = subCmdPrintJob;
+				subCmdPrintJob = null;
+				if (printJob.getFiles().isEmpty()) {
+					store.removePrintJob(subCmdQueue, printJob);
+				} else {
+
+					// the claim of the receiving connection is handed over to
+					// the dispatcher
+
+					dispatcher.dispatch(subCmdQueue, printJob, store);
+				}
+			}
+		} finally {
+			releaseReceive();
+			if (subCmdStart != 0) {
+				metrics.commandExecuted(
+						LpdServerProtocol.CMD_RECEIVE_A_PRINTER_JOB,
+						System.nanoTime() - subCmdStart);
+				subCmdStart = 0;
+			}
+		}
+	}
+
+	private byte receiveFile(long count, boolean untilEndOfStream,
+			String name, InputStream clientInStream) throws IOException {
+
+		// receive a file from a blocking stream, a rejected file is read and
+		// discarded to keep the protocol in step
+
+		byte code = openFile(count, name);
+		if (code != LpdServerProtocol.ACK_SUCCESS) {
+			discardFile(count, untilEndOfStream, clientInStream);
+			return code;
+		}
+		ReadableByteChannel clientChannel = Channels.newChannel(clientInStream);
+		boolean complete = false;
+		try {
+			long bytesRead = 0;
+			while (untilEndOfStream || (bytesRead < count)) {
+				long bytesLeft = untilEndOfStream ? Long.MAX_VALUE : count
+						- bytesRead;
+				admissionControl.awaitSpoolRate();
+				long start = System.nanoTime();
+				ByteBuffer chunk = getWritableChunk();
+				int limit = chunk.limit();
+				if (chunk.remaining() > bytesLeft) {
+					chunk.limit(chunk.position() + (int) bytesLeft);
+				}
+				int bread;
+				try {
+					bread = clientChannel.read(chunk);
+				} finally {
+					chunk.limit(limit);
+				}
+				if (bread == -1) {
+					break;
+				}
+				subCmdFile.written(bread);
+				admissionControl.spooled(bread);
+				metrics.spooled(subCmdQueue, bread, System.nanoTime() - start);
+				bytesRead += bread;
+			}
+			if (!untilEndOfStream && (bytesRead != count)) {
+				throw new IOException("Expected " + count
+						+ " byte for file but received " + bytesRead + " byte.");
+			}
+			complete = true;
+		} finally {
+			closeFile(complete);
+		}
+		return LpdServerProtocol.ACK_SUCCESS;
+	}
+
+	private void discardFile(long count, boolean untilEndOfStream,
+			InputStream clientInStream) throws IOException {
+
+		// skip the bytes of a rejected file
+
+		long bytesLeft = count;
+		while (untilEndOfStream || bytesLeft > 0) {
+			if (clientInStream.read() == -1) {
+				break;
+			}
+			bytesLeft--;
+			long skipped = clientInStream.skip(untilEndOfStream ? Long.MAX_VALUE
+					: bytesLeft);
+			bytesLeft -= skipped;
+		}
+	}
+
+	private byte openFile(long count, String name) throws IOException {
+
+		// open a file of the current print job, the pool needs room for a
+		// file of known length before it is received
+
+		if (subCmdFile != null) {
+			throw new IOException("Another file is still open.");
+		}
+		if (!store.queueExists(subCmdQueue) || subCmdPrintJob == null) {
+			return ERR_QUEUE_DOES_NOT_EXIST;
+		}
+		if (!store.makeRoom(Math.max(count, 1))) {
+			return ERR_OUT_OF_MEMORY;
+		}
+		subCmdFile = new MemoryFile(name);
+		return LpdServerProtocol.ACK_SUCCESS;
+	}
+
+	private ByteBuffer getWritableChunk() throws IOException {
+
+		// another connection may have taken the room made when the file was
+		// opened, or the file is longer than announced
+
+		ByteBuffer chunk = subCmdFile.getWritableChunk(pool);
+		if (chunk == null && store.makeRoom(pool.getChunkSize())) {
+			chunk = subCmdFile.getWritableChunk(pool);
+		}
+		if (chunk == null) {
+			throw new IOException("Memory queue capacity exceeded, queue: "
+					+ subCmdQueue);
+		}
+		return chunk;
+	}
+
+	private void addFile(MemoryFile file) {
+
+		// the print job is listed in its queue once its first file is
+		// complete
+
+		PrintJob controlFile = null;
+		if (file.getName().startsWith("cfA")) {
+			controlFile = PrintJob.parse(file.getName(), file.getBytes());
+		}
+		subCmdPrintJob.addFile(file, controlFile);
+		if (subCmdPrintJob.getFiles().size() == 1) {
+			store.addPrintJob(subCmdQueue, subCmdPrintJob);
+		}
+	}
+
+	private boolean matches(MemoryPrintJob printJob, String[] list) {
+
+		// a list entry selects a print job by print job name, user name or
+		// job number of the parsed control file
+
+		PrintJob controlFile = printJob.getPrintJob();
+		for (String listEntry : list) {
+			if (printJob.getName().equals(listEntry)
+					|| (controlFile != null && controlFile.matches(listEntry))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean matches(MemoryPrintJob printJob, String agent, String[] list) {
+
+		// see RFC 1179 section 5.5, only root and the user of the control file
+		// remove a print job, and only root selects print jobs by user name
+
+		PrintJob controlFile = printJob.getPrintJob();
+		if (controlFile == null || !controlFile.isRemovableBy(agent)) {
+			return false;
+		}
+		for (String listEntry : list) {
+			if (printJob.getName().equals(listEntry)
+					|| controlFile.matches(agent, listEntry)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void releaseReceive() {
+
+		// give the admission of the current print job back
+
+		if (subCmdAdmitted) {
+			subCmdAdmitted = false;
+			admissionControl.releaseReceive(subCmdQueue);
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Print jobs of memory queues, shared by all connections of a server. The
+ * files of the print jobs are held in pooled direct buffers, no file system
+ * access is needed to receive, list or remove print jobs. This suits queues
+ * whose print jobs are handled and discarded right after they have been
+ * received.
+ * <p>
+ * The pool has a fixed capacity. When it is used up, new files are rejected,
+ * or with the evict policy the oldest waiting print jobs are dropped to make
+ * room. Print jobs that are being received or handled are never evicted.
+ */
+public class MemoryPrintJobStore {
+
+	public static final String POLICY_REJECT = "reject";
+	public static final String POLICY_EVICT = "evict";
+
+	private Map<String, ConcurrentNavigableMap<String, MemoryPrintJob>> queues;
+	private DirectBufferPool pool;
+	private boolean evict;
+	private AtomicLong nextJobId;
+	private LongAdder evictedPrintJobs;
+	private LongAdder rejectedFiles;
+
+	/**
+	 * Creates an empty store.
+	 * 
+	 * @param queueNames
+	 *            the names of the memory queues.
+	 * @param pool
+	 *            the pool that holds the files of the print jobs.
+	 * @param policy
+	 *            what happens when the pool is used up,
+	 *            {@link #POLICY_REJECT} or {@link #POLICY_EVICT}.
+	 */
+	public MemoryPrintJobStore(Collection<String> queueNames,
+			DirectBufferPool pool, String policy) {
+		this.queues = new ConcurrentHashMap<String, ConcurrentNavigableMap<String, MemoryPrintJob>>();
+		for (String queueName : queueNames) {
+			queues.put(queueName,
+					new ConcurrentSkipListMap<String, MemoryPrintJob>());
+		}
+		this.pool = pool;
+		if (policy.equalsIgnoreCase(POLICY_EVICT)) {
+			this.evict = true;
+		} else if (policy.equalsIgnoreCase(POLICY_REJECT)) {
+			this.evict = false;
+		} else {
+			throw new IllegalArgumentException("Unknown policy: " + policy);
+		}
+		this.nextJobId = new AtomicLong();
+		this.evictedPrintJobs = new LongAdder();
+		this.rejectedFiles = new LongAdder();
+	}
+
+	public DirectBufferPool getPool() {
+		return pool;
+	}
+
+	public long getEvictedPrintJobs() {
+		return evictedPrintJobs.sum();
+	}
+
+	public long getRejectedFiles() {
+		return rejectedFiles.sum();
+	}
+
+	/**
+	 * Allocates a unique print job name.
+	 * 
+	 * @return the print job name.
+	 */
+	public String nextPrintJobName() {
+		return System.currentTimeMillis() + "-" + nextJobId.getAndIncrement();
+	}
+
+	/**
+	 * Checks if a memory queue exists.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @return true if the queue exists.
+	 */
+	public boolean queueExists(String queue) {
+		return (queue != null) && queues.containsKey(queue);
+	}
+
+	/**
+	 * Gets the print jobs of a queue ordered by print job name. The returned
+	 * collection is a live view which may be iterated while other connections
+	 * change the queue.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @return the print jobs, empty if the queue does not exist.
+	 */
+	public Collection<MemoryPrintJob> getPrintJobs(String queue) {
+		ConcurrentNavigableMap<String, MemoryPrintJob> printJobs = (queue != null) ? queues
+				.get(queue) : null;
+		if (printJobs == null) {
+			return Collections.emptyList();
+		}
+		return printJobs.values();
+	}
+
+	/**
+	 * Adds a print job to a queue.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJob
+	 *            the print job.
+	 */
+	public void addPrintJob(String queue, MemoryPrintJob printJob) {
+		ConcurrentNavigableMap<String, MemoryPrintJob> printJobs = queues
+				.get(queue);
+		if (printJobs != null) {
+			printJobs.put(printJob.getName(), printJob);
+		}
+	}
+
+	/**
+	 * Removes a print job claimed by the caller and gives its chunks back to
+	 * the pool.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJob
+	 *            the print job.
+	 */
+	public void removePrintJob(String queue, MemoryPrintJob printJob) {
+		ConcurrentNavigableMap<String, MemoryPrintJob> printJobs = queues
+				.get(queue);
+		if (printJobs != null) {
+			printJobs.remove(printJob.getName(), printJob);
+		}
+		printJob.release(pool);
+	}
+
+	/**
+	 * Makes sure the pool has room for a number of bytes. With the evict
+	 * policy, the oldest waiting print jobs of all queues are removed until
+	 * there is enough room.
+	 * 
+	 * @param bytes
+	 *            the number of bytes needed.
+	 * @return true if the pool has enough room, false if the file should be
+	 *         rejected.
+	 */
+	public boolean makeRoom(long bytes) {
+		while (pool.getFreeBytes() < bytes) {
+			if (!evict || !evictOldestPrintJob()) {
+				rejectedFiles.increment();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean evictOldestPrintJob() {
+
+		// print jobs are ordered by name which starts with the time they were
+		// created, so the first waiting print job of each queue is a
+		// candidate
+
+		String oldestQueue = null;
+		MemoryPrintJob oldestPrintJob = null;
+		for (Map.Entry<String, ConcurrentNavigableMap<String, MemoryPrintJob>> queue : queues
+				.entrySet()) {
+			for (MemoryPrintJob printJob : queue.getValue().values()) {
+				if (printJob.isClaimed()) {
+					continue;
+				}
+				if (oldestPrintJob == null
+						|| printJob.getLastModified() < oldestPrintJob
+								.getLastModified()) {
+					oldestQueue = queue.getKey();
+					oldestPrintJob = printJob;
+				}
+				break;
+			}
+		}
+		if (oldestPrintJob == null) {
+			return false;
+		}
+		if (oldestPrintJob.tryClaim()) {
+			removePrintJob(oldestQueue, oldestPrintJob);
+			evictedPrintJobs.increment();
+		}
+		return true;
+	}
+}
@@ -0,0 +1,300 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import open.lpd.server.IMemoryPrintJobHandler;
+import open.lpd.server.IPrintJobHandler;
+import open.lpd.server.ISegmentPrintJobHandler;
+
+/**
+ * Hands received print jobs over to a print job handler. An asynchronous
+ * dispatcher runs the handler on its own pool of worker threads, so the client
+ * connection is released as soon as the print job has been spooled. Its work
+ * queue is bounded; when it is full, the thread that dispatches the print job
+ * runs the handler itself, which slows down receiving instead of piling up
+ * unbounded work.
+ */
+public class PrintJobDispatcher {
+
+	private IPrintJobHandler handler;
+	private IMemoryPrintJobHandler memoryHandler;
+	private ISegmentPrintJobHandler segmentHandler;
+	private ThreadPoolExecutor executor;
+	private LpdServerMetrics metrics;
+
+	/**
+	 * Creates a synchronous dispatcher that runs the print job handler on the
+	 * thread that dispatches the print job.
+	 * 
+	 * @param handler
+	 *            the handler of print jobs.
+	 */
+	public PrintJobDispatcher(IPrintJobHandler handler) {
+		this.handler = handler;
+		this.executor = null;
+	}
+
+	/**
+	 * Creates an asynchronous dispatcher.
+	 * 
+	 * @param handler
+	 *            the handler of print jobs, it must be thread safe.
+	 * @param dispatchThreads
+	 *            the number of worker threads that run the handler.
+	 * @param dispatchQueueSize
+	 *            the number of print jobs that may wait for a worker thread.
+	 */
+	public PrintJobDispatcher(IPrintJobHandler handler, int dispatchThreads,
+			int dispatchQueueSize) {
+		this.handler = handler;
+		this.executor = new ThreadPoolExecutor(dispatchThreads,
+				dispatchThreads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(dispatchQueueSize),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Sets the handler of print jobs of memory queues.
+	 * 
+	 * @param memoryHandler
+	 *            the handler of print jobs of memory queues, it must be thread
+	 *            safe if the dispatcher is asynchronous.
+	 */
+	public void setMemoryHandler(IMemoryPrintJobHandler memoryHandler) {
+		this.memoryHandler = memoryHandler;
+	}
+
+	/**
+	 * Sets the handler of print jobs of segment queues.
+	 * 
+	 * @param segmentHandler
+	 *            the handler of print jobs of segment queues, it must be
+	 *            thread safe if the dispatcher is asynchronous.
+	 */
+	public void setSegmentHandler(ISegmentPrintJobHandler segmentHandler) {
+		this.segmentHandler = segmentHandler;
+	}
+
+	/**
+	 * Sets the metrics that record the dispatch latency and failures.
+	 * 
+	 * @param metrics
+	 *            the server metrics or null for no metrics.
+	 */
+	public void setMetrics(LpdServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Dispatches a print job.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJobFolder
+	 *            the folder of the print job.
+	 * @throws IOException
+	 *             throws if the handler of a synchronous dispatcher failed.
+	 */
+	public void dispatch(final String queue, final File printJobFolder)
+			throws IOException {
+
+		final long dispatchStart = System.nanoTime();
+		if (executor == null) {
+			handle(queue, printJobFolder, dispatchStart);
+			return;
+		}
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					handle(queue, printJobFolder, dispatchStart);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Dispatches a print job of a memory queue. The print job must be claimed
+	 * by the caller. It is removed from the store once it has been handled,
+	 * if the handler fails it stays in its queue.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJob
+	 *            the print job.
+	 * @param store
+	 *            the store that holds the print job.
+	 * @throws IOException
+	 *             throws if the handler of a synchronous dispatcher failed.
+	 */
+	public void dispatch(final String queue, final MemoryPrintJob printJob,
+			final MemoryPrintJobStore store) throws IOException {
+
+		final long dispatchStart = System.nanoTime();
+		if (executor == null) {
+			handle(queue, printJob, store, dispatchStart);
+			return;
+		}
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					handle(queue, printJob, store, dispatchStart);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Dispatches a print job of a segment queue. The print job must be claimed
+	 * by the caller. It is removed from the store once it has been handled,
+	 * if the handler fails it stays in its queue.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJob
+	 *            the print job.
+	 * @param store
+	 *            the store that holds the print job.
+	 * @throws IOException
+	 *             throws if the handler of a synchronous dispatcher failed.
+	 */
+	public void dispatch(final String queue, final SegmentPrintJob printJob,
+			final SegmentStore store) throws IOException {
+
+		final long dispatchStart = System.nanoTime();
+		if (executor == null) {
+			handle(queue, printJob, store, dispatchStart);
+			return;
+		}
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					handle(queue, printJob, store, dispatchStart);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	private void handle(String queue, File printJobFolder, long dispatchStart)
+			throws IOException {
+
+		// the latency includes the time the print job waited for a worker
+		// thread
+
+		boolean failed = true;
+		try {
+			handler.handle(queue, printJobFolder);
+			failed = false;
+		} finally {
+			if (metrics != null) {
+				metrics.dispatched(System.nanoTime() - dispatchStart, failed);
+			}
+		}
+	}
+
+	private void handle(String queue, MemoryPrintJob printJob,
+			MemoryPrintJobStore store, long dispatchStart) throws IOException {
+
+		// the buffers of the print job are reused once it has been handled
+
+		boolean failed = true;
+		try {
+			if (memoryHandler == null) {
+				throw new IOException("No memory print job handler is set.");
+			}
+			memoryHandler.handle(queue, printJob);
+			failed = false;
+		} finally {
+			if (failed) {
+				printJob.unclaim();
+			} else {
+				store.removePrintJob(queue, printJob);
+			}
+			if (metrics != null) {
+				metrics.dispatched(System.nanoTime() - dispatchStart, failed);
+			}
+		}
+	}
+
+	private void handle(String queue, SegmentPrintJob printJob,
+			SegmentStore store, long dispatchStart) throws IOException {
+
+		// the records of the print job are flagged as removed once it has
+		// been handled
+
+		boolean failed = true;
+		try {
+			if (segmentHandler == null) {
+				throw new IOException("No segment print job handler is set.");
+			}
+			segmentHandler.handle(queue, printJob);
+			failed = false;
+		} finally {
+			if (failed) {
+				printJob.unclaim();
+			} else {
+				store.removePrintJob(queue, printJob);
+			}
+			if (metrics != null) {
+				metrics.dispatched(System.nanoTime() - dispatchStart, failed);
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of print jobs waiting for a worker thread.
+	 * 
+	 * @return the number of waiting print jobs.
+	 */
+	public int getQueuedJobCount() {
+		return (executor != null) ? executor.getQueue().size() : 0;
+	}
+
+	/**
+	 * Stops accepting print jobs and waits until dispatched print jobs have
+	 * been handled.
+	 * 
+	 * @param timeoutMillis
+	 *            the maximum time to wait in milliseconds.
+	 * @throws InterruptedException
+	 *             throws if the current thread was interrupted while waiting.
+	 */
+	public void shutdown(long timeoutMillis) throws InterruptedException {
+		if (executor != null) {
+			executor.shutdown();
+			executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -0,0 +1,745 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+
+import open.lpd.server.PrintJob;
+
+/**
+ * An in-memory index of the queue folders and print jobs of a queues folder,
+ * shared by all connections of a server. The index is built once by scanning
+ * the queues folder and is then kept current by the queue implementation when
+ * files are received or print jobs are removed. Queue state requests are
+ * answered from the index without touching the file system.
+ * <p>
+ * Changes made outside the server, like a print job handler deleting a
+ * processed print job folder, are picked up by a watch service. Only the
+ * queues folder and the queue folders are watched, not every print job folder,
+ * to stay within the watch limits of the operating system.
+ * <p>
+ * The index also allocates print job names without locking. The sequence
+ * number of the names continues after the highest one found in the queues
+ * folder, so names stay unique across restarts and clock changes.
+ * <p>
+ * Print jobs are added and removed with atomic updates of the map of their
+ * queue, so receivers never wait for each other, within a queue or across
+ * queues. A lock guards starting and stopping the watch service only.
+ * <p>
+ * Files are received with a partial file suffix that is removed once they are
+ * complete. Partial files are not indexed. Print jobs that are still being
+ * received by this server are not indexed by a scan either, their receivers
+ * add them once they are complete.
+ */
+public class PrintJobIndex {
+
+	static final String PARTIAL_FILE_SUFFIX = ".part";
+
+	private String queueFolderName;
+	private Map<String, ConcurrentNavigableMap<String, IndexedPrintJob>> queues;
+	private Lock lock;
+	private volatile WatchService watchService;
+	private Map<WatchKey, String> watchedQueues;
+	private Set<String> receivingPrintJobs;
+	private AtomicLong nextJobId;
+
+	/**
+	 * Creates an empty print job index.
+	 * 
+	 * @param queueFolderName
+	 *            the queue folder name.
+	 */
+	public PrintJobIndex(String queueFolderName) {
+		this.queueFolderName = queueFolderName;
+		this.queues = new ConcurrentHashMap<String, ConcurrentNavigableMap<String, IndexedPrintJob>>();
+		this.lock = new ReentrantLock();
+		this.watchService = null;
+		this.watchedQueues = new ConcurrentHashMap<WatchKey, String>();
+		this.receivingPrintJobs = ConcurrentHashMap.newKeySet();
+		this.nextJobId = new AtomicLong();
+	}
+
+	public String getQueueFolderName() {
+		return queueFolderName;
+	}
+
+	/**
+	 * Builds the index by scanning the queues folder.
+	 */
+	public void load() {
+
+		// every folder in the queues folder is a queue
+
+		File[] queueFolders = new File(queueFolderName).listFiles();
+		if (queueFolders == null) {
+			return;
+		}
+		for (File queueFolder : queueFolders) {
+			if (queueFolder.isDirectory()) {
+				loadQueue(queueFolder.getName());
+			}
+		}
+	}
+
+	/**
+	 * Builds the index and keeps it current with changes made outside the
+	 * server. The watch service runs on a daemon thread.
+	 * 
+	 * @throws IOException
+	 *             throws if the watch service could not be started.
+	 */
+	public void startWatching() throws IOException {
+		startWatching(null);
+	}
+
+	/**
+	 * Builds the index and keeps it current with changes made outside the
+	 * server. The watch service runs on a daemon thread.
+	 * 
+	 * @param recovery
+	 *            the recovery that builds the index on a background thread or
+	 *            null to build the index by scanning the queues folder before
+	 *            this method returns.
+	 * @throws IOException
+	 *             throws if the watch service could not be started.
+	 */
+	public void startWatching(PrintJobRecovery recovery) throws IOException {
+		lock.lock();
+		try {
+			if (watchService != null) {
+				return;
+			}
+
+			// register the watches before scanning, so no change is missed
+
+			watchService = FileSystems.getDefault().newWatchService();
+			new File(queueFolderName).toPath().register(watchService,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE);
+			File[] queueFolders = new File(queueFolderName).listFiles();
+			if (queueFolders != null) {
+				for (File queueFolder : queueFolders) {
+					if (queueFolder.isDirectory()) {
+						watchQueue(queueFolder.getName());
+
+						// the queues are known right away when a recovery
+						// adds their print jobs later
+
+						if (recovery != null) {
+							addQueue(queueFolder.getName());
+						}
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (recovery == null) {
+			load();
+		}
+		Thread watchThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				watch();
+			}
+		}, "PrintJobIndexWatcher");
+		watchThread.setDaemon(true);
+		watchThread.start();
+		if (recovery != null) {
+			recovery.start(this);
+		}
+	}
+
+	/**
+	 * Stops the watch service.
+	 * 
+	 * @throws IOException
+	 *             throws if the watch service could not be closed.
+	 */
+	public void stopWatching() throws IOException {
+		lock.lock();
+		try {
+			if (watchService != null) {
+				watchService.close();
+				watchService = null;
+				watchedQueues.clear();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Allocates a new print job name made of the current time and a sequence
+	 * number. The print job folder of that name must still be claimed with
+	 * an atomic create, as another server may share the queues folder.
+	 * 
+	 * @return the print job name.
+	 */
+	public String nextPrintJobName() {
+		return System.currentTimeMillis() + "-" + nextJobId.getAndIncrement();
+	}
+
+	/**
+	 * Checks if a queue exists.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @return true if the queue exists.
+	 */
+	public boolean queueExists(String queue) {
+		return (queue != null) && queues.containsKey(queue);
+	}
+
+	/**
+	 * Gets the print jobs of a queue ordered by print job name.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @return the print jobs, empty if the queue does not exist.
+	 */
+	public Collection<IndexedPrintJob> getPrintJobs(String queue) {
+		Map<String, IndexedPrintJob> printJobs = (queue != null) ? queues
+				.get(queue) : null;
+		if (printJobs == null) {
+			return Collections.emptyList();
+		}
+		return printJobs.values();
+	}
+
+	/**
+	 * Gets a print job.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJob
+	 *            the name of the print job.
+	 * @return the print job or null if it is not in the index.
+	 */
+	public IndexedPrintJob getPrintJob(String queue, String printJob) {
+		Map<String, IndexedPrintJob> printJobs = (queue != null) ? queues
+				.get(queue) : null;
+		return (printJobs != null) ? printJobs.get(printJob) : null;
+	}
+
+	/**
+	 * Adds a completely received file to a print job. The print job is added
+	 * to the index if it is not yet known.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJob
+	 *            the name of the print job.
+	 * @param name
+	 *            the file name.
+	 * @param length
+	 *            the file length in bytes.
+	 * @param controlFile
+	 *            the parsed control file if the file is the control file,
+	 *            otherwise null.
+	 */
+	public void addFile(String queue, String printJob, String name,
+			long length, PrintJob controlFile) {
+		addFile(queue, printJob, new IndexedFile(name, length), controlFile);
+	}
+
+	/**
+	 * Adds a completely received file to a print job. The print job is added
+	 * to the index if it is not yet known.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJob
+	 *            the name of the print job.
+	 * @param file
+	 *            the file entry.
+	 * @param controlFile
+	 *            the parsed control file if the file is the control file,
+	 *            otherwise null.
+	 */
+	public void addFile(String queue, String printJob,
+			final IndexedFile file, final PrintJob controlFile) {
+		ConcurrentNavigableMap<String, IndexedPrintJob> printJobs = queues
+				.get(queue);
+		if (printJobs == null) {
+			return;
+		}
+
+		// the entries are immutable, an update that loses a race is retried
+		// on the current entry
+
+		final long now = System.currentTimeMillis();
+		printJobs.compute(printJob,
+				new BiFunction<String, IndexedPrintJob, IndexedPrintJob>() {
+
+					@Override
+					public IndexedPrintJob apply(String name,
+							IndexedPrintJob indexedPrintJob) {
+						if (indexedPrintJob == null) {
+							return new IndexedPrintJob(name, now, Collections
+									.singletonList(file), controlFile);
+						}
+						return indexedPrintJob.withFile(file, controlFile, now);
+					}
+				});
+	}
+
+	/**
+	 * Adds a completely received print job with all of its files. The entry
+	 * replaces one of the same name.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJob
+	 *            the name of the print job.
+	 * @param files
+	 *            the files of the print job.
+	 * @param controlFile
+	 *            the parsed control file or null if it has not been received.
+	 */
+	public void addPrintJob(String queue, String printJob,
+			List<IndexedFile> files, PrintJob controlFile) {
+		Map<String, IndexedPrintJob> printJobs = queues.get(queue);
+		if (printJobs != null) {
+			printJobs.put(printJob, new IndexedPrintJob(printJob,
+					System.currentTimeMillis(), files, controlFile));
+		}
+	}
+
+	/**
+	 * Marks a print job as being received, before its folder is created. A
+	 * scan of the queue folder does not index the print job until its
+	 * receiving has finished.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJob
+	 *            the name of the print job.
+	 */
+	public void startReceiving(String queue, String printJob) {
+		receivingPrintJobs.add(getReceivingKey(queue, printJob));
+	}
+
+	/**
+	 * Ends the receiving of a print job, after it has been added to the index
+	 * or its folder has been removed.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJob
+	 *            the name of the print job.
+	 */
+	public void finishReceiving(String queue, String printJob) {
+		receivingPrintJobs.remove(getReceivingKey(queue, printJob));
+	}
+
+	/**
+	 * Removes a print job from the index.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJob
+	 *            the name of the print job.
+	 */
+	public void removePrintJob(String queue, String printJob) {
+		Map<String, IndexedPrintJob> printJobs = queues.get(queue);
+		if (printJobs != null) {
+			printJobs.remove(printJob);
+		}
+	}
+
+	/**
+	 * Adds a queue without print jobs unless it is already known.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 */
+	void addQueue(String queue) {
+		if (!queues.containsKey(queue)) {
+			queues.putIfAbsent(queue,
+					new ConcurrentSkipListMap<String, IndexedPrintJob>());
+		}
+	}
+
+	/**
+	 * Adds print jobs found by a recovery. Print jobs already in the index
+	 * and print jobs whose folder has been deleted meanwhile are skipped.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJobs
+	 *            the recovered print jobs.
+	 */
+	void addRecoveredPrintJobs(String queue, List<IndexedPrintJob> printJobs) {
+		ConcurrentNavigableMap<String, IndexedPrintJob> queuePrintJobs = queues
+				.get(queue);
+		if (queuePrintJobs == null) {
+			return;
+		}
+		File queueFolder = new File(queueFolderName, queue);
+		for (IndexedPrintJob printJob : printJobs) {
+			addScannedPrintJob(queuePrintJobs, queueFolder, printJob);
+		}
+	}
+
+	private void addScannedPrintJob(
+			ConcurrentNavigableMap<String, IndexedPrintJob> printJobs,
+			File queueFolder, IndexedPrintJob printJob) {
+
+		// a print job that is still being received is added by its receiver
+		// once it is complete
+
+		if (receivingPrintJobs.contains(getReceivingKey(queueFolder.getName(),
+				printJob.getName()))) {
+			return;
+		}
+
+		// a scanned print job is added unless the index knows it already, a
+		// folder deleted before the entry was added is caught by checking it
+		// again afterwards, one deleted later is removed by whoever deleted
+		// it or by the watch service
+
+		File printJobFolder = new File(queueFolder, printJob.getName());
+		if (printJobs.putIfAbsent(printJob.getName(), printJob) == null
+				&& !printJobFolder.isDirectory()) {
+			printJobs.remove(printJob.getName(), printJob);
+		}
+	}
+
+	private void loadQueue(String queue) {
+
+		// scan all print job folders of a queue folder, print jobs already
+		// in the index are kept current by the receivers and are not scanned
+		// again, print jobs whose folder is gone are removed
+
+		File queueFolder = new File(queueFolderName, queue);
+		File[] printJobFolders = queueFolder.listFiles();
+		if (printJobFolders == null) {
+			return;
+		}
+		addQueue(queue);
+		ConcurrentNavigableMap<String, IndexedPrintJob> printJobs = queues
+				.get(queue);
+		if (printJobs == null) {
+			return;
+		}
+		Set<String> printJobNames = new HashSet<String>();
+		for (File printJobFolder : printJobFolders) {
+			printJobNames.add(printJobFolder.getName());
+			if (printJobs.containsKey(printJobFolder.getName())) {
+				continue;
+			}
+			IndexedPrintJob indexedPrintJob = scanPrintJob(printJobFolder);
+			if (indexedPrintJob != null) {
+				addScannedPrintJob(printJobs, queueFolder, indexedPrintJob);
+			}
+		}
+		for (String printJob : printJobs.keySet()) {
+			if (!printJobNames.contains(printJob)
+					&& !new File(queueFolder, printJob).isDirectory()) {
+				printJobs.remove(printJob);
+			}
+		}
+	}
+
+	private IndexedPrintJob scanPrintJob(File printJobFolder) {
+
+		// read the files of a print job folder
+
+		seedJobId(printJobFolder.getName());
+		File[] printJobFiles = printJobFolder.listFiles();
+		if (printJobFiles == null) {
+			return null;
+		}
+		List<IndexedFile> files = new ArrayList<IndexedFile>(
+				printJobFiles.length);
+		PrintJob printJob = null;
+		for (File printJobFile : printJobFiles) {
+			if (isPartialFile(printJobFile.getName())
+					|| isExpandedFile(printJobFile, printJobFiles)) {
+				continue;
+			}
+			try {
+				files.add(readIndexedFile(printJobFile));
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			if (isControlFile(printJobFile.getName())) {
+				try {
+					printJob = readControlFile(printJobFile);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return new IndexedPrintJob(printJobFolder.getName(),
+				printJobFolder.lastModified(), files, printJob);
+	}
+
+	/**
+	 * Continues the sequence of print job names after a known print job name.
+	 * 
+	 * @param printJob
+	 *            the name of a print job.
+	 */
+	void seedJobId(String printJob) {
+
+		// continue the sequence after the sequence number of a known print
+		// job name
+
+		int separator = printJob.lastIndexOf('-');
+		if (separator == -1 || separator == printJob.length() - 1) {
+			return;
+		}
+		long jobId = 0;
+		for (int i = separator + 1; i < printJob.length(); i++) {
+			char c = printJob.charAt(i);
+			if (c < '0' || c > '9' || jobId > (Long.MAX_VALUE - 9) / 10) {
+				return;
+			}
+			jobId = jobId * 10 + (c - '0');
+		}
+		long current = nextJobId.get();
+		while (current <= jobId && !nextJobId.compareAndSet(current, jobId + 1)) {
+			current = nextJobId.get();
+		}
+	}
+
+	/**
+	 * Checks if a print job file is a control file.
+	 * 
+	 * @param name
+	 *            the file name.
+	 * @return true if the file is a control file.
+	 */
+	static boolean isControlFile(String name) {
+		return name.startsWith("cfA");
+	}
+
+	/**
+	 * Checks if a print job file is a data file.
+	 * 
+	 * @param name
+	 *            the file name.
+	 * @return true if the file is a data file.
+	 */
+	static boolean isDataFile(String name) {
+		return name.startsWith("dfA");
+	}
+
+	/**
+	 * Checks if a print job file is a complete or partial copy of a
+	 * compressed data file expanded for a print job handler.
+	 * 
+	 * @param printJobFile
+	 *            the print job file.
+	 * @param printJobFiles
+	 *            all files of the print job folder.
+	 * @return true if the file is an expanded copy.
+	 */
+	static boolean isExpandedFile(File printJobFile, File[] printJobFiles) {
+		if (!isDataFile(printJobFile.getName())
+				|| SpoolCompression.isCompressedFile(printJobFile.getName())) {
+			return false;
+		}
+		String name = printJobFile.getName();
+		if (isPartialFile(name)) {
+			name = name.substring(0,
+					name.length() - PARTIAL_FILE_SUFFIX.length());
+		}
+		String compressedName = name + SpoolCompression.COMPRESSED_FILE_SUFFIX;
+		for (File file : printJobFiles) {
+			if (file.getName().equals(compressedName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Creates the index entry of a print job file, a compressed data file is
+	 * listed under its received name.
+	 * 
+	 * @param printJobFile
+	 *            the print job file.
+	 * @return the index entry.
+	 * @throws IOException
+	 *             throws if the header of a compressed file could not be
+	 *             read.
+	 */
+	static IndexedFile readIndexedFile(File printJobFile) throws IOException {
+		String name = printJobFile.getName();
+		if (SpoolCompression.isCompressedFile(name)) {
+			return new IndexedFile(SpoolCompression.getReceivedName(name),
+					SpoolCompression.readLength(printJobFile),
+					printJobFile.length());
+		}
+		return new IndexedFile(name, printJobFile.length());
+	}
+
+	/**
+	 * Checks if a print job file is still being received.
+	 * 
+	 * @param name
+	 *            the file name.
+	 * @return true if the file is a partial file.
+	 */
+	static boolean isPartialFile(String name) {
+		return name.endsWith(PARTIAL_FILE_SUFFIX);
+	}
+
+	/**
+	 * Reads and parses a control file.
+	 * 
+	 * @param controlFile
+	 *            the control file.
+	 * @return the parsed control file.
+	 * @throws IOException
+	 *             throws if the control file could not be read.
+	 */
+	static PrintJob readControlFile(File controlFile) throws IOException {
+		return PrintJob.parse(controlFile.getName(),
+				Files.readAllBytes(controlFile.toPath()));
+	}
+
+	private static String getReceivingKey(String queue, String printJob) {
+		return queue + "/" + printJob;
+	}
+
+	private void watchQueue(String queue) throws IOException {
+		WatchService service = watchService;
+		if (service == null) {
+			return;
+		}
+		WatchKey key = new File(queueFolderName, queue).toPath().register(
+				service, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE);
+		watchedQueues.put(key, queue);
+	}
+
+	private void watch() {
+
+		// apply changes made outside the server until the watch service is
+		// closed
+
+		WatchService service = watchService;
+		try {
+			while (true) {
+				WatchKey key = service.take();
+				String queue = watchedQueues.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					try {
+						handleEvent(queue, event);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+				if (!key.reset() && queue != null) {
+					watchedQueues.remove(key);
+					queues.remove(queue);
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// watching has been stopped
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void handleEvent(String queue, WatchEvent<?> event)
+			throws IOException {
+
+		// events are handled by the watch thread only, print jobs are added
+		// and removed with the same atomic updates the receivers use
+
+		if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+
+			// events have been lost, scan the whole queue or queues folder
+			// again
+
+			if (queue != null) {
+				loadQueue(queue);
+			} else {
+				load();
+			}
+			return;
+		}
+		String name = ((Path) event.context()).toString();
+		if (queue == null) {
+
+			// a queue folder has been created or deleted
+
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+				if (new File(queueFolderName, name).isDirectory()
+						&& !queues.containsKey(name)) {
+					watchQueue(name);
+					loadQueue(name);
+				}
+			} else {
+				queues.remove(name);
+			}
+		} else {
+
+			// a print job folder has been created or deleted
+
+			ConcurrentNavigableMap<String, IndexedPrintJob> printJobs = queues
+					.get(queue);
+			if (printJobs == null) {
+				return;
+			}
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+				if (!printJobs.containsKey(name)) {
+					File queueFolder = new File(queueFolderName, queue);
+					IndexedPrintJob indexedPrintJob = scanPrintJob(new File(
+							queueFolder, name));
+					if (indexedPrintJob != null) {
+						addScannedPrintJob(printJobs, queueFolder,
+								indexedPrintJob);
+					}
+				}
+			} else {
+				printJobs.remove(name);
+			}
+		}
+	}
+}
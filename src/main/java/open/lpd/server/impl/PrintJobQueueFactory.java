@@ -0,0 +1,126 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import open.lpd.server.IChannelPrintJobQueue;
+
+/**
+ * Creates the queue of a client connection for both server engines. The
+ * queue serves the queue folders and, if there are any, the memory queues
+ * and the segment queues.
+ */
+public class PrintJobQueueFactory {
+
+	private PrintJobIndex index;
+	private PrintJobDispatcher dispatcher;
+	private AdmissionControl admissionControl;
+	private LpdServerMetrics metrics;
+	private SpoolOptions spoolOptions;
+	private MemoryPrintJobStore memoryStore;
+	private SegmentStore segmentStore;
+
+	/**
+	 * Creates a factory of queues that serve the queue folders only.
+	 * 
+	 * @param index
+	 *            the index of the queue folder shared by all connections.
+	 * @param dispatcher
+	 *            the dispatcher that hands received print jobs over to a print
+	 *            job handler.
+	 * @param admissionControl
+	 *            the limits for receiving print jobs shared by all
+	 *            connections.
+	 * @param metrics
+	 *            the server metrics shared by all connections.
+	 */
+	public PrintJobQueueFactory(PrintJobIndex index,
+			PrintJobDispatcher dispatcher, AdmissionControl admissionControl,
+			LpdServerMetrics metrics) {
+		this.index = index;
+		this.dispatcher = dispatcher;
+		this.admissionControl = admissionControl;
+		this.metrics = metrics;
+		this.spoolOptions = new SpoolOptions();
+		this.memoryStore = null;
+		this.segmentStore = null;
+	}
+
+	/**
+	 * Sets the options of spooling received files to the queue folder.
+	 * 
+	 * @param spoolOptions
+	 *            the spool options shared by all connections.
+	 */
+	public void setSpoolOptions(SpoolOptions spoolOptions) {
+		this.spoolOptions = spoolOptions;
+	}
+
+	/**
+	 * Sets the store of the memory queues. Queues serve the memory queues
+	 * with a {@link MemoryPrintJobQueue}.
+	 * 
+	 * @param memoryStore
+	 *            the store of the memory queues or null for no memory queues.
+	 */
+	public void setMemoryStore(MemoryPrintJobStore memoryStore) {
+		this.memoryStore = memoryStore;
+	}
+
+	/**
+	 * Sets the store of the segment queues. Queues serve the segment queues
+	 * with a {@link SegmentPrintJobQueue}.
+	 * 
+	 * @param segmentStore
+	 *            the store of the segment queues or null for no segment
+	 *            queues.
+	 */
+	public void setSegmentStore(SegmentStore segmentStore) {
+		this.segmentStore = segmentStore;
+	}
+
+	/**
+	 * Creates the queue of a client connection.
+	 * 
+	 * @return the queue.
+	 */
+	public IChannelPrintJobQueue createQueue() {
+
+		// the queue of a connection serves queue folders, memory queues and
+		// segment queues if there are any
+
+		FileBasedPrintJobQueue fileQueue = new FileBasedPrintJobQueue(index,
+				dispatcher, admissionControl, metrics);
+		fileQueue.setSpoolOptions(spoolOptions);
+		if (memoryStore == null && segmentStore == null) {
+			return fileQueue;
+		}
+		MemoryPrintJobQueue memoryQueue = null;
+		if (memoryStore != null) {
+			memoryQueue = new MemoryPrintJobQueue(memoryStore, dispatcher,
+					admissionControl, metrics);
+		}
+		RoutingPrintJobQueue routingQueue = new RoutingPrintJobQueue(
+				fileQueue, memoryQueue, memoryStore);
+		if (segmentStore != null) {
+			routingQueue.setSegmentQueue(new SegmentPrintJobQueue(
+					segmentStore, dispatcher, admissionControl, metrics),
+					segmentStore);
+		}
+		return routingQueue;
+	}
+}
@@ -0,0 +1,370 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+import open.lpd.server.PrintJob;
+
+/**
+ * The startup recovery of a queues folder. All queue folders are scanned in
+ * parallel by a fork/join task per queue, which splits the print job folders
+ * of a large queue into ranges scanned by further tasks. Each print job folder
+ * is classified as
+ * <ul>
+ * <li>complete: its files have been received and the data files named by its
+ * control file are there,</li>
+ * <li>partial: a file is still being received, the control file or the
+ * header of a compressed data file cannot be read or a data file named by
+ * the control file is missing,</li>
+ * <li>orphaned: it holds no control or data file, like a print job folder
+ * claimed right before a crash or a stray file in a queue folder.</li>
+ * </ul>
+ * Complete print jobs are added to the {@link PrintJobIndex}, partial and
+ * orphaned ones are moved to a quarantine folder with the same structure as
+ * the queues folder, so they are neither listed nor printed. Expanded copies
+ * of compressed data files left behind by a script are deleted.
+ * <p>
+ * Recovery may run on a background thread while the server already accepts
+ * connections. The queues are known from the start, print jobs show up in the
+ * index as their ranges are scanned.
+ */
+public class PrintJobRecovery {
+
+	private static final int SCAN_RANGE_SIZE = 1024;
+
+	private String quarantineFolderName;
+	private long minAgeMillis;
+	private LongAdder completePrintJobs;
+	private LongAdder partialPrintJobs;
+	private LongAdder orphanedPrintJobs;
+	private CountDownLatch finished;
+	private volatile long recoveryMillis;
+
+	/**
+	 * Creates a recovery.
+	 * 
+	 * @param quarantineFolderName
+	 *            the folder that receives partial and orphaned print jobs, it
+	 *            must not be inside the queues folder.
+	 * @param minAgeMillis
+	 *            the time since the last change after which a partial or
+	 *            orphaned print job is quarantined, younger ones are left
+	 *            alone, as another server sharing the queues folder may still
+	 *            be receiving them.
+	 */
+	public PrintJobRecovery(String quarantineFolderName, long minAgeMillis) {
+		this.quarantineFolderName = quarantineFolderName;
+		this.minAgeMillis = minAgeMillis;
+		this.completePrintJobs = new LongAdder();
+		this.partialPrintJobs = new LongAdder();
+		this.orphanedPrintJobs = new LongAdder();
+		this.finished = new CountDownLatch(1);
+		this.recoveryMillis = 0;
+	}
+
+	public long getCompletePrintJobs() {
+		return completePrintJobs.sum();
+	}
+
+	public long getPartialPrintJobs() {
+		return partialPrintJobs.sum();
+	}
+
+	public long getOrphanedPrintJobs() {
+		return orphanedPrintJobs.sum();
+	}
+
+	/**
+	 * Returns the time the recovery took.
+	 * 
+	 * @return the time in milliseconds or 0 if the recovery has not finished.
+	 */
+	public long getRecoveryMillis() {
+		return recoveryMillis;
+	}
+
+	public boolean isFinished() {
+		return finished.getCount() == 0;
+	}
+
+	/**
+	 * Waits until the recovery has finished.
+	 * 
+	 * @throws InterruptedException
+	 *             throws if the thread has been interrupted while waiting.
+	 */
+	public void awaitFinished() throws InterruptedException {
+		finished.await();
+	}
+
+	/**
+	 * Recovers the queues folder of an index on a daemon thread.
+	 * 
+	 * @param index
+	 *            the index to add the complete print jobs to.
+	 */
+	public void start(final PrintJobIndex index) {
+		Thread recoveryThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				recover(index);
+			}
+		}, "PrintJobRecovery");
+		recoveryThread.setDaemon(true);
+		recoveryThread.start();
+	}
+
+	/**
+	 * Recovers the queues folder of an index and waits until all queues have
+	 * been scanned.
+	 * 
+	 * @param index
+	 *            the index to add the complete print jobs to.
+	 */
+	public void recover(PrintJobIndex index) {
+		long start = System.currentTimeMillis();
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+
+			// every folder in the queues folder is a queue, each queue is
+			// known to the index before its print jobs are scanned
+
+			File[] queueFolders = new File(index.getQueueFolderName())
+					.listFiles();
+			if (queueFolders != null) {
+				List<QueueTask> queueTasks = new ArrayList<QueueTask>();
+				for (File queueFolder : queueFolders) {
+					if (queueFolder.isDirectory()) {
+						index.addQueue(queueFolder.getName());
+						queueTasks.add(new QueueTask(index, queueFolder, start));
+					}
+				}
+				for (QueueTask queueTask : queueTasks) {
+					pool.execute(queueTask);
+				}
+				for (QueueTask queueTask : queueTasks) {
+					queueTask.join();
+				}
+			}
+		} finally {
+			pool.shutdown();
+			recoveryMillis = Math.max(1, System.currentTimeMillis() - start);
+			finished.countDown();
+		}
+	}
+
+	private void recoverRange(PrintJobIndex index, File queueFolder,
+			File[] printJobFolders, int from, int to, long start) {
+
+		// classify each print job folder of a range, the complete print jobs
+		// are added to the index at once
+
+		List<IndexedPrintJob> printJobs = new ArrayList<IndexedPrintJob>(to
+				- from);
+		for (int i = from; i < to; i++) {
+			File printJobFolder = printJobFolders[i];
+			index.seedJobId(printJobFolder.getName());
+			File[] printJobFiles = printJobFolder.isDirectory() ? printJobFolder
+					.listFiles() : null;
+			if (printJobFiles == null) {
+				quarantine(queueFolder, printJobFolder, null, start,
+						orphanedPrintJobs);
+				continue;
+			}
+			deleteExpandedFiles(printJobFiles, start);
+			IndexedPrintJob printJob = scanPrintJob(printJobFolder,
+					printJobFiles);
+			if (printJob == null) {
+				quarantine(queueFolder, printJobFolder, printJobFiles, start,
+						partialPrintJobs);
+			} else if (printJob.getFiles().isEmpty()) {
+				quarantine(queueFolder, printJobFolder, printJobFiles, start,
+						orphanedPrintJobs);
+			} else {
+				printJobs.add(printJob);
+				completePrintJobs.increment();
+			}
+		}
+		index.addRecoveredPrintJobs(queueFolder.getName(), printJobs);
+	}
+
+	private void deleteExpandedFiles(File[] printJobFiles, long start) {
+
+		// copies of compressed data files expanded for a script are left
+		// behind by a crash, recent ones may belong to a script that still
+		// runs on another server sharing the queues folder
+
+		for (File printJobFile : printJobFiles) {
+			if (PrintJobIndex.isExpandedFile(printJobFile, printJobFiles)
+					&& printJobFile.lastModified() <= start - minAgeMillis) {
+				printJobFile.delete();
+			}
+		}
+	}
+
+	private IndexedPrintJob scanPrintJob(File printJobFolder,
+			File[] printJobFiles) {
+
+		// read the files of a print job folder, returns null for a partial
+		// print job and a print job without files for an orphaned one
+
+		List<IndexedFile> files = new ArrayList<IndexedFile>(
+				printJobFiles.length);
+		List<String> names = new ArrayList<String>(printJobFiles.length);
+		PrintJob printJob = null;
+		for (File printJobFile : printJobFiles) {
+			String name = printJobFile.getName();
+			if ((!PrintJobIndex.isControlFile(name) && !PrintJobIndex
+					.isDataFile(name))
+					|| PrintJobIndex.isExpandedFile(printJobFile,
+							printJobFiles)) {
+				continue;
+			}
+			if (PrintJobIndex.isPartialFile(name)) {
+				return null;
+			}
+			IndexedFile file;
+			try {
+				if (PrintJobIndex.isControlFile(name)) {
+					printJob = PrintJobIndex.readControlFile(printJobFile);
+				}
+				file = PrintJobIndex.readIndexedFile(printJobFile);
+			} catch (IOException e) {
+				return null;
+			}
+			files.add(file);
+			names.add(file.getName());
+		}
+
+		// the data files named by the control file must have been received
+
+		if (printJob != null && !names.containsAll(printJob.getDataFiles())) {
+			return null;
+		}
+		return new IndexedPrintJob(printJobFolder.getName(),
+				printJobFolder.lastModified(), files, printJob);
+	}
+
+	private void quarantine(File queueFolder, File printJobFolder,
+			File[] printJobFiles, long start, LongAdder counter) {
+
+		// a print job that changed recently may still be received by another
+		// server sharing the queues folder
+
+		if (getLastModified(printJobFolder, printJobFiles) > start
+				- minAgeMillis) {
+			return;
+		}
+		counter.increment();
+		File target = new File(new File(quarantineFolderName,
+				queueFolder.getName()), printJobFolder.getName());
+		try {
+			Files.createDirectories(target.getParentFile().toPath());
+			Files.move(printJobFolder.toPath(), target.toPath());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private long getLastModified(File printJobFolder, File[] printJobFiles) {
+
+		// writing a file does not change the last modified time of its folder
+
+		long lastModified = printJobFolder.lastModified();
+		if (printJobFiles != null) {
+			for (File printJobFile : printJobFiles) {
+				lastModified = Math.max(lastModified,
+						printJobFile.lastModified());
+			}
+		}
+		return lastModified;
+	}
+
+	private class QueueTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private PrintJobIndex index;
+		private File queueFolder;
+		private long start;
+
+		QueueTask(PrintJobIndex index, File queueFolder, long start) {
+			this.index = index;
+			this.queueFolder = queueFolder;
+			this.start = start;
+		}
+
+		@Override
+		protected void compute() {
+			File[] printJobFolders = queueFolder.listFiles();
+			if (printJobFolders != null) {
+				new RangeTask(index, queueFolder, printJobFolders, 0,
+						printJobFolders.length, start).invoke();
+			}
+		}
+	}
+
+	private class RangeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private PrintJobIndex index;
+		private File queueFolder;
+		private File[] printJobFolders;
+		private int from;
+		private int to;
+		private long start;
+
+		RangeTask(PrintJobIndex index, File queueFolder,
+				File[] printJobFolders, int from, int to, long start) {
+			this.index = index;
+			this.queueFolder = queueFolder;
+			this.printJobFolders = printJobFolders;
+			this.from = from;
+			this.to = to;
+			this.start = start;
+		}
+
+		@Override
+		protected void compute() {
+
+			// large ranges are split, so the print job folders of a large
+			// queue are scanned by all threads of the pool
+
+			if (to - from <= SCAN_RANGE_SIZE) {
+				recoverRange(index, queueFolder, printJobFolders, from, to,
+						start);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new RangeTask(index, queueFolder, printJobFolders, from,
+					middle, start), new RangeTask(index, queueFolder,
+					printJobFolders, middle, to, start));
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import open.lpd.server.IChannelPrintJobQueue;
+import open.lpd.server.IStreamingPrintJobQueue;
+
+/**
+ * A print job queue that serves the memory queues of a
+ * {@link MemoryPrintJobStore} with a {@link MemoryPrintJobQueue}, the segment
+ * queues of a {@link SegmentStore} with a {@link SegmentPrintJobQueue} and all
+ * other queues with a {@link FileBasedPrintJobQueue}. Commands are routed by
+ * their queue name, sub commands go to the queue that received the print job.
+ */
+public class RoutingPrintJobQueue implements IChannelPrintJobQueue,
+		IStreamingPrintJobQueue {
+
+	private FileBasedPrintJobQueue fileQueue;
+	private MemoryPrintJobQueue memoryQueue;
+	private MemoryPrintJobStore memoryStore;
+	private SegmentPrintJobQueue segmentQueue;
+	private SegmentStore segmentStore;
+	private IChannelPrintJobQueue subCmdQueue;
+
+	/**
+	 * Creates a routing print job queue.
+	 * 
+	 * @param fileQueue
+	 *            the queue that serves queue folders.
+	 * @param memoryQueue
+	 *            the queue that serves memory queues or null for no memory
+	 *            queues.
+	 * @param store
+	 *            the store that holds the memory queues or null for no memory
+	 *            queues.
+	 */
+	public RoutingPrintJobQueue(FileBasedPrintJobQueue fileQueue,
+			MemoryPrintJobQueue memoryQueue, MemoryPrintJobStore store) {
+		this.fileQueue = fileQueue;
+		this.memoryQueue = memoryQueue;
+		this.memoryStore = store;
+		this.segmentQueue = null;
+		this.segmentStore = null;
+		this.subCmdQueue = fileQueue;
+	}
+
+	/**
+	 * Sets the queue that serves the segment queues.
+	 * 
+	 * @param segmentQueue
+	 *            the queue that serves segment queues.
+	 * @param segmentStore
+	 *            the store that holds the segment queues.
+	 */
+	public void setSegmentQueue(SegmentPrintJobQueue segmentQueue,
+			SegmentStore segmentStore) {
+		this.segmentQueue = segmentQueue;
+		this.segmentStore = segmentStore;
+	}
+
+	private IStreamingPrintJobQueue route(String queue) {
+		if (memoryStore != null && memoryStore.queueExists(queue)) {
+			return memoryQueue;
+		}
+		if (segmentStore != null && segmentStore.queueExists(queue)) {
+			return segmentQueue;
+		}
+		return fileQueue;
+	}
+
+	@Override
+	public void printAnyWaitingJobs(String queue) throws IOException {
+		route(queue).printAnyWaitingJobs(queue);
+	}
+
+	@Override
+	public byte receiveAPrinterJob(String queue) throws IOException {
+		if (memoryStore != null && memoryStore.queueExists(queue)) {
+			subCmdQueue = memoryQueue;
+		} else if (segmentStore != null && segmentStore.queueExists(queue)) {
+			subCmdQueue = segmentQueue;
+		} else {
+			subCmdQueue = fileQueue;
+		}
+		return subCmdQueue.receiveAPrinterJob(queue);
+	}
+
+	@Override
+	public String sendQueueStateShort(String queue, String[] list)
+			throws IOException {
+		return route(queue).sendQueueStateShort(queue, list);
+	}
+
+	@Override
+	public String sendQueueStateLong(String queue, String[] list)
+			throws IOException {
+		return route(queue).sendQueueStateLong(queue, list);
+	}
+
+	@Override
+	public void writeQueueStateShort(String queue, String[] list, Writer out)
+			throws IOException {
+		route(queue).writeQueueStateShort(queue, list, out);
+	}
+
+	@Override
+	public void writeQueueStateLong(String queue, String[] list, Writer out)
+			throws IOException {
+		route(queue).writeQueueStateLong(queue, list, out);
+	}
+
+	@Override
+	public void removeJobs(String queue, String agent, String[] list)
+			throws IOException {
+		route(queue).removeJobs(queue, agent, list);
+	}
+
+	@Override
+	public void abortJob() throws IOException {
+		subCmdQueue.abortJob();
+	}
+
+	@Override
+	public byte receiveControlFile(long count, String name,
+			InputStream clientInStream) throws IOException {
+		return subCmdQueue.receiveControlFile(count, name, clientInStream);
+	}
+
+	@Override
+	public byte receiveDataFile(long count, String name,
+			InputStream clientInStream) throws IOException {
+		return subCmdQueue.receiveDataFile(count, name, clientInStream);
+	}
+
+	@Override
+	public byte openControlFile(long count, String name) throws IOException {
+		return subCmdQueue.openControlFile(count, name);
+	}
+
+	@Override
+	public byte openDataFile(long count, String name) throws IOException {
+		return subCmdQueue.openDataFile(count, name);
+	}
+
+	@Override
+	public void writeFile(ByteBuffer buffer) throws IOException {
+		subCmdQueue.writeFile(buffer);
+	}
+
+	@Override
+	public long transferFile(ReadableByteChannel clientChannel, long count)
+			throws IOException {
+		return subCmdQueue.transferFile(clientChannel, count);
+	}
+
+	@Override
+	public byte closeFile(boolean complete) throws IOException {
+		return subCmdQueue.closeFile(complete);
+	}
+
+	@Override
+	public void finishedReceivingAPrinterJob() throws IOException {
+		subCmdQueue.finishedReceivingAPrinterJob();
+	}
+}
@@ -0,0 +1,174 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import open.lpd.server.IPrintJobHandler;
+
+/**
+ * A print job handler that runs an OS specific script command for each print
+ * job. The script command may use $1 for the queue name and $2 for the print
+ * job folder. Compressed data files are expanded for the script under their
+ * received names, see {@link SpoolCompression}. Scripts of the same print
+ * job run one after the other, so they never share an expanded copy.
+ */
+public class ScriptPrintJobHandler implements IPrintJobHandler {
+
+	private String scriptCmd;
+	private ConcurrentMap<File, ReentrantLock> handledPrintJobs;
+
+	/**
+	 * Creates a script print job handler.
+	 * 
+	 * @param scriptCmd
+	 *            the script command to execute on print jobs.
+	 */
+	public ScriptPrintJobHandler(String scriptCmd) {
+		this.scriptCmd = scriptCmd;
+		this.handledPrintJobs = new ConcurrentHashMap<File, ReentrantLock>();
+	}
+
+	@Override
+	public void handle(String queue, File printJobFolder) throws IOException {
+		File printJob = printJobFolder.getAbsoluteFile();
+		ReentrantLock lock = lockPrintJob(printJob);
+		try {
+			List<File> expandedFiles = SpoolCompression.expand(printJob);
+			try {
+				runScript(queue, printJob);
+			} finally {
+				SpoolCompression.collapse(expandedFiles);
+			}
+		} finally {
+			unlockPrintJob(printJob, lock);
+		}
+	}
+
+	private ReentrantLock lockPrintJob(File printJob) throws IOException {
+
+		// wait until no other script handles the print job, a lock that was
+		// removed while waiting for it is given up and the print job is
+		// locked again
+
+		while (true) {
+			ReentrantLock lock = new ReentrantLock();
+			ReentrantLock handledLock = handledPrintJobs.putIfAbsent(printJob,
+					lock);
+			if (handledLock != null) {
+				lock = handledLock;
+			}
+			try {
+				lock.lockInterruptibly();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Print job handler interrupted.");
+			}
+			if (handledPrintJobs.get(printJob) == lock) {
+				return lock;
+			}
+			lock.unlock();
+		}
+	}
+
+	private void unlockPrintJob(File printJob, ReentrantLock lock) {
+		handledPrintJobs.remove(printJob, lock);
+		lock.unlock();
+	}
+
+	private String runScript(String queue, File printJobFolder)
+			throws IOException {
+
+		// run a configured OS specific script file to deal with the print job
+
+		String[] args = new String[2];
+		args[0] = queue;
+		args[1] = printJobFolder.getAbsoluteFile().toPath().toString();
+		String processExecutable = scriptCmd;
+		String processParams = null;
+		if (processExecutable.startsWith("\"")) {
+			int k = processExecutable.indexOf("\"", 1);
+			if (k >= 0) {
+				processParams = processExecutable.substring(k + 2);
+				processExecutable = processExecutable.substring(0, k + 1);
+			}
+		} else {
+			int k = processExecutable.indexOf(" ");
+			if (k >= 0) {
+				processParams = processExecutable.substring(k + 1);
+				processExecutable = processExecutable.substring(0, k);
+			}
+		}
+		if (processParams != null) {
+			for (int i = 0; i < args.length; i++) {
+				int k = processParams.indexOf("$" + (i + 1));
+				if (k >= 0) {
+					processParams = processParams.substring(0, k) + args[i]
+							+ processParams.substring(k + 2);
+				}
+			}
+		}
+		return runProcess(processExecutable, processParams);
+	}
+
+	private String runProcess(String processExecutable, String processParams)
+			throws IOException {
+
+		// run OS process
+
+		InputStream processOutput;
+		Process process;
+		if (processParams == null) {
+			process = Runtime.getRuntime().exec(
+					new String[] { processExecutable });
+		} else {
+			String[] paramsArray = processParams.split(" ");
+			String[] cmdArray = new String[paramsArray.length + 1];
+			cmdArray[0] = processExecutable;
+			for (int i = 0; i < paramsArray.length; i++) {
+				cmdArray[1 + i] = paramsArray[i];
+			}
+			process = Runtime.getRuntime().exec(cmdArray);
+		}
+
+		// collect process output and return
+
+		processOutput = process.getInputStream();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		while (true) {
+			int c = processOutput.read();
+			if (c == -1) {
+				break;
+			}
+			bos.write((byte) c);
+		}
+
+		// create string using platform encoding
+
+		return new String(bos.toByteArray());
+	}
+}
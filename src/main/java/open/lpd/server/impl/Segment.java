@@ -0,0 +1,419 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A segment file of a {@link SegmentStore}. Control and data files of print
+ * jobs are appended to a segment as records, a record is only written by the
+ * connection that owns the segment, while completed records may be read
+ * concurrently.
+ * 
+ * <pre>
+ * {@code
+ * Record layout:
+ *   int     magic number
+ *   byte    flags, 1 if the print job of the record has been removed
+ *   short   length of the print job name, followed by its UTF-8 bytes
+ *   short   length of the file name, followed by its UTF-8 bytes
+ *   long    length of the file, -1 while the file is being received
+ *   byte[]  file content
+ * }
+ * </pre>
+ * 
+ * A removed record is only flagged, its bytes are counted as dead and are
+ * reclaimed once the segment is compacted.
+ */
+public class Segment {
+
+	private static final int MAGIC = 0x4c504453;
+	private static final byte FLAG_REMOVED = 1;
+	private static final int FLAGS_OFFSET = 4;
+	private static final long LENGTH_UNKNOWN = -1;
+	private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+
+	private long id;
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private volatile long size;
+	private AtomicLong deadBytes;
+	private AtomicBoolean owned;
+	private long recordStart;
+	private long recordLengthPosition;
+	private long recordPayloadStart;
+	private long writePosition;
+
+	/**
+	 * Opens a segment file, the file is created if it does not exist.
+	 * 
+	 * @param id
+	 *            the id of the segment, segments of a queue are written in
+	 *            the order of their ids.
+	 * @param file
+	 *            the segment file.
+	 * @throws IOException
+	 *             throws if the file could not be opened.
+	 */
+	public Segment(long id, File file) throws IOException {
+		this.id = id;
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+		this.size = 0;
+		this.deadBytes = new AtomicLong();
+		this.owned = new AtomicBoolean();
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Gets the number of bytes of all completed records.
+	 * 
+	 * @return the size of the segment.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of bytes of removed records.
+	 * 
+	 * @return the dead bytes of the segment.
+	 */
+	public long getDeadBytes() {
+		return deadBytes.get();
+	}
+
+	public long getLiveBytes() {
+		return size - deadBytes.get();
+	}
+
+	boolean tryOwn() {
+		return owned.compareAndSet(false, true);
+	}
+
+	void disown() {
+		owned.set(false);
+	}
+
+	/**
+	 * Reads the records of an existing segment file. A record that was cut
+	 * off while it was written is truncated.
+	 * 
+	 * @return the files of the records that have not been removed.
+	 * @throws IOException
+	 *             throws if the segment file could not be read.
+	 */
+	List<SegmentFile> load() throws IOException {
+		List<SegmentFile> files = new ArrayList<SegmentFile>();
+		long fileSize = channel.size();
+		long position = 0;
+		ByteBuffer fixedHeader = ByteBuffer.allocate(7);
+		while (position < fileSize) {
+
+			// read the header up to the length of the print job name
+
+			fixedHeader.clear();
+			if (!readFully(fixedHeader, position)
+					|| fixedHeader.getInt(0) != MAGIC) {
+				break;
+			}
+			boolean removed = fixedHeader.get(FLAGS_OFFSET) == FLAG_REMOVED;
+			long namePosition = position + fixedHeader.capacity();
+			short printJobNameLength = fixedHeader.getShort(5);
+			String printJobName = readName(namePosition, printJobNameLength);
+			if (printJobName == null) {
+				break;
+			}
+			namePosition += printJobNameLength;
+			ByteBuffer nameLengthBuffer = ByteBuffer.allocate(2);
+			if (!readFully(nameLengthBuffer, namePosition)) {
+				break;
+			}
+			short nameLength = nameLengthBuffer.getShort(0);
+			String name = readName(namePosition + 2, nameLength);
+			if (name == null) {
+				break;
+			}
+			long lengthPosition = namePosition + 2 + nameLength;
+			ByteBuffer lengthBuffer = ByteBuffer.allocate(8);
+			if (!readFully(lengthBuffer, lengthPosition)) {
+				break;
+			}
+			long length = lengthBuffer.getLong(0);
+			long payloadStart = lengthPosition + 8;
+			if (length == LENGTH_UNKNOWN || payloadStart + length > fileSize) {
+				break;
+			}
+
+			// the record is complete
+
+			long recordEnd = payloadStart + length;
+			if (removed) {
+				deadBytes.addAndGet(recordEnd - position);
+			} else {
+				files.add(new SegmentFile(name, printJobName, this, position,
+						payloadStart, length));
+			}
+			position = recordEnd;
+		}
+		if (position < fileSize) {
+			channel.truncate(position);
+		}
+		size = position;
+		return files;
+	}
+
+	private boolean readFully(ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			int bytesRead = channel.read(buffer, position);
+			if (bytesRead == -1) {
+				return false;
+			}
+			position += bytesRead;
+		}
+		return true;
+	}
+
+	private String readName(long position, short length) throws IOException {
+		if (length < 0) {
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		if (!readFully(buffer, position)) {
+			return null;
+		}
+		return new String(buffer.array(), NAME_CHARSET);
+	}
+
+	/**
+	 * Starts a record behind the completed records. The segment must be owned
+	 * by the caller.
+	 * 
+	 * @param printJobName
+	 *            the name of the print job of the file.
+	 * @param name
+	 *            the file name.
+	 * @throws IOException
+	 *             throws if the record header could not be written.
+	 */
+	void beginRecord(String printJobName, String name) throws IOException {
+		byte[] printJobNameBytes = printJobName.getBytes(NAME_CHARSET);
+		byte[] nameBytes = name.getBytes(NAME_CHARSET);
+		ByteBuffer header = ByteBuffer.allocate(4 + 1 + 2
+				+ printJobNameBytes.length + 2 + nameBytes.length + 8);
+		header.putInt(MAGIC);
+		header.put((byte) 0);
+		header.putShort((short) printJobNameBytes.length);
+		header.put(printJobNameBytes);
+		header.putShort((short) nameBytes.length);
+		header.put(nameBytes);
+		header.putLong(LENGTH_UNKNOWN);
+		header.flip();
+		recordStart = size;
+		recordLengthPosition = recordStart + header.capacity() - 8;
+		recordPayloadStart = recordStart + header.capacity();
+		writePosition = recordStart;
+		write(header);
+	}
+
+	/**
+	 * Appends bytes to the current record.
+	 * 
+	 * @param buffer
+	 *            the buffer to write.
+	 * @throws IOException
+	 *             throws if the bytes could not be written.
+	 */
+	void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			writePosition += channel.write(buffer, writePosition);
+		}
+	}
+
+	/**
+	 * Moves bytes from a channel to the current record without passing the
+	 * java heap.
+	 * 
+	 * @param src
+	 *            the channel to read from.
+	 * @param count
+	 *            the max number of bytes to move.
+	 * @return the number of bytes moved.
+	 * @throws IOException
+	 *             throws if the bytes could not be moved.
+	 */
+	long transferFrom(ReadableByteChannel src, long count) throws IOException {
+		long bytesTransferred = channel.transferFrom(src, writePosition, count);
+		writePosition += bytesTransferred;
+		return bytesTransferred;
+	}
+
+	/**
+	 * Copies the content of a file of another segment to the current record.
+	 * 
+	 * @param file
+	 *            the file to copy.
+	 * @throws IOException
+	 *             throws if the file could not be copied.
+	 */
+	void copy(SegmentFile file) throws IOException {
+		// the channel position is only used here, all other writes are
+		// positional
+
+		long position = file.getPayloadStart();
+		long end = position + file.getLength();
+		FileChannel source = file.getSegment().channel;
+		while (position < end) {
+			channel.position(writePosition);
+			long bytesCopied = source.transferTo(position, end - position,
+					channel);
+			writePosition += bytesCopied;
+			if (bytesCopied <= 0) {
+				throw new IOException("Segment ends before its record, file: "
+						+ file.getSegment().getFile());
+			}
+			position += bytesCopied;
+		}
+	}
+
+	/**
+	 * Gets the number of content bytes of the current record.
+	 * 
+	 * @return the length of the file being written.
+	 */
+	long getRecordLength() {
+		return writePosition - recordPayloadStart;
+	}
+
+	/**
+	 * Completes the current record by writing the length of the file.
+	 * 
+	 * @param printJobName
+	 *            the name of the print job of the file.
+	 * @param name
+	 *            the file name.
+	 * @return the completed file.
+	 * @throws IOException
+	 *             throws if the length could not be written.
+	 */
+	SegmentFile commitRecord(String printJobName, String name)
+			throws IOException {
+		long length = getRecordLength();
+		ByteBuffer lengthBuffer = ByteBuffer.allocate(8);
+		lengthBuffer.putLong(0, length);
+		while (lengthBuffer.hasRemaining()) {
+			channel.write(lengthBuffer, recordLengthPosition
+					+ lengthBuffer.position());
+		}
+		size = writePosition;
+		return new SegmentFile(name, printJobName, this, recordStart,
+				recordPayloadStart, length);
+	}
+
+	/**
+	 * Discards the current record.
+	 * 
+	 * @throws IOException
+	 *             throws if the segment file could not be truncated.
+	 */
+	void rollbackRecord() throws IOException {
+		channel.truncate(size);
+		writePosition = size;
+	}
+
+	/**
+	 * Flags the record of a file as removed.
+	 * 
+	 * @param file
+	 *            the file to remove.
+	 * @throws IOException
+	 *             throws if the flag could not be written.
+	 */
+	void markRemoved(SegmentFile file) throws IOException {
+		ByteBuffer flags = ByteBuffer.allocate(1);
+		flags.put(0, FLAG_REMOVED);
+		channel.write(flags, file.getRecordStart() + FLAGS_OFFSET);
+		deadBytes.addAndGet(file.getPayloadStart() + file.getLength()
+				- file.getRecordStart());
+	}
+
+	/**
+	 * Reads bytes of the segment.
+	 * 
+	 * @param buffer
+	 *            the buffer to read into.
+	 * @param position
+	 *            the position in the segment file.
+	 * @return the number of bytes read or -1 at the end of the segment.
+	 * @throws IOException
+	 *             throws if the bytes could not be read.
+	 */
+	int read(ByteBuffer buffer, long position) throws IOException {
+		return channel.read(buffer, position);
+	}
+
+	/**
+	 * Moves bytes of the segment to a channel without passing the java heap.
+	 * 
+	 * @param position
+	 *            the position in the segment file.
+	 * @param count
+	 *            the max number of bytes to move.
+	 * @param target
+	 *            the channel to write to.
+	 * @return the number of bytes moved.
+	 * @throws IOException
+	 *             throws if the bytes could not be moved.
+	 */
+	long transferTo(long position, long count, WritableByteChannel target)
+			throws IOException {
+		return channel.transferTo(position, count, target);
+	}
+
+	void close() throws IOException {
+		raf.close();
+	}
+
+	void delete() throws IOException {
+		close();
+		if (!file.delete()) {
+			throw new IOException("Segment could not be deleted, file: " + file);
+		}
+	}
+}
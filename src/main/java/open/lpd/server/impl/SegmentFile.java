@@ -0,0 +1,132 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A control or data file of a {@link SegmentPrintJob}, stored as a record of a
+ * {@link Segment}. A file is only added to its print job once its record is
+ * complete, after that it does not change anymore. Compaction moves a file by
+ * replacing it with a copy in another segment.
+ */
+public class SegmentFile {
+
+	private String name;
+	private String printJobName;
+	private Segment segment;
+	private long recordStart;
+	private long payloadStart;
+	private long length;
+
+	/**
+	 * Creates a file of a completed record.
+	 * 
+	 * @param name
+	 *            the file name.
+	 * @param printJobName
+	 *            the name of the print job of the file.
+	 * @param segment
+	 *            the segment that holds the record.
+	 * @param recordStart
+	 *            the position of the record in the segment file.
+	 * @param payloadStart
+	 *            the position of the file content in the segment file.
+	 * @param length
+	 *            the length of the file content.
+	 */
+	SegmentFile(String name, String printJobName, Segment segment,
+			long recordStart, long payloadStart, long length) {
+		this.name = name;
+		this.printJobName = printJobName;
+		this.segment = segment;
+		this.recordStart = recordStart;
+		this.payloadStart = payloadStart;
+		this.length = length;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Gets the file content as a byte array. The content is copied, which is
+	 * meant for small files like control files.
+	 * 
+	 * @return the file content.
+	 * @throws IOException
+	 *             throws if the segment could not be read.
+	 */
+	public byte[] getBytes() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) length);
+		while (buffer.hasRemaining()) {
+			int bytesRead = segment.read(buffer, payloadStart
+					+ buffer.position());
+			if (bytesRead == -1) {
+				throw new IOException("Segment ends before its record, file: "
+						+ segment.getFile());
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Writes the file content to a channel. The bytes are moved by the file
+	 * system, without copying them to the java heap where the channel allows
+	 * it.
+	 * 
+	 * @param channel
+	 *            the channel to write to.
+	 * @throws IOException
+	 *             throws if there was an input output error.
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		long position = 0;
+		while (position < length) {
+			long bytesWritten = segment.transferTo(payloadStart + position,
+					length - position, channel);
+			if (bytesWritten <= 0) {
+				throw new IOException("Segment ends before its record, file: "
+						+ segment.getFile());
+			}
+			position += bytesWritten;
+		}
+	}
+
+	String getPrintJobName() {
+		return printJobName;
+	}
+
+	Segment getSegment() {
+		return segment;
+	}
+
+	long getRecordStart() {
+		return recordStart;
+	}
+
+	long getPayloadStart() {
+		return payloadStart;
+	}
+}
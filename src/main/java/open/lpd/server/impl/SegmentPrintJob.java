@@ -0,0 +1,154 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import open.lpd.server.PrintJob;
+
+/**
+ * A print job of a {@link SegmentStore}. All files of a print job are records
+ * of the same segment. Its files are added as they are received, so queue
+ * state requests can read the print job while it is being received.
+ * <p>
+ * A print job is claimed while it is received, handled, removed or moved by
+ * compaction, so its records are never moved while they are read.
+ */
+public class SegmentPrintJob {
+
+	private String name;
+	private volatile long lastModified;
+	private List<SegmentFile> files;
+	private volatile PrintJob printJob;
+	private AtomicBoolean claimed;
+
+	/**
+	 * Creates an empty print job.
+	 * 
+	 * @param name
+	 *            the print job name.
+	 * @param claimed
+	 *            true if the print job is claimed by the connection receiving
+	 *            it.
+	 */
+	public SegmentPrintJob(String name, boolean claimed) {
+		this.name = name;
+		this.lastModified = System.currentTimeMillis();
+		this.files = new CopyOnWriteArrayList<SegmentFile>();
+		this.printJob = null;
+		this.claimed = new AtomicBoolean(claimed);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public List<SegmentFile> getFiles() {
+		return Collections.unmodifiableList(files);
+	}
+
+	public PrintJob getPrintJob() {
+		return printJob;
+	}
+
+	/**
+	 * Gets a file of the print job.
+	 * 
+	 * @param name
+	 *            the file name.
+	 * @return the file or null if the print job has no such file.
+	 */
+	public SegmentFile getFile(String name) {
+		for (SegmentFile file : files) {
+			if (file.getName().equals(name)) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the number of bytes of all files of the print job.
+	 * 
+	 * @return the length of the print job.
+	 */
+	public long getLength() {
+		long length = 0;
+		for (SegmentFile file : files) {
+			length += file.getLength();
+		}
+		return length;
+	}
+
+	/**
+	 * Gets the segment that holds the files of the print job.
+	 * 
+	 * @return the segment or null if the print job has no files.
+	 */
+	Segment getSegment() {
+		return files.isEmpty() ? null : files.get(0).getSegment();
+	}
+
+	/**
+	 * Adds a completely received file.
+	 * 
+	 * @param file
+	 *            the file to add.
+	 * @param printJob
+	 *            the parsed control file if the file is the control file,
+	 *            otherwise null.
+	 */
+	void addFile(SegmentFile file, PrintJob printJob) {
+		files.add(file);
+		if (printJob != null) {
+			this.printJob = printJob;
+		}
+		lastModified = System.currentTimeMillis();
+	}
+
+	/**
+	 * Replaces a file by its copy in another segment.
+	 * 
+	 * @param index
+	 *            the index of the file.
+	 * @param file
+	 *            the copy of the file.
+	 */
+	void moveFile(int index, SegmentFile file) {
+		files.set(index, file);
+	}
+
+	boolean isClaimed() {
+		return claimed.get();
+	}
+
+	boolean tryClaim() {
+		return claimed.compareAndSet(false, true);
+	}
+
+	void unclaim() {
+		claimed.set(false);
+	}
+}
@@ -0,0 +1,527 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import open.lpd.server.IChannelPrintJobQueue;
+import open.lpd.server.IStreamingPrintJobQueue;
+import open.lpd.server.LpdServerProtocol;
+import open.lpd.server.PrintJob;
+
+/**
+ * A print job queue that appends print jobs to the segments of a
+ * {@link SegmentStore} instead of creating a folder per print job. The
+ * connection owns a segment from the first file of a print job until the print
+ * job has been received. Received print jobs are handed to the
+ * {@link open.lpd.server.ISegmentPrintJobHandler} of the dispatcher.
+ */
+public class SegmentPrintJobQueue implements IChannelPrintJobQueue,
+		IStreamingPrintJobQueue {
+
+	private static final byte ERR_QUEUE_DOES_NOT_EXIST = 1;
+	private static final byte ERR_WRONG_CONTROL_FILE_NAME = 2;
+	private static final byte ERR_WRONG_DATA_FILE_NAME = 3;
+	private static final byte ERR_TOO_MANY_RECEIVES = 4;
+	private static final int MAX_BUFFER_SIZE = 65536;
+	private static final Queue<byte[]> bufferPool = new ConcurrentLinkedQueue<byte[]>();
+
+	private SegmentStore store;
+	private PrintJobDispatcher dispatcher;
+	private AdmissionControl admissionControl;
+	private LpdServerMetrics metrics;
+	private boolean subCmdAdmitted;
+	private long subCmdStart;
+	private String subCmdQueue;
+	private SegmentPrintJob subCmdPrintJob;
+	private Segment subCmdSegment;
+	private String subCmdFileName;
+
+	/**
+	 * Creates a segment print job queue.
+	 * 
+	 * @param store
+	 *            the store of the segment queues shared by all connections.
+	 * @param dispatcher
+	 *            the dispatcher that hands received print jobs over to a
+	 *            segment print job handler.
+	 * @param admissionControl
+	 *            the limits for receiving print jobs shared by all
+	 *            connections.
+	 * @param metrics
+	 *            the server metrics shared by all connections.
+	 */
+	public SegmentPrintJobQueue(SegmentStore store,
+			PrintJobDispatcher dispatcher, AdmissionControl admissionControl,
+			LpdServerMetrics metrics) {
+		this.store = store;
+		this.dispatcher = dispatcher;
+		this.admissionControl = admissionControl;
+		this.metrics = metrics;
+		this.subCmdAdmitted = false;
+		this.subCmdStart = 0;
+		this.subCmdQueue = null;
+		this.subCmdPrintJob = null;
+		this.subCmdSegment = null;
+		this.subCmdFileName = null;
+	}
+
+	@Override
+	public void printAnyWaitingJobs(String queue) throws IOException {
+
+		// protocol command implementation, print jobs which are received,
+		// handled or compacted by another thread are skipped
+
+		long start = System.nanoTime();
+		for (SegmentPrintJob printJob : store.getPrintJobs(queue)) {
+			if (printJob.tryClaim()) {
+				dispatcher.dispatch(queue, printJob, store);
+			}
+		}
+		metrics.commandExecuted(LpdServerProtocol.CMD_PRINT_ANY_WAITING_JOBS,
+				System.nanoTime() - start);
+	}
+
+	@Override
+	public byte receiveAPrinterJob(String queue) throws IOException {
+
+		// protocol command implementation, the command is timed until the
+		// print job has been received
+
+		subCmdStart = System.nanoTime();
+		if (!store.queueExists(queue)) {
+			return ERR_QUEUE_DOES_NOT_EXIST;
+		}
+
+		// refuse the print job if too many print jobs are being received, the
+		// client may retry later
+
+		releaseSegment();
+		releaseReceive();
+		if (!admissionControl.tryAcquireReceive(queue)) {
+			metrics.receiveRefused();
+			return ERR_TOO_MANY_RECEIVES;
+		}
+		subCmdAdmitted = true;
+		subCmdQueue = queue;
+		subCmdPrintJob = new SegmentPrintJob(store.nextPrintJobName(), true);
+		return LpdServerProtocol.ACK_SUCCESS;
+	}
+
+	@Override
+	public String sendQueueStateShort(String queue, String[] list)
+			throws IOException {
+
+		// protocol command implementation
+
+		StringWriter sw = new StringWriter();
+		writeQueueStateShort(queue, list, sw);
+		return sw.toString();
+	}
+
+	@Override
+	public String sendQueueStateLong(String queue, String[] list)
+			throws IOException {
+
+		// protocol command implementation
+
+		StringWriter sw = new StringWriter();
+		writeQueueStateLong(queue, list, sw);
+		return sw.toString();
+	}
+
+	@Override
+	public void writeQueueStateShort(String queue, String[] list, Writer out)
+			throws IOException {
+
+		// protocol command implementation
+
+		long start = System.nanoTime();
+		if (store.queueExists(queue)) {
+			for (SegmentPrintJob printJob : store.getPrintJobs(queue)) {
+				if (list != null && list.length > 0 && !matches(printJob, list)) {
+					continue;
+				}
+				out.write(printJob.getName());
+				out.write("\n");
+			}
+		} else {
+			out.write("Queue " + queue + " does not exist.");
+		}
+		metrics.commandExecuted(LpdServerProtocol.CMD_SEND_QUEUE_STATE_SHORT,
+				System.nanoTime() - start);
+	}
+
+	@Override
+	public void writeQueueStateLong(String queue, String[] list, Writer out)
+			throws IOException {
+
+		// protocol command implementation
+
+		long start = System.nanoTime();
+		if (store.queueExists(queue)) {
+			for (SegmentPrintJob printJob : store.getPrintJobs(queue)) {
+				if (list != null && list.length > 0 && !matches(printJob, list)) {
+					continue;
+				}
+				out.write(printJob.getName());
+				out.write("\t");
+				out.write(new Date(printJob.getLastModified()).toString());
+				out.write("\t");
+				PrintJob controlFile = printJob.getPrintJob();
+				if (controlFile != null) {
+					out.write(String.valueOf(controlFile.getUser()));
+					out.write("@");
+					out.write(String.valueOf(controlFile.getHost()));
+					out.write("\t");
+					out.write(String.valueOf(controlFile.getJobNumber()));
+					out.write("\t");
+					out.write(String.valueOf(controlFile.getJobName()));
+					out.write("\t");
+				}
+				for (SegmentFile printJobFile : printJob.getFiles()) {
+					out.write(printJobFile.getName());
+					out.write(" (");
+					out.write(String.valueOf(printJobFile.getLength()));
+					out.write(" byte) ");
+				}
+				out.write("\n");
+			}
+		} else {
+			out.write("Queue " + queue + " does not exist.");
+		}
+		metrics.commandExecuted(LpdServerProtocol.CMD_SEND_QUEUE_STATE_LONG,
+				System.nanoTime() - start);
+	}
+
+	@Override
+	public void removeJobs(String queue, String agent, String[] list)
+			throws IOException {
+
+		// protocol command implementation, print jobs which are received,
+		// handled or compacted by another thread are not removed
+
+		long start = System.nanoTime();
+		if (store.queueExists(queue) && list != null && list.length > 0) {
+			for (SegmentPrintJob printJob : store.getPrintJobs(queue)) {
+				if (matches(printJob, agent, list) && printJob.tryClaim()) {
+					store.removePrintJob(queue, printJob);
+				}
+			}
+		}
+		metrics.commandExecuted(LpdServerProtocol.CMD_REMOVE_JOBS,
+				System.nanoTime() - start);
+	}
+
+	@Override
+	public void abortJob() throws IOException {
+
+		// protocol sub command implementation, the records of the print job
+		// are flagged as removed
+
+		if (subCmdPrintJob != null) {
+			store.removePrintJob(subCmdQueue, subCmdPrintJob);
+			subCmdPrintJob = new SegmentPrintJob(store.nextPrintJobName(), true);
+		}
+	}
+
+	@Override
+	public byte receiveControlFile(long count, String name,
+			InputStream clientInStream) throws IOException {
+
+		// protocol sub command implementation
+
+		if (!name.startsWith("cfA")) {
+			return ERR_WRONG_CONTROL_FILE_NAME;
+		}
+		return receiveFile(count, false, name, clientInStream);
+	}
+
+	@Override
+	public byte receiveDataFile(long count, String name,
+			InputStream clientInStream) throws IOException {
+
+		// protocol sub command implementation
+
+		if (!name.startsWith("dfA")) {
+			return ERR_WRONG_DATA_FILE_NAME;
+		}
+		return receiveFile(count, count == 0, name, clientInStream);
+	}
+
+	@Override
+	public byte openControlFile(long count, String name) throws IOException {
+
+		// protocol sub command implementation
+
+		if (!name.startsWith("cfA")) {
+			return ERR_WRONG_CONTROL_FILE_NAME;
+		}
+		return openFile(name);
+	}
+
+	@Override
+	public byte openDataFile(long count, String name) throws IOException {
+
+		// protocol sub command implementation
+
+		if (!name.startsWith("dfA")) {
+			return ERR_WRONG_DATA_FILE_NAME;
+		}
+		return openFile(name);
+	}
+
+	@Override
+	public void writeFile(ByteBuffer buffer) throws IOException {
+
+		// protocol sub command implementation
+
+		if (subCmdFileName == null) {
+			throw new IOException("No file is open.");
+		}
+		int bytes = buffer.remaining();
+		admissionControl.spooled(bytes);
+		long start = System.nanoTime();
+		subCmdSegment.write(buffer);
+		metrics.spooled(subCmdQueue, bytes, System.nanoTime() - start);
+	}
+
+	@Override
+	public long transferFile(ReadableByteChannel clientChannel, long count)
+			throws IOException {
+
+		// protocol sub command implementation, the bytes are moved from the
+		// client connection to the segment without passing the java heap
+
+		if (subCmdFileName == null) {
+			throw new IOException("No file is open.");
+		}
+		long start = System.nanoTime();
+		long bytesTransferred = subCmdSegment.transferFrom(clientChannel,
+				count);
+		admissionControl.spooled(bytesTransferred);
+		if (bytesTransferred > 0) {
+			metrics.spooled(subCmdQueue, bytesTransferred, System.nanoTime()
+					- start);
+		}
+		return bytesTransferred;
+	}
+
+	@Override
+	public byte closeFile(boolean complete) throws IOException {
+
+		// protocol sub command implementation, an incomplete record is cut
+		// off the segment
+
+		if (subCmdFileName == null) {
+			throw new IOException("No file is open.");
+		}
+		String name = subCmdFileName;
+		subCmdFileName = null;
+		if (complete) {
+			addFile(subCmdSegment.commitRecord(subCmdPrintJob.getName(), name));
+		} else {
+			subCmdSegment.rollbackRecord();
+		}
+		return LpdServerProtocol.ACK_SUCCESS;
+	}
+
+	@Override
+	public void finishedReceivingAPrinterJob() throws IOException {
+
+		try {
+			releaseSegment();
+			if (subCmdPrintJob != null) {
+				SegmentPrintJob printJob = subCmdPrintJob;
+				subCmdPrintJob = null;
+				if (!printJob.getFiles().isEmpty()) {
+
+					// the claim of the receiving connection is handed over to
+					// the dispatcher
+
+					dispatcher.dispatch(subCmdQueue, printJob, store);
+				}
+			}
+		} finally {
+			releaseReceive();
+			if (subCmdStart != 0) {
+				metrics.commandExecuted(
+						LpdServerProtocol.CMD_RECEIVE_A_PRINTER_JOB,
+						System.nanoTime() - subCmdStart);
+				subCmdStart = 0;
+			}
+		}
+	}
+
+	private byte receiveFile(long count, boolean untilEndOfStream,
+			String name, InputStream clientInStream) throws IOException {
+
+		// receive a file from a blocking stream, the copy buffer is taken from
+		// a pool shared by all connections and is filled by as many reads as
+		// it takes before it is appended
+
+		byte code = openFile(name);
+		if (code != LpdServerProtocol.ACK_SUCCESS) {
+			return code;
+		}
+		byte[] buf = acquireBuffer();
+		boolean complete = false;
+		try {
+			long bytesRead = 0;
+			boolean endOfStream = false;
+			while (!endOfStream && (untilEndOfStream || (bytesRead < count))) {
+				int bytesLeft = buf.length;
+				if (!untilEndOfStream && (count - bytesRead < bytesLeft)) {
+					bytesLeft = (int) (count - bytesRead);
+				}
+				int bufferedBytes = 0;
+				while (bufferedBytes < bytesLeft) {
+					admissionControl.awaitSpoolRate();
+					int bread = clientInStream.read(buf, bufferedBytes,
+							bytesLeft - bufferedBytes);
+					if (bread == -1) {
+						endOfStream = true;
+						break;
+					}
+					admissionControl.spooled(bread);
+					bufferedBytes += bread;
+				}
+				if (bufferedBytes > 0) {
+					long start = System.nanoTime();
+					subCmdSegment.write(ByteBuffer.wrap(buf, 0, bufferedBytes));
+					metrics.spooled(subCmdQueue, bufferedBytes,
+							System.nanoTime() - start);
+					bytesRead += bufferedBytes;
+				}
+			}
+			if (!untilEndOfStream && (bytesRead != count)) {
+				throw new IOException("Expected " + count
+						+ " byte for file but received " + bytesRead + " byte.");
+			}
+			complete = true;
+		} finally {
+			releaseBuffer(buf);
+			closeFile(complete);
+		}
+		return LpdServerProtocol.ACK_SUCCESS;
+	}
+
+	private static byte[] acquireBuffer() {
+		byte[] buf = bufferPool.poll();
+		return (buf != null) ? buf : new byte[MAX_BUFFER_SIZE];
+	}
+
+	private static void releaseBuffer(byte[] buf) {
+		bufferPool.offer(buf);
+	}
+
+	private byte openFile(String name) throws IOException {
+
+		// start a record of the current print job, the first file takes a
+		// segment that is kept until the print job has been received
+
+		if (subCmdFileName != null) {
+			throw new IOException("Another file is still open.");
+		}
+		if (!store.queueExists(subCmdQueue) || subCmdPrintJob == null) {
+			return ERR_QUEUE_DOES_NOT_EXIST;
+		}
+		if (subCmdSegment == null) {
+			subCmdSegment = store.acquireSegment(subCmdQueue);
+		}
+		subCmdSegment.beginRecord(subCmdPrintJob.getName(), name);
+		subCmdFileName = name;
+		return LpdServerProtocol.ACK_SUCCESS;
+	}
+
+	private void addFile(SegmentFile file) throws IOException {
+
+		// the print job is listed in its queue once its first file is
+		// complete
+
+		PrintJob controlFile = null;
+		if (file.getName().startsWith("cfA")) {
+			controlFile = PrintJob.parse(file.getName(), file.getBytes());
+		}
+		subCmdPrintJob.addFile(file, controlFile);
+		if (subCmdPrintJob.getFiles().size() == 1) {
+			store.addPrintJob(subCmdQueue, subCmdPrintJob);
+		}
+	}
+
+	private boolean matches(SegmentPrintJob printJob, String[] list) {
+
+		// a list entry selects a print job by print job name, user name or
+		// job number of the parsed control file
+
+		PrintJob controlFile = printJob.getPrintJob();
+		for (String listEntry : list) {
+			if (printJob.getName().equals(listEntry)
+					|| (controlFile != null && controlFile.matches(listEntry))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean matches(SegmentPrintJob printJob, String agent, String[] list) {
+
+		// see RFC 1179 section 5.5, only root and the user of the control file
+		// remove a print job, and only root selects print jobs by user name
+
+		PrintJob controlFile = printJob.getPrintJob();
+		if (controlFile == null || !controlFile.isRemovableBy(agent)) {
+			return false;
+		}
+		for (String listEntry : list) {
+			if (printJob.getName().equals(listEntry)
+					|| controlFile.matches(agent, listEntry)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void releaseSegment() {
+
+		// other connections may append to the segment again
+
+		if (subCmdSegment != null) {
+			store.releaseSegment(subCmdSegment);
+			subCmdSegment = null;
+		}
+	}
+
+	private void releaseReceive() {
+
+		// give the admission of the current print job back
+
+		if (subCmdAdmitted) {
+			subCmdAdmitted = false;
+			admissionControl.releaseReceive(subCmdQueue);
+		}
+	}
+}
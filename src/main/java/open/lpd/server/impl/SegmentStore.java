@@ -0,0 +1,474 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import open.lpd.server.PrintJob;
+
+/**
+ * Print jobs of segment queues, shared by all connections of a server. The
+ * files of the print jobs are appended as records to a few large segment files
+ * per queue instead of creating a folder and files per print job, so
+ * receiving and removing print jobs causes sequential writes instead of file
+ * system metadata operations.
+ * 
+ * <pre>
+ * {@code
+ * Segment folder structure example:
+ *   segments/
+ *     LABEL/ .................... segment folder of queue "LABEL"
+ *       0000000000000000003.seg . segment file with records of print jobs
+ *       0000000000000000007.seg . segment file with records of print jobs
+ * }
+ * </pre>
+ * 
+ * A connection owns a segment while it receives a print job, so all files of
+ * a print job are appended to the same segment and connections never write to
+ * the same segment at the same time. Once a segment has reached its max size,
+ * no further print jobs are appended to it.
+ * <p>
+ * Removed print jobs are flagged in their segment. Compaction deletes segments
+ * without live print jobs and moves the print jobs of mostly dead segments to
+ * a new segment. A print job copied by a compaction that was interrupted is
+ * found in two segments, the copy in the newer segment is kept.
+ */
+public class SegmentStore {
+
+	private static final String SEGMENT_EXTENSION = ".seg";
+	private static final double COMPACTION_DEAD_RATIO = 0.5;
+
+	private File segmentFolder;
+	private long maxSegmentSize;
+	private Map<String, ConcurrentNavigableMap<String, SegmentPrintJob>> queues;
+	private Map<String, ConcurrentNavigableMap<Long, Segment>> segments;
+	private AtomicLong nextJobId;
+	private AtomicLong nextSegmentId;
+	private LongAdder compactedSegments;
+	private Thread compactionThread;
+
+	/**
+	 * Creates an empty store, existing segments are read by {@link #load()}.
+	 * 
+	 * @param segmentFolderName
+	 *            the folder that holds a segment folder per queue.
+	 * @param queueNames
+	 *            the names of the segment queues.
+	 * @param maxSegmentSize
+	 *            the size in bytes after which no print jobs are appended to
+	 *            a segment.
+	 */
+	public SegmentStore(String segmentFolderName, Collection<String> queueNames,
+			long maxSegmentSize) {
+		this.segmentFolder = new File(segmentFolderName);
+		this.maxSegmentSize = maxSegmentSize;
+		this.queues = new ConcurrentHashMap<String, ConcurrentNavigableMap<String, SegmentPrintJob>>();
+		this.segments = new ConcurrentHashMap<String, ConcurrentNavigableMap<Long, Segment>>();
+		for (String queueName : queueNames) {
+			queues.put(queueName,
+					new ConcurrentSkipListMap<String, SegmentPrintJob>());
+			segments.put(queueName, new ConcurrentSkipListMap<Long, Segment>());
+		}
+		this.nextJobId = new AtomicLong();
+		this.nextSegmentId = new AtomicLong();
+		this.compactedSegments = new LongAdder();
+	}
+
+	/**
+	 * Reads the print jobs of all segments of the segment queues. Segment
+	 * folders that do not exist are created.
+	 * 
+	 * @throws IOException
+	 *             throws if a segment could not be read.
+	 */
+	public void load() throws IOException {
+		for (String queue : queues.keySet()) {
+			File queueFolder = new File(segmentFolder, queue);
+			if (!queueFolder.isDirectory() && !queueFolder.mkdirs()) {
+				throw new IOException(
+						"Segment folder could not be created, folder: "
+								+ queueFolder);
+			}
+			File[] segmentFiles = queueFolder.listFiles();
+			if (segmentFiles == null) {
+				continue;
+			}
+			List<Long> ids = new ArrayList<Long>();
+			for (File segmentFile : segmentFiles) {
+				String name = segmentFile.getName();
+				if (name.endsWith(SEGMENT_EXTENSION)) {
+					ids.add(Long.valueOf(name.substring(0, name.length()
+							- SEGMENT_EXTENSION.length())));
+				}
+			}
+			Collections.sort(ids);
+			for (Long id : ids) {
+				loadSegment(queue, new Segment(id, getSegmentFile(queue, id)));
+				nextSegmentId.set(Math.max(nextSegmentId.get(), id + 1));
+			}
+		}
+	}
+
+	private void loadSegment(String queue, Segment segment) throws IOException {
+
+		// segments are read in the order they were created, a print job that
+		// is found again in a newer segment was copied by a compaction
+
+		ConcurrentNavigableMap<String, SegmentPrintJob> printJobs = queues
+				.get(queue);
+		segments.get(queue).put(segment.getId(), segment);
+		for (SegmentFile file : segment.load()) {
+			SegmentPrintJob printJob = printJobs.get(file.getPrintJobName());
+			if (printJob != null && printJob.getSegment() != segment) {
+				for (SegmentFile oldFile : printJob.getFiles()) {
+					oldFile.getSegment().markRemoved(oldFile);
+				}
+				printJob = null;
+			}
+			if (printJob == null) {
+				printJob = new SegmentPrintJob(file.getPrintJobName(), false);
+				printJobs.put(printJob.getName(), printJob);
+			}
+			PrintJob controlFile = null;
+			if (file.getName().startsWith("cfA")) {
+				controlFile = PrintJob.parse(file.getName(), file.getBytes());
+			}
+			printJob.addFile(file, controlFile);
+		}
+	}
+
+	private File getSegmentFile(String queue, long id) {
+		return new File(new File(segmentFolder, queue), String.format(
+				"%019d", id) + SEGMENT_EXTENSION);
+	}
+
+	public long getCompactedSegments() {
+		return compactedSegments.sum();
+	}
+
+	/**
+	 * Gets the number of bytes of all segments.
+	 * 
+	 * @return the size of the store.
+	 */
+	public long getSizeBytes() {
+		long size = 0;
+		for (ConcurrentNavigableMap<Long, Segment> queueSegments : segments
+				.values()) {
+			for (Segment segment : queueSegments.values()) {
+				size += segment.getSize();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the number of bytes of all records that have not been removed.
+	 * 
+	 * @return the live bytes of the store.
+	 */
+	public long getLiveBytes() {
+		long liveBytes = 0;
+		for (ConcurrentNavigableMap<Long, Segment> queueSegments : segments
+				.values()) {
+			for (Segment segment : queueSegments.values()) {
+				liveBytes += segment.getLiveBytes();
+			}
+		}
+		return liveBytes;
+	}
+
+	/**
+	 * Allocates a unique print job name.
+	 * 
+	 * @return the print job name.
+	 */
+	public String nextPrintJobName() {
+		return System.currentTimeMillis() + "-" + nextJobId.getAndIncrement();
+	}
+
+	/**
+	 * Checks if a segment queue exists.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @return true if the queue exists.
+	 */
+	public boolean queueExists(String queue) {
+		return (queue != null) && queues.containsKey(queue);
+	}
+
+	/**
+	 * Gets the print jobs of a queue ordered by print job name. The returned
+	 * collection is a live view which may be iterated while other connections
+	 * change the queue.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @return the print jobs, empty if the queue does not exist.
+	 */
+	public Collection<SegmentPrintJob> getPrintJobs(String queue) {
+		ConcurrentNavigableMap<String, SegmentPrintJob> printJobs = (queue != null) ? queues
+				.get(queue) : null;
+		if (printJobs == null) {
+			return Collections.emptyList();
+		}
+		return printJobs.values();
+	}
+
+	/**
+	 * Adds a print job to a queue.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJob
+	 *            the print job.
+	 */
+	public void addPrintJob(String queue, SegmentPrintJob printJob) {
+		ConcurrentNavigableMap<String, SegmentPrintJob> printJobs = queues
+				.get(queue);
+		if (printJobs != null) {
+			printJobs.put(printJob.getName(), printJob);
+		}
+	}
+
+	/**
+	 * Removes a print job claimed by the caller and flags its records as
+	 * removed.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @param printJob
+	 *            the print job.
+	 * @throws IOException
+	 *             throws if the records could not be flagged.
+	 */
+	public void removePrintJob(String queue, SegmentPrintJob printJob)
+			throws IOException {
+		ConcurrentNavigableMap<String, SegmentPrintJob> printJobs = queues
+				.get(queue);
+		if (printJobs != null) {
+			printJobs.remove(printJob.getName(), printJob);
+		}
+		for (SegmentFile file : printJob.getFiles()) {
+			file.getSegment().markRemoved(file);
+		}
+	}
+
+	/**
+	 * Takes a segment of a queue that print jobs may be appended to, a new
+	 * segment is created if all segments are full or owned by other
+	 * connections.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @return the segment owned by the caller.
+	 * @throws IOException
+	 *             throws if a new segment could not be created.
+	 */
+	Segment acquireSegment(String queue) throws IOException {
+
+		// the oldest segment with room is filled first
+
+		for (Segment segment : segments.get(queue).values()) {
+			if (segment.getSize() < maxSegmentSize && segment.tryOwn()) {
+				return segment;
+			}
+		}
+		return createSegment(queue);
+	}
+
+	/**
+	 * Gives a segment taken by {@link #acquireSegment(String)} back.
+	 * 
+	 * @param segment
+	 *            the segment.
+	 */
+	void releaseSegment(Segment segment) {
+		segment.disown();
+	}
+
+	private Segment createSegment(String queue) throws IOException {
+		long id = nextSegmentId.getAndIncrement();
+		Segment segment = new Segment(id, getSegmentFile(queue, id));
+		segment.tryOwn();
+		segments.get(queue).put(id, segment);
+		return segment;
+	}
+
+	/**
+	 * Starts a daemon thread that compacts the segments periodically.
+	 * 
+	 * @param intervalMillis
+	 *            the time between compactions in milliseconds.
+	 */
+	public synchronized void startCompacting(final long intervalMillis) {
+		if (compactionThread != null) {
+			return;
+		}
+		compactionThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (!Thread.currentThread().isInterrupted()) {
+						Thread.sleep(intervalMillis);
+						try {
+							compact();
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				} catch (InterruptedException e) {
+					// compaction stopped
+				}
+			}
+		}, "SegmentStoreCompactor");
+		compactionThread.setDaemon(true);
+		compactionThread.start();
+	}
+
+	/**
+	 * Compacts the segments of all queues. Segments that are owned by a
+	 * connection or hold print jobs that are being handled are skipped.
+	 * 
+	 * @throws IOException
+	 *             throws if a segment could not be compacted.
+	 */
+	public void compact() throws IOException {
+		for (String queue : queues.keySet()) {
+			for (Segment segment : segments.get(queue).values()) {
+				if (segment.getDeadBytes() == 0 || !segment.tryOwn()) {
+					continue;
+				}
+				boolean deleted = false;
+				try {
+					if (segment.getLiveBytes() > 0
+							&& segment.getDeadBytes() >= segment.getSize()
+									* COMPACTION_DEAD_RATIO) {
+						moveLivePrintJobs(queue, segment);
+					}
+					if (segment.getLiveBytes() == 0) {
+						segments.get(queue).remove(segment.getId());
+						deleted = true;
+						segment.delete();
+						compactedSegments.increment();
+					}
+				} finally {
+					if (!deleted) {
+						releaseSegment(segment);
+					}
+				}
+			}
+		}
+	}
+
+	private void moveLivePrintJobs(String queue, Segment segment)
+			throws IOException {
+
+		// the print jobs are claimed while they are moved, so they are not
+		// read by a handler
+
+		List<SegmentPrintJob> printJobs = new ArrayList<SegmentPrintJob>();
+		try {
+			for (SegmentPrintJob printJob : queues.get(queue).values()) {
+				if (printJob.getSegment() != segment) {
+					continue;
+				}
+				if (!printJob.tryClaim()) {
+					return;
+				}
+				printJobs.add(printJob);
+			}
+			Segment target = createSegment(queue);
+			try {
+				for (SegmentPrintJob printJob : printJobs) {
+					movePrintJob(printJob, target);
+				}
+			} finally {
+				releaseSegment(target);
+			}
+		} finally {
+			for (SegmentPrintJob printJob : printJobs) {
+				printJob.unclaim();
+			}
+		}
+	}
+
+	private void movePrintJob(SegmentPrintJob printJob, Segment target)
+			throws IOException {
+
+		// all files are copied before the print job is switched to the
+		// copies, the old records are flagged afterwards
+
+		List<SegmentFile> files = new ArrayList<SegmentFile>(
+				printJob.getFiles());
+		List<SegmentFile> copies = new ArrayList<SegmentFile>();
+		for (SegmentFile file : files) {
+			target.beginRecord(printJob.getName(), file.getName());
+			try {
+				target.copy(file);
+			} catch (IOException e) {
+				target.rollbackRecord();
+				throw e;
+			}
+			copies.add(target.commitRecord(printJob.getName(), file.getName()));
+		}
+		for (int i = 0; i < files.size(); i++) {
+			printJob.moveFile(i, copies.get(i));
+			files.get(i).getSegment().markRemoved(files.get(i));
+		}
+	}
+
+	/**
+	 * Stops the compaction thread and closes all segments.
+	 * 
+	 * @throws IOException
+	 *             throws if a segment could not be closed.
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (compactionThread != null) {
+				compactionThread.interrupt();
+				try {
+					compactionThread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				compactionThread = null;
+			}
+		}
+		for (ConcurrentNavigableMap<Long, Segment> queueSegments : segments
+				.values()) {
+			for (Segment segment : queueSegments.values()) {
+				segment.close();
+			}
+		}
+	}
+}
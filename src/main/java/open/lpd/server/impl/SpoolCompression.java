@@ -0,0 +1,248 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The format of data files that are compressed while they are received. A
+ * compressed data file keeps its received name with a ".lpd.gz" suffix and is
+ * a gzip file, so it can also be read with standard tools. Its gzip header
+ * holds an extra field with the received length, which is patched in once
+ * the file is complete, so the length is known without decompressing the
+ * file.
+ * <p>
+ * Print job handlers read a received data file with
+ * {@link #openReceivedFile(File, String)}, which decompresses it while it is
+ * read. Scripts see the received files only. Before a print job is handed to
+ * a script, its compressed files are expanded next to them, and the expanded
+ * copies are deleted again once the script returns. Short lived copies are
+ * usually deleted before the file system writes them back.
+ */
+public class SpoolCompression {
+
+	static final String COMPRESSED_FILE_SUFFIX = ".lpd.gz";
+	static final int HEADER_LENGTH = 24;
+	static final int LENGTH_OFFSET = 16;
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+	private static final byte GZIP_DEFLATE = 8;
+	private static final byte GZIP_EXTRA = 4;
+	private static final byte GZIP_OS_UNKNOWN = (byte) 255;
+	private static final short EXTRA_LENGTH = 12;
+	private static final byte EXTRA_ID1 = 'L';
+	private static final byte EXTRA_ID2 = 'P';
+	private static final short EXTRA_FIELD_LENGTH = 8;
+	private static final int COPY_BUFFER_SIZE = 65536;
+
+	private SpoolCompression() {
+	}
+
+	/**
+	 * Checks if a print job file is a compressed data file.
+	 * 
+	 * @param name
+	 *            the file name.
+	 * @return true if the file is compressed.
+	 */
+	public static boolean isCompressedFile(String name) {
+		return name.endsWith(COMPRESSED_FILE_SUFFIX);
+	}
+
+	/**
+	 * Gets the name a compressed data file has been received with.
+	 * 
+	 * @param name
+	 *            the name of the compressed file.
+	 * @return the received name.
+	 */
+	public static String getReceivedName(String name) {
+		return name.substring(0,
+				name.length() - COMPRESSED_FILE_SUFFIX.length());
+	}
+
+	/**
+	 * Creates a gzip header with an extra field for the received length.
+	 * 
+	 * @param length
+	 *            the received length.
+	 * @return the header.
+	 */
+	static ByteBuffer createHeader(long length) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(
+				ByteOrder.LITTLE_ENDIAN);
+		header.putShort((short) GZIP_MAGIC);
+		header.put(GZIP_DEFLATE);
+		header.put(GZIP_EXTRA);
+		header.putInt(0);
+		header.put((byte) 0);
+		header.put(GZIP_OS_UNKNOWN);
+		header.putShort(EXTRA_LENGTH);
+		header.put(EXTRA_ID1);
+		header.put(EXTRA_ID2);
+		header.putShort(EXTRA_FIELD_LENGTH);
+		header.putLong(length);
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * Reads the received length of a compressed data file from its header.
+	 * 
+	 * @param file
+	 *            the compressed file.
+	 * @return the received length in bytes.
+	 * @throws IOException
+	 *             throws if the file could not be read or has no length.
+	 */
+	public static long readLength(File file) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(
+				ByteOrder.LITTLE_ENDIAN);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.getChannel().read(header, 0);
+		} finally {
+			raf.close();
+		}
+		if (header.position() < HEADER_LENGTH
+				|| (header.getShort(0) & 0xffff) != GZIP_MAGIC
+				|| header.get(3) != GZIP_EXTRA || header.get(12) != EXTRA_ID1
+				|| header.get(13) != EXTRA_ID2) {
+			throw new IOException("Not a compressed data file: "
+					+ file.getName());
+		}
+		return header.getLong(LENGTH_OFFSET);
+	}
+
+	/**
+	 * Opens a compressed data file for reading its received bytes.
+	 * 
+	 * @param file
+	 *            the compressed file.
+	 * @return the stream of received bytes.
+	 * @throws IOException
+	 *             throws if the file could not be opened.
+	 */
+	public static InputStream openInputStream(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return new GZIPInputStream(in, COPY_BUFFER_SIZE);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a received file of a print job for reading its received bytes,
+	 * whether it is stored compressed or not.
+	 * 
+	 * @param printJobFolder
+	 *            the print job folder.
+	 * @param name
+	 *            the received name of the file.
+	 * @return the stream of received bytes.
+	 * @throws IOException
+	 *             throws if the file could not be opened.
+	 */
+	public static InputStream openReceivedFile(File printJobFolder,
+			String name) throws IOException {
+		File compressedFile = new File(printJobFolder, name
+				+ COMPRESSED_FILE_SUFFIX);
+		if (compressedFile.isFile()) {
+			return openInputStream(compressedFile);
+		}
+		return new FileInputStream(new File(printJobFolder, name));
+	}
+
+	/**
+	 * Expands the compressed data files of a print job folder next to them
+	 * under their received names. The caller must make sure that the print
+	 * job is expanded by one caller at a time, an expanded copy that is found
+	 * is taken as left behind and is replaced.
+	 * 
+	 * @param printJobFolder
+	 *            the print job folder.
+	 * @return the expanded files.
+	 * @throws IOException
+	 *             throws if a file could not be expanded.
+	 */
+	public static List<File> expand(File printJobFolder) throws IOException {
+		List<File> expandedFiles = new ArrayList<File>();
+		File[] printJobFiles = printJobFolder.listFiles();
+		if (printJobFiles == null) {
+			return expandedFiles;
+		}
+		try {
+			for (File printJobFile : printJobFiles) {
+				if (!isCompressedFile(printJobFile.getName())) {
+					continue;
+				}
+				File expandedFile = new File(printJobFolder,
+						getReceivedName(printJobFile.getName()));
+
+				// the copy gets its name once it is complete
+
+				File partialFile = new File(expandedFile.getPath()
+						+ PrintJobIndex.PARTIAL_FILE_SUFFIX);
+				InputStream in = openInputStream(printJobFile);
+				try {
+					Files.copy(in, partialFile.toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+				} finally {
+					in.close();
+				}
+				Files.move(partialFile.toPath(), expandedFile.toPath(),
+						StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+				expandedFiles.add(expandedFile);
+			}
+		} catch (IOException e) {
+			collapse(expandedFiles);
+			throw e;
+		}
+		return expandedFiles;
+	}
+
+	/**
+	 * Deletes expanded files whose compressed files are still there. Files
+	 * that a handler moved away are left alone.
+	 * 
+	 * @param expandedFiles
+	 *            the expanded files.
+	 */
+	public static void collapse(List<File> expandedFiles) {
+		for (File expandedFile : expandedFiles) {
+			if (new File(expandedFile.getPath() + COMPRESSED_FILE_SUFFIX)
+					.exists()) {
+				expandedFile.delete();
+			}
+		}
+	}
+}
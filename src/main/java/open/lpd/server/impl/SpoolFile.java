@@ -0,0 +1,228 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * A file of a print job being received. Bytes are written with positional
+ * channel writes, a file of an announced length may be sized to that length
+ * up front. Sizing only sets the file length: on most file systems the file
+ * is sparse and no blocks are reserved, so running out of space still shows
+ * while the bytes are written. Closing the file truncates whatever part of
+ * the sized length was not written. A
+ * file may hash the received bytes while they are written.
+ */
+public class SpoolFile {
+
+	private static final int TRANSFER_BUFFER_SIZE = 65536;
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long position;
+	private MessageDigest digest;
+	private ByteBuffer transferBuffer;
+
+	/**
+	 * Creates a spool file.
+	 * 
+	 * @param file
+	 *            the file to create.
+	 * @param length
+	 *            the announced length of the file or 0 if it is unknown.
+	 * @param preallocate
+	 *            true to preallocate a file of an announced length.
+	 * @throws IOException
+	 *             throws if the file could not be created.
+	 */
+	public SpoolFile(File file, long length, boolean preallocate)
+			throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+		this.position = 0;
+		if (preallocate && length > 0) {
+			try {
+				raf.setLength(length);
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 * 
+	 * @return the number of bytes written.
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Returns the number of bytes stored in the file so far, which differs
+	 * from the number of bytes written if the file is compressed.
+	 * 
+	 * @return the number of bytes stored.
+	 */
+	public long getStoredLength() {
+		return position;
+	}
+
+	/**
+	 * Sets the digest that hashes the received bytes while they are written.
+	 * Bytes moved from a channel pass the java heap then.
+	 * 
+	 * @param digest
+	 *            the digest or null to not hash the received bytes.
+	 */
+	public void setDigest(MessageDigest digest) {
+		this.digest = digest;
+	}
+
+	public MessageDigest getDigest() {
+		return digest;
+	}
+
+	/**
+	 * Writes all remaining bytes of a buffer behind the bytes written so far.
+	 * 
+	 * @param buffer
+	 *            the buffer to write.
+	 * @throws IOException
+	 *             throws if the bytes could not be written.
+	 */
+	public void write(ByteBuffer buffer) throws IOException {
+		if (digest != null) {
+			digest.update(buffer.duplicate());
+		}
+		writeStored(buffer);
+	}
+
+	/**
+	 * Writes all remaining bytes of a buffer to the file as they are stored,
+	 * without hashing them.
+	 * 
+	 * @param buffer
+	 *            the buffer to write.
+	 * @throws IOException
+	 *             throws if the bytes could not be written.
+	 */
+	protected void writeStored(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Overwrites bytes stored before without moving the position.
+	 * 
+	 * @param buffer
+	 *            the buffer to write.
+	 * @param filePosition
+	 *            the position in the file to write to.
+	 * @throws IOException
+	 *             throws if the bytes could not be written.
+	 */
+	protected void writeAt(ByteBuffer buffer, long filePosition)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			filePosition += channel.write(buffer, filePosition);
+		}
+	}
+
+	/**
+	 * Moves bytes from a channel behind the bytes written so far without
+	 * passing the java heap, unless the received bytes are hashed.
+	 * 
+	 * @param src
+	 *            the channel to read from.
+	 * @param count
+	 *            the max number of bytes to move.
+	 * @return the number of bytes moved.
+	 * @throws IOException
+	 *             throws if the bytes could not be moved.
+	 */
+	public long transferFrom(ReadableByteChannel src, long count)
+			throws IOException {
+		if (digest != null) {
+			return transferThroughHeap(src, count);
+		}
+		long bytesTransferred = channel.transferFrom(src, position, count);
+		position += bytesTransferred;
+		return bytesTransferred;
+	}
+
+	/**
+	 * Reads bytes from a channel into a heap buffer and writes them.
+	 * 
+	 * @param src
+	 *            the channel to read from.
+	 * @param count
+	 *            the max number of bytes to move.
+	 * @return the number of bytes moved.
+	 * @throws IOException
+	 *             throws if the bytes could not be moved.
+	 */
+	protected long transferThroughHeap(ReadableByteChannel src, long count)
+			throws IOException {
+		if (transferBuffer == null) {
+			transferBuffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+		}
+		transferBuffer.clear();
+		if (count < transferBuffer.capacity()) {
+			transferBuffer.limit((int) count);
+		}
+		int bytesRead = src.read(transferBuffer);
+		if (bytesRead <= 0) {
+			return 0;
+		}
+		transferBuffer.flip();
+		write(transferBuffer);
+		return bytesRead;
+	}
+
+	/**
+	 * Closes the file. If fewer bytes were written than preallocated, the
+	 * file is truncated to the bytes written.
+	 * 
+	 * @throws IOException
+	 *             throws if the file could not be truncated or closed.
+	 */
+	public void close() throws IOException {
+		try {
+			if (channel.size() > position) {
+				channel.truncate(position);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/**********************************************************************************
+
+   Copyright 2014 thei71
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package open.lpd.server.impl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * The options of spooling received files to queue folders, shared by all
+ * connections of a server.
+ */
+public class SpoolOptions {
+
+	public static final String DURABILITY_NONE = "none";
+	public static final String DURABILITY_JOB = "job";
+	public static final String DURABILITY_GROUP = "group";
+
+	private boolean preallocate;
+	private String durability;
+	private GroupCommit groupCommit;
+	private Set<String> compressedQueues;
+	private int compressionLevel;
+	private Set<String> deduplicatedQueues;
+	private ContentStore contentStore;
+
+	/**
+	 * Creates spool options that write files as they arrive and leave them
+	 * to the file system cache.
+	 */
+	public SpoolOptions() {
+		this.preallocate = false;
+		this.durability = DURABILITY_NONE;
+		this.groupCommit = null;
+		this.compressedQueues = Collections.emptySet();
+		this.compressionLevel = Deflater.BEST_SPEED;
+		this.deduplicatedQueues = Collections.emptySet();
+		this.contentStore = null;
+	}
+
+	public boolean isPreallocate() {
+		return preallocate;
+	}
+
+	/**
+	 * Sets whether files of an announced length are sized to that length
+	 * before they are received. No disk space is reserved, see
+	 * {@link SpoolFile}.
+	 * 
+	 * @param preallocate
+	 *            true to preallocate files.
+	 */
+	public void setPreallocate(boolean preallocate) {
+		this.preallocate = preallocate;
+	}
+
+	public String getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Sets when received files are forced to disk. A file is acknowledged to
+	 * the client only once it is durable.
+	 * <ul>
+	 * <li>{@link #DURABILITY_NONE}: files are left to the file system cache.</li>
+	 * <li>{@link #DURABILITY_JOB}: each file of a print job and its folders
+	 * are forced by the receiving thread before the file is acknowledged.</li>
+	 * <li>{@link #DURABILITY_GROUP}: files are forced in batches shared by
+	 * concurrent receivers, see {@link GroupCommit}.</li>
+	 * </ul>
+	 * 
+	 * @param durability
+	 *            the durability mode.
+	 * @param groupCommit
+	 *            the group commit shared by all connections, it is required
+	 *            for the group durability mode only.
+	 */
+	public void setDurability(String durability, GroupCommit groupCommit) {
+		if (!DURABILITY_NONE.equals(durability)
+				&& !DURABILITY_JOB.equals(durability)
+				&& !DURABILITY_GROUP.equals(durability)) {
+			throw new IllegalArgumentException("Unknown durability: "
+					+ durability);
+		}
+		if (DURABILITY_GROUP.equals(durability) && groupCommit == null) {
+			throw new IllegalArgumentException("Group commit is missing.");
+		}
+		this.durability = durability;
+		this.groupCommit = groupCommit;
+	}
+
+	public GroupCommit getGroupCommit() {
+		return groupCommit;
+	}
+
+	/**
+	 * Sets the queues whose data files are compressed while they are
+	 * received.
+	 * 
+	 * @param compressedQueues
+	 *            the names of the queues.
+	 * @param compressionLevel
+	 *            the deflate compression level, the fastest level suits
+	 *            receiving at network speed.
+	 */
+	public void setCompressedQueues(Collection<String> compressedQueues,
+			int compressionLevel) {
+		this.compressedQueues = new HashSet<String>(compressedQueues);
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Checks if the data files of a queue are compressed.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @return true if the data files are compressed.
+	 */
+	public boolean isCompressed(String queue) {
+		return compressedQueues.contains(queue);
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * Sets the queues whose data files are deduplicated. Each distinct
+	 * content of their data files is stored once in a content store that the
+	 * print job folders link to.
+	 * 
+	 * @param deduplicatedQueues
+	 *            the names of the queues.
+	 * @param contentStore
+	 *            the content store shared by all connections.
+	 */
+	public void setDeduplicatedQueues(Collection<String> deduplicatedQueues,
+			ContentStore contentStore) {
+		if (contentStore == null) {
+			throw new IllegalArgumentException("Content store is missing.");
+		}
+		this.deduplicatedQueues = new HashSet<String>(deduplicatedQueues);
+		this.contentStore = contentStore;
+	}
+
+	/**
+	 * Checks if the data files of a queue are deduplicated.
+	 * 
+	 * @param queue
+	 *            the name of the queue.
+	 * @return true if the data files are deduplicated.
+	 */
+	public boolean isDeduplicated(String queue) {
+		return deduplicatedQueues.contains(queue);
+	}
+
+	public ContentStore getContentStore() {
+		return contentStore;
+	}
+}
@@ -0,0 +1,61 @@
+package open.lpd;
+
+import java.io.IOException;
+
+import open.lpd.server.impl.AdmissionControl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdmissionControlTest {
+
+	@Test
+	public void testNoLimits() throws IOException {
+		AdmissionControl admissionControl = new AdmissionControl();
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertTrue(admissionControl.tryAcquireReceive("RAW"));
+		}
+		admissionControl.spooled(Long.MAX_VALUE);
+		Assert.assertEquals(0, admissionControl.getSpoolDelayNanos());
+		admissionControl.awaitSpoolRate();
+	}
+
+	@Test
+	public void testReceiveLimit() {
+		AdmissionControl admissionControl = new AdmissionControl(2, 0, 0);
+		Assert.assertTrue(admissionControl.tryAcquireReceive("RAW"));
+		Assert.assertTrue(admissionControl.tryAcquireReceive("TXT"));
+		Assert.assertFalse(admissionControl.tryAcquireReceive("PDF"));
+		admissionControl.releaseReceive("RAW");
+		Assert.assertTrue(admissionControl.tryAcquireReceive("PDF"));
+	}
+
+	@Test
+	public void testQueueReceiveLimit() {
+		AdmissionControl admissionControl = new AdmissionControl(3, 1, 0);
+		Assert.assertTrue(admissionControl.tryAcquireReceive("RAW"));
+		Assert.assertFalse(admissionControl.tryAcquireReceive("RAW"));
+		Assert.assertTrue(admissionControl.tryAcquireReceive("TXT"));
+		Assert.assertTrue(admissionControl.tryAcquireReceive("PDF"));
+
+		// a refused queue receive must not hold a global receive
+
+		admissionControl.releaseReceive("PDF");
+		Assert.assertFalse(admissionControl.tryAcquireReceive("TXT"));
+		Assert.assertTrue(admissionControl.tryAcquireReceive("AFP"));
+	}
+
+	@Test
+	public void testSpoolRate() throws IOException {
+		AdmissionControl admissionControl = new AdmissionControl(0, 0, 1000);
+		admissionControl.spooled(1000);
+		Assert.assertEquals(0, admissionControl.getSpoolDelayNanos());
+		admissionControl.spooled(500);
+		long delay = admissionControl.getSpoolDelayNanos();
+		Assert.assertTrue(delay > 400000000L && delay <= 500000001L);
+		long start = System.nanoTime();
+		admissionControl.awaitSpoolRate();
+		Assert.assertTrue(System.nanoTime() - start >= delay - 50000000L);
+		Assert.assertEquals(0, admissionControl.getSpoolDelayNanos());
+	}
+}
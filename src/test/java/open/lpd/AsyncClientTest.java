@@ -0,0 +1,271 @@
+package open.lpd;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import open.lpd.client.LpdAsyncClient;
+import open.lpd.server.LpdServerProtocol;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncClientTest {
+
+	private ServerSocket serverSocket;
+	private List<TestQueue> queues;
+	private AtomicInteger activeConnections;
+	private AtomicInteger maxActiveConnections;
+
+	@Before
+	public void startServer() throws IOException {
+
+		// serve each connection with the blocking server protocol and count
+		// the concurrent connections
+
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		queues = new ArrayList<TestQueue>();
+		activeConnections = new AtomicInteger();
+		maxActiveConnections = new AtomicInteger();
+		Thread acceptThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = serverSocket.accept();
+						new Thread(new Runnable() {
+
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						}).start();
+					}
+				} catch (IOException e) {
+
+					// server socket closed
+
+				}
+			}
+		});
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	@After
+	public void stopServer() throws IOException {
+		serverSocket.close();
+	}
+
+	private void serve(Socket socket) {
+		int active = activeConnections.incrementAndGet();
+		while (true) {
+			int max = maxActiveConnections.get();
+			if (active <= max
+					|| maxActiveConnections.compareAndSet(max, active)) {
+				break;
+			}
+		}
+		try {
+			try {
+				TestQueue queue = new TestQueue();
+				synchronized (queues) {
+					queues.add(queue);
+				}
+				LpdServerProtocol protocol = new LpdServerProtocol(
+						socket.getInputStream(), socket.getOutputStream(), queue);
+				protocol.setCharset(TestConstants.CHARSET);
+				Thread.sleep(20);
+				protocol.handle();
+			} finally {
+				activeConnections.decrementAndGet();
+				socket.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private TestQueue getServedQueue() throws InterruptedException {
+
+		// the server finishes the print job after sending the last ack, wait
+		// until the connection has been served
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (activeConnections.get() > 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		synchronized (queues) {
+			return queues.get(0);
+		}
+	}
+
+	private LpdAsyncClient createClient(int maxConnections) {
+		LpdAsyncClient client = new LpdAsyncClient(new InetSocketAddress(
+				serverSocket.getInetAddress(), serverSocket.getLocalPort()),
+				maxConnections);
+		client.setCharset(TestConstants.CHARSET);
+		client.setClientHost(TestConstants.CLIENT_HOST);
+		client.setUser(TestConstants.AGENT);
+		client.setTimeout(10000);
+		return client;
+	}
+
+	@Test
+	public void testSendFile() throws Exception {
+		LpdAsyncClient client = createClient(4);
+		client.sendFile(TestConstants.QUEUE, TestConstants.JOB,
+				ByteBuffer.wrap(TestConstants.DATA
+						.getBytes(TestConstants.CHARSET))).get(10,
+				TimeUnit.SECONDS);
+
+		// check queue methods have fired
+
+		TestQueue queue = getServedQueue();
+		Assert.assertTrue(queue.receiveAPrinterJobHasFired());
+		Assert.assertTrue(queue.receiveControlFileHasFired());
+		Assert.assertTrue(queue.receiveDataFileHasFired());
+		Assert.assertTrue(queue.finishedReceivingAPrinterJobHasFired());
+		Assert.assertFalse(queue.isDataFirst());
+	}
+
+	@Test
+	public void testSendFileFromPathDataFirst() throws Exception {
+		File file = File.createTempFile("lpd", ".dat");
+		try {
+			Files.write(file.toPath(),
+					TestConstants.DATA.getBytes(TestConstants.CHARSET));
+			LpdAsyncClient client = createClient(4);
+			client.setSendDataFirst(true);
+			client.sendFile(TestConstants.QUEUE, TestConstants.JOB,
+					file.toPath()).get(10, TimeUnit.SECONDS);
+		} finally {
+			file.delete();
+		}
+
+		// check queue methods have fired
+
+		TestQueue queue = getServedQueue();
+		Assert.assertTrue(queue.receiveControlFileHasFired());
+		Assert.assertTrue(queue.receiveDataFileHasFired());
+		Assert.assertTrue(queue.finishedReceivingAPrinterJobHasFired());
+		Assert.assertTrue(queue.isDataFirst());
+	}
+
+	@Test
+	public void testQueueStateWithConnectionLimit() throws Exception {
+		LpdAsyncClient client = createClient(2);
+		List<CompletableFuture<String>> states = new ArrayList<CompletableFuture<String>>();
+		for (int i = 0; i < 10; i++) {
+			states.add(client.getShortQueueState(TestConstants.QUEUE, null));
+			states.add(client.getLongQueueState(TestConstants.QUEUE, null));
+		}
+		for (int i = 0; i < states.size(); i += 2) {
+			Assert.assertEquals(TestConstants.SHORT_QUEUE_STATE,
+					states.get(i).get(10, TimeUnit.SECONDS));
+			Assert.assertEquals(TestConstants.LONG_QUEUE_STATE,
+					states.get(i + 1).get(10, TimeUnit.SECONDS));
+		}
+
+		// the commands ran on at most two connections at a time
+
+		Assert.assertEquals(20, queues.size());
+		Assert.assertTrue(maxActiveConnections.get() <= 2);
+		Assert.assertEquals(0, client.getWaitingCommandCount());
+	}
+
+	@Test
+	public void testRemoveJobs() throws Exception {
+		LpdAsyncClient client = createClient(1);
+		client.removeJobs(TestConstants.QUEUE, TestConstants.JOBS).get(10,
+				TimeUnit.SECONDS);
+		Assert.assertTrue(getServedQueue().removeJobsHasFired());
+	}
+
+	@Test
+	public void testConnectionRefused() throws Exception {
+
+		// a bound socket that does not listen refuses connections and keeps
+		// its port from being used by the client itself
+
+		Socket refusingSocket = new Socket();
+		try {
+			refusingSocket.bind(new InetSocketAddress(InetAddress
+					.getLoopbackAddress(), 0));
+			LpdAsyncClient client = new LpdAsyncClient(
+					refusingSocket.getLocalSocketAddress(), 1);
+			client.setTimeout(10000);
+			client.printQueue(TestConstants.QUEUE).get(10, TimeUnit.SECONDS);
+			Assert.fail();
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IOException);
+		} finally {
+			refusingSocket.close();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRemoveJobsWithoutUser() {
+		LpdAsyncClient client = createClient(1);
+		client.setUser(null);
+		client.removeJobs(TestConstants.QUEUE, TestConstants.JOBS);
+	}
+
+	@Test
+	public void testWaitingCommandsFailingRightAway() throws Exception {
+
+		// the only connection is held by a server that does not answer, the
+		// commands waiting behind it fail right away once the channel group
+		// is shut down and must all complete without deep recursion
+
+		ServerSocket silentSocket = new ServerSocket(0, 1,
+				InetAddress.getLoopbackAddress());
+		AsynchronousChannelGroup group = AsynchronousChannelGroup
+				.withThreadPool(Executors.newSingleThreadExecutor());
+		LpdAsyncClient client = new LpdAsyncClient(
+				silentSocket.getLocalSocketAddress(), 1, group);
+		client.setTimeout(10000);
+		List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+		try {
+			results.add(client.getShortQueueState(TestConstants.QUEUE, null));
+			Socket heldSocket = silentSocket.accept();
+			for (int i = 0; i < 20000; i++) {
+				results.add(client.getShortQueueState(TestConstants.QUEUE,
+						null));
+			}
+			group.shutdown();
+			heldSocket.close();
+			results.get(0).get(10, TimeUnit.SECONDS);
+		} finally {
+			silentSocket.close();
+		}
+		for (CompletableFuture<String> result : results.subList(1,
+				results.size())) {
+			try {
+				result.get(10, TimeUnit.SECONDS);
+				Assert.fail();
+			} catch (ExecutionException e) {
+				Assert.assertFalse(e.getCause() instanceof Error);
+			}
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package open.lpd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import open.lpd.client.LpdClientProtocol;
+import open.lpd.server.LpdServerChannelProtocol;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ChannelServerTest {
+
+	private String handle(LpdServerChannelProtocol serverProtocol,
+			String input, int chunkSize) throws IOException {
+
+		// feed the input in chunks like a slow client connection
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] bytes = input.getBytes(TestConstants.CHARSET);
+		for (int i = 0; i < bytes.length; i += chunkSize) {
+			serverProtocol.receive(ByteBuffer.wrap(bytes, i,
+					Math.min(chunkSize, bytes.length - i)));
+			serverProtocol.writeOutput(Channels.newChannel(bos));
+		}
+		serverProtocol.endOfInput();
+		serverProtocol.writeOutput(Channels.newChannel(bos));
+		Assert.assertTrue(serverProtocol.isFinished());
+		return bos.toString(TestConstants.CHARSET);
+	}
+
+	private LpdServerChannelProtocol createServerProtocol() {
+		LpdServerChannelProtocol serverProtocol = new LpdServerChannelProtocol(
+				new TestQueue());
+		serverProtocol.setCharset(TestConstants.CHARSET);
+		return serverProtocol;
+	}
+
+	@Test
+	public void testServerProtocolCmd1() throws IOException {
+		LpdServerChannelProtocol serverProtocol = createServerProtocol();
+		String response = handle(serverProtocol,
+				TestConstants.PRINT_ANY_WAITING_JOBS, 1);
+
+		// check response
+
+		Assert.assertEquals(TestConstants.NO_RESPONSE, response);
+
+		// check queue method has fired
+
+		TestQueue testQueue = (TestQueue) serverProtocol.getQueue();
+		Assert.assertEquals(1, testQueue.getInvocationCount());
+		Assert.assertTrue(testQueue.printAnyWaitingJobsHasFired());
+	}
+
+	@Test
+	public void testServerProtocolCmd2() throws IOException {
+		String controlData = "J" + TestConstants.JOB + LpdClientProtocol.LPD_LF;
+		String controlDataFile = TestConstants.SEND_FILE.replace(
+				TestConstants.CONTROL_DATA_LENGTH,
+				String.valueOf(controlData.length())).replace(
+				TestConstants.CONTROL_DATA_PATTERN, controlData);
+		for (int chunkSize = 1; chunkSize <= controlDataFile.length(); chunkSize++) {
+			LpdServerChannelProtocol serverProtocol = createServerProtocol();
+			String response = handle(serverProtocol, controlDataFile,
+					chunkSize);
+
+			// check response
+
+			Assert.assertEquals(TestConstants.ACK_STREAM, response);
+
+			// check queue method has fired
+
+			TestQueue testQueue = (TestQueue) serverProtocol.getQueue();
+			Assert.assertEquals(4, testQueue.getInvocationCount());
+			Assert.assertTrue(testQueue.receiveAPrinterJobHasFired());
+			Assert.assertTrue(testQueue.receiveControlFileHasFired());
+			Assert.assertTrue(testQueue.receiveDataFileHasFired());
+			Assert.assertTrue(testQueue.finishedReceivingAPrinterJobHasFired());
+			Assert.assertFalse(testQueue.isDataFirst());
+			Assert.assertEquals(controlData.length()
+					+ TestConstants.DATA.length(), testQueue.getBytesWritten());
+		}
+	}
+
+	@Test
+	public void testServerProtocolCmd2UnknownLength() throws IOException {
+		LpdServerChannelProtocol serverProtocol = createServerProtocol();
+		String response = handle(serverProtocol,
+				TestConstants.SEND_DATA_FILE_UNTIL_END, 4);
+
+		// check response
+
+		Assert.assertEquals(TestConstants.FILE_ACK_STREAM, response);
+
+		// check queue method has fired
+
+		TestQueue testQueue = (TestQueue) serverProtocol.getQueue();
+		Assert.assertEquals(3, testQueue.getInvocationCount());
+		Assert.assertTrue(testQueue.receiveDataFileHasFired());
+		Assert.assertTrue(testQueue.finishedReceivingAPrinterJobHasFired());
+		Assert.assertEquals(TestConstants.DATA.length(),
+				testQueue.getBytesWritten());
+	}
+
+	@Test
+	public void testServerProtocolCmd2UnknownLengthTransfer()
+			throws IOException {
+		LpdServerChannelProtocol serverProtocol = createServerProtocol();
+		String header = TestConstants.SEND_DATA_FILE_UNTIL_END.substring(0,
+				TestConstants.SEND_DATA_FILE_UNTIL_END.length()
+						- TestConstants.DATA.length());
+		serverProtocol.receive(ByteBuffer.wrap(header
+				.getBytes(TestConstants.CHARSET)));
+
+		// the data file of unknown length is moved from the channel until
+		// the end of input
+
+		Assert.assertTrue(serverProtocol.isReceivingFile());
+		Assert.assertEquals(TestConstants.DATA.length(), serverProtocol
+				.transferFile(Channels.newChannel(new ByteArrayInputStream(
+						TestConstants.DATA.getBytes(TestConstants.CHARSET)))));
+		serverProtocol.endOfInput();
+		TestQueue testQueue = (TestQueue) serverProtocol.getQueue();
+		Assert.assertTrue(testQueue.finishedReceivingAPrinterJobHasFired());
+		Assert.assertEquals(TestConstants.DATA.length(),
+				testQueue.getBytesWritten());
+	}
+
+	@Test
+	public void testServerProtocolCmd2CloseFileOnExecutor()
+			throws IOException {
+		String controlData = "J" + TestConstants.JOB + LpdClientProtocol.LPD_LF;
+		String controlDataFile = TestConstants.SEND_FILE.replace(
+				TestConstants.CONTROL_DATA_LENGTH,
+				String.valueOf(controlData.length())).replace(
+				TestConstants.CONTROL_DATA_PATTERN, controlData);
+		LpdServerChannelProtocol serverProtocol = createServerProtocol();
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		final AtomicInteger wakeups = new AtomicInteger();
+		serverProtocol.setJobExecutor(new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				tasks.add(command);
+			}
+		});
+		serverProtocol.setWakeup(new Runnable() {
+
+			@Override
+			public void run() {
+				wakeups.incrementAndGet();
+			}
+		});
+
+		// the whole print job arrives at once, each file is closed by the
+		// executor and acknowledged when the protocol resumes
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		serverProtocol.receive(ByteBuffer.wrap(controlDataFile
+				.getBytes(TestConstants.CHARSET)));
+		serverProtocol.endOfInput();
+		serverProtocol.writeOutput(Channels.newChannel(bos));
+		Assert.assertEquals(2, bos.size());
+		int files = 0;
+		while (serverProtocol.isSuspended()) {
+			Assert.assertEquals(1, tasks.size());
+			tasks.remove(0).run();
+			Assert.assertEquals(++files, wakeups.get());
+			serverProtocol.resume();
+		}
+		serverProtocol.writeOutput(Channels.newChannel(bos));
+		Assert.assertEquals(2, files);
+		Assert.assertTrue(serverProtocol.isFinished());
+		Assert.assertEquals(TestConstants.ACK_STREAM,
+				bos.toString(TestConstants.CHARSET));
+
+		// receiving the print job finishes on the executor as well
+
+		TestQueue testQueue = (TestQueue) serverProtocol.getQueue();
+		Assert.assertEquals(1, tasks.size());
+		tasks.remove(0).run();
+		Assert.assertTrue(testQueue.finishedReceivingAPrinterJobHasFired());
+	}
+
+	@Test
+	public void testServerProtocolCmd2Abort() throws IOException {
+		LpdServerChannelProtocol serverProtocol = createServerProtocol();
+		String response = handle(serverProtocol, TestConstants.ABORT_JOB, 3);
+
+		// check response
+
+		Assert.assertEquals(TestConstants.SINGLE_ACK_STREAM, response);
+
+		// check queue method has fired
+
+		TestQueue testQueue = (TestQueue) serverProtocol.getQueue();
+		Assert.assertEquals(3, testQueue.getInvocationCount());
+		Assert.assertTrue(testQueue.receiveAPrinterJobHasFired());
+		Assert.assertTrue(testQueue.abortJobHasFired());
+		Assert.assertTrue(testQueue.finishedReceivingAPrinterJobHasFired());
+	}
+
+	@Test
+	public void testServerProtocolCmd4() throws IOException {
+		LpdServerChannelProtocol serverProtocol = createServerProtocol();
+		String response = handle(serverProtocol,
+				TestConstants.GET_LONG_QUEUE_STATE, 2);
+
+		// check response
+
+		Assert.assertEquals(TestConstants.LONG_QUEUE_STATE, response);
+
+		// check queue method has fired
+
+		TestQueue testQueue = (TestQueue) serverProtocol.getQueue();
+		Assert.assertEquals(1, testQueue.getInvocationCount());
+		Assert.assertTrue(testQueue.sendQueueStateLongHasFired());
+	}
+}
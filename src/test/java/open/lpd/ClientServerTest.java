@@ -0,0 +1,260 @@
+package open.lpd;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import open.lpd.client.LpdAsyncClient;
+import open.lpd.client.LpdClientProtocol;
+import open.lpd.server.IPrintJobHandler;
+import open.lpd.server.LpdServerProtocol;
+import open.lpd.server.impl.AdmissionControl;
+import open.lpd.server.impl.LpdSelectorLoop;
+import open.lpd.server.impl.LpdServerMetrics;
+import open.lpd.server.impl.PrintJobDispatcher;
+import open.lpd.server.impl.PrintJobIndex;
+import open.lpd.server.impl.PrintJobQueueFactory;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ClientServerTest {
+
+	private static final String QUEUE = "RAW";
+	private static final String HOST = "localhost";
+	private static final String JOB = "job";
+	private static final String AGENT = "user";
+
+	@Rule
+	public TemporaryFolder queuesFolder = new TemporaryFolder();
+
+	private PrintJobQueueFactory queueFactory;
+	private BlockingQueue<Long> handledDataLengths;
+	private ServerSocket serverSocket;
+	private ServerSocketChannel serverChannel;
+	private Thread selectorThread;
+
+	@Before
+	public void setUp() throws IOException {
+		queuesFolder.newFolder(QUEUE);
+		PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		index.load();
+		handledDataLengths = new LinkedBlockingQueue<Long>();
+		PrintJobDispatcher dispatcher = new PrintJobDispatcher(
+				new IPrintJobHandler() {
+
+					@Override
+					public void handle(String queue, File printJobFolder) {
+
+						// report the length of the received data file
+
+						for (File file : printJobFolder.listFiles()) {
+							if (file.getName().startsWith("df")) {
+								handledDataLengths.add(file.length());
+							}
+						}
+					}
+				});
+		queueFactory = new PrintJobQueueFactory(index, dispatcher,
+				new AdmissionControl(), new LpdServerMetrics());
+	}
+
+	@After
+	public void tearDown() throws IOException, InterruptedException {
+		if (serverSocket != null) {
+			serverSocket.close();
+		}
+		if (serverChannel != null) {
+			serverChannel.close();
+		}
+		if (selectorThread != null) {
+			selectorThread.interrupt();
+			selectorThread.join();
+		}
+	}
+
+	private InetSocketAddress startSocketServer() throws IOException {
+
+		// serve each connection with the blocking server protocol
+
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread acceptThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = serverSocket.accept();
+						new Thread(new Runnable() {
+
+							@Override
+							public void run() {
+								try {
+									try {
+										LpdServerProtocol protocol = new LpdServerProtocol(
+												socket.getInputStream(),
+												socket.getOutputStream(),
+												queueFactory.createQueue());
+										protocol.handle();
+									} finally {
+										socket.close();
+									}
+								} catch (IOException e) {
+									e.printStackTrace();
+								}
+							}
+						}).start();
+					}
+				} catch (IOException e) {
+
+					// server socket closed
+
+				}
+			}
+		});
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+		return new InetSocketAddress(serverSocket.getInetAddress(),
+				serverSocket.getLocalPort());
+	}
+
+	private InetSocketAddress startSelectorServer() throws IOException {
+
+		// serve the connections with a selector loop, queue calls run on
+		// their own threads
+
+		final LpdSelectorLoop selectorLoop = new LpdSelectorLoop(queueFactory,
+				new AdmissionControl(), new LpdServerMetrics(),
+				new Executor() {
+
+					@Override
+					public void execute(Runnable command) {
+						new Thread(command).start();
+					}
+				});
+		selectorThread = new Thread(selectorLoop);
+		selectorThread.start();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(InetAddress
+				.getLoopbackAddress(), 0));
+		Thread acceptThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						selectorLoop.register(serverChannel.accept());
+					}
+				} catch (IOException e) {
+
+					// server channel closed
+
+				}
+			}
+		});
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+		return (InetSocketAddress) serverChannel.getLocalAddress();
+	}
+
+	private void sendFile(InetSocketAddress server, byte[] data,
+			boolean sendDataFirst) throws IOException {
+		SocketChannel socketChannel = SocketChannel.open(server);
+		try {
+			Socket socket = socketChannel.socket();
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(10000);
+			LpdClientProtocol clientProtocol = new LpdClientProtocol(
+					socket.getInputStream(), socket.getOutputStream());
+			clientProtocol.setServerChannel(socketChannel);
+			clientProtocol.setClientHost(HOST);
+			clientProtocol.setUser(AGENT);
+			clientProtocol.setSendDataFirst(sendDataFirst);
+			clientProtocol.sendFile(QUEUE, JOB,
+					new ByteArrayInputStream(data), data.length);
+		} finally {
+			socketChannel.close();
+		}
+	}
+
+	private void sendFileOfUnknownLength(InetSocketAddress server, byte[] data)
+			throws IOException {
+		SocketChannel socketChannel = SocketChannel.open(server);
+		try {
+			Socket socket = socketChannel.socket();
+			socket.setSoTimeout(10000);
+			LpdClientProtocol clientProtocol = new LpdClientProtocol(
+					socket.getInputStream(), socket.getOutputStream());
+			clientProtocol.setServerChannel(socketChannel);
+			clientProtocol.setClientHost(HOST);
+			clientProtocol.setUser(AGENT);
+			clientProtocol.sendFile(QUEUE, JOB, new ByteArrayInputStream(data));
+		} finally {
+			socketChannel.close();
+		}
+	}
+
+	private void sendFileAsync(InetSocketAddress server, byte[] data,
+			boolean sendDataFirst) throws Exception {
+		LpdAsyncClient client = new LpdAsyncClient(server, 1);
+		client.setClientHost(HOST);
+		client.setUser(AGENT);
+		client.setTimeout(10000);
+		client.setSendDataFirst(sendDataFirst);
+		client.sendFile(QUEUE, JOB, ByteBuffer.wrap(data)).get(10,
+				TimeUnit.SECONDS);
+	}
+
+	private void assertHandled(long dataLength) throws InterruptedException {
+		Assert.assertEquals(Long.valueOf(dataLength),
+				handledDataLengths.poll(10, TimeUnit.SECONDS));
+	}
+
+	private void testSendFiles(InetSocketAddress server) throws Exception {
+
+		// empty files end with the connection like files of unknown length,
+		// whichever file the client would send first
+
+		byte[] data = TestConstants.DATA.getBytes(TestConstants.CHARSET);
+		for (boolean sendDataFirst : new boolean[] { false, true }) {
+			sendFile(server, new byte[0], sendDataFirst);
+			assertHandled(0);
+			sendFile(server, data, sendDataFirst);
+			assertHandled(data.length);
+			sendFileAsync(server, new byte[0], sendDataFirst);
+			assertHandled(0);
+			sendFileAsync(server, data, sendDataFirst);
+			assertHandled(data.length);
+		}
+		sendFileOfUnknownLength(server, data);
+		assertHandled(data.length);
+		sendFileOfUnknownLength(server, new byte[0]);
+		assertHandled(0);
+	}
+
+	@Test
+	public void testSocketServer() throws Exception {
+		testSendFiles(startSocketServer());
+	}
+
+	@Test
+	public void testSelectorServer() throws Exception {
+		testSendFiles(startSelectorServer());
+	}
+}
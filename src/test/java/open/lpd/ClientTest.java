@@ -19,9 +19,14 @@ package open.lpd;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.regex.Pattern;
 
 import open.lpd.client.LpdClientProtocol;
@@ -72,6 +77,46 @@ public class ClientTest {
 				bos.toString(TestConstants.CHARSET)));
 	}
 
+	@Test
+	public void testClientProtocolCmd2FileChannel() throws IOException {
+
+		File file = File.createTempFile("lpd", ".dat");
+		try {
+			FileOutputStream fos = new FileOutputStream(file);
+			fos.write(TestConstants.DATA.getBytes(TestConstants.CHARSET));
+			fos.close();
+
+			// send the file once copied through the stream and once
+			// transferred to the server channel
+
+			for (boolean transfer : new boolean[] { false, true }) {
+				byte[] ackStream = TestConstants.ACK_STREAM
+						.getBytes(TestConstants.CHARSET);
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				LpdClientProtocol clientProtocol = createClientProtocol(
+						new ByteArrayInputStream(ackStream), bos);
+				if (transfer) {
+					clientProtocol.setServerChannel(Channels.newChannel(bos));
+				}
+				FileChannel fileChannel = new FileInputStream(file)
+						.getChannel();
+				try {
+					clientProtocol.sendFile(TestConstants.QUEUE,
+							TestConstants.JOB, fileChannel);
+				} finally {
+					fileChannel.close();
+				}
+
+				// check command
+
+				Assert.assertTrue(Pattern.matches(TestConstants.SEND_FILE,
+						bos.toString(TestConstants.CHARSET)));
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
 	@Test
 	public void testClientProtocolCmd2DataFirst() throws IOException {
 
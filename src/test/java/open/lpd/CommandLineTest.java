@@ -0,0 +1,88 @@
+package open.lpd;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import open.lpd.client.LpdClientProtocol;
+import open.lpd.server.LpdCommandLine;
+import open.lpd.server.LpdServerProtocol;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CommandLineTest {
+
+	private static final String[] LINES = { "", " ", "  ", "RAW",
+			"RAW ", " RAW", "RAW  test", "RAW\ttest\u000btest\r",
+			TestConstants.QUEUE + LpdClientProtocol.LPD_WHITESPACE
+					+ TestConstants.JOBS,
+			TestConstants.QUEUE + LpdClientProtocol.LPD_WHITESPACE
+					+ TestConstants.AGENT + LpdClientProtocol.LPD_WHITESPACE
+					+ TestConstants.JOBS, "123 dfA000" + TestConstants.CLIENT_HOST };
+
+	private LpdCommandLine readLine(String line) throws IOException {
+		LpdCommandLine commandLine = new LpdCommandLine();
+		commandLine.read(new ByteArrayInputStream((line + LpdClientProtocol.LPD_LF)
+				.getBytes(TestConstants.CHARSET)));
+		return commandLine;
+	}
+
+	@Test
+	public void testOperandsMatchSplit() throws IOException {
+		for (String line : LINES) {
+			String[] expected = line.split(LpdServerProtocol.REGEXP_WHITESPACE);
+			LpdCommandLine commandLine = readLine(line);
+			Assert.assertEquals(line, commandLine.getLine());
+			Assert.assertEquals(line, expected.length,
+					commandLine.getOperandCount());
+			for (int i = 0; i < expected.length; i++) {
+				Assert.assertEquals(line, expected[i], commandLine.getOperand(i));
+			}
+		}
+	}
+
+	@Test
+	public void testOperandsFromBuffer() throws IOException {
+		LpdCommandLine commandLine = new LpdCommandLine();
+		byte[] bytes = ("123 dfA000" + TestConstants.CLIENT_HOST
+				+ LpdClientProtocol.LPD_LF + "x").getBytes(TestConstants.CHARSET);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, 5);
+		Assert.assertFalse(commandLine.read(buffer));
+		buffer.limit(bytes.length);
+		Assert.assertTrue(commandLine.read(buffer));
+		Assert.assertEquals(1, buffer.remaining());
+		Assert.assertEquals(123, commandLine.getOperandAsInt(0));
+		Assert.assertEquals("dfA000" + TestConstants.CLIENT_HOST,
+				commandLine.getOperand(1));
+	}
+
+	@Test
+	public void testNumbers() throws IOException {
+		Assert.assertEquals(0, readLine("0 cfA").getOperandAsLong(0));
+		Assert.assertEquals(5000000000L, readLine("5000000000 dfA")
+				.getOperandAsLong(0));
+		Assert.assertEquals(Long.MAX_VALUE, readLine(
+				String.valueOf(Long.MAX_VALUE)).getOperandAsLong(0));
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidNumber() throws IOException {
+		readLine("12a dfA").getOperandAsLong(0);
+	}
+
+	@Test(expected = IOException.class)
+	public void testNumberOverflow() throws IOException {
+		readLine("9223372036854775808 dfA").getOperandAsLong(0);
+	}
+
+	@Test(expected = IOException.class)
+	public void testIntOverflow() throws IOException {
+		readLine("5000000000 dfA").getOperandAsInt(0);
+	}
+
+	@Test(expected = IOException.class)
+	public void testMissingOperand() throws IOException {
+		readLine("123").getOperand(1);
+	}
+}
@@ -0,0 +1,250 @@
+package open.lpd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import open.lpd.server.IPrintJobHandler;
+import open.lpd.server.LpdServerChannelProtocol;
+import open.lpd.server.LpdServerProtocol;
+import open.lpd.server.impl.AdmissionControl;
+import open.lpd.server.impl.FileBasedPrintJobQueue;
+import open.lpd.server.impl.IndexedFile;
+import open.lpd.server.impl.LpdServerMetrics;
+import open.lpd.server.impl.PrintJobDispatcher;
+import open.lpd.server.impl.PrintJobIndex;
+import open.lpd.server.impl.PrintJobRecovery;
+import open.lpd.server.impl.SpoolCompression;
+import open.lpd.server.impl.SpoolOptions;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompressionTest {
+
+	private static final String QUEUE = "RAW";
+	private static final String CHARSET = "ISO-8859-1";
+	private static final String CONTROL_FILE = "cfA000localhost";
+	private static final String DATA_FILE = "dfA000localhost";
+	private static final String CONTROL_DATA = "Puser\nl" + DATA_FILE + "\n";
+
+	@Rule
+	public TemporaryFolder queuesFolder = new TemporaryFolder();
+
+	@Rule
+	public TemporaryFolder quarantineFolder = new TemporaryFolder();
+
+	private PrintJobIndex index;
+	private LpdServerMetrics metrics;
+	private List<String> handledData = new ArrayList<String>();
+
+	@Before
+	public void setUp() throws IOException {
+		queuesFolder.newFolder(QUEUE);
+		index = new PrintJobIndex(queuesFolder.getRoot().getPath());
+		index.load();
+		metrics = new LpdServerMetrics();
+	}
+
+	private FileBasedPrintJobQueue createQueue() {
+
+		// the handler reads the data file under its received name, nothing
+		// is expanded for it
+
+		FileBasedPrintJobQueue queue = new FileBasedPrintJobQueue(index,
+				new PrintJobDispatcher(new IPrintJobHandler() {
+
+					@Override
+					public void handle(String queue, File printJobFolder)
+							throws IOException {
+						Assert.assertFalse(new File(printJobFolder, DATA_FILE)
+								.exists());
+						InputStream in = SpoolCompression.openReceivedFile(
+								printJobFolder, DATA_FILE);
+						try {
+							handledData.add(readAll(in));
+						} finally {
+							in.close();
+						}
+					}
+				}), new AdmissionControl(), metrics);
+		SpoolOptions spoolOptions = new SpoolOptions();
+		spoolOptions.setCompressedQueues(Arrays.asList(QUEUE),
+				Deflater.BEST_SPEED);
+		queue.setSpoolOptions(spoolOptions);
+		return queue;
+	}
+
+	private static String readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int bytesRead;
+		while ((bytesRead = in.read(buffer)) != -1) {
+			bos.write(buffer, 0, bytesRead);
+		}
+		return bos.toString(CHARSET);
+	}
+
+	private byte[] getSendFile(String data) throws IOException {
+		return ("\u0002" + QUEUE + "\n\u0002" + CONTROL_DATA.length() + " "
+				+ CONTROL_FILE + "\n" + CONTROL_DATA + "\u0000\u0003"
+				+ data.length() + " " + DATA_FILE + "\n" + data + "\u0000")
+				.getBytes(CHARSET);
+	}
+
+	private String createData() {
+		StringBuilder data = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			data.append("%!PS-Adobe-3.0 showpage ").append(i % 10)
+					.append("\n");
+		}
+		return data.toString();
+	}
+
+	private File getPrintJobFolder() {
+		File[] printJobFolders = new File(queuesFolder.getRoot(), QUEUE)
+				.listFiles();
+		Assert.assertEquals(1, printJobFolders.length);
+		return printJobFolders[0];
+	}
+
+	private void assertCompressed(String data) throws IOException {
+
+		// only the compressed data file is kept, the handler has seen the
+		// received bytes
+
+		File printJobFolder = getPrintJobFolder();
+		File compressedFile = new File(printJobFolder, DATA_FILE + ".lpd.gz");
+		Assert.assertTrue(compressedFile.isFile());
+		Assert.assertFalse(new File(printJobFolder, DATA_FILE).exists());
+		Assert.assertTrue(compressedFile.length() * 10 < data.length());
+		Assert.assertEquals(data.length(),
+				SpoolCompression.readLength(compressedFile));
+		InputStream in = SpoolCompression.openInputStream(compressedFile);
+		try {
+			Assert.assertEquals(data, readAll(in));
+		} finally {
+			in.close();
+		}
+		Assert.assertEquals(Arrays.asList(data), handledData);
+
+		// the index lists the data file under its received name
+
+		IndexedFile dataFile = index.getPrintJob(QUEUE,
+				printJobFolder.getName()).getFiles().get(1);
+		Assert.assertEquals(DATA_FILE, dataFile.getName());
+		Assert.assertEquals(data.length(), dataFile.getLength());
+		Assert.assertEquals(compressedFile.length(),
+				dataFile.getStoredLength());
+	}
+
+	@Test
+	public void testReceiveCompressed() throws IOException {
+		String data = createData();
+		FileBasedPrintJobQueue queue = createQueue();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		LpdServerProtocol serverProtocol = new LpdServerProtocol(
+				new ByteArrayInputStream(getSendFile(data)), bos, queue);
+		serverProtocol.handle();
+		Assert.assertEquals(TestConstants.ACK_STREAM, bos.toString(CHARSET));
+		assertCompressed(data);
+		Assert.assertEquals(data.length(), metrics.getCompressedReceivedBytes());
+
+		// the long queue state shows both lengths
+
+		String state = queue.sendQueueStateLong(QUEUE, null);
+		Assert.assertTrue(state, state.contains(DATA_FILE + " ("
+				+ data.length() + " byte, "));
+		Assert.assertTrue(state, state.contains(" byte compressed)"));
+	}
+
+	@Test
+	public void testChannelReceiveCompressed() throws IOException {
+		String data = createData();
+		LpdServerChannelProtocol serverProtocol = new LpdServerChannelProtocol(
+				createQueue());
+		byte[] bytes = getSendFile(data);
+		for (int i = 0; i < bytes.length; i += 1000) {
+			serverProtocol.receive(ByteBuffer.wrap(bytes, i,
+					Math.min(1000, bytes.length - i)));
+		}
+		serverProtocol.endOfInput();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		serverProtocol.writeOutput(Channels.newChannel(bos));
+		Assert.assertEquals(TestConstants.ACK_STREAM, bos.toString(CHARSET));
+		assertCompressed(data);
+	}
+
+	@Test
+	public void testLoadAndRecoverCompressed() throws IOException {
+		String data = createData();
+		new LpdServerProtocol(new ByteArrayInputStream(getSendFile(data)),
+				new ByteArrayOutputStream(), createQueue()).handle();
+		String printJob = getPrintJobFolder().getName();
+
+		// an expanded copy left behind is not listed
+
+		Files.write(new File(getPrintJobFolder(), DATA_FILE).toPath(),
+				data.getBytes(CHARSET));
+		PrintJobIndex loadedIndex = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		loadedIndex.load();
+		List<IndexedFile> files = loadedIndex.getPrintJob(QUEUE, printJob)
+				.getFiles();
+		Assert.assertEquals(2, files.size());
+
+		// the data file named by the control file is found compressed
+
+		PrintJobIndex recoveredIndex = new PrintJobIndex(queuesFolder
+				.getRoot().getPath());
+		PrintJobRecovery recovery = new PrintJobRecovery(quarantineFolder
+				.getRoot().getPath(), 0);
+		recovery.recover(recoveredIndex);
+		Assert.assertEquals(1, recovery.getCompletePrintJobs());
+		IndexedFile dataFile = null;
+		for (IndexedFile file : recoveredIndex.getPrintJob(QUEUE, printJob)
+				.getFiles()) {
+			if (file.getName().equals(DATA_FILE)) {
+				dataFile = file;
+			}
+		}
+		Assert.assertTrue(dataFile.isCompressed());
+		Assert.assertEquals(data.length(), dataFile.getLength());
+
+		// the recovery has deleted the expanded copy
+
+		Assert.assertFalse(new File(getPrintJobFolder(), DATA_FILE).exists());
+	}
+
+	@Test
+	public void testExpand() throws IOException {
+		String data = createData();
+		new LpdServerProtocol(new ByteArrayInputStream(getSendFile(data)),
+				new ByteArrayOutputStream(), createQueue()).handle();
+		File printJobFolder = getPrintJobFolder();
+
+		// an expanded copy left behind is replaced and deleted again
+
+		File expandedFile = new File(printJobFolder, DATA_FILE);
+		Files.write(expandedFile.toPath(), "stale".getBytes(CHARSET));
+		List<File> expandedFiles = SpoolCompression.expand(printJobFolder);
+		Assert.assertEquals(Arrays.asList(expandedFile), expandedFiles);
+		Assert.assertEquals(data, new String(Files.readAllBytes(expandedFile
+				.toPath()), CHARSET));
+		SpoolCompression.collapse(expandedFiles);
+		Assert.assertFalse(expandedFile.exists());
+		Assert.assertEquals(2, printJobFolder.listFiles().length);
+	}
+}
@@ -0,0 +1,181 @@
+package open.lpd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import open.lpd.server.DeadlineInputStream;
+import open.lpd.server.LpdDeadlines;
+import open.lpd.server.LpdServerChannelProtocol;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DeadlineTest {
+
+	private static final LpdDeadlines DEADLINES = new LpdDeadlines(1000,
+			2000, 100, 3000);
+
+	@Test
+	public void testFileTimeout() {
+		Assert.assertEquals(2000, DEADLINES.getFileTimeout(0));
+		Assert.assertEquals(2010, DEADLINES.getFileTimeout(1));
+		Assert.assertEquals(12000, DEADLINES.getFileTimeout(1000));
+		Assert.assertEquals(0, new LpdDeadlines(1000, 2000, 0, 3000)
+				.getFileTimeout(1000));
+		Assert.assertEquals(0, new LpdDeadlines(1000, 0, 100, 3000)
+				.getFileTimeout(1000));
+	}
+
+	@Test
+	public void testChannelProtocolDeadlines() throws IOException {
+
+		// the first phase starts when the protocol is created
+
+		long now = System.currentTimeMillis();
+		LpdServerChannelProtocol serverProtocol = new LpdServerChannelProtocol(
+				new TestQueue());
+		serverProtocol.setCharset(TestConstants.CHARSET);
+		Assert.assertEquals(0, serverProtocol.getDeadline());
+		serverProtocol.setDeadlines(DEADLINES);
+		assertDeadline(now + 1000, serverProtocol.getDeadline());
+
+		// the command line starts the sub command phase
+
+		serverProtocol.receive(ByteBuffer.wrap(("\u0002" + TestConstants.QUEUE
+				+ "\n").getBytes(TestConstants.CHARSET)));
+		assertDeadline(now + 2000, serverProtocol.getDeadline());
+
+		// the file content must arrive at the minimum rate
+
+		serverProtocol.receive(ByteBuffer.wrap("\u000310 dfA000host\n"
+				.getBytes(TestConstants.CHARSET)));
+		assertDeadline(now + 2000, serverProtocol.getDeadline());
+		serverProtocol.receive(ByteBuffer.wrap("12345"
+				.getBytes(TestConstants.CHARSET)));
+		assertDeadline(now + 2050, serverProtocol.getDeadline());
+		serverProtocol.suspendDeadline(500);
+		assertDeadline(now + 2550, serverProtocol.getDeadline());
+		serverProtocol.receive(ByteBuffer.wrap("67890"
+				.getBytes(TestConstants.CHARSET)));
+		assertDeadline(now + 3000, serverProtocol.getDeadline());
+		serverProtocol.receive(ByteBuffer.wrap(new byte[] { 0 }));
+		assertDeadline(now + 2000, serverProtocol.getDeadline());
+
+		// no deadline applies once the protocol has finished
+
+		serverProtocol.endOfInput();
+		Assert.assertEquals(0, serverProtocol.getDeadline());
+	}
+
+	private void assertDeadline(long expected, long deadline) {
+		Assert.assertTrue("deadline " + deadline + " expected " + expected,
+				deadline >= expected && deadline < expected + 200);
+	}
+
+	@Test
+	public void testDeadlineInputStream() throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0, 1,
+				InetAddress.getLoopbackAddress());
+		try {
+			Socket clientSocket = new Socket(InetAddress.getLoopbackAddress(),
+					serverSocket.getLocalPort());
+			Socket socket = serverSocket.accept();
+			try {
+				DeadlineInputStream in = new DeadlineInputStream(socket,
+						new LpdDeadlines(200, 200, 1000, 200));
+
+				// a byte sent in time is received
+
+				OutputStream out = clientSocket.getOutputStream();
+				out.write(1);
+				out.flush();
+				in.startCommandDeadline();
+				Assert.assertEquals(1, in.read());
+
+				// a client that sends nothing misses the deadline
+
+				long start = System.currentTimeMillis();
+				try {
+					in.startSubCommandDeadline();
+					in.read();
+					Assert.fail();
+				} catch (SocketTimeoutException e) {
+					Assert.assertTrue(System.currentTimeMillis() - start >= 150);
+				}
+
+				// the file deadline grows with the bytes received
+
+				out.write(new byte[100]);
+				out.flush();
+				in.startFileDeadline();
+				byte[] buffer = new byte[100];
+				int bytesRead = 0;
+				while (bytesRead < buffer.length) {
+					bytesRead += in.read(buffer, bytesRead, buffer.length
+							- bytesRead);
+				}
+				start = System.currentTimeMillis();
+				try {
+					in.read();
+					Assert.fail();
+				} catch (SocketTimeoutException e) {
+					long waited = System.currentTimeMillis() - start;
+					Assert.assertTrue(waited >= 250);
+				}
+			} finally {
+				socket.close();
+				clientSocket.close();
+			}
+		} finally {
+			serverSocket.close();
+		}
+	}
+
+	@Test
+	public void testDeadlineInputStreamWithoutSubCommandTimeout()
+			throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0, 1,
+				InetAddress.getLoopbackAddress());
+		try {
+			Socket clientSocket = new Socket(InetAddress.getLoopbackAddress(),
+					serverSocket.getLocalPort());
+			Socket socket = serverSocket.accept();
+			try {
+				DeadlineInputStream in = new DeadlineInputStream(socket,
+						new LpdDeadlines(200, 0, 1024, 200));
+
+				// the content of a file is not limited either, the first
+				// byte arriving late is still received
+
+				in.startFileDeadline();
+				final OutputStream out = clientSocket.getOutputStream();
+				Thread sender = new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							Thread.sleep(100);
+							out.write(1);
+							out.flush();
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+				});
+				sender.start();
+				Assert.assertEquals(1, in.read());
+				Assert.assertEquals(0, socket.getSoTimeout());
+			} finally {
+				socket.close();
+				clientSocket.close();
+			}
+		} finally {
+			serverSocket.close();
+		}
+	}
+}
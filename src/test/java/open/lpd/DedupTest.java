@@ -0,0 +1,257 @@
+package open.lpd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import open.lpd.server.IPrintJobHandler;
+import open.lpd.server.LpdServerChannelProtocol;
+import open.lpd.server.LpdServerProtocol;
+import open.lpd.server.PrintJob;
+import open.lpd.server.impl.AdmissionControl;
+import open.lpd.server.impl.ContentStore;
+import open.lpd.server.impl.FileBasedPrintJobQueue;
+import open.lpd.server.impl.GroupCommit;
+import open.lpd.server.impl.LpdServerMetrics;
+import open.lpd.server.impl.PrintJobDispatcher;
+import open.lpd.server.impl.PrintJobIndex;
+import open.lpd.server.impl.SpoolOptions;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DedupTest {
+
+	private static final String QUEUE = "RAW";
+	private static final String CHARSET = "ISO-8859-1";
+	private static final String CONTROL_FILE = "cfA000localhost";
+	private static final String DATA_FILE = "dfA000localhost";
+	private static final String CONTROL_DATA = "Puser\nl" + DATA_FILE + "\n";
+	private static final String DATA = "^XA^FO50,50^FDLabel^FS^XZ\n";
+
+	@Rule
+	public TemporaryFolder queuesFolder = new TemporaryFolder();
+
+	@Rule
+	public TemporaryFolder contentFolder = new TemporaryFolder();
+
+	private PrintJobIndex index;
+	private ContentStore contentStore;
+
+	@Before
+	public void setUp() throws IOException {
+		queuesFolder.newFolder(QUEUE);
+		index = new PrintJobIndex(queuesFolder.getRoot().getPath());
+		index.load();
+		contentStore = new ContentStore(contentFolder.getRoot().getPath());
+		contentStore.load();
+	}
+
+	private FileBasedPrintJobQueue createQueue(boolean compressed) {
+		return createQueue(compressed, null);
+	}
+
+	private FileBasedPrintJobQueue createQueue(boolean compressed,
+			GroupCommit groupCommit) {
+		FileBasedPrintJobQueue queue = new FileBasedPrintJobQueue(index,
+				new PrintJobDispatcher(new IPrintJobHandler() {
+
+					@Override
+					public void handle(String queue, File printJobFolder) {
+						// print jobs are kept
+					}
+				}), new AdmissionControl(), new LpdServerMetrics());
+		SpoolOptions spoolOptions = new SpoolOptions();
+		spoolOptions.setDeduplicatedQueues(Arrays.asList(QUEUE), contentStore);
+		if (compressed) {
+			spoolOptions.setCompressedQueues(Arrays.asList(QUEUE),
+					Deflater.BEST_SPEED);
+		}
+		if (groupCommit != null) {
+			spoolOptions.setDurability(SpoolOptions.DURABILITY_GROUP,
+					groupCommit);
+		}
+		queue.setSpoolOptions(spoolOptions);
+		return queue;
+	}
+
+	private byte[] getSendFile(String data) throws IOException {
+		return ("\u0002" + QUEUE + "\n\u0002" + CONTROL_DATA.length() + " "
+				+ CONTROL_FILE + "\n" + CONTROL_DATA + "\u0000\u0003"
+				+ data.length() + " " + DATA_FILE + "\n" + data + "\u0000")
+				.getBytes(CHARSET);
+	}
+
+	private void send(String data) throws IOException {
+		send(data, createQueue(false));
+	}
+
+	private void send(String data, FileBasedPrintJobQueue queue)
+			throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		new LpdServerProtocol(new ByteArrayInputStream(getSendFile(data)),
+				bos, queue).handle();
+		Assert.assertEquals(TestConstants.ACK_STREAM, bos.toString(CHARSET));
+	}
+
+	private void sendChannel(String data) throws IOException {
+		LpdServerChannelProtocol serverProtocol = new LpdServerChannelProtocol(
+				createQueue(true));
+		byte[] bytes = getSendFile(data);
+		for (int i = 0; i < bytes.length; i += 7) {
+			serverProtocol.receive(ByteBuffer.wrap(bytes, i,
+					Math.min(7, bytes.length - i)));
+		}
+		serverProtocol.endOfInput();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		serverProtocol.writeOutput(Channels.newChannel(bos));
+		Assert.assertEquals(TestConstants.ACK_STREAM, bos.toString(CHARSET));
+	}
+
+	private File[] getPrintJobFolders() {
+		File[] printJobFolders = new File(queuesFolder.getRoot(), QUEUE)
+				.listFiles();
+		Arrays.sort(printJobFolders);
+		return printJobFolders;
+	}
+
+	private int getLinkCount(File file) throws IOException {
+		return (Integer) Files.getAttribute(file.toPath(), "unix:nlink");
+	}
+
+	@Test
+	public void testDuplicateIsNotForced() throws IOException {
+		GroupCommit groupCommit = new GroupCommit(0);
+		try {
+
+			// the first print job forces both files, the print job folder
+			// and the queue folder
+
+			send(DATA, createQueue(false, groupCommit));
+			Assert.assertEquals(5, groupCommit.getCommittedFiles());
+
+			// the duplicate data file is linked before anything is forced,
+			// only the print job folder that holds the link is forced for it
+
+			send(DATA, createQueue(false, groupCommit));
+			Assert.assertEquals(9, groupCommit.getCommittedFiles());
+			Assert.assertEquals(1, contentStore.getDeduplicatedFiles());
+		} finally {
+			groupCommit.close();
+		}
+	}
+
+	@Test
+	public void testReceiveDeduplicated() throws IOException {
+		send(DATA);
+		send(DATA);
+		send(DATA + "copy 2\n");
+
+		// the equal data files link to one stored content, the control files
+		// are not deduplicated
+
+		File[] printJobFolders = getPrintJobFolders();
+		Assert.assertEquals(3, printJobFolders.length);
+		File first = new File(printJobFolders[0], DATA_FILE);
+		File second = new File(printJobFolders[1], DATA_FILE);
+		Assert.assertEquals(DATA, new String(Files.readAllBytes(second
+				.toPath()), CHARSET));
+		Assert.assertEquals(ContentStore.getFileKey(first),
+				ContentStore.getFileKey(second));
+		Assert.assertEquals(3, getLinkCount(first));
+		Assert.assertEquals(1, getLinkCount(new File(printJobFolders[0],
+				CONTROL_FILE)));
+		Assert.assertEquals(2, contentStore.getStoredContents());
+		Assert.assertEquals(1, contentStore.getDeduplicatedFiles());
+		Assert.assertEquals(DATA.length(), contentStore.getDeduplicatedBytes());
+		Assert.assertEquals(DATA.length(), index.getPrintJob(QUEUE,
+				printJobFolders[1].getName()).getFiles().get(1).getLength());
+	}
+
+	@Test
+	public void testChannelReceiveDeduplicatedCompressed() throws IOException {
+		sendChannel(DATA);
+		sendChannel(DATA);
+
+		// the compressed data files link to one stored compressed content
+
+		File[] printJobFolders = getPrintJobFolders();
+		File first = new File(printJobFolders[0], DATA_FILE + ".lpd.gz");
+		File second = new File(printJobFolders[1], DATA_FILE + ".lpd.gz");
+		Assert.assertEquals(ContentStore.getFileKey(first),
+				ContentStore.getFileKey(second));
+		Assert.assertEquals(1, contentStore.getStoredContents());
+		Assert.assertEquals(1, contentStore.getDeduplicatedFiles());
+	}
+
+	@Test
+	public void testUnlinkedFileIsKept() throws IOException {
+
+		// the content folder is a file, so no content can be linked
+
+		contentStore = new ContentStore(contentFolder.newFile("content")
+				.getPath());
+		send(DATA);
+		File[] printJobFolders = getPrintJobFolders();
+		Assert.assertEquals(DATA.length(), new File(printJobFolders[0],
+				DATA_FILE).length());
+		Assert.assertEquals(0, contentStore.getStoredContents());
+		Assert.assertEquals(1, contentStore.getUnlinkedFiles());
+	}
+
+	@Test
+	public void testRemoveJobsReleasesContents() throws IOException {
+		send(DATA);
+		send(DATA);
+		createQueue(false).removeJobs(QUEUE, PrintJob.ROOT, new String[] { "user" });
+
+		// the stored content is deleted with the last print job linking to it
+
+		Assert.assertEquals(0, getPrintJobFolders().length);
+		Assert.assertEquals(0, contentStore.getStoredContents());
+		Assert.assertEquals(1, contentStore.getReleasedContents());
+		for (File prefixFolder : contentFolder.getRoot().listFiles()) {
+			Assert.assertEquals(0, prefixFolder.list().length);
+		}
+	}
+
+	@Test
+	public void testSweepReleasesDeletedPrintJobs() throws IOException {
+		send(DATA);
+		send(DATA + "copy 2\n");
+
+		// a handler deletes a print job folder, a sweep releases its content
+
+		File printJobFolder = getPrintJobFolders()[0];
+		for (File file : printJobFolder.listFiles()) {
+			file.delete();
+		}
+		printJobFolder.delete();
+		contentStore.sweep();
+		Assert.assertEquals(1, contentStore.getStoredContents());
+		Assert.assertEquals(1, contentStore.getReleasedContents());
+
+		// a content store loaded after the remaining print job is deleted
+		// releases its content too
+
+		printJobFolder = getPrintJobFolders()[0];
+		for (File file : printJobFolder.listFiles()) {
+			file.delete();
+		}
+		printJobFolder.delete();
+		ContentStore loadedStore = new ContentStore(contentFolder.getRoot()
+				.getPath());
+		loadedStore.load();
+		Assert.assertEquals(0, loadedStore.getStoredContents());
+		Assert.assertEquals(1, loadedStore.getReleasedContents());
+	}
+}
@@ -0,0 +1,149 @@
+package open.lpd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import open.lpd.client.LpdClientProtocol;
+import open.lpd.server.IPrintJobHandler;
+import open.lpd.server.LpdServerProtocol;
+import open.lpd.server.impl.AdmissionControl;
+import open.lpd.server.impl.FileBasedPrintJobQueue;
+import open.lpd.server.impl.GroupCommit;
+import open.lpd.server.impl.LpdServerMetrics;
+import open.lpd.server.impl.PrintJobDispatcher;
+import open.lpd.server.impl.PrintJobIndex;
+import open.lpd.server.impl.SpoolOptions;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DurabilityTest {
+
+	private static final String QUEUE = "RAW";
+	private static final String HOST = "localhost";
+	private static final String CONTROL_DATA = "Puser"
+			+ LpdClientProtocol.LPD_LF;
+
+	@Rule
+	public TemporaryFolder queuesFolder = new TemporaryFolder();
+
+	private PrintJobIndex index;
+	private LpdServerMetrics metrics;
+
+	@Before
+	public void setUp() throws IOException {
+		queuesFolder.newFolder(QUEUE);
+		index = new PrintJobIndex(queuesFolder.getRoot().getPath());
+		index.load();
+		metrics = new LpdServerMetrics();
+	}
+
+	private FileBasedPrintJobQueue createQueue(SpoolOptions spoolOptions) {
+		FileBasedPrintJobQueue queue = new FileBasedPrintJobQueue(index,
+				new PrintJobDispatcher(new IPrintJobHandler() {
+
+					@Override
+					public void handle(String queue, File printJobFolder) {
+					}
+				}), new AdmissionControl(), metrics);
+		queue.setSpoolOptions(spoolOptions);
+		return queue;
+	}
+
+	private String handle(FileBasedPrintJobQueue queue) throws IOException {
+
+		// queue and file names are kept to ascii for the queue folder
+
+		String sendFile = TestConstants.SEND_FILE
+				.replace(TestConstants.QUEUE, QUEUE)
+				.replace(TestConstants.CLIENT_HOST, HOST)
+				.replace(TestConstants.CONTROL_DATA_LENGTH,
+						String.valueOf(CONTROL_DATA.length()))
+				.replace(TestConstants.CONTROL_DATA_PATTERN, CONTROL_DATA);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		LpdServerProtocol serverProtocol = new LpdServerProtocol(
+				new ByteArrayInputStream(sendFile
+						.getBytes(TestConstants.CHARSET)), bos, queue);
+		serverProtocol.setCharset(TestConstants.CHARSET);
+		serverProtocol.handle();
+		return bos.toString(TestConstants.CHARSET);
+	}
+
+	@Test
+	public void testJobDurability() throws IOException {
+		SpoolOptions spoolOptions = new SpoolOptions();
+		spoolOptions.setDurability(SpoolOptions.DURABILITY_JOB, null);
+		Assert.assertEquals(TestConstants.ACK_STREAM,
+				handle(createQueue(spoolOptions)));
+
+		// the control file and the data file have been forced
+
+		Assert.assertEquals(2, metrics.getDurableFiles());
+		Assert.assertEquals(1, index.getPrintJobs(QUEUE).size());
+	}
+
+	@Test
+	public void testGroupDurability() throws Exception {
+		final GroupCommit groupCommit = new GroupCommit(20);
+		final SpoolOptions spoolOptions = new SpoolOptions();
+		spoolOptions.setDurability(SpoolOptions.DURABILITY_GROUP, groupCommit);
+		metrics.setGroupCommit(groupCommit);
+		ExecutorService executorService = Executors.newFixedThreadPool(8);
+		try {
+
+			// concurrent receivers share batches
+
+			List<Future<String>> responses = new ArrayList<Future<String>>();
+			for (int i = 0; i < 8; i++) {
+				responses.add(executorService.submit(new Callable<String>() {
+
+					@Override
+					public String call() throws IOException {
+						return handle(createQueue(spoolOptions));
+					}
+				}));
+			}
+			for (Future<String> response : responses) {
+				Assert.assertEquals(TestConstants.ACK_STREAM, response.get());
+			}
+		} finally {
+			executorService.shutdown();
+			groupCommit.close();
+		}
+		Assert.assertEquals(8, index.getPrintJobs(QUEUE).size());
+		Assert.assertEquals(16, metrics.getDurableFiles());
+		Assert.assertTrue(metrics.getGroupCommitBatches() < 16);
+	}
+
+	@Test
+	public void testGroupCommitForcesFoldersOnce() throws IOException {
+		GroupCommit groupCommit = new GroupCommit(0);
+		try {
+			File file = queuesFolder.newFile("dfA000localhost");
+			groupCommit.commit(Arrays.asList(file, queuesFolder.getRoot()));
+			groupCommit.commit(Arrays.asList(queuesFolder.getRoot(),
+					queuesFolder.getRoot()));
+		} finally {
+			groupCommit.close();
+		}
+		Assert.assertEquals(2, groupCommit.getBatches());
+		Assert.assertEquals(3, groupCommit.getCommittedFiles());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownDurability() {
+		new SpoolOptions().setDurability("always", null);
+	}
+}
@@ -0,0 +1,42 @@
+package open.lpd;
+
+import open.lpd.client.impl.LatencySamples;
+import open.lpd.client.impl.LpdLoadGenerator;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LoadGeneratorTest {
+
+	@Test
+	public void testPercentiles() {
+		LatencySamples samples = new LatencySamples();
+		Assert.assertEquals(0, samples.getPercentile(50));
+		for (int i = 1000; i >= 1; i--) {
+			samples.record(i);
+		}
+		LatencySamples merged = new LatencySamples();
+		merged.add(samples);
+		merged.add(samples);
+		Assert.assertEquals(2000, merged.getCount());
+		Assert.assertEquals(500, merged.getPercentile(50));
+		Assert.assertEquals(990, merged.getPercentile(99));
+		Assert.assertEquals(999, merged.getPercentile(99.9));
+		Assert.assertEquals(1000, merged.getPercentile(100));
+		Assert.assertEquals(1, merged.getPercentile(0));
+	}
+
+	@Test
+	public void testParseSizes() {
+		int[][] distribution = LpdLoadGenerator
+				.parseSizes("1024:70, 65536:25,1048576");
+		Assert.assertArrayEquals(new int[] { 1024, 65536, 1048576 },
+				distribution[0]);
+		Assert.assertArrayEquals(new int[] { 70, 25, 1 }, distribution[1]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidSizes() {
+		LpdLoadGenerator.parseSizes("1024:-1");
+	}
+}
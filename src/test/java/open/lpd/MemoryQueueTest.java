@@ -0,0 +1,260 @@
+package open.lpd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import open.lpd.client.LpdClientProtocol;
+import open.lpd.server.IMemoryPrintJobHandler;
+import open.lpd.server.IPrintJobQueue;
+import open.lpd.server.LpdServerChannelProtocol;
+import open.lpd.server.LpdServerProtocol;
+import open.lpd.server.PrintJob;
+import open.lpd.server.impl.AdmissionControl;
+import open.lpd.server.impl.DirectBufferPool;
+import open.lpd.server.impl.FileBasedPrintJobQueue;
+import open.lpd.server.impl.LpdServerMetrics;
+import open.lpd.server.impl.MemoryFile;
+import open.lpd.server.impl.MemoryPrintJob;
+import open.lpd.server.impl.MemoryPrintJobQueue;
+import open.lpd.server.impl.MemoryPrintJobStore;
+import open.lpd.server.impl.PrintJobDispatcher;
+import open.lpd.server.impl.PrintJobIndex;
+import open.lpd.server.impl.PrintJobQueueFactory;
+import open.lpd.server.impl.RoutingPrintJobQueue;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MemoryQueueTest {
+
+	private static final int CHUNK_SIZE = 16;
+	private static final String CONTROL_DATA = "Puser"
+			+ LpdClientProtocol.LPD_LF;
+	private static final String DATA_FILE = "dfA000"
+			+ TestConstants.CLIENT_HOST;
+
+	@Rule
+	public TemporaryFolder queuesFolder = new TemporaryFolder();
+
+	private MemoryPrintJobStore store;
+	private PrintJobDispatcher dispatcher;
+	private List<String> handledData = new ArrayList<String>();
+	private boolean handlerFails;
+
+	private void createStore(long capacity, String policy) {
+		store = new MemoryPrintJobStore(Arrays.asList(TestConstants.QUEUE),
+				new DirectBufferPool(capacity, CHUNK_SIZE), policy);
+		dispatcher = new PrintJobDispatcher(null);
+		dispatcher.setMemoryHandler(new IMemoryPrintJobHandler() {
+
+			@Override
+			public void handle(String queue, MemoryPrintJob printJob)
+					throws IOException {
+
+				// read the data file from the pooled buffers
+
+				if (handlerFails) {
+					throw new IOException("Handler failed.");
+				}
+				MemoryFile dataFile = printJob.getFile(DATA_FILE);
+				Assert.assertEquals("user", printJob.getPrintJob().getUser());
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				dataFile.writeTo(Channels.newChannel(bos));
+				handledData.add(bos.toString(TestConstants.CHARSET));
+			}
+		});
+	}
+
+	private MemoryPrintJobQueue createQueue() {
+		return new MemoryPrintJobQueue(store, dispatcher,
+				new AdmissionControl(), new LpdServerMetrics());
+	}
+
+	private String getSendFile() {
+		return TestConstants.SEND_FILE.replace(
+				TestConstants.CONTROL_DATA_LENGTH,
+				String.valueOf(CONTROL_DATA.length())).replace(
+				TestConstants.CONTROL_DATA_PATTERN, CONTROL_DATA);
+	}
+
+	private String handle(IPrintJobQueue queue, String input)
+			throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		LpdServerProtocol serverProtocol = new LpdServerProtocol(
+				new ByteArrayInputStream(input.getBytes(TestConstants.CHARSET)),
+				bos, queue);
+		serverProtocol.setCharset(TestConstants.CHARSET);
+		try {
+			serverProtocol.handle();
+		} catch (IOException e) {
+
+			// a synchronous dispatcher passes the handler failure on
+
+			if (!handlerFails) {
+				throw e;
+			}
+		}
+		return bos.toString(TestConstants.CHARSET);
+	}
+
+	private String handleChannel(MemoryPrintJobQueue queue, String input,
+			int chunkSize) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		LpdServerChannelProtocol serverProtocol = new LpdServerChannelProtocol(
+				queue);
+		serverProtocol.setCharset(TestConstants.CHARSET);
+		byte[] bytes = input.getBytes(TestConstants.CHARSET);
+		for (int i = 0; i < bytes.length; i += chunkSize) {
+			serverProtocol.receive(ByteBuffer.wrap(bytes, i,
+					Math.min(chunkSize, bytes.length - i)));
+		}
+		try {
+			serverProtocol.endOfInput();
+		} catch (IOException e) {
+			if (!handlerFails) {
+				throw e;
+			}
+		}
+		serverProtocol.writeOutput(Channels.newChannel(bos));
+		return bos.toString(TestConstants.CHARSET);
+	}
+
+	@Test
+	public void testReceiveAndHandle() throws IOException {
+		createStore(1024, MemoryPrintJobStore.POLICY_REJECT);
+		String response = handle(createQueue(), getSendFile());
+
+		// check response and handled print job, its buffers are reused
+
+		Assert.assertEquals(TestConstants.ACK_STREAM, response);
+		Assert.assertEquals(Arrays.asList(TestConstants.DATA), handledData);
+		Assert.assertTrue(store.getPrintJobs(TestConstants.QUEUE).isEmpty());
+		Assert.assertEquals(0, store.getPool().getUsedBytes());
+	}
+
+	@Test
+	public void testChannelReceiveAndHandle() throws IOException {
+		createStore(1024, MemoryPrintJobStore.POLICY_REJECT);
+		String response = handleChannel(createQueue(), getSendFile(), 3);
+
+		// check response and handled print job
+
+		Assert.assertEquals(TestConstants.ACK_STREAM, response);
+		Assert.assertEquals(Arrays.asList(TestConstants.DATA), handledData);
+		Assert.assertEquals(0, store.getPool().getUsedBytes());
+	}
+
+	@Test
+	public void testFailedHandlerKeepsPrintJob() throws IOException {
+		createStore(1024, MemoryPrintJobStore.POLICY_REJECT);
+		handlerFails = true;
+		handle(createQueue(), getSendFile());
+		Assert.assertEquals(1, store.getPrintJobs(TestConstants.QUEUE).size());
+		String state = createQueue().sendQueueStateLong(TestConstants.QUEUE,
+				null);
+		Assert.assertTrue(state.contains(DATA_FILE + " ("
+				+ TestConstants.DATA.length() + " byte)"));
+
+		// print the waiting print job again
+
+		handlerFails = false;
+		handle(createQueue(), TestConstants.PRINT_ANY_WAITING_JOBS);
+		Assert.assertEquals(Arrays.asList(TestConstants.DATA), handledData);
+		Assert.assertTrue(store.getPrintJobs(TestConstants.QUEUE).isEmpty());
+	}
+
+	@Test
+	public void testRejectWhenFull() throws IOException {
+
+		// a print job takes one chunk for the control file and two chunks for
+		// the data file, the second print job only fits its control file
+
+		createStore(4 * CHUNK_SIZE, MemoryPrintJobStore.POLICY_REJECT);
+		handlerFails = true;
+		Assert.assertEquals(TestConstants.ACK_STREAM,
+				handle(createQueue(), getSendFile()));
+		Assert.assertEquals("\u0000\u0000\u0000\u0000\u0005",
+				handle(createQueue(), getSendFile()));
+		Assert.assertEquals(1, store.getRejectedFiles());
+		Assert.assertEquals(2, store.getPrintJobs(TestConstants.QUEUE).size());
+		Assert.assertEquals(4 * CHUNK_SIZE, store.getPool().getUsedBytes());
+	}
+
+	@Test
+	public void testEvictWhenFull() throws IOException {
+		createStore(4 * CHUNK_SIZE, MemoryPrintJobStore.POLICY_EVICT);
+		handlerFails = true;
+		handle(createQueue(), getSendFile());
+		String firstPrintJob = store.getPrintJobs(TestConstants.QUEUE)
+				.iterator().next().getName();
+		Assert.assertEquals(TestConstants.ACK_STREAM,
+				handleChannel(createQueue(), getSendFile(), 5));
+
+		// the oldest waiting print job made room for the new one
+
+		Assert.assertEquals(1, store.getEvictedPrintJobs());
+		Assert.assertEquals(1, store.getPrintJobs(TestConstants.QUEUE).size());
+		Assert.assertFalse(firstPrintJob.equals(store
+				.getPrintJobs(TestConstants.QUEUE).iterator().next().getName()));
+		Assert.assertEquals(3 * CHUNK_SIZE, store.getPool().getUsedBytes());
+	}
+
+	@Test
+	public void testRemoveJobs() throws IOException {
+		createStore(1024, MemoryPrintJobStore.POLICY_REJECT);
+		handlerFails = true;
+		handle(createQueue(), getSendFile());
+		createQueue().removeJobs(TestConstants.QUEUE, PrintJob.ROOT,
+				new String[] { "user" });
+		Assert.assertTrue(store.getPrintJobs(TestConstants.QUEUE).isEmpty());
+		Assert.assertEquals(0, store.getPool().getUsedBytes());
+	}
+
+	@Test
+	public void testRouting() throws IOException {
+		createStore(1024, MemoryPrintJobStore.POLICY_REJECT);
+		handlerFails = true;
+		queuesFolder.newFolder("RAW");
+		PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		index.load();
+		RoutingPrintJobQueue queue = new RoutingPrintJobQueue(
+				new FileBasedPrintJobQueue(index, dispatcher,
+						new AdmissionControl(), new LpdServerMetrics()),
+				createQueue(), store);
+		handle(queue, getSendFile());
+
+		// the memory queue holds the print job, the queue folder stays empty
+
+		Assert.assertEquals(1, store.getPrintJobs(TestConstants.QUEUE).size());
+		Assert.assertEquals(0, new File(queuesFolder.getRoot(), "RAW").list().length);
+		Assert.assertEquals("", queue.sendQueueStateShort("RAW", null));
+		Assert.assertEquals("Queue PDF does not exist.",
+				queue.sendQueueStateShort("PDF", null));
+	}
+
+	@Test
+	public void testQueueFactory() throws IOException {
+		createStore(1024, MemoryPrintJobStore.POLICY_REJECT);
+		PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		index.load();
+		PrintJobQueueFactory queueFactory = new PrintJobQueueFactory(index,
+				dispatcher, new AdmissionControl(), new LpdServerMetrics());
+
+		// connections serve queue folders only until there are memory queues
+
+		Assert.assertTrue(queueFactory.createQueue() instanceof FileBasedPrintJobQueue);
+		queueFactory.setMemoryStore(store);
+		Assert.assertTrue(queueFactory.createQueue() instanceof RoutingPrintJobQueue);
+	}
+}
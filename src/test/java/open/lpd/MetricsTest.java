@@ -0,0 +1,78 @@
+package open.lpd;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import open.lpd.server.LpdServerProtocol;
+import open.lpd.server.impl.LatencyHistogram;
+import open.lpd.server.impl.LpdServerMetrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetricsTest {
+
+	@Test
+	public void testHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		Assert.assertEquals(0, histogram.getPercentile(99));
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i * 1000L);
+		}
+		Assert.assertEquals(100, histogram.getCount());
+		Assert.assertEquals(100000, histogram.getMax());
+
+		// percentiles are reported as the upper bound of a power of two
+		// bucket
+
+		long p50 = histogram.getPercentile(50);
+		Assert.assertTrue(p50 >= 50000 && p50 < 100000);
+		Assert.assertEquals(100000, histogram.getPercentile(99));
+		Assert.assertEquals(100000, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void testMetrics() {
+		LpdServerMetrics metrics = new LpdServerMetrics();
+		metrics.connectionOpened();
+		metrics.connectionOpened();
+		metrics.connectionClosed();
+		metrics.commandExecuted(LpdServerProtocol.CMD_SEND_QUEUE_STATE_LONG,
+				TimeUnit.MILLISECONDS.toNanos(2));
+		metrics.commandExecuted(0, 1);
+		metrics.spooled("RAW", 1000, TimeUnit.MILLISECONDS.toNanos(1));
+		metrics.spooled("RAW", 1000, TimeUnit.MILLISECONDS.toNanos(1));
+		metrics.dispatched(1000, true);
+		Assert.assertEquals(1, metrics.getActiveConnections());
+		Assert.assertEquals(2, metrics.getConnections());
+		Assert.assertEquals(Long.valueOf(1),
+				metrics.getCommandCounts().get("sendQueueStateLong"));
+		Assert.assertEquals(Long.valueOf(0),
+				metrics.getCommandCounts().get("removeJobs"));
+		Assert.assertEquals(Long.valueOf(2000), metrics
+				.getCommandLatencyMaxMicros().get("sendQueueStateLong"));
+		Assert.assertEquals(Long.valueOf(2000), metrics
+				.getBytesReceivedPerQueue().get("RAW"));
+		Assert.assertEquals(1000000, metrics.getSpoolWriteBytesPerSecond());
+		Assert.assertEquals(1, metrics.getDispatchCount());
+		Assert.assertEquals(1, metrics.getDispatchFailures());
+	}
+
+	@Test
+	public void testRegister() throws Exception {
+		MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("open.lpd:type=LpdServer,port=0");
+		LpdServerMetrics metrics = new LpdServerMetrics();
+		metrics.connectionRejected();
+		mbeanServer.registerMBean(metrics, name);
+		try {
+			Assert.assertEquals(Long.valueOf(1),
+					mbeanServer.getAttribute(name, "ConnectionsRejected"));
+		} finally {
+			mbeanServer.unregisterMBean(name);
+		}
+	}
+}
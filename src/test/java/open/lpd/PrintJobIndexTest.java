@@ -0,0 +1,199 @@
+package open.lpd;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import open.lpd.server.PrintJob;
+import open.lpd.server.impl.IndexedPrintJob;
+import open.lpd.server.impl.PrintJobIndex;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PrintJobIndexTest {
+
+	private static final String QUEUE = "RAW";
+
+	@Rule
+	public TemporaryFolder queuesFolder = new TemporaryFolder();
+
+	private File createPrintJob(String queue, String printJob, String name,
+			int length) throws IOException {
+		File printJobFolder = new File(new File(queuesFolder.getRoot(), queue),
+				printJob);
+		printJobFolder.mkdirs();
+		FileOutputStream fos = new FileOutputStream(new File(printJobFolder,
+				name));
+		try {
+			fos.write(new byte[length]);
+		} finally {
+			fos.close();
+		}
+		return printJobFolder;
+	}
+
+	@Test
+	public void testLoad() throws IOException {
+		createPrintJob(QUEUE, "2", "cfA000localhost", 10);
+		createPrintJob(QUEUE, "1", "dfA000localhost", 20);
+		new File(queuesFolder.getRoot(), "TXT").mkdir();
+		PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		index.load();
+		Assert.assertTrue(index.queueExists(QUEUE));
+		Assert.assertTrue(index.queueExists("TXT"));
+		Assert.assertFalse(index.queueExists("PDF"));
+		Assert.assertFalse(index.queueExists(null));
+		Assert.assertEquals(2, index.getPrintJobs(QUEUE).size());
+		Assert.assertEquals("1", index.getPrintJobs(QUEUE)
+				.iterator().next().getName());
+		IndexedPrintJob printJob = index.getPrintJob(QUEUE, "1");
+		Assert.assertEquals(1, printJob.getFiles().size());
+		Assert.assertEquals(20, printJob.getFiles().get(0).getLength());
+		Assert.assertTrue(index.getPrintJobs("TXT").isEmpty());
+		Assert.assertTrue(index.getPrintJobs("PDF").isEmpty());
+	}
+
+	@Test
+	public void testAddAndRemove() throws IOException {
+		new File(queuesFolder.getRoot(), QUEUE).mkdir();
+		PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		index.load();
+		index.addFile(QUEUE, "1", "cfA000localhost", 10, null);
+		index.addFile(QUEUE, "1", "dfA000localhost", 20, null);
+		index.addFile(QUEUE, "1", "dfA000localhost", 30, null);
+		index.addFile("PDF", "1", "dfA000localhost", 30, null);
+		IndexedPrintJob printJob = index.getPrintJob(QUEUE, "1");
+		Assert.assertEquals(2, printJob.getFiles().size());
+		Assert.assertEquals(30, printJob.getFiles().get(1).getLength());
+		Assert.assertNull(index.getPrintJob("PDF", "1"));
+		index.removePrintJob(QUEUE, "1");
+		Assert.assertNull(index.getPrintJob(QUEUE, "1"));
+	}
+
+	@Test
+	public void testLoadControlFile() throws IOException {
+		File printJobFolder = createPrintJob(QUEUE, "1", "dfA042localhost",
+				20);
+		FileOutputStream fos = new FileOutputStream(new File(printJobFolder,
+				"cfA042localhost"));
+		try {
+			fos.write(("Hlocalhost\nPtest\nJjob\nldfA042localhost\n")
+					.getBytes(TestConstants.CHARSET));
+		} finally {
+			fos.close();
+		}
+		PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		index.load();
+		PrintJob printJob = index.getPrintJob(QUEUE, "1").getPrintJob();
+		Assert.assertEquals(42, printJob.getJobNumber());
+		Assert.assertEquals("test", printJob.getUser());
+		Assert.assertEquals("localhost", printJob.getHost());
+		Assert.assertEquals("job", printJob.getJobName());
+		Assert.assertEquals(1, printJob.getDataFiles().size());
+	}
+
+	@Test
+	public void testNextPrintJobName() throws IOException {
+		createPrintJob(QUEUE, "1406576720765-41", "dfA000localhost", 20);
+		createPrintJob("TXT", "1406576408562-7", "dfA000localhost", 20);
+		PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		index.load();
+		Assert.assertTrue(index.nextPrintJobName().endsWith("-42"));
+		Assert.assertTrue(index.nextPrintJobName().endsWith("-43"));
+	}
+
+	@Test
+	public void testWatch() throws IOException, InterruptedException {
+		new File(queuesFolder.getRoot(), QUEUE).mkdir();
+		PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		index.startWatching();
+		try {
+
+			// changes made outside the server show up in the index
+
+			File printJobFolder = createPrintJob(QUEUE, "1",
+					"dfA000localhost", 20);
+			for (int i = 0; i < 100
+					&& index.getPrintJob(QUEUE, "1") == null; i++) {
+				Thread.sleep(50);
+			}
+			Assert.assertNotNull(index.getPrintJob(QUEUE, "1"));
+			new File(printJobFolder, "dfA000localhost").delete();
+			printJobFolder.delete();
+			for (int i = 0; i < 100
+					&& index.getPrintJob(QUEUE, "1") != null; i++) {
+				Thread.sleep(50);
+			}
+			Assert.assertNull(index.getPrintJob(QUEUE, "1"));
+		} finally {
+			index.stopWatching();
+		}
+	}
+
+	@Test
+	public void testReceivingPrintJobIsNotScanned() throws IOException {
+		new File(queuesFolder.getRoot(), QUEUE).mkdir();
+		PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		index.load();
+
+		// a print job folder that is still being received is left to its
+		// receiver
+
+		index.startReceiving(QUEUE, "1");
+		createPrintJob(QUEUE, "1", "cfA000localhost", 10);
+		index.load();
+		Assert.assertNull(index.getPrintJob(QUEUE, "1"));
+		index.finishReceiving(QUEUE, "1");
+		index.load();
+		Assert.assertNotNull(index.getPrintJob(QUEUE, "1"));
+	}
+
+	@Test
+	public void testConcurrentAddFile() throws Exception {
+		new File(queuesFolder.getRoot(), QUEUE).mkdir();
+		new File(queuesFolder.getRoot(), "TXT").mkdir();
+		final PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		index.load();
+
+		// receivers add files to one print job and to print jobs of another
+		// queue at the same time, no file is lost
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			final int thread = i;
+			threads.add(new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int j = 0; j < 250; j++) {
+						index.addFile(QUEUE, "1", "dfA" + thread + "-" + j, j,
+								null);
+						index.addFile("TXT", thread + "-" + j, "dfA000", j,
+								null);
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(1000, index.getPrintJob(QUEUE, "1").getFiles()
+				.size());
+		Assert.assertEquals(1000, index.getPrintJobs("TXT").size());
+	}
+}
@@ -0,0 +1,74 @@
+package open.lpd;
+
+import java.io.UnsupportedEncodingException;
+
+import open.lpd.client.LpdClientProtocol;
+import open.lpd.server.PrintJob;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrintJobTest {
+
+	private static final String CONTROL_FILE = "H" + TestConstants.CLIENT_HOST
+			+ LpdClientProtocol.LPD_LF + "P" + TestConstants.AGENT
+			+ LpdClientProtocol.LPD_LF + "J" + TestConstants.JOB
+			+ LpdClientProtocol.LPD_LF + "CA" + LpdClientProtocol.LPD_LF
+			+ "ldfA123" + TestConstants.CLIENT_HOST + LpdClientProtocol.LPD_LF
+			+ "ldfA123" + TestConstants.CLIENT_HOST + LpdClientProtocol.LPD_LF
+			+ "UdfA123" + TestConstants.CLIENT_HOST + LpdClientProtocol.LPD_LF
+			+ "fdfB123" + TestConstants.CLIENT_HOST;
+
+	private PrintJob parse(String name, String controlFile)
+			throws UnsupportedEncodingException {
+		return PrintJob.parse(name, controlFile.getBytes(TestConstants.CHARSET));
+	}
+
+	@Test
+	public void testParse() throws UnsupportedEncodingException {
+		PrintJob printJob = parse("cfA123" + TestConstants.CLIENT_HOST,
+				CONTROL_FILE);
+		Assert.assertEquals(123, printJob.getJobNumber());
+		Assert.assertEquals(TestConstants.CLIENT_HOST, printJob.getHost());
+		Assert.assertEquals(TestConstants.AGENT, printJob.getUser());
+		Assert.assertEquals(TestConstants.JOB, printJob.getJobName());
+		Assert.assertEquals("A", printJob.getJobClass());
+		Assert.assertEquals(2, printJob.getDataFiles().size());
+		Assert.assertEquals("dfA123" + TestConstants.CLIENT_HOST, printJob
+				.getDataFiles().get(0));
+		Assert.assertEquals("dfB123" + TestConstants.CLIENT_HOST, printJob
+				.getDataFiles().get(1));
+	}
+
+	@Test
+	public void testParseEmpty() throws UnsupportedEncodingException {
+		PrintJob printJob = parse("cfAxyz", "");
+		Assert.assertEquals(-1, printJob.getJobNumber());
+		Assert.assertNull(printJob.getUser());
+		Assert.assertTrue(printJob.getDataFiles().isEmpty());
+	}
+
+	@Test
+	public void testMatches() throws UnsupportedEncodingException {
+		PrintJob printJob = parse("cfA007" + TestConstants.CLIENT_HOST,
+				CONTROL_FILE);
+		Assert.assertTrue(printJob.matches(TestConstants.AGENT));
+		Assert.assertTrue(printJob.matches("7"));
+		Assert.assertTrue(printJob.matches("007"));
+		Assert.assertFalse(printJob.matches("8"));
+		Assert.assertFalse(printJob.matches("1007"));
+		Assert.assertFalse(printJob.matches(TestConstants.JOB));
+	}
+
+	@Test
+	public void testMatchesAgent() throws UnsupportedEncodingException {
+		PrintJob printJob = parse("cfA007" + TestConstants.CLIENT_HOST,
+				CONTROL_FILE);
+		Assert.assertTrue(printJob.matches(TestConstants.AGENT, "7"));
+		Assert.assertFalse(printJob.matches(TestConstants.AGENT,
+				TestConstants.AGENT));
+		Assert.assertFalse(printJob.matches("other", "7"));
+		Assert.assertTrue(printJob.matches(PrintJob.ROOT, "7"));
+		Assert.assertTrue(printJob.matches(PrintJob.ROOT, TestConstants.AGENT));
+	}
+}
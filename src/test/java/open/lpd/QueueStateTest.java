@@ -0,0 +1,156 @@
+package open.lpd;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import open.lpd.client.LpdClientProtocol;
+import open.lpd.server.LpdServerChannelProtocol;
+import open.lpd.server.LpdServerProtocol;
+import open.lpd.server.PrintJob;
+import open.lpd.server.impl.AdmissionControl;
+import open.lpd.server.impl.FileBasedPrintJobQueue;
+import open.lpd.server.impl.LpdServerMetrics;
+import open.lpd.server.impl.PrintJobDispatcher;
+import open.lpd.server.impl.PrintJobIndex;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class QueueStateTest {
+
+	private static final String QUEUE = "RAW";
+	private static final String CHARSET = "ASCII";
+	private static final int PRINT_JOB_COUNT = 2000;
+
+	@Rule
+	public TemporaryFolder queuesFolder = new TemporaryFolder();
+
+	private FileBasedPrintJobQueue queue;
+
+	@Before
+	public void setUp() throws IOException {
+
+		// add print jobs to the index only, the state commands do not read
+		// the print job folders
+
+		queuesFolder.newFolder(QUEUE);
+		PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		index.load();
+		for (int i = 0; i < PRINT_JOB_COUNT; i++) {
+			String jobNumber = String.format("%03d", i % 1000);
+			String controlFileName = "cfA" + jobNumber + "localhost";
+			byte[] controlFile = ("Hlocalhost\nPuser" + (i % 10) + "\nJjob"
+					+ i + "\nldfA" + jobNumber + "localhost\n")
+					.getBytes(CHARSET);
+			String printJob = index.nextPrintJobName();
+			index.addFile(QUEUE, printJob, controlFileName,
+					controlFile.length,
+					PrintJob.parse(controlFileName, controlFile));
+			index.addFile(QUEUE, printJob, "dfA" + jobNumber + "localhost",
+					i, null);
+		}
+		queue = new FileBasedPrintJobQueue(index,
+				new PrintJobDispatcher(null), new AdmissionControl(),
+				new LpdServerMetrics());
+	}
+
+	@Test
+	public void testWriteMatchesSend() throws IOException {
+		StringWriter shortState = new StringWriter();
+		queue.writeQueueStateShort(QUEUE, null, shortState);
+		Assert.assertEquals(queue.sendQueueStateShort(QUEUE, null),
+				shortState.toString());
+		StringWriter longState = new StringWriter();
+		queue.writeQueueStateLong(QUEUE, new String[] { "user3" }, longState);
+		Assert.assertEquals(
+				queue.sendQueueStateLong(QUEUE, new String[] { "user3" }),
+				longState.toString());
+		StringWriter missingQueue = new StringWriter();
+		queue.writeQueueStateShort("PDF", null, missingQueue);
+		Assert.assertEquals("Queue PDF does not exist.",
+				missingQueue.toString());
+	}
+
+	@Test
+	public void testRemoveJobsOfOtherUser() throws IOException {
+
+		// another agent neither selects print jobs by user name nor by job
+		// number
+
+		queue.removeJobs(QUEUE, "user4", new String[] { "user3", "3" });
+		Assert.assertEquals(PRINT_JOB_COUNT,
+				queue.sendQueueStateShort(QUEUE, null).split("\n").length);
+
+		// the user removes its own print jobs by job number, root removes
+		// print jobs by user name
+
+		queue.removeJobs(QUEUE, "user3", new String[] { "3" });
+		Assert.assertEquals(PRINT_JOB_COUNT - 2,
+				queue.sendQueueStateShort(QUEUE, null).split("\n").length);
+		queue.removeJobs(QUEUE, PrintJob.ROOT, new String[] { "user3" });
+		Assert.assertEquals(PRINT_JOB_COUNT - PRINT_JOB_COUNT / 10, queue
+				.sendQueueStateShort(QUEUE, null).split("\n").length);
+	}
+
+	@Test
+	public void testServerProtocolStreamsState() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		LpdServerProtocol serverProtocol = new LpdServerProtocol(
+				new ByteArrayInputStream(("\u0004" + QUEUE + "\n")
+						.getBytes(CHARSET)), bos, queue);
+		serverProtocol.handle();
+
+		// check response
+
+		Assert.assertEquals(queue.sendQueueStateLong(QUEUE, null),
+				bos.toString(CHARSET));
+	}
+
+	@Test
+	public void testChannelServerProtocolStreamsState() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		LpdServerChannelProtocol serverProtocol = new LpdServerChannelProtocol(
+				queue);
+		serverProtocol.receive(ByteBuffer.wrap(("\u0003" + QUEUE + "\n")
+				.getBytes(CHARSET)));
+		Assert.assertTrue(serverProtocol.isFinished());
+		serverProtocol.writeOutput(Channels.newChannel(bos));
+
+		// check response
+
+		Assert.assertFalse(serverProtocol.hasOutput());
+		Assert.assertEquals(queue.sendQueueStateShort(QUEUE, null),
+				bos.toString(CHARSET));
+	}
+
+	@Test
+	public void testClientProtocolReadsLines() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		LpdClientProtocol clientProtocol = new LpdClientProtocol(
+				new ByteArrayInputStream(queue.sendQueueStateShort(QUEUE,
+						null).getBytes(CHARSET)), bos);
+		BufferedReader stateReader = clientProtocol.openShortQueueState(
+				QUEUE, null);
+
+		// check command
+
+		Assert.assertEquals("\u0003" + QUEUE + "\n", bos.toString(CHARSET));
+
+		// check response
+
+		int lines = 0;
+		while (stateReader.readLine() != null) {
+			lines++;
+		}
+		Assert.assertEquals(PRINT_JOB_COUNT, lines);
+	}
+}
@@ -0,0 +1,158 @@
+package open.lpd;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import open.lpd.server.impl.IndexedPrintJob;
+import open.lpd.server.impl.PrintJobIndex;
+import open.lpd.server.impl.PrintJobRecovery;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RecoveryTest {
+
+	private static final String QUEUE = "RAW";
+	private static final byte[] CONTROL_FILE = "Puser\nldfA000localhost\n"
+			.getBytes();
+
+	@Rule
+	public TemporaryFolder queuesFolder = new TemporaryFolder();
+
+	@Rule
+	public TemporaryFolder quarantineFolder = new TemporaryFolder();
+
+	private File createFile(String printJob, String name, byte[] content)
+			throws IOException {
+		File printJobFolder = new File(new File(queuesFolder.getRoot(), QUEUE),
+				printJob);
+		printJobFolder.mkdirs();
+		FileOutputStream fos = new FileOutputStream(new File(printJobFolder,
+				name));
+		try {
+			fos.write(content);
+		} finally {
+			fos.close();
+		}
+		return printJobFolder;
+	}
+
+	private void createPrintJobs() throws IOException {
+
+		// a complete print job, a data file only print job and partial and
+		// orphaned print jobs left behind by a crash
+
+		createFile("1-1", "cfA000localhost", CONTROL_FILE);
+		createFile("1-1", "dfA000localhost", new byte[20]);
+		createFile("1-2", "dfA000localhost", new byte[20]);
+		createFile("1-3", "cfA000localhost", CONTROL_FILE);
+		createFile("1-3", "dfA000localhost.part", new byte[10]);
+		createFile("1-4", "cfA000localhost", CONTROL_FILE);
+		new File(new File(queuesFolder.getRoot(), QUEUE), "1-5").mkdirs();
+		createFile("1-6", "readme.txt", new byte[1]);
+		new File(queuesFolder.getRoot(), "TXT").mkdir();
+	}
+
+	private void assertQuarantined(String printJob, boolean quarantined) {
+		Assert.assertEquals(quarantined, new File(new File(
+				quarantineFolder.getRoot(), QUEUE), printJob).isDirectory());
+		Assert.assertEquals(!quarantined, new File(new File(
+				queuesFolder.getRoot(), QUEUE), printJob).isDirectory());
+	}
+
+	@Test
+	public void testRecover() throws IOException {
+		createPrintJobs();
+		PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		PrintJobRecovery recovery = new PrintJobRecovery(quarantineFolder
+				.getRoot().getPath(), 0);
+		recovery.recover(index);
+
+		// check classification
+
+		Assert.assertTrue(recovery.isFinished());
+		Assert.assertEquals(2, recovery.getCompletePrintJobs());
+		Assert.assertEquals(2, recovery.getPartialPrintJobs());
+		Assert.assertEquals(2, recovery.getOrphanedPrintJobs());
+
+		// check index, only complete print jobs are listed
+
+		Assert.assertTrue(index.queueExists("TXT"));
+		Assert.assertEquals(2, index.getPrintJobs(QUEUE).size());
+		IndexedPrintJob printJob = index.getPrintJob(QUEUE, "1-1");
+		Assert.assertEquals("user", printJob.getPrintJob().getUser());
+		Assert.assertEquals(2, printJob.getFiles().size());
+		Assert.assertNotNull(index.getPrintJob(QUEUE, "1-2"));
+		Assert.assertTrue(index.nextPrintJobName().endsWith("-7"));
+
+		// check quarantine
+
+		assertQuarantined("1-1", false);
+		assertQuarantined("1-2", false);
+		assertQuarantined("1-3", true);
+		assertQuarantined("1-4", true);
+		assertQuarantined("1-5", true);
+		assertQuarantined("1-6", true);
+	}
+
+	@Test
+	public void testRecentPrintJobsAreLeftAlone() throws IOException {
+		createPrintJobs();
+		PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		PrintJobRecovery recovery = new PrintJobRecovery(quarantineFolder
+				.getRoot().getPath(), 60000);
+		recovery.recover(index);
+
+		// partial and orphaned print jobs may still be received by another
+		// server, they are neither listed nor quarantined
+
+		Assert.assertEquals(2, index.getPrintJobs(QUEUE).size());
+		Assert.assertEquals(0, recovery.getPartialPrintJobs());
+		assertQuarantined("1-3", false);
+		assertQuarantined("1-5", false);
+	}
+
+	@Test
+	public void testRecoverLargeQueue() throws IOException {
+
+		// the print job folders of a large queue are scanned in ranges
+
+		for (int i = 0; i < 3000; i++) {
+			createFile("1-" + i, "dfA000localhost", new byte[1]);
+		}
+		PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		PrintJobRecovery recovery = new PrintJobRecovery(quarantineFolder
+				.getRoot().getPath(), 0);
+		recovery.recover(index);
+		Assert.assertEquals(3000, recovery.getCompletePrintJobs());
+		Assert.assertEquals(3000, index.getPrintJobs(QUEUE).size());
+	}
+
+	@Test
+	public void testStartWatchingWithRecovery() throws IOException,
+			InterruptedException {
+		createPrintJobs();
+		PrintJobIndex index = new PrintJobIndex(queuesFolder.getRoot()
+				.getPath());
+		PrintJobRecovery recovery = new PrintJobRecovery(quarantineFolder
+				.getRoot().getPath(), 0);
+		try {
+			index.startWatching(recovery);
+
+			// the queues are known before the recovery has finished
+
+			Assert.assertTrue(index.queueExists(QUEUE));
+			recovery.awaitFinished();
+			Assert.assertEquals(2, index.getPrintJobs(QUEUE).size());
+			Assert.assertTrue(recovery.getRecoveryMillis() > 0);
+		} finally {
+			index.stopWatching();
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package open.lpd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import open.lpd.client.LpdClientProtocol;
+import open.lpd.server.ISegmentPrintJobHandler;
+import open.lpd.server.LpdServerChannelProtocol;
+import open.lpd.server.LpdServerProtocol;
+import open.lpd.server.PrintJob;
+import open.lpd.server.impl.AdmissionControl;
+import open.lpd.server.impl.LpdServerMetrics;
+import open.lpd.server.impl.PrintJobDispatcher;
+import open.lpd.server.impl.SegmentFile;
+import open.lpd.server.impl.SegmentPrintJob;
+import open.lpd.server.impl.SegmentPrintJobQueue;
+import open.lpd.server.impl.SegmentStore;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SegmentQueueTest {
+
+	private static final String QUEUE = "LABEL";
+	private static final String HOST = "localhost";
+	private static final String CONTROL_DATA = "Puser"
+			+ LpdClientProtocol.LPD_LF;
+	private static final String DATA_FILE = "dfA000" + HOST;
+
+	@Rule
+	public TemporaryFolder segmentFolder = new TemporaryFolder();
+
+	private SegmentStore store;
+	private PrintJobDispatcher dispatcher;
+	private List<String> handledData = new ArrayList<String>();
+	private boolean handlerFails;
+
+	private void createStore(long maxSegmentSize) throws IOException {
+		if (store != null) {
+			store.close();
+		}
+		store = new SegmentStore(segmentFolder.getRoot().getPath(),
+				Arrays.asList(QUEUE), maxSegmentSize);
+		store.load();
+		dispatcher = new PrintJobDispatcher(null);
+		dispatcher.setSegmentHandler(new ISegmentPrintJobHandler() {
+
+			@Override
+			public void handle(String queue, SegmentPrintJob printJob)
+					throws IOException {
+
+				// move the data file from its segment to a stream
+
+				if (handlerFails) {
+					throw new IOException("Handler failed.");
+				}
+				SegmentFile dataFile = printJob.getFile(DATA_FILE);
+				Assert.assertEquals("user", printJob.getPrintJob().getUser());
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				dataFile.writeTo(Channels.newChannel(bos));
+				handledData.add(bos.toString(TestConstants.CHARSET));
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (store != null) {
+			store.close();
+		}
+	}
+
+	private SegmentPrintJobQueue createQueue() {
+		return new SegmentPrintJobQueue(store, dispatcher,
+				new AdmissionControl(), new LpdServerMetrics());
+	}
+
+	private String getSendFile() {
+
+		// queue and file names are kept to ascii for the segment folder
+
+		return TestConstants.SEND_FILE.replace(TestConstants.QUEUE, QUEUE)
+				.replace(TestConstants.CLIENT_HOST, HOST).replace(
+				TestConstants.CONTROL_DATA_LENGTH,
+				String.valueOf(CONTROL_DATA.length())).replace(
+				TestConstants.CONTROL_DATA_PATTERN, CONTROL_DATA);
+	}
+
+	private String handle(String input) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		LpdServerProtocol serverProtocol = new LpdServerProtocol(
+				new ByteArrayInputStream(input.getBytes(TestConstants.CHARSET)),
+				bos, createQueue());
+		serverProtocol.setCharset(TestConstants.CHARSET);
+		try {
+			serverProtocol.handle();
+		} catch (IOException e) {
+
+			// a synchronous dispatcher passes the handler failure on
+
+			if (!handlerFails) {
+				throw e;
+			}
+		}
+		return bos.toString(TestConstants.CHARSET);
+	}
+
+	private String handleChannel(String input, int chunkSize)
+			throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		LpdServerChannelProtocol serverProtocol = new LpdServerChannelProtocol(
+				createQueue());
+		serverProtocol.setCharset(TestConstants.CHARSET);
+		byte[] bytes = input.getBytes(TestConstants.CHARSET);
+		for (int i = 0; i < bytes.length; i += chunkSize) {
+			serverProtocol.receive(ByteBuffer.wrap(bytes, i,
+					Math.min(chunkSize, bytes.length - i)));
+		}
+		try {
+			serverProtocol.endOfInput();
+		} catch (IOException e) {
+			if (!handlerFails) {
+				throw e;
+			}
+		}
+		serverProtocol.writeOutput(Channels.newChannel(bos));
+		return bos.toString(TestConstants.CHARSET);
+	}
+
+	private File[] getSegmentFiles() {
+		return new File(segmentFolder.getRoot(), QUEUE).listFiles();
+	}
+
+	@Test
+	public void testReceiveAndHandle() throws IOException {
+		createStore(1024 * 1024);
+		String response = handle(getSendFile());
+
+		// check response and handled print job, its segment is deleted by the
+		// next compaction
+
+		Assert.assertEquals(TestConstants.ACK_STREAM, response);
+		Assert.assertEquals(Arrays.asList(TestConstants.DATA), handledData);
+		Assert.assertTrue(store.getPrintJobs(QUEUE).isEmpty());
+		Assert.assertEquals(1, getSegmentFiles().length);
+		Assert.assertEquals(0, store.getLiveBytes());
+		store.compact();
+		Assert.assertEquals(0, getSegmentFiles().length);
+		Assert.assertEquals(1, store.getCompactedSegments());
+	}
+
+	@Test
+	public void testChannelReceiveAndHandle() throws IOException {
+		createStore(1024 * 1024);
+		String response = handleChannel(getSendFile(), 3);
+
+		// check response and handled print job
+
+		Assert.assertEquals(TestConstants.ACK_STREAM, response);
+		Assert.assertEquals(Arrays.asList(TestConstants.DATA), handledData);
+		Assert.assertEquals(0, store.getLiveBytes());
+	}
+
+	@Test
+	public void testPrintJobsSurviveRestart() throws IOException {
+		createStore(1024 * 1024);
+		handlerFails = true;
+		handle(getSendFile());
+		handleChannel(getSendFile(), 5);
+
+		// both print jobs are appended to the same segment
+
+		Assert.assertEquals(1, getSegmentFiles().length);
+		createStore(1024 * 1024);
+		Assert.assertEquals(2, store.getPrintJobs(QUEUE).size());
+		String state = createQueue().sendQueueStateLong(QUEUE, null);
+		Assert.assertTrue(state.contains("user@"));
+		Assert.assertTrue(state.contains(DATA_FILE + " ("
+				+ TestConstants.DATA.getBytes(TestConstants.CHARSET).length
+				+ " byte)"));
+
+		// print the waiting print jobs again
+
+		handlerFails = false;
+		handle(TestConstants.PRINT_ANY_WAITING_JOBS.replace(
+				TestConstants.QUEUE, QUEUE));
+		Assert.assertEquals(
+				Arrays.asList(TestConstants.DATA, TestConstants.DATA),
+				handledData);
+		Assert.assertTrue(store.getPrintJobs(QUEUE).isEmpty());
+	}
+
+	@Test
+	public void testPartialRecordIsCutOff() throws IOException {
+		createStore(1024 * 1024);
+		handlerFails = true;
+		handle(getSendFile());
+		long size = store.getSizeBytes();
+
+		// the connection closes while the data file is received
+
+		String sendFile = getSendFile();
+		LpdServerChannelProtocol serverProtocol = new LpdServerChannelProtocol(
+				createQueue());
+		serverProtocol.setCharset(TestConstants.CHARSET);
+		serverProtocol.receive(ByteBuffer.wrap(sendFile.substring(0,
+				sendFile.indexOf(TestConstants.DATA) + 2).getBytes(
+				TestConstants.CHARSET)));
+		serverProtocol.close();
+
+		// the control file of the aborted print job is flagged as removed,
+		// its data file record is cut off
+
+		Assert.assertEquals(1, store.getPrintJobs(QUEUE).size());
+		Assert.assertEquals(getSegmentFiles()[0].length(),
+				store.getSizeBytes());
+		Assert.assertEquals(size, store.getLiveBytes());
+	}
+
+	@Test
+	public void testTornRecordIsTruncated() throws IOException {
+		createStore(1024 * 1024);
+		handlerFails = true;
+		handle(getSendFile());
+		long size = store.getSizeBytes();
+		store.close();
+
+		// a crash left the start of a record behind
+
+		RandomAccessFile raf = new RandomAccessFile(getSegmentFiles()[0], "rw");
+		try {
+			raf.seek(size);
+			raf.writeInt(0x4c504453);
+			raf.writeByte(0);
+		} finally {
+			raf.close();
+		}
+		store = null;
+		createStore(1024 * 1024);
+		Assert.assertEquals(1, store.getPrintJobs(QUEUE).size());
+		Assert.assertEquals(size, getSegmentFiles()[0].length());
+	}
+
+	@Test
+	public void testCompactionMovesLivePrintJobs() throws IOException {
+
+		// a segment takes a single print job, then it is full
+
+		createStore(1);
+		handlerFails = true;
+		for (int i = 0; i < 3; i++) {
+			handle(getSendFile());
+		}
+		Assert.assertEquals(3, getSegmentFiles().length);
+
+		// remove two print jobs, their segments are deleted
+
+		List<String> printJobNames = new ArrayList<String>();
+		for (SegmentPrintJob printJob : store.getPrintJobs(QUEUE)) {
+			printJobNames.add(printJob.getName());
+		}
+		createQueue().removeJobs(QUEUE, PrintJob.ROOT,
+				new String[] { printJobNames.get(0), printJobNames.get(2) });
+		store.compact();
+		Assert.assertEquals(1, getSegmentFiles().length);
+		Assert.assertEquals(2, store.getCompactedSegments());
+
+		// the remaining print job is still there after a restart
+
+		createStore(1);
+		Assert.assertEquals(1, store.getPrintJobs(QUEUE).size());
+		Assert.assertEquals(printJobNames.get(1), store.getPrintJobs(QUEUE)
+				.iterator().next().getName());
+	}
+
+	@Test
+	public void testCompactionOfMostlyDeadSegment() throws IOException {
+		createStore(1024 * 1024);
+		handlerFails = true;
+		for (int i = 0; i < 3; i++) {
+			handle(getSendFile());
+		}
+		List<String> printJobNames = new ArrayList<String>();
+		for (SegmentPrintJob printJob : store.getPrintJobs(QUEUE)) {
+			printJobNames.add(printJob.getName());
+		}
+		createQueue().removeJobs(QUEUE, PrintJob.ROOT,
+				new String[] { printJobNames.get(0), printJobNames.get(1) });
+		long liveBytes = store.getLiveBytes();
+		store.compact();
+
+		// the live print job was moved to a new segment
+
+		Assert.assertEquals(1, getSegmentFiles().length);
+		Assert.assertEquals(liveBytes, store.getSizeBytes());
+		handlerFails = false;
+		createStore(1024 * 1024);
+		handle(TestConstants.PRINT_ANY_WAITING_JOBS.replace(
+				TestConstants.QUEUE, QUEUE));
+		Assert.assertEquals(Arrays.asList(TestConstants.DATA), handledData);
+	}
+}
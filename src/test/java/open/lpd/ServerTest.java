@@ -103,6 +103,31 @@ public class ServerTest {
 		Assert.assertTrue(testQueue.isDataFirst());
 	}
 
+	@Test
+	public void testServerProtocolCmd2UnknownLength() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		LpdServerProtocol serverProtocol = createServerProtocol(
+				new ByteArrayInputStream(
+						TestConstants.SEND_DATA_FILE_UNTIL_END
+								.getBytes(TestConstants.CHARSET)), bos);
+		serverProtocol.setCharset(TestConstants.CHARSET);
+		serverProtocol.handle();
+
+		// check response
+
+		Assert.assertEquals(TestConstants.FILE_ACK_STREAM,
+				bos.toString(TestConstants.CHARSET));
+
+		// check queue method has fired
+
+		TestQueue testQueue = (TestQueue) serverProtocol.getQueue();
+		Assert.assertEquals(3, testQueue.getInvocationCount());
+		Assert.assertTrue(testQueue.receiveDataFileHasFired());
+		Assert.assertTrue(testQueue.finishedReceivingAPrinterJobHasFired());
+		Assert.assertEquals(TestConstants.DATA.length(),
+				testQueue.getBytesWritten());
+	}
+
 	@Test
 	public void testServerProtocolCmd2Abort() throws IOException {
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -127,6 +152,37 @@ public class ServerTest {
 		Assert.assertTrue(testQueue.finishedReceivingAPrinterJobHasFired());
 	}
 
+	@Test
+	public void testServerProtocolCmd2AbortFailureIsSuppressed() {
+		final IOException abortFailure = new IOException("Abort failed.");
+		TestQueue testQueue = new TestQueue() {
+
+			@Override
+			public void abortJob() throws IOException {
+				super.abortJob();
+				throw abortFailure;
+			}
+		};
+		LpdServerProtocol serverProtocol = new LpdServerProtocol(
+				new ByteArrayInputStream(("\u0002" + TestConstants.QUEUE
+						+ "\n\u0009unknown\n").getBytes()),
+				new ByteArrayOutputStream(), testQueue);
+		try {
+			serverProtocol.handle();
+			Assert.fail();
+		} catch (IOException e) {
+
+			// the print job broke off because of the unknown sub command, the
+			// failure to abort it is kept along
+
+			Assert.assertTrue(e.getMessage().startsWith("unsupported subCmd"));
+			Assert.assertArrayEquals(new Throwable[] { abortFailure },
+					e.getSuppressed());
+		}
+		Assert.assertTrue(testQueue.abortJobHasFired());
+		Assert.assertTrue(testQueue.finishedReceivingAPrinterJobHasFired());
+	}
+
 	@Test
 	public void testServerProtocolCmd3() throws IOException {
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -0,0 +1,163 @@
+package open.lpd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+
+import open.lpd.client.LpdClientProtocol;
+import open.lpd.server.IPrintJobHandler;
+import open.lpd.server.LpdServerChannelProtocol;
+import open.lpd.server.LpdServerProtocol;
+import open.lpd.server.impl.AdmissionControl;
+import open.lpd.server.impl.FileBasedPrintJobQueue;
+import open.lpd.server.impl.LpdServerMetrics;
+import open.lpd.server.impl.PrintJobDispatcher;
+import open.lpd.server.impl.PrintJobIndex;
+import open.lpd.server.impl.SpoolFile;
+import open.lpd.server.impl.SpoolOptions;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpoolFileTest {
+
+	private static final String QUEUE = "RAW";
+	private static final String HOST = "localhost";
+	private static final String CONTROL_DATA = "Puser"
+			+ LpdClientProtocol.LPD_LF;
+
+	@Rule
+	public TemporaryFolder queuesFolder = new TemporaryFolder();
+
+	private PrintJobIndex index;
+	private FileBasedPrintJobQueue queue;
+
+	@Before
+	public void setUp() throws IOException {
+
+		// the print jobs are kept in the queue folder by a handler that does
+		// nothing
+
+		queuesFolder.newFolder(QUEUE);
+		index = new PrintJobIndex(queuesFolder.getRoot().getPath());
+		index.load();
+		queue = new FileBasedPrintJobQueue(index, new PrintJobDispatcher(
+				new IPrintJobHandler() {
+
+					@Override
+					public void handle(String queue, File printJobFolder) {
+					}
+				}), new AdmissionControl(), new LpdServerMetrics());
+		SpoolOptions spoolOptions = new SpoolOptions();
+		spoolOptions.setPreallocate(true);
+		queue.setSpoolOptions(spoolOptions);
+	}
+
+	private String getSendFile() {
+		// queue and file names are kept to ascii for the queue folder
+
+		return TestConstants.SEND_FILE.replace(TestConstants.QUEUE, QUEUE)
+				.replace(TestConstants.CLIENT_HOST, HOST).replace(
+				TestConstants.CONTROL_DATA_LENGTH,
+				String.valueOf(CONTROL_DATA.length())).replace(
+				TestConstants.CONTROL_DATA_PATTERN, CONTROL_DATA);
+	}
+
+	private File getPrintJobFile(String prefix) {
+		File[] printJobFolders = new File(queuesFolder.getRoot(), QUEUE)
+				.listFiles();
+		Assert.assertEquals(1, printJobFolders.length);
+		for (File file : printJobFolders[0].listFiles()) {
+			if (file.getName().startsWith(prefix)) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void testPreallocateAndTruncate() throws IOException {
+		File file = queuesFolder.newFile("dfA000localhost");
+		SpoolFile spoolFile = new SpoolFile(file, 1000, true);
+		Assert.assertEquals(1000, file.length());
+		spoolFile.write(ByteBuffer.wrap(TestConstants.DATA
+				.getBytes(TestConstants.CHARSET)));
+		spoolFile.close();
+
+		// the unwritten part of the preallocation is cut off
+
+		Assert.assertEquals(TestConstants.DATA.length(), file.length());
+		Assert.assertEquals(TestConstants.DATA, new String(
+				Files.readAllBytes(file.toPath()), TestConstants.CHARSET));
+	}
+
+	@Test
+	public void testReceivePreallocated() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		LpdServerProtocol serverProtocol = new LpdServerProtocol(
+				new ByteArrayInputStream(getSendFile().getBytes(
+						TestConstants.CHARSET)), bos, queue);
+		serverProtocol.setCharset(TestConstants.CHARSET);
+		serverProtocol.handle();
+
+		// check response and received files
+
+		Assert.assertEquals(TestConstants.ACK_STREAM,
+				bos.toString(TestConstants.CHARSET));
+		Assert.assertEquals(CONTROL_DATA.length(), getPrintJobFile("cfA")
+				.length());
+		File dataFile = getPrintJobFile("dfA");
+		Assert.assertEquals(TestConstants.DATA, new String(
+				Files.readAllBytes(dataFile.toPath()), TestConstants.CHARSET));
+	}
+
+	@Test
+	public void testChannelReceivePreallocated() throws IOException {
+		LpdServerChannelProtocol serverProtocol = new LpdServerChannelProtocol(
+				queue);
+		serverProtocol.setCharset(TestConstants.CHARSET);
+		byte[] bytes = getSendFile().getBytes(TestConstants.CHARSET);
+		for (int i = 0; i < bytes.length; i += 3) {
+			serverProtocol.receive(ByteBuffer.wrap(bytes, i,
+					Math.min(3, bytes.length - i)));
+		}
+		serverProtocol.endOfInput();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		serverProtocol.writeOutput(Channels.newChannel(bos));
+
+		// check response and received data file
+
+		Assert.assertEquals(TestConstants.ACK_STREAM,
+				bos.toString(TestConstants.CHARSET));
+		File dataFile = getPrintJobFile("dfA");
+		Assert.assertEquals(TestConstants.DATA, new String(
+				Files.readAllBytes(dataFile.toPath()), TestConstants.CHARSET));
+	}
+
+	@Test
+	public void testPartialTransferIsDiscarded() throws IOException {
+
+		// the data file is preallocated to its announced length
+
+		queue.receiveAPrinterJob(QUEUE);
+		queue.openDataFile(1000, "dfA000" + HOST);
+		Assert.assertEquals(1000, getPrintJobFile("dfA").length());
+		queue.writeFile(ByteBuffer.wrap(TestConstants.DATA
+				.getBytes(TestConstants.CHARSET)));
+
+		// the connection closes before the data file is complete
+
+		queue.closeFile(false);
+		Assert.assertNull(getPrintJobFile("dfA"));
+		queue.abortJob();
+		queue.finishedReceivingAPrinterJob();
+		Assert.assertEquals(0, new File(queuesFolder.getRoot(), QUEUE).list().length);
+	}
+}
@@ -21,6 +21,7 @@ public class TestConstants {
 	public static final String CONTROL_DATA_PATTERN = "([^\u0000]+)";
 	public static final String ACK_STREAM = "\u0000\u0000\u0000\u0000\u0000";
 	public static final String SINGLE_ACK_STREAM = "\u0000";
+	public static final String FILE_ACK_STREAM = "\u0000\u0000\u0000";
 
 	public static final String PRINT_ANY_WAITING_JOBS = "\u0001" + QUEUE
 			+ LpdClientProtocol.LPD_LF;
@@ -47,6 +48,10 @@ public class TestConstants {
 			+ CONTROL_DATA_LENGTH + LpdClientProtocol.LPD_WHITESPACE + "cfA000"
 			+ CLIENT_HOST + LpdClientProtocol.LPD_LF + CONTROL_DATA_PATTERN
 			+ "\u0000";
+	public static final String SEND_DATA_FILE_UNTIL_END = "\u0002" + QUEUE
+			+ LpdClientProtocol.LPD_LF + "\u00030"
+			+ LpdClientProtocol.LPD_WHITESPACE + "dfA000" + CLIENT_HOST
+			+ LpdClientProtocol.LPD_LF + DATA;
 	public static final String ABORT_JOB = "\u0002" + QUEUE
 			+ LpdClientProtocol.LPD_LF + "\u0001" + LpdClientProtocol.LPD_LF;
 }
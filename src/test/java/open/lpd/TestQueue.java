@@ -2,10 +2,14 @@ package open.lpd;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 
-import open.lpd.server.IPrintJobQueue;
+import open.lpd.server.IChannelPrintJobQueue;
 
-public class TestQueue implements IPrintJobQueue {
+public class TestQueue implements IChannelPrintJobQueue {
+
+	private static final int TRANSFER_CHUNK_SIZE = 65536;
 
 	private boolean sendQueueStateShortFired;
 	private boolean sendQueueStateLongFired;
@@ -18,6 +22,7 @@ public class TestQueue implements IPrintJobQueue {
 	private boolean abortJobFired;
 	private int invocationCount;
 	private Boolean dataFirst;
+	private int bytesWritten;
 
 	public TestQueue() {
 		this.invocationCount = 0;
@@ -68,6 +73,10 @@ public class TestQueue implements IPrintJobQueue {
 		return dataFirst;
 	}
 
+	public int getBytesWritten() {
+		return bytesWritten;
+	}
+
 	@Override
 	public String sendQueueStateShort(String queue, String[] list)
 			throws IOException {
@@ -92,19 +101,24 @@ public class TestQueue implements IPrintJobQueue {
 	}
 
 	@Override
-	public byte receiveDataFile(int count, String name,
+	public byte receiveDataFile(long count, String name,
 			InputStream clientInStream) throws IOException {
 		if (dataFirst == null) {
 			dataFirst = true;
 		}
 		invocationCount++;
 		receiveDataFileFired = true;
+		if (count == 0) {
+			while (clientInStream.read() != -1) {
+				bytesWritten++;
+			}
+		}
 		clientInStream.skip(count);
 		return 0;
 	}
 
 	@Override
-	public byte receiveControlFile(int count, String name,
+	public byte receiveControlFile(long count, String name,
 			InputStream clientInStream) throws IOException {
 		if (dataFirst == null) {
 			dataFirst = false;
@@ -139,4 +153,51 @@ public class TestQueue implements IPrintJobQueue {
 		invocationCount++;
 		abortJobFired = true;
 	}
+
+	@Override
+	public byte openControlFile(long count, String name) throws IOException {
+		if (dataFirst == null) {
+			dataFirst = false;
+		}
+		invocationCount++;
+		receiveControlFileFired = true;
+		return 0;
+	}
+
+	@Override
+	public byte openDataFile(long count, String name) throws IOException {
+		if (dataFirst == null) {
+			dataFirst = true;
+		}
+		invocationCount++;
+		receiveDataFileFired = true;
+		return 0;
+	}
+
+	@Override
+	public void writeFile(ByteBuffer buffer) throws IOException {
+		bytesWritten += buffer.remaining();
+		buffer.position(buffer.limit());
+	}
+
+	@Override
+	public long transferFile(ReadableByteChannel clientChannel, long count)
+			throws IOException {
+
+		// an unknown length is passed as Long.MAX_VALUE, so the bytes are
+		// read in bounded chunks
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(count,
+				TRANSFER_CHUNK_SIZE));
+		int bytesRead = clientChannel.read(buffer);
+		if (bytesRead > 0) {
+			bytesWritten += bytesRead;
+		}
+		return Math.max(bytesRead, 0);
+	}
+
+	@Override
+	public byte closeFile(boolean complete) throws IOException {
+		return 0;
+	}
 }